@@ -19,6 +19,7 @@
 package io.github.mzmine.datamodel;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * This class represent detected masses (ions) in one mass spectrum. Each ion is represented by a
@@ -35,4 +36,45 @@ public interface MassList {
   @Nonnull
   public DataPoint[] getDataPoints();
 
+  /**
+   * @return Number of detected masses
+   */
+  public default int getNumberOfDataPoints() {
+    return getDataPoints().length;
+  }
+
+  /**
+   * Returns the m/z values of the detected masses in the order of getDataPoints(), without creating
+   * DataPoint instances. The given array is reused the same way as in MassSpectrum.getMzValues().
+   *
+   * @param dst array to reuse, may be null
+   * @return Array containing the m/z values
+   */
+  @Nonnull
+  public default double[] getMzValues(@Nullable double dst[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    if ((dst == null) || (dst.length < dataPoints.length))
+      dst = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      dst[i] = dataPoints[i].getMZ();
+    return dst;
+  }
+
+  /**
+   * Returns the intensity values of the detected masses in the same order as getMzValues(),
+   * without creating DataPoint instances.
+   *
+   * @param dst array to reuse, may be null
+   * @return Array containing the intensity values
+   */
+  @Nonnull
+  public default double[] getIntensityValues(@Nullable double dst[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    if ((dst == null) || (dst.length < dataPoints.length))
+      dst = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      dst[i] = dataPoints[i].getIntensity();
+    return dst;
+  }
+
 }
@@ -18,6 +18,8 @@
 
 package io.github.mzmine.datamodel;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import com.google.common.collect.Range;
@@ -95,4 +97,84 @@ public interface MassSpectrum {
   @Nonnull
   public DataPoint[] getDataPointsOverIntensity(double intensity);
 
+  /**
+   * Returns the m/z values of this spectrum sorted in m/z order, without creating DataPoint
+   * instances. If the given array can hold getNumberOfDataPoints() values, the values are written
+   * into it and the same array is returned, otherwise a new array is allocated. Only the first
+   * getNumberOfDataPoints() elements of the returned array are valid, so callers can reuse one
+   * array across many spectra. The default implementation sorts a copy of getDataPoints() if they
+   * are not in m/z order.
+   *
+   * This method may need to read data from disk, therefore it may be quite slow.
+   *
+   * @param dst array to reuse, may be null
+   * @return Array containing the m/z values
+   */
+  @Nonnull
+  public default double[] getMzValues(@Nullable double dst[]) {
+    final DataPoint dataPoints[] = getDataPointsInMZOrder();
+    if ((dst == null) || (dst.length < dataPoints.length))
+      dst = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      dst[i] = dataPoints[i].getMZ();
+    return dst;
+  }
+
+  /**
+   * Returns the intensity values of this spectrum in the same order as getMzValues(), without
+   * creating DataPoint instances. The given array is reused the same way as in getMzValues().
+   *
+   * This method may need to read data from disk, therefore it may be quite slow.
+   *
+   * @param dst array to reuse, may be null
+   * @return Array containing the intensity values
+   */
+  @Nonnull
+  public default double[] getIntensityValues(@Nullable double dst[]) {
+    final DataPoint dataPoints[] = getDataPointsInMZOrder();
+    if ((dst == null) || (dst.length < dataPoints.length))
+      dst = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      dst[i] = dataPoints[i].getIntensity();
+    return dst;
+  }
+
+  /**
+   * Reads the m/z and intensity values of this spectrum at once, like getMzValues() and
+   * getIntensityValues(), so that stored spectra are only read once. Both arrays must hold at least
+   * getNumberOfDataPoints() values.
+   *
+   * This method may need to read data from disk, therefore it may be quite slow.
+   *
+   * @param mzValues receives the m/z values sorted in m/z order
+   * @param intensityValues receives the intensity values in the same order
+   * @return Number of values written to each array
+   */
+  public default int getMzAndIntensityValues(@Nonnull double mzValues[],
+      @Nonnull double intensityValues[]) {
+    final DataPoint dataPoints[] = getDataPointsInMZOrder();
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+    return dataPoints.length;
+  }
+
+  /**
+   * @return Data points of getDataPoints(), or a copy of them sorted by m/z if they are not sorted
+   */
+  @Nonnull
+  private DataPoint[] getDataPointsInMZOrder() {
+    DataPoint dataPoints[] = getDataPoints();
+    for (int i = 1; i < dataPoints.length; i++) {
+      if (dataPoints[i].getMZ() < dataPoints[i - 1].getMZ()) {
+        // Stable sort, so getMzValues() and getIntensityValues() return matching orders
+        dataPoints = dataPoints.clone();
+        Arrays.sort(dataPoints, Comparator.comparingDouble(DataPoint::getMZ));
+        break;
+      }
+    }
+    return dataPoints;
+  }
+
 }
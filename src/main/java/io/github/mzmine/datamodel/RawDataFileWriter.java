@@ -28,12 +28,22 @@ import java.io.IOException;
 public interface RawDataFileWriter {
 
   /**
-   * Adds a new scan to the file.
+   * Adds a new scan to the file. Scans of another raw data file can be passed as they are when
+   * their data points are unchanged; their data points are then shared with the original file
+   * instead of being stored again.
    * 
    * @param newScan Scan to add
    */
   public void addScan(Scan newScan) throws IOException;
 
+  /**
+   * Adds a new scan to the file under the given scan number, see {@link #addScan(Scan)}.
+   * 
+   * @param newScan Scan to add
+   * @param scanNumber Scan number of the added scan in this file
+   */
+  public void addScan(Scan newScan, int scanNumber) throws IOException;
+
   /**
    * Finishes writing of the file
    * 
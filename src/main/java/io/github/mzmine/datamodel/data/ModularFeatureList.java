@@ -19,6 +19,9 @@ import io.github.mzmine.datamodel.data.types.FeaturesType;
 import io.github.mzmine.datamodel.data.types.RawColorType;
 import io.github.mzmine.datamodel.data.types.RawFileType;
 import io.github.mzmine.datamodel.data.types.numbers.IDType;
+import io.github.mzmine.util.MZSortedIndex;
+import javafx.beans.InvalidationListener;
+import javafx.beans.property.Property;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableMap;
 
@@ -44,6 +47,11 @@ public class ModularFeatureList implements PeakList {
   private Range<Double> mzRange;
   private Range<Float> rtRange;
 
+  // Rows sorted by m/z for range queries, built on demand and discarded whenever the rows or their
+  // m/z values change
+  private volatile MZSortedIndex<ModularFeatureListRow> rowIndex;
+  private final InvalidationListener rowIndexInvalidator = observable -> rowIndex = null;
+
   public ModularFeatureList(String name) {
     this(name, List.of());
   }
@@ -243,9 +251,20 @@ public class ModularFeatureList implements PeakList {
   public List<ModularFeatureListRow> getRowsInsideScanAndMZRange(Range<Float> rtRange,
       Range<Double> mzRange) {
     // TODO handle if mz or rt is not present
-    return stream().filter(
-        row -> rtRange.contains(row.getRT().getValue()) && mzRange.contains(row.getMZ().getValue()))
-        .collect(Collectors.toList());
+    return getRowIndex().getItemsInside(mzRange, row -> rtRange.contains(row.getRT().getValue()));
+  }
+
+  private MZSortedIndex<ModularFeatureListRow> getRowIndex() {
+    MZSortedIndex<ModularFeatureListRow> index = rowIndex;
+    // rows may also be added or removed directly through getRows()
+    if ((index == null) || (index.size() != peakListRows.size())) {
+      index = new MZSortedIndex<>(peakListRows, row -> {
+        Property<Double> mz = row.getMZ();
+        return (mz == null) || (mz.getValue() == null) ? Double.NaN : mz.getValue();
+      });
+      rowIndex = index;
+    }
+    return index;
   }
 
   @Override
@@ -258,6 +277,9 @@ public class ModularFeatureList implements PeakList {
     }
 
     peakListRows.add(row);
+    if (row.getMZ() != null)
+      row.getMZ().addListener(rowIndexInvalidator);
+    rowIndex = null;
 
     applyRowBindings(row);
 
@@ -310,6 +332,9 @@ public class ModularFeatureList implements PeakList {
   @Override
   public void removeRow(ModularFeatureListRow row) {
     peakListRows.remove(row);
+    if (row.getMZ() != null)
+      row.getMZ().removeListener(rowIndexInvalidator);
+    rowIndex = null;
     updateMaxIntensity();
   }
 
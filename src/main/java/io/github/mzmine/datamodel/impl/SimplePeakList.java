@@ -33,7 +33,9 @@ import io.github.mzmine.datamodel.Feature;
 import io.github.mzmine.datamodel.PeakList;
 import io.github.mzmine.datamodel.PeakListRow;
 import io.github.mzmine.datamodel.RawDataFile;
+import io.github.mzmine.util.MZSortedIndex;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 
 /**
@@ -49,6 +51,10 @@ public class SimplePeakList implements PeakList {
   private String dateCreated;
   private Range<Double> mzRange, rtRange;
 
+  // Rows sorted by average m/z for range queries, built on demand and discarded whenever the rows
+  // or their average values change
+  private volatile MZSortedIndex<PeakListRow> rowIndex;
+
   public static DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
 
   public SimplePeakList(String name, RawDataFile dataFile) {
@@ -70,6 +76,9 @@ public class SimplePeakList implements PeakList {
 
     dateCreated = dateFormat.format(new Date());
 
+    // The rows may also be modified directly through getRows()
+    peakListRows.addListener((ListChangeListener<PeakListRow>) change -> invalidateRowIndex());
+
   }
 
   @Override
@@ -161,14 +170,26 @@ public class SimplePeakList implements PeakList {
 
   @Override
   public PeakListRow[] getRowsInsideScanAndMZRange(Range<Double> rtRange, Range<Double> mzRange) {
-    Vector<PeakListRow> rowsInside = new Vector<PeakListRow>();
+    List<PeakListRow> rowsInside =
+        getRowIndex().getItemsInside(mzRange, row -> rtRange.contains(row.getAverageRT()));
+    return rowsInside.toArray(new PeakListRow[0]);
+  }
 
-    for (PeakListRow row : peakListRows) {
-      if (rtRange.contains(row.getAverageRT()) && mzRange.contains(row.getAverageMZ()))
-        rowsInside.add(row);
+  private MZSortedIndex<PeakListRow> getRowIndex() {
+    MZSortedIndex<PeakListRow> index = rowIndex;
+    if (index == null) {
+      index = new MZSortedIndex<>(peakListRows, PeakListRow::getAverageMZ);
+      rowIndex = index;
     }
+    return index;
+  }
 
-    return rowsInside.toArray(new PeakListRow[0]);
+  /**
+   * Discards the m/z index of the rows. Called when rows are added or removed and when the average
+   * values of a row change.
+   */
+  void invalidateRowIndex() {
+    rowIndex = null;
   }
 
   @Override
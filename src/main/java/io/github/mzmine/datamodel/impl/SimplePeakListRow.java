@@ -176,6 +176,15 @@ public class SimplePeakListRow implements PeakListRow {
     } else {
       rowCharge = 0;
     }
+    averageValuesChanged();
+  }
+
+  /**
+   * Let the feature list discard its m/z index, which is based on the average values of its rows
+   */
+  private void averageValuesChanged() {
+    if (peakList instanceof SimplePeakList)
+      ((SimplePeakList) peakList).invalidateRowIndex();
   }
 
   /**
@@ -224,6 +233,7 @@ public class SimplePeakListRow implements PeakListRow {
   @Override
   public void setAverageMZ(double mz) {
     this.averageMZ = mz;
+    averageValuesChanged();
   }
 
   /**
@@ -232,6 +242,7 @@ public class SimplePeakListRow implements PeakListRow {
   @Override
   public void setAverageRT(double rt) {
     this.averageRT = rt;
+    averageValuesChanged();
   }
 
   /**
@@ -26,6 +26,7 @@ import io.github.mzmine.parameters.ParameterSet;
 import io.github.mzmine.parameters.impl.SimpleParameterSet;
 import io.github.mzmine.parameters.parametertypes.BooleanParameter;
 import io.github.mzmine.parameters.parametertypes.ComboParameter;
+import io.github.mzmine.parameters.parametertypes.IntegerParameter;
 import io.github.mzmine.parameters.parametertypes.ParameterSetParameter;
 import io.github.mzmine.parameters.parametertypes.WindowSettingsParameter;
 import io.github.mzmine.parameters.parametertypes.colorpalette.ColorPaletteParameter;
@@ -55,6 +56,16 @@ public class MZminePreferences extends SimpleParameterSet {
 
   public static final NumOfThreadsParameter numOfThreads = new NumOfThreadsParameter();
 
+  public static final IntegerParameter dataPointsCacheSize = new IntegerParameter(
+      "Data points cache size (MB)",
+      "Maximum memory used per raw data file to keep recently read scans and mass lists, so they do not need to be decoded from the temporary files again. 0 disables the cache.",
+      0, 0, null);
+
+  public static final BooleanParameter extractedIonIndex = new BooleanParameter(
+      "Index data points by m/z",
+      "Keep an index of the data points of each raw data file sorted by m/z in memory (about 12 bytes per data point), built when it is first needed. Extracted ion chromatograms, e.g. in chromatogram plots, gap filling and manual peak picking, then only read the data points in their m/z range instead of all scans.",
+      false);
+
   public static final OptionalModuleParameter proxySettings = new OptionalModuleParameter(
       "Use proxy", "Use proxy for internet connection?", new ProxySettings());
 
@@ -84,8 +95,8 @@ public class MZminePreferences extends SimpleParameterSet {
   
   public MZminePreferences() {
     super(new Parameter[] {colorPalettes, mzFormat, rtFormat, intensityFormat, numOfThreads,
-        proxySettings, rExecPath, sendStatistics, windowSetttings, sendErrorEMail,
-        stdColorPalette, chartParam});
+        dataPointsCacheSize, extractedIonIndex, proxySettings, rExecPath, sendStatistics,
+        windowSetttings, sendErrorEMail, stdColorPalette, chartParam});
   }
 
   @Override
@@ -22,6 +22,7 @@ import java.util.logging.Logger;
 import io.github.mzmine.parameters.Parameter;
 import io.github.mzmine.parameters.dialogs.ParameterSetupDialog;
 import io.github.mzmine.parameters.impl.SimpleParameterSet;
+import io.github.mzmine.parameters.parametertypes.BooleanParameter;
 import io.github.mzmine.parameters.parametertypes.filenames.FileNameListSilentParameter;
 import io.github.mzmine.util.ExitCode;
 
@@ -33,8 +34,26 @@ public class BatchModeParameters extends SimpleParameterSet {
       new FileNameListSilentParameter("Last used files");
   public static final BatchQueueParameter batchQueue = new BatchQueueParameter();
 
+  public static final BooleanParameter processFilesIndependently =
+      new BooleanParameter("Process files independently",
+          "Run consecutive steps which process each file on its own (e.g. import, mass "
+              + "detection, chromatogram builder, deconvolution, isotope grouping) for each file "
+              + "independently, and only wait for all files at steps such as alignment or gap "
+              + "filling",
+          false);
+
+  public static final BooleanParameter removeIntermediateResults =
+      new BooleanParameter("Remove intermediate results",
+          "When processing files independently, remove the raw data files and feature lists which "
+              + "were replaced by the results of a later step of the same file from the project as "
+              + "soon as that step is finished. Intermediate results are kept if a step after "
+              + "the independently processed steps does not work on the results of its previous "
+              + "step.",
+          true);
+
   public BatchModeParameters() {
-    super(new Parameter[] {batchQueue, lastFiles});
+    super(new Parameter[] {batchQueue, processFilesIndependently, removeIntermediateResults,
+        lastFiles});
   }
 
   @Override
@@ -18,6 +18,8 @@
 
 package io.github.mzmine.modules.batchmode;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -52,13 +54,21 @@ public class BatchTask extends AbstractTask {
 
   private MZmineProject project;
   private final BatchQueue queue;
+  private final boolean processFilesIndependently, removeIntermediateResults;
 
   private List<RawDataFile> createdDataFiles, previousCreatedDataFiles;
   private List<PeakList> createdPeakLists, previousCreatedPeakLists;
 
+  // Timing of the processed steps, reported at the end of the batch
+  private final List<StepStatistics> stepStatistics = new ArrayList<>();
+
   BatchTask(MZmineProject project, ParameterSet parameters) {
     this.project = project;
     this.queue = parameters.getParameter(BatchModeParameters.batchQueue).getValue();
+    this.processFilesIndependently =
+        parameters.getParameter(BatchModeParameters.processFilesIndependently).getValue();
+    this.removeIntermediateResults =
+        parameters.getParameter(BatchModeParameters.removeIntermediateResults).getValue();
     totalSteps = queue.size();
     createdDataFiles = new ArrayList<>();
     createdPeakLists = new ArrayList<>();
@@ -72,27 +82,97 @@ public class BatchTask extends AbstractTask {
     setStatus(TaskStatus.PROCESSING);
     logger.info("Starting a batch of " + totalSteps + " steps");
 
-
-
     // Process individual batch steps
-    for (int i = 0; i < totalSteps; i++) {
+    for (int i = 0; i < totalSteps; i = processedSteps) {
+
+      final long startTime = System.nanoTime();
+      final long startCpuTime = getProcessCpuTime();
+      final int dataFilesBefore = project.getRawDataFiles().size();
+      final int peakListsBefore = project.getFeatureLists().size();
+
+      // Consecutive steps which process each file on its own may be run for each file
+      // independently
+      int numOfTasks = -1;
+      final int segmentEnd =
+          processFilesIndependently ? PerFilePipeline.getSegmentEnd(queue, i) : i + 1;
+      if (segmentEnd - i > 1)
+        numOfTasks = processPerFileSteps(i, segmentEnd);
+
+      String steps, moduleName;
+      if (numOfTasks >= 0) {
+        processedSteps = segmentEnd;
+        steps = (i + 1) + "-" + segmentEnd;
+        moduleName = "Files processed independently";
+      } else {
+        numOfTasks = processQueueStep(i);
+        processedSteps++;
+        steps = String.valueOf(i + 1);
+        moduleName = queue.get(i).getModule().getName();
+      }
 
-      processQueueStep(i);
-      processedSteps++;
+      final long cpuTime = (startCpuTime < 0) ? -1 : getProcessCpuTime() - startCpuTime;
+      stepStatistics.add(new StepStatistics(steps, moduleName, System.nanoTime() - startTime,
+          cpuTime, numOfTasks, project.getRawDataFiles().size() - dataFilesBefore,
+          project.getFeatureLists().size() - peakListsBefore));
 
       // If we are canceled or ran into error, stop here
       if (isCanceled() || (getStatus() == TaskStatus.ERROR)) {
+        logStepStatistics();
         return;
       }
 
     }
 
     logger.info("Finished a batch of " + totalSteps + " steps");
+    logStepStatistics();
     setStatus(TaskStatus.FINISHED);
 
   }
 
-  private void processQueueStep(int stepNumber) {
+  /**
+   * Runs the given steps for each file independently and waits until all files are processed
+   * 
+   * @return Number of tasks the steps were processed with, or -1 if the results of the previous
+   *         steps cannot be split by file
+   */
+  private int processPerFileSteps(int firstStep, int endStep) {
+
+    // If the last step did not produce any data files or feature lists, use
+    // the ones from the previous step
+    final List<RawDataFile> lastDataFiles =
+        createdDataFiles.isEmpty() ? previousCreatedDataFiles : createdDataFiles;
+    final List<PeakList> lastPeakLists =
+        createdPeakLists.isEmpty() ? previousCreatedPeakLists : createdPeakLists;
+
+    // Intermediate results can only be removed if no later step may select them
+    final boolean releaseIntermediates = removeIntermediateResults
+        && PerFilePipeline.usesOnlyLastResults(queue.subList(endStep, queue.size()));
+
+    PerFilePipeline pipeline = PerFilePipeline.create(this, project,
+        queue.subList(firstStep, endStep), lastDataFiles, lastPeakLists, releaseIntermediates);
+    if (pipeline == null)
+      return -1;
+
+    logger.info("Starting steps # " + (firstStep + 1) + " to # " + endStep + " for each file");
+    pipeline.run();
+
+    // The results of all files are the input of the next step
+    createdDataFiles = pipeline.getResultDataFiles();
+    createdPeakLists = pipeline.getResultPeakLists();
+    if (!createdDataFiles.isEmpty())
+      previousCreatedDataFiles = createdDataFiles;
+    if (!createdPeakLists.isEmpty())
+      previousCreatedPeakLists = createdPeakLists;
+
+    return pipeline.getNumOfTasks();
+  }
+
+  /**
+   * Runs one batch step and waits until all its tasks are finished
+   * 
+   * @return Number of tasks the step was processed with
+   */
+  private int processQueueStep(int stepNumber) {
 
     logger.info("Starting step # " + (stepNumber + 1));
 
@@ -122,7 +202,7 @@ public class BatchTask extends AbstractTask {
           setStatus(TaskStatus.ERROR);
           setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
               + "Missing parameter value for " + p.getName());
-          return;
+          return 0;
         }
         selectedFiles.setBatchLastFiles(createdFiles);
       }
@@ -144,7 +224,7 @@ public class BatchTask extends AbstractTask {
           setStatus(TaskStatus.ERROR);
           setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
               + "Missing parameter value for " + p.getName());
-          return;
+          return 0;
         }
         selectedPeakLists.setBatchLastPeakLists(createdPls);
       }
@@ -172,69 +252,81 @@ public class BatchTask extends AbstractTask {
     if (exitCode != ExitCode.OK) {
       setStatus(TaskStatus.ERROR);
       setErrorMessage("Could not start batch step " + method.getName());
-      return;
+      return 0;
     }
 
     // If current step didn't produce any tasks, continue with next step
     if (currentStepTasks.isEmpty())
-      return;
-
-    boolean allTasksFinished = false;
+      return 0;
 
-    // Submit the tasks to the task controller for processing
+    // Submit the tasks to the task controller for processing. The tasks report their status
+    // changes, so the next step starts as soon as the last task is finished.
+    final StepCompletion completion = new StepCompletion(currentStepTasks);
     MZmineCore.getTaskController().addTasks(currentStepTasks.toArray(new Task[0]));
 
-    while (!allTasksFinished) {
+    final Task failedTask = completion.await(this);
 
-      // If we canceled the batch, cancel all running tasks
-      if (isCanceled()) {
-        for (Task stepTask : currentStepTasks)
-          stepTask.cancel();
-        return;
-      }
-
-      // First set to true, then check all tasks
-      allTasksFinished = true;
-
-      for (Task stepTask : currentStepTasks) {
-
-        TaskStatus stepStatus = stepTask.getStatus();
+    // If we canceled the batch, cancel all running tasks
+    if (isCanceled()) {
+      for (Task stepTask : currentStepTasks)
+        stepTask.cancel();
+      return currentStepTasks.size();
+    }
 
-        // If any of them is not finished, keep checking
-        if (stepStatus != TaskStatus.FINISHED)
-          allTasksFinished = false;
+    if (failedTask != null) {
 
-        // If there was an error, we have to stop the whole batch
-        if (stepStatus == TaskStatus.ERROR) {
-          setStatus(TaskStatus.ERROR);
-          setErrorMessage(stepTask.getTaskDescription() + ": " + stepTask.getErrorMessage());
-          return;
-        }
+      // If there was an error, we have to stop the whole batch
+      if (failedTask.getStatus() == TaskStatus.ERROR) {
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage(failedTask.getTaskDescription() + ": " + failedTask.getErrorMessage());
+        return currentStepTasks.size();
+      }
 
-        // If user canceled any of the tasks, we have to cancel the
-        // whole batch
-        if (stepStatus == TaskStatus.CANCELED) {
-          setStatus(TaskStatus.CANCELED);
-          for (Task t : currentStepTasks)
-            t.cancel();
-          return;
-        }
+      // If user canceled any of the tasks, we have to cancel the
+      // whole batch
+      setStatus(TaskStatus.CANCELED);
+      for (Task t : currentStepTasks)
+        t.cancel();
+    }
 
-      }
+    return currentStepTasks.size();
 
-      // Wait 1s before checking the tasks again
-      if (!allTasksFinished) {
-        synchronized (this) {
-          try {
-            this.wait(1000);
-          } catch (InterruptedException e) {
-            // ignore
-          }
-        }
-      }
+  }
 
+  /**
+   * Writes the wall time, CPU time, number of tasks and number of created files of each processed
+   * step to the log
+   */
+  private void logStepStatistics() {
+
+    StringBuilder report = new StringBuilder("Batch step statistics:\n");
+    report.append(String.format("%5s %-40s %12s %12s %8s %10s %14s%n", "Step", "Module",
+        "Wall time", "CPU time", "Tasks", "New files", "New peak lists"));
+
+    for (StepStatistics step : stepStatistics) {
+      final String cpuTime =
+          (step.cpuTime < 0) ? "n/a" : String.format("%.2f s", step.cpuTime / 1e9);
+      final double wallSeconds = step.wallTime / 1e9;
+      report.append(String.format("%5s %-40s %10.2f s %12s %8d %10d %14d", step.steps,
+          step.moduleName, wallSeconds, cpuTime, step.numOfTasks, step.numOfCreatedDataFiles,
+          step.numOfCreatedPeakLists));
+      if ((step.numOfTasks > 0) && (wallSeconds > 0))
+        report.append(String.format("  (%.1f tasks/s)", step.numOfTasks / wallSeconds));
+      report.append('\n');
     }
 
+    logger.info(report.toString());
+  }
+
+  /**
+   * @return CPU time used by the whole MZmine process in nanoseconds, or -1 if the JVM does not
+   *         provide it
+   */
+  private static long getProcessCpuTime() {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean)
+      return ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuTime();
+    return -1;
   }
 
   @Override
@@ -255,4 +347,23 @@ public class BatchTask extends AbstractTask {
     return "Batch of " + totalSteps + " steps";
   }
 
+  private static class StepStatistics {
+
+    private final String steps;
+    private final String moduleName;
+    private final long wallTime, cpuTime;
+    private final int numOfTasks, numOfCreatedDataFiles, numOfCreatedPeakLists;
+
+    StepStatistics(String steps, String moduleName, long wallTime, long cpuTime, int numOfTasks,
+        int numOfCreatedDataFiles, int numOfCreatedPeakLists) {
+      this.steps = steps;
+      this.moduleName = moduleName;
+      this.wallTime = wallTime;
+      this.cpuTime = cpuTime;
+      this.numOfTasks = numOfTasks;
+      this.numOfCreatedDataFiles = numOfCreatedDataFiles;
+      this.numOfCreatedPeakLists = numOfCreatedPeakLists;
+    }
+  }
+
 }
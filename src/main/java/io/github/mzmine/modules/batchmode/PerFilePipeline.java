@@ -0,0 +1,594 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package io.github.mzmine.modules.batchmode;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import io.github.mzmine.datamodel.MZmineProject;
+import io.github.mzmine.datamodel.PeakList;
+import io.github.mzmine.datamodel.RawDataFile;
+import io.github.mzmine.gui.preferences.MZminePreferences;
+import io.github.mzmine.gui.preferences.NumOfThreadsParameter;
+import io.github.mzmine.main.MZmineCore;
+import io.github.mzmine.modules.MZmineModuleCategory;
+import io.github.mzmine.modules.MZmineProcessingModule;
+import io.github.mzmine.modules.MZmineProcessingStep;
+import io.github.mzmine.modules.io.rawdataimport.FileNamesParameter;
+import io.github.mzmine.modules.io.rawdataimport.RawDataImportModule;
+import io.github.mzmine.modules.io.rawdataimport.RawDataImportParameters;
+import io.github.mzmine.parameters.Parameter;
+import io.github.mzmine.parameters.ParameterSet;
+import io.github.mzmine.parameters.UserParameter;
+import io.github.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
+import io.github.mzmine.parameters.parametertypes.selectors.PeakListsSelection;
+import io.github.mzmine.parameters.parametertypes.selectors.PeakListsSelectionType;
+import io.github.mzmine.parameters.parametertypes.selectors.RawDataFilesParameter;
+import io.github.mzmine.parameters.parametertypes.selectors.RawDataFilesSelection;
+import io.github.mzmine.parameters.parametertypes.selectors.RawDataFilesSelectionType;
+import io.github.mzmine.taskcontrol.Task;
+import io.github.mzmine.taskcontrol.TaskStatus;
+import io.github.mzmine.util.ExitCode;
+import javafx.beans.property.ListProperty;
+import javafx.collections.ObservableList;
+
+/**
+ * Runs consecutive batch steps which process each raw data file on its own (raw data import,
+ * filtering, mass detection, chromatogram building, deconvolution, isotope grouping...) for each
+ * file independently. A file continues with its next step as soon as its own tasks are finished,
+ * and only as many files are processed at the same time as there are threads, so only the
+ * intermediate results of these files are held in memory. If enabled, the raw data files and
+ * feature lists of a file are removed from the project as soon as the step which used them is
+ * finished. The batch synchronizes again at the first step which needs all files together, such as
+ * alignment or gap filling.
+ */
+class PerFilePipeline {
+
+  private static final Logger logger = Logger.getLogger(PerFilePipeline.class.getName());
+
+  /**
+   * Modules of these categories process every raw data file or feature list separately
+   */
+  private static final Set<MZmineModuleCategory> singleFileCategories =
+      EnumSet.of(MZmineModuleCategory.RAWDATAFILTERING, MZmineModuleCategory.PEAKPICKING,
+          MZmineModuleCategory.PEAKLISTPICKING, MZmineModuleCategory.SPECTRALDECONVOLUTION,
+          MZmineModuleCategory.ISOTOPES);
+
+  private final BatchTask batchTask;
+  private final MZmineProject project;
+  private final List<MZmineProcessingStep<MZmineProcessingModule>> steps;
+  private final List<FileLane> lanes;
+  private final boolean releaseIntermediates;
+
+  // Lanes whose current step is completed, in the order of completion
+  private final BlockingQueue<FileLane> completedLanes = new LinkedBlockingQueue<>();
+
+  private int numOfTasks = 0;
+
+  private PerFilePipeline(BatchTask batchTask, MZmineProject project,
+      List<MZmineProcessingStep<MZmineProcessingModule>> steps, List<FileLane> lanes,
+      boolean releaseIntermediates) {
+    this.batchTask = batchTask;
+    this.project = project;
+    this.steps = steps;
+    this.lanes = lanes;
+    this.releaseIntermediates = releaseIntermediates;
+  }
+
+  /**
+   * Returns the end (exclusive) of the longest sequence of steps, starting at the given step, which
+   * can be run for each file independently. Raw data import can only start such a sequence, because
+   * it defines the files.
+   */
+  static int getSegmentEnd(List<MZmineProcessingStep<MZmineProcessingModule>> queue,
+      int firstStep) {
+    int end = firstStep;
+    while ((end < queue.size()) && isSingleFileStep(queue.get(end), end == firstStep))
+      end++;
+    return end;
+  }
+
+  private static boolean isSingleFileStep(MZmineProcessingStep<MZmineProcessingModule> step,
+      boolean firstStep) {
+
+    final MZmineProcessingModule module = step.getModule();
+    final ParameterSet parameters = step.getParameterSet();
+
+    if (module instanceof RawDataImportModule) {
+      File fileNames[] = parameters.getParameter(RawDataImportParameters.fileNames).getValue();
+      return firstStep && (fileNames != null) && (fileNames.length > 0);
+    }
+
+    if (!singleFileCategories.contains(module.getModuleCategory()))
+      return false;
+
+    // The step has to work on the results of the previous steps, and on nothing else
+    if (!usesOnlyLastResults(parameters))
+      return false;
+    for (Parameter<?> p : parameters.getParameters()) {
+      if ((p instanceof RawDataFilesParameter) || (p instanceof PeakListsParameter))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return True if all raw data file and feature list selections of the given steps use the
+   *         results of the previous step, so the steps never select older intermediate results
+   */
+  static boolean usesOnlyLastResults(List<MZmineProcessingStep<MZmineProcessingModule>> steps) {
+    for (MZmineProcessingStep<MZmineProcessingModule> step : steps) {
+      if (!usesOnlyLastResults(step.getParameterSet()))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean usesOnlyLastResults(ParameterSet parameters) {
+    for (Parameter<?> p : parameters.getParameters()) {
+      if (p instanceof RawDataFilesParameter) {
+        RawDataFilesSelection selection = ((RawDataFilesParameter) p).getValue();
+        if ((selection == null)
+            || (selection.getSelectionType() != RawDataFilesSelectionType.BATCH_LAST_FILES))
+          return false;
+      }
+      if (p instanceof PeakListsParameter) {
+        PeakListsSelection selection = ((PeakListsParameter) p).getValue();
+        if ((selection == null)
+            || (selection.getSelectionType() != PeakListsSelectionType.BATCH_LAST_PEAKLISTS))
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Splits the input of the given steps by raw data file.
+   * 
+   * @param dataFiles raw data files created by the previous steps
+   * @param peakLists feature lists created by the previous steps
+   * @param releaseIntermediates remove the raw data files and feature lists of a file from the
+   *        project as soon as they are replaced by the results of a later step
+   * @return The pipeline, or null if the input cannot be split into at least two files
+   */
+  static PerFilePipeline create(BatchTask batchTask, MZmineProject project,
+      List<MZmineProcessingStep<MZmineProcessingModule>> steps, List<RawDataFile> dataFiles,
+      List<PeakList> peakLists, boolean releaseIntermediates) {
+
+    List<FileLane> lanes = new ArrayList<>();
+    MZmineProcessingStep<MZmineProcessingModule> firstStep = steps.get(0);
+
+    if (firstStep.getModule() instanceof RawDataImportModule) {
+      File fileNames[] =
+          firstStep.getParameterSet().getParameter(RawDataImportParameters.fileNames).getValue();
+      for (File fileName : fileNames)
+        lanes.add(new FileLane(fileName.getName(), fileName));
+    } else {
+      Map<RawDataFile, FileLane> lanesByFile = new LinkedHashMap<>();
+      for (RawDataFile dataFile : dataFiles) {
+        FileLane lane = lanesByFile.computeIfAbsent(dataFile, f -> new FileLane(f.getName(), null));
+        lane.dataFiles.add(dataFile);
+      }
+      for (PeakList peakList : peakLists) {
+        // Feature lists of several files (e.g. aligned) cannot be split
+        if (peakList.getNumberOfRawDataFiles() != 1)
+          return null;
+        FileLane lane = lanesByFile.computeIfAbsent(peakList.getRawDataFile(0),
+            f -> new FileLane(f.getName(), null));
+        lane.peakLists.add(peakList);
+      }
+      lanes.addAll(lanesByFile.values());
+    }
+
+    if (lanes.size() < 2)
+      return null;
+
+    return new PerFilePipeline(batchTask, project, steps, lanes, releaseIntermediates);
+  }
+
+  /**
+   * Runs all steps for all files. Errors and cancellation are reported by setting the status of
+   * the batch task.
+   */
+  void run() {
+
+    logger.info("Processing " + lanes.size() + " files independently in " + steps.size()
+        + " steps");
+
+    final int maxActiveLanes = getMaxActiveLanes();
+    ArrayDeque<FileLane> waitingLanes = new ArrayDeque<>(lanes);
+    List<FileLane> activeLanes = new ArrayList<>();
+
+    while (!waitingLanes.isEmpty() || !activeLanes.isEmpty()) {
+
+      while ((activeLanes.size() < maxActiveLanes) && !waitingLanes.isEmpty()) {
+        FileLane lane = waitingLanes.poll();
+        activeLanes.add(lane);
+        if (!startNextStep(lane)) {
+          cancelTasks(activeLanes);
+          return;
+        }
+      }
+
+      // Wait for the next completed step, but wake up regularly to notice if the batch was
+      // canceled or tasks which cannot report their status changes are done
+      FileLane lane;
+      try {
+        lane = completedLanes.poll(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        lane = null;
+      }
+
+      if (batchTask.isCanceled()) {
+        cancelTasks(activeLanes);
+        return;
+      }
+
+      if (lane == null) {
+        for (FileLane activeLane : activeLanes) {
+          if (activeLane.completion != null)
+            activeLane.completion.checkUnobservedTasks();
+        }
+        continue;
+      }
+
+      Task failedTask = (lane.completion == null) ? null : lane.completion.getFuture().getNow(null);
+      if (failedTask != null) {
+        // If there was an error, we have to stop the whole batch. If user canceled any of the
+        // tasks, we have to cancel the whole batch.
+        if (failedTask.getStatus() == TaskStatus.ERROR) {
+          batchTask.setStatus(TaskStatus.ERROR);
+          batchTask.setErrorMessage(
+              failedTask.getTaskDescription() + ": " + failedTask.getErrorMessage());
+        } else {
+          batchTask.setStatus(TaskStatus.CANCELED);
+        }
+        cancelTasks(activeLanes);
+        return;
+      }
+
+      final List<RawDataFile> previousDataFiles = lane.dataFiles;
+      final List<PeakList> previousPeakLists = lane.peakLists;
+      lane.finishStep();
+      if (releaseIntermediates)
+        releaseIntermediates(lane, previousDataFiles, previousPeakLists);
+
+      if (lane.nextStep < steps.size()) {
+        if (!startNextStep(lane)) {
+          cancelTasks(activeLanes);
+          return;
+        }
+      } else {
+        logger.finest("Finished processing " + lane.name);
+        activeLanes.remove(lane);
+      }
+    }
+
+  }
+
+  /**
+   * Starts the next step of the given lane. When the tasks of the step are completed, the lane is
+   * added to completedLanes.
+   * 
+   * @return false if the step could not be started, in which case the status of the batch task is
+   *         set to ERROR
+   */
+  private boolean startNextStep(FileLane lane) {
+
+    MZmineProcessingStep<MZmineProcessingModule> step = steps.get(lane.nextStep);
+    MZmineProcessingModule method = step.getModule();
+
+    // Restrict the parameters to the files of this lane
+    ParameterSet parameters = step.getParameterSet().cloneParameterSet();
+    for (Parameter<?> p : parameters.getParameters()) {
+      if (p instanceof RawDataFilesParameter) {
+        ((RawDataFilesParameter) p).getValue()
+            .setBatchLastFiles(lane.dataFiles.toArray(new RawDataFile[0]));
+      }
+      if (p instanceof PeakListsParameter) {
+        ((PeakListsParameter) p).getValue()
+            .setBatchLastPeakLists(lane.peakLists.toArray(new PeakList[0]));
+      }
+      if (p instanceof FileNamesParameter) {
+        ((FileNamesParameter) p).setValue(new File[] {lane.importFile});
+      }
+    }
+
+    // Check if the parameter settings are valid
+    ArrayList<String> messages = new ArrayList<String>();
+    if (!parameters.checkParameterValues(messages)) {
+      batchTask.setStatus(TaskStatus.ERROR);
+      batchTask.setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
+          + Arrays.toString(messages.toArray()));
+      return false;
+    }
+
+    lane.project = new LaneProject(project);
+    lane.tasks = new ArrayList<Task>();
+    ExitCode exitCode = method.runModule(lane.project, parameters, lane.tasks);
+
+    if (exitCode != ExitCode.OK) {
+      batchTask.setStatus(TaskStatus.ERROR);
+      batchTask.setErrorMessage(
+          "Could not start batch step " + method.getName() + " for " + lane.name);
+      return false;
+    }
+
+    numOfTasks += lane.tasks.size();
+
+    // If the step didn't produce any tasks, continue with next step
+    if (lane.tasks.isEmpty()) {
+      lane.completion = null;
+      completedLanes.add(lane);
+      return true;
+    }
+
+    lane.completion = new StepCompletion(lane.tasks);
+    lane.completion.getFuture().thenRun(() -> completedLanes.add(lane));
+    MZmineCore.getTaskController().addTasks(lane.tasks.toArray(new Task[0]));
+    return true;
+  }
+
+  /**
+   * Removes the raw data files and feature lists which the last step of the lane replaced from the
+   * project. The following steps only use the results of the last step, so nothing uses them any
+   * more. Raw data files are kept while a feature list of the lane still refers to them.
+   */
+  private void releaseIntermediates(FileLane lane, List<RawDataFile> previousDataFiles,
+      List<PeakList> previousPeakLists) {
+
+    for (PeakList peakList : previousPeakLists) {
+      if (!lane.peakLists.contains(peakList)) {
+        logger.finest("Removing intermediate feature list " + peakList.getName());
+        project.removePeakList(peakList);
+      }
+    }
+
+    for (RawDataFile dataFile : previousDataFiles) {
+      if (!lane.dataFiles.contains(dataFile) && !lane.replacedDataFiles.contains(dataFile))
+        lane.replacedDataFiles.add(dataFile);
+    }
+
+    for (Iterator<RawDataFile> it = lane.replacedDataFiles.iterator(); it.hasNext();) {
+      final RawDataFile dataFile = it.next();
+      if (lane.peakLists.stream().anyMatch(peakList -> peakList.hasRawDataFile(dataFile)))
+        continue;
+      logger.finest("Removing intermediate raw data file " + dataFile.getName());
+      project.removeFile(dataFile);
+      it.remove();
+    }
+  }
+
+  private void cancelTasks(List<FileLane> activeLanes) {
+    for (FileLane lane : activeLanes) {
+      if (lane.tasks == null)
+        continue;
+      for (Task task : lane.tasks)
+        task.cancel();
+    }
+  }
+
+  /**
+   * Obtain the settings of max concurrent threads
+   */
+  private int getMaxActiveLanes() {
+    NumOfThreadsParameter parameter =
+        MZmineCore.getConfiguration().getPreferences().getParameter(MZminePreferences.numOfThreads);
+    if (parameter.isAutomatic() || (parameter.getValue() == null))
+      return Runtime.getRuntime().availableProcessors();
+    else
+      return Math.max(1, parameter.getValue());
+  }
+
+  /**
+   * @return Number of tasks which were started
+   */
+  int getNumOfTasks() {
+    return numOfTasks;
+  }
+
+  /**
+   * @return The last raw data files of all files, in the order of the input
+   */
+  List<RawDataFile> getResultDataFiles() {
+    List<RawDataFile> result = new ArrayList<>();
+    for (FileLane lane : lanes)
+      result.addAll(lane.dataFiles);
+    return result;
+  }
+
+  /**
+   * @return The last feature lists of all files, in the order of the input
+   */
+  List<PeakList> getResultPeakLists() {
+    List<PeakList> result = new ArrayList<>();
+    for (FileLane lane : lanes)
+      result.addAll(lane.peakLists);
+    return result;
+  }
+
+  /**
+   * The state of one file in the pipeline
+   */
+  private static class FileLane {
+
+    private final String name;
+
+    // Only set if the pipeline starts with raw data import
+    private final File importFile;
+
+    // Last created raw data files and feature lists of this file
+    private List<RawDataFile> dataFiles = new ArrayList<>();
+    private List<PeakList> peakLists = new ArrayList<>();
+
+    // Replaced raw data files which are still used by the feature lists of this file
+    private final List<RawDataFile> replacedDataFiles = new ArrayList<>();
+
+    private int nextStep = 0;
+    private LaneProject project;
+    private List<Task> tasks;
+    private StepCompletion completion;
+
+    FileLane(String name, File importFile) {
+      this.name = name;
+      this.importFile = importFile;
+    }
+
+    /**
+     * If the finished step did not produce any data files or feature lists, keep the ones from the
+     * previous step
+     */
+    void finishStep() {
+      if (!project.addedDataFiles.isEmpty())
+        dataFiles = new ArrayList<>(project.addedDataFiles);
+      if (!project.addedPeakLists.isEmpty())
+        peakLists = new ArrayList<>(project.addedPeakLists);
+      project = null;
+      tasks = null;
+      completion = null;
+      nextStep++;
+    }
+  }
+
+  /**
+   * Passes all calls to the project, but remembers which raw data files and feature lists the
+   * tasks of one step of one file added. Looking at the whole project would not tell apart the
+   * results of files which are processed at the same time.
+   */
+  private static class LaneProject implements MZmineProject {
+
+    private final MZmineProject project;
+    private final List<RawDataFile> addedDataFiles =
+        Collections.synchronizedList(new ArrayList<>());
+    private final List<PeakList> addedPeakLists = Collections.synchronizedList(new ArrayList<>());
+
+    LaneProject(MZmineProject project) {
+      this.project = project;
+    }
+
+    @Override
+    public File getProjectFile() {
+      return project.getProjectFile();
+    }
+
+    @Override
+    public void addParameter(UserParameter<?, ?> parameter) {
+      project.addParameter(parameter);
+    }
+
+    @Override
+    public void removeParameter(UserParameter<?, ?> parameter) {
+      project.removeParameter(parameter);
+    }
+
+    @Override
+    public boolean hasParameter(UserParameter<?, ?> parameter) {
+      return project.hasParameter(parameter);
+    }
+
+    @Override
+    public UserParameter<?, ?>[] getParameters() {
+      return project.getParameters();
+    }
+
+    @Override
+    public void setParameterValue(UserParameter<?, ?> parameter, RawDataFile rawDataFile,
+        Object value) {
+      project.setParameterValue(parameter, rawDataFile, value);
+    }
+
+    @Override
+    public Object getParameterValue(UserParameter<?, ?> parameter, RawDataFile rawDataFile) {
+      return project.getParameterValue(parameter, rawDataFile);
+    }
+
+    @Override
+    public void addFile(RawDataFile newFile) {
+      addedDataFiles.add(newFile);
+      project.addFile(newFile);
+    }
+
+    @Override
+    public void removeFile(RawDataFile file) {
+      addedDataFiles.remove(file);
+      project.removeFile(file);
+    }
+
+    @Override
+    public RawDataFile[] getDataFiles() {
+      return project.getDataFiles();
+    }
+
+    @Override
+    public void addPeakList(PeakList peaklist) {
+      addedPeakLists.add(peaklist);
+      project.addPeakList(peaklist);
+    }
+
+    @Override
+    public void removePeakList(PeakList peaklist) {
+      addedPeakLists.remove(peaklist);
+      project.removePeakList(peaklist);
+    }
+
+    @Override
+    public PeakList[] getPeakLists() {
+      return project.getPeakLists();
+    }
+
+    @Override
+    public ObservableList<RawDataFile> getRawDataFiles() {
+      return project.getRawDataFiles();
+    }
+
+    @Override
+    public ListProperty<RawDataFile> rawDataFilesProperty() {
+      return project.rawDataFilesProperty();
+    }
+
+    @Override
+    public ObservableList<PeakList> getFeatureLists() {
+      return project.getFeatureLists();
+    }
+
+    @Override
+    public ListProperty<PeakList> featureListsProperty() {
+      return project.featureListsProperty();
+    }
+
+    @Override
+    public PeakList[] getPeakLists(RawDataFile file) {
+      return project.getPeakLists(file);
+    }
+  }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package io.github.mzmine.modules.batchmode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import io.github.mzmine.taskcontrol.AbstractTask;
+import io.github.mzmine.taskcontrol.Task;
+import io.github.mzmine.taskcontrol.TaskStatus;
+import io.github.mzmine.taskcontrol.TaskStatusListener;
+
+/**
+ * Completes when all tasks of a batch step are finished, or as soon as one of them ends with an
+ * error or is canceled. Tasks which do not extend AbstractTask cannot report their status changes,
+ * so they have to be checked by calling checkUnobservedTasks().
+ */
+class StepCompletion implements TaskStatusListener {
+
+  private final CompletableFuture<Task> failedTask = new CompletableFuture<>();
+  private final AtomicInteger unfinishedTasks;
+  private final List<Task> unobservedTasks = new ArrayList<>();
+
+  StepCompletion(List<Task> tasks) {
+    unfinishedTasks = new AtomicInteger(tasks.size());
+    for (Task task : tasks) {
+      if (task instanceof AbstractTask)
+        ((AbstractTask) task).addTaskStatusListener(this);
+      else
+        unobservedTasks.add(task);
+    }
+    // Tasks may have been finished or canceled before they are submitted
+    for (Task task : tasks) {
+      if (task instanceof AbstractTask)
+        taskStatusChanged(task, task.getStatus(), null);
+    }
+  }
+
+  @Override
+  public void taskStatusChanged(Task task, TaskStatus newStatus, TaskStatus oldStatus) {
+    switch (newStatus) {
+      case FINISHED:
+        if (unfinishedTasks.decrementAndGet() == 0)
+          failedTask.complete(null);
+        break;
+      case ERROR:
+      case CANCELED:
+        failedTask.complete(task);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * @return Future which is completed with the task which ended with an error or was canceled, or
+   *         with null if all tasks finished
+   */
+  CompletableFuture<Task> getFuture() {
+    return failedTask;
+  }
+
+  /**
+   * Checks the status of the tasks which cannot report their status changes
+   */
+  synchronized void checkUnobservedTasks() {
+    Iterator<Task> iterator = unobservedTasks.iterator();
+    while (iterator.hasNext()) {
+      Task task = iterator.next();
+      TaskStatus status = task.getStatus();
+      if ((status == TaskStatus.WAITING) || (status == TaskStatus.PROCESSING))
+        continue;
+      iterator.remove();
+      taskStatusChanged(task, status, null);
+    }
+  }
+
+  /**
+   * Waits until the step is completed or the batch is canceled
+   * 
+   * @return The task which ended with an error or was canceled, or null if all tasks finished
+   */
+  Task await(AbstractTask batchTask) {
+    while (true) {
+
+      // Wake up regularly to notice if the batch or unobserved tasks changed
+      try {
+        return failedTask.get(1, TimeUnit.SECONDS);
+      } catch (TimeoutException | InterruptedException e) {
+        // check below
+      } catch (ExecutionException e) {
+        // never completed exceptionally
+        return null;
+      }
+
+      if (batchTask.isCanceled())
+        return null;
+
+      checkUnobservedTasks();
+    }
+  }
+
+}
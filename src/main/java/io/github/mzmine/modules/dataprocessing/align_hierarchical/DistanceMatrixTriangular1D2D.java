@@ -18,6 +18,7 @@
 
 package io.github.mzmine.modules.dataprocessing.align_hierarchical;
 
+import java.io.IOException;
 import java.util.logging.Logger;
 
 import org.gnf.clustering.DistanceMatrix;
@@ -36,6 +37,35 @@ public class DistanceMatrixTriangular1D2D implements DistanceMatrix {
     dimension = nRowCount;
   }
 
+  public DistanceMatrixTriangular1D2D(int nRowCount, DistanceMatrixStorage storage)
+      throws IOException {
+
+    list = new LargeArrayFloat(sumFormula(nRowCount), storage);
+    dimension = nRowCount;
+  }
+
+  /**
+   * Copies the given matrix into the given storage. Triangular matrices are copied as a whole
+   * rather than value by value.
+   */
+  public DistanceMatrixTriangular1D2D(DistanceMatrix distanceMatrix2,
+      DistanceMatrixStorage storage) throws IOException {
+
+    this.dimension = distanceMatrix2.getRowCount();
+    if (distanceMatrix2 instanceof DistanceMatrixTriangular1D2D) {
+      this.list =
+          new LargeArrayFloat(((DistanceMatrixTriangular1D2D) distanceMatrix2).list, storage);
+      return;
+    }
+
+    this.list = new LargeArrayFloat(sumFormula(this.dimension), storage);
+    for (int i = 0; i < this.dimension; ++i) {
+      for (int j = i; j < this.dimension; ++j) {
+        this.setValue(i, j, distanceMatrix2.getValue(i, j));
+      }
+    }
+  }
+
   public DistanceMatrixTriangular1D2D(DistanceMatrix distanceMatrix2) {
 
     this.dimension = distanceMatrix2.getRowCount();
@@ -82,6 +112,13 @@ public class DistanceMatrixTriangular1D2D implements DistanceMatrix {
     list.set(getListIndex(nRow, nCol), fVal);
   }
 
+  /**
+   * Releases the storage of this matrix, see {@link LargeArrayFloat#dispose()}.
+   */
+  public void dispose() {
+    list.dispose();
+  }
+
   // ---------------------------------------
 
   public void printVector() {
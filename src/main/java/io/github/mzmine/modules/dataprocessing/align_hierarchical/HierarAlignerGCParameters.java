@@ -117,6 +117,11 @@ public class HierarAlignerGCParameters extends SimpleParameterSet {
           + " If the file already exists, it will be overwritten.",
       "txt", FileSelectionType.SAVE);
 
+  public static final ComboParameter<DistanceMatrixStorage> distanceMatrixStorage =
+      new ComboParameter<DistanceMatrixStorage>("Distance matrix storage",
+          "Where the row-to-row distance matrix is kept. Off-heap memory is limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap size (-Xmx). For matrices which do not fit into memory, use a memory-mapped temporary file, which the operating system can page to disk.",
+          DistanceMatrixStorage.values(), DistanceMatrixStorage.HEAP);
+
   /**
    * GLG HACK: temporarily removed for clarity public static final BooleanParameter
    * SameChargeRequired = new BooleanParameter( "Require same charge state", "If checked, only rows
@@ -142,7 +147,7 @@ public class HierarAlignerGCParameters extends SimpleParameterSet {
         // useKnownCompoundsAsRef,
         // useDetectedMzOnly,
         // RTToleranceAfter,
-        exportDendrogramTxt, dendrogramTxtFilename
+        exportDendrogramTxt, dendrogramTxtFilename, distanceMatrixStorage
         /* SameChargeRequired, SameIDRequired, compareIsotopePattern */
     });
   }
@@ -25,13 +25,16 @@ import java.io.IOException;
 import java.text.Format;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 import org.gnf.clustering.DataSource;
 import org.gnf.clustering.DistanceMatrix;
 import org.gnf.clustering.FloatSource1D;
@@ -90,6 +93,7 @@ public class HierarAlignerGCTask extends AbstractTask {
 
   private boolean exportDendrogramAsTxt;
   private File dendrogramTxtFilename;
+  private DistanceMatrixStorage distanceMatrixStorage;
 
   /**
    * GLG HACK: temporary removed for clarity private boolean sameIDRequired, sameChargeRequired,
@@ -167,6 +171,8 @@ public class HierarAlignerGCTask extends AbstractTask {
         parameters.getParameter(HierarAlignerGCParameters.exportDendrogramTxt).getValue();
     dendrogramTxtFilename =
         parameters.getParameter(HierarAlignerGCParameters.dendrogramTxtFilename).getValue();
+    distanceMatrixStorage =
+        parameters.getParameter(HierarAlignerGCParameters.distanceMatrixStorage).getValue();
 
     /**
      * GLG HACK: temporarily removed for clarity sameChargeRequired = parameters.getParameter(
@@ -315,8 +321,8 @@ public class HierarAlignerGCTask extends AbstractTask {
     //
 
     // TriangularMatrix distances = null;
-    DistanceMatrix distancesGNF_Tri = null;
-    DistanceMatrix distancesGNF_Tri_Bkp = null;
+    DistanceMatrixTriangular1D2D distancesGNF_Tri = null;
+    DistanceMatrixTriangular1D2D distancesGNF_Tri_Bkp = null;
 
     int nbPeaks = 0;
     for (int i = 0; i < newIds.length; ++i) {
@@ -329,7 +335,13 @@ public class HierarAlignerGCTask extends AbstractTask {
       // distances = new double[nbPeaks][nbPeaks];
 
       int nRowCount = nbPeaks;
-      distancesGNF_Tri = new DistanceMatrixTriangular1D2D(nRowCount);
+      try {
+        distancesGNF_Tri = new DistanceMatrixTriangular1D2D(nRowCount, distanceMatrixStorage);
+      } catch (IOException e) {
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage("Could not create the distance matrix: " + e.getMessage());
+        return;
+      }
     }
 
     full_rows_list = new ArrayList<>();
@@ -359,25 +371,11 @@ public class HierarAlignerGCTask extends AbstractTask {
     // If 'Hybrid' or no distance matrix: no need for a matrix
     if (CLUSTERER_TYPE == ClustererType.HYBRID || !saveRAMratherThanCPU_1) {
 
-      for (int x = 0; x < nbPeaks; ++x) {
-
-        for (int y = x; y < nbPeaks; ++y) {
-
-          float dist = (float) distProvider.getRankedDistance(x, y, mzTolerance.getMzTolerance(),
-              rtTolerance.getTolerance(), minScore);
-
-          // if (CLUSTERER_TYPE == ClustererType.CLASSIC_OLD)
-          // distances.set(x, y , dist);
-          // else
-          distancesGNF_Tri.setValue(x, y, dist);
-
-        }
-
-        processedRows++;
-        if (DEBUG)
-          logger.info(
-              "Treating lists: " + (Math.round(100 * processedRows / (double) nbPeaks)) + " %");
+      computeDistances(distancesGNF_Tri, distProvider);
 
+      if (isCanceled()) {
+        distancesGNF_Tri.dispose();
+        return;
       }
     }
     if (DEBUG)
@@ -437,7 +435,15 @@ public class HierarAlignerGCTask extends AbstractTask {
       } else { // Otherwise, backing up the distance matrix (matrix being
                // deeply changed during "clusterDM()", then no more
                // exploitable)
-        distancesGNF_Tri_Bkp = new DistanceMatrixTriangular1D2D(distancesGNF_Tri);
+        try {
+          distancesGNF_Tri_Bkp =
+              new DistanceMatrixTriangular1D2D(distancesGNF_Tri, distanceMatrixStorage);
+        } catch (IOException e) {
+          distancesGNF_Tri.dispose();
+          setStatus(TaskStatus.ERROR);
+          setErrorMessage("Could not create the distance matrix backup: " + e.getMessage());
+          return;
+        }
         if (DEBUG)
           printMemoryUsage(logger, run_time, prevTotal, prevFree, "GNF CLUSTERER BACKUP MATRIX");
       }
@@ -448,6 +454,8 @@ public class HierarAlignerGCTask extends AbstractTask {
         arNodes = org.gnf.clustering.sequentialcache.SequentialCacheClustering
             .clusterDM(distancesGNF_Tri, linkageStartegyType, null, nRowCount);
 
+      if (distancesGNF_Tri != null)
+        distancesGNF_Tri.dispose();
       distancesGNF_Tri = null;
       System.gc();
 
@@ -488,6 +496,9 @@ public class HierarAlignerGCTask extends AbstractTask {
       gnfClusters = getValidatedClusters_3(arNodes, 0.0f, newIds.length, max_dist,
           distancesGNF_Tri_Bkp, distProvider);
 
+      if (distancesGNF_Tri_Bkp != null)
+        distancesGNF_Tri_Bkp.dispose();
+
       // -- Print
       if (DEBUG_2 && do_verbose)
         for (int i = 0; i < gnfClusters.size(); i++) {
@@ -672,6 +683,76 @@ public class HierarAlignerGCTask extends AbstractTask {
 
   }
 
+  /**
+   * Fills the distance matrix of all rows in parallel. Each task fills one matrix row (all pairs
+   * with a lower row index), which is a contiguous block of the triangular storage. Rows further apart in RT than half the
+   * RT tolerance are never candidates, so their distance is set right away and only the rows inside
+   * the RT window are scored (same results as calling getRankedDistance() for every pair).
+   */
+  private void computeDistances(DistanceMatrixTriangular1D2D distances,
+      RowVsRowDistanceProvider distProvider) {
+
+    final int nbRows = full_rows_list.size();
+    final double mzMaxDiff = mzTolerance.getMzTolerance();
+    final double rtMaxDiff = rtTolerance.getTolerance();
+
+    // Same values as used by getRankedDistance()
+    final double rtValues[] = new double[nbRows];
+    final RawDataFile dataFiles[] = new RawDataFile[nbRows];
+    Integer rtOrder[] = new Integer[nbRows];
+    for (int i = 0; i < nbRows; i++) {
+      PeakListRow row = full_rows_list.get(i);
+      rtValues[i] = row.getBestPeak().getRT();
+      dataFiles[i] = row.getRawDataFiles()[0];
+      rtOrder[i] = i;
+    }
+    Arrays.sort(rtOrder, Comparator.comparingDouble(i -> rtValues[i]));
+    final double sortedRTs[] = new double[nbRows];
+    final int sortedRows[] = new int[nbRows];
+    for (int i = 0; i < nbRows; i++) {
+      sortedRows[i] = rtOrder[i];
+      sortedRTs[i] = rtValues[rtOrder[i]];
+    }
+
+    final AtomicInteger finishedRows = new AtomicInteger();
+    IntStream.range(0, nbRows).parallel().forEach(y -> {
+
+      if (isCanceled())
+        return;
+
+      for (int x = 0; x < y; ++x) {
+        distances.setValue(x, y,
+            (float) ((dataFiles[x] == dataFiles[y]) ? RowVsRowDistanceProvider.SAME_FILE_DISTANCE
+                : RowVsRowDistanceProvider.NOT_CANDIDATE_DISTANCE));
+      }
+      distances.setValue(y, y, 0f);
+
+      // Score the rows inside the RT window, getRankedDistance() checks the exact limits
+      final double minRT = rtValues[y] - rtMaxDiff / 2.0, maxRT = rtValues[y] + rtMaxDiff / 2.0;
+      int low = 0, high = nbRows;
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        if (sortedRTs[mid] < minRT)
+          low = mid + 1;
+        else
+          high = mid;
+      }
+      for (int k = low; (k < nbRows) && (sortedRTs[k] <= maxRT); k++) {
+        final int x = sortedRows[k];
+        if (x < y)
+          distances.setValue(x, y,
+              (float) distProvider.getRankedDistance(x, y, mzMaxDiff, rtMaxDiff, minScore));
+      }
+
+      // Only used for the progress
+      processedRows = finishedRows.incrementAndGet();
+    });
+
+    processedRows = finishedRows.get();
+    if (DEBUG)
+      logger.info("Treating lists: " + (Math.round(100 * processedRows / (double) nbRows)) + " %");
+  }
+
   /**
    * Two clusters can be merged if and only if: - The resulting merged cluster: (their parent)
    * doesn't exceed 'level' leaves - The distance between them two is acceptable (close enough)
@@ -17,8 +17,16 @@
  */
 
 package io.github.mzmine.modules.dataprocessing.align_hierarchical;
-
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.logging.Logger;
+import io.github.mzmine.util.MemoryMapUtils;
 
 public class LargeArrayFloat {
 
@@ -27,12 +35,26 @@ public class LargeArrayFloat {
 
   private final long CHUNK_SIZE = 1024 * 1024 * 1024; // 1GiB
 
+  // A buffer cannot hold more than Integer.MAX_VALUE bytes
+  private static final long BUFFER_CHUNK_SIZE = 256 * 1024 * 1024; // 1GiB of floats
+
   long size;
   float[][] data;
 
+  // Off-heap or memory-mapped chunks, used instead of 'data'
+  private FloatBuffer[] buffers;
+  // Allocated or mapped buffers behind the float views, to release them in dispose()
+  private ByteBuffer[] byteBuffers;
+  private File mappedFile;
+
   public LargeArrayFloat(long size) {
 
     this.size = size;
+    allocateOnHeap();
+  }
+
+  private void allocateOnHeap() {
+
     if (size == 0) {
       data = null;
     } else {
@@ -59,12 +81,89 @@ public class LargeArrayFloat {
     }
   }
 
+  /**
+   * Creates an array of the given size in the given storage. Memory-mapped arrays are backed by a
+   * temporary file, which is deleted by {@link #dispose()} or at the latest when the JVM exits.
+   */
+  public LargeArrayFloat(long size, DistanceMatrixStorage storage) throws IOException {
+
+    this.size = size;
+    if (storage == DistanceMatrixStorage.HEAP) {
+      allocateOnHeap();
+      return;
+    }
+
+    int chunks = (int) ((size + BUFFER_CHUNK_SIZE - 1) / BUFFER_CHUNK_SIZE);
+    buffers = new FloatBuffer[chunks];
+    byteBuffers = new ByteBuffer[chunks];
+
+    if (storage == DistanceMatrixStorage.OFF_HEAP) {
+      for (int idx = 0; idx < chunks; idx++) {
+        byteBuffers[idx] = ByteBuffer.allocateDirect((int) (getChunkLength(idx) * Float.BYTES));
+      }
+    } else {
+      mappedFile = File.createTempFile("mzmine_distances", ".tmp");
+      mappedFile.deleteOnExit();
+      try (RandomAccessFile raf = new RandomAccessFile(mappedFile, "rw");
+          FileChannel channel = raf.getChannel()) {
+        // The mapping stays valid after the channel is closed
+        for (int idx = 0; idx < chunks; idx++) {
+          byteBuffers[idx] = channel.map(MapMode.READ_WRITE,
+              idx * BUFFER_CHUNK_SIZE * Float.BYTES, getChunkLength(idx) * Float.BYTES);
+        }
+      } catch (IOException e) {
+        dispose();
+        throw e;
+      }
+    }
+    for (int idx = 0; idx < chunks; idx++) {
+      buffers[idx] = byteBuffers[idx].order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    if (VERBOSE)
+      logger.info("Created " + storage + " array with " + chunks + " chunks => TOTAL: " + size);
+  }
+
+  /**
+   * Creates a copy of the given array in the given storage, copying chunk by chunk in index order.
+   */
+  public LargeArrayFloat(LargeArrayFloat source, DistanceMatrixStorage storage)
+      throws IOException {
+
+    this(source.size, storage);
+
+    if (data != null && source.data != null) {
+      for (int idx = 0; idx < data.length; idx++) {
+        System.arraycopy(source.data[idx], 0, data[idx], 0, data[idx].length);
+      }
+    } else if (buffers != null && source.buffers != null) {
+      for (int idx = 0; idx < buffers.length; idx++) {
+        buffers[idx].duplicate().put(source.buffers[idx].duplicate());
+      }
+    } else {
+      for (long index = 0; index < size; index++) {
+        set(index, source.get(index));
+      }
+    }
+  }
+
+  private long getChunkLength(int chunk) {
+    return Math.min(BUFFER_CHUNK_SIZE, size - chunk * BUFFER_CHUNK_SIZE);
+  }
+
+  public long size() {
+    return size;
+  }
+
   public float get(long index) {
 
     if (index < 0 || index >= size) {
       throw new IndexOutOfBoundsException("Error attempting to access data element " + index
           + ".  Array is " + size + " elements long.");
     }
+    if (buffers != null) {
+      return buffers[(int) (index / BUFFER_CHUNK_SIZE)].get((int) (index % BUFFER_CHUNK_SIZE));
+    }
     int chunk = (int) (index / CHUNK_SIZE);
     int offset = (int) (index - (((long) chunk) * CHUNK_SIZE));
     return data[chunk][offset];
@@ -76,11 +175,36 @@ public class LargeArrayFloat {
       throw new IndexOutOfBoundsException("Error attempting to access data element " + index
           + ".  Array is " + size + " elements long.");
     }
+    if (buffers != null) {
+      buffers[(int) (index / BUFFER_CHUNK_SIZE)].put((int) (index % BUFFER_CHUNK_SIZE), f);
+      return;
+    }
     int chunk = (int) (index / CHUNK_SIZE);
     int offset = (int) (index - (((long) chunk) * CHUNK_SIZE));
     data[chunk][offset] = f;
   }
 
+  /**
+   * Releases the storage of this array and deletes its temporary file, if any. Off-heap and mapped
+   * chunks are released right away instead of when they are garbage collected. The array must not
+   * be used afterwards, by any thread.
+   */
+  public void dispose() {
+
+    data = null;
+    buffers = null;
+    if (byteBuffers != null) {
+      for (ByteBuffer buffer : byteBuffers) {
+        MemoryMapUtils.unmap(buffer);
+      }
+      byteBuffers = null;
+    }
+    // If the file could not be unmapped, some platforms do not allow deleting it, it is then
+    // deleted when the JVM exits
+    if (mappedFile != null && mappedFile.delete())
+      mappedFile = null;
+  }
+
   public void writeToFile() { // toString won't make sense for large array!
 
     // String str = "";
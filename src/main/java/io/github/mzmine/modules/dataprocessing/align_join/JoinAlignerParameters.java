@@ -62,9 +62,13 @@ public class JoinAlignerParameters extends SimpleParameterSet {
           "Compare MS1 or MS2 spectra similarity",
           new JoinAlignerSpectraSimilarityScoreParameters());
 
+  public static final BooleanParameter useParallel = new BooleanParameter("Parallel",
+      "Parallel calculation of the alignment scores (the result is the same as without)", true);
+
   public JoinAlignerParameters() {
     super(new Parameter[] {peakLists, peakListName, MZTolerance, MZWeight, RTTolerance, RTWeight,
-        SameChargeRequired, SameIDRequired, compareIsotopePattern, compareSpectraSimilarity});
+        SameChargeRequired, SameIDRequired, compareIsotopePattern, compareSpectraSimilarity,
+        useParallel});
   }
 
 }
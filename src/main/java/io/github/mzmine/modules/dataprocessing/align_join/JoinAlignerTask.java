@@ -18,11 +18,18 @@
 
 package io.github.mzmine.modules.dataprocessing.align_join;
 
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 import com.google.common.collect.Range;
 import io.github.mzmine.datamodel.DataPoint;
 import io.github.mzmine.datamodel.IsotopePattern;
@@ -53,14 +60,15 @@ public class JoinAlignerTask extends AbstractTask {
   private PeakList peakLists[], alignedPeakList;
 
   // Processed rows counter
-  private int processedRows, totalRows;
+  private final AtomicInteger processedRows = new AtomicInteger(0);
+  private int totalRows;
 
   private String peakListName;
   private MZTolerance mzTolerance;
   private RTTolerance rtTolerance;
   private double mzWeight, rtWeight;
   private boolean sameIDRequired, sameChargeRequired, compareIsotopePattern,
-      compareSpectraSimilarity;
+      compareSpectraSimilarity, useParallel;
   private ParameterSet parameters;
 
   // ID counter for the new peaklist
@@ -99,6 +107,8 @@ public class JoinAlignerTask extends AbstractTask {
     compareSpectraSimilarity =
         parameters.getParameter(JoinAlignerParameters.compareSpectraSimilarity).getValue();
 
+    useParallel = parameters.getParameter(JoinAlignerParameters.useParallel).getValue();
+
     if (compareSpectraSimilarity) {
       simFunction = parameters.getParameter(JoinAlignerParameters.compareSpectraSimilarity)
           .getEmbeddedParameters()
@@ -129,7 +139,7 @@ public class JoinAlignerTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalRows == 0)
       return 0f;
-    return (double) processedRows / (double) totalRows;
+    return (double) processedRows.get() / (double) totalRows;
   }
 
   /**
@@ -178,122 +188,58 @@ public class JoinAlignerTask extends AbstractTask {
     // Iterate source feature lists
     for (PeakList peakList : peakLists) {
 
-      // Create a sorted set of scores matching
-      TreeSet<RowVsRowScore> scoreSet = new TreeSet<RowVsRowScore>();
-
       PeakListRow allRows[] = peakList.getRows().toArray(PeakListRow[]::new);
 
-      // Calculate scores for all possible alignments of this row
-      for (PeakListRow row : allRows) {
-
-        if (isCanceled())
+      // Calculate scores for all possible alignments of each row. The rows are independent of each
+      // other, so the scores may be calculated in parallel.
+      final RowVsRowScore scoresPerRow[][] = new RowVsRowScore[allRows.length][];
+      IntStream rowStream = IntStream.range(0, allRows.length);
+      if (useParallel)
+        rowStream = rowStream.parallel();
+
+      rowStream.forEach(i -> {
+        // Canceled?
+        if (isCanceled()) {
+          // inside stream - only skips this element
           return;
-
-        // Calculate limits for a row with which the row can be aligned
-        Range<Double> mzRange = mzTolerance.getToleranceRange(row.getAverageMZ());
-        Range<Double> rtRange = rtTolerance.getToleranceRange(row.getAverageRT());
-
-        // Get all rows of the aligned peaklist within parameter limits
-        PeakListRow candidateRows[] = alignedPeakList.getRowsInsideScanAndMZRange(rtRange, mzRange);
-
-        // Calculate scores and store them
-        for (PeakListRow candidate : candidateRows) {
-
-          if (sameChargeRequired) {
-            if (!PeakUtils.compareChargeState(row, candidate))
-              continue;
-          }
-
-          if (sameIDRequired) {
-            if (!PeakUtils.compareIdentities(row, candidate))
-              continue;
-          }
-
-          if (compareIsotopePattern) {
-            IsotopePattern ip1 = row.getBestIsotopePattern();
-            IsotopePattern ip2 = candidate.getBestIsotopePattern();
-
-            if ((ip1 != null) && (ip2 != null)) {
-              ParameterSet isotopeParams =
-                  parameters.getParameter(JoinAlignerParameters.compareIsotopePattern)
-                      .getEmbeddedParameters();
-
-              if (!IsotopePatternScoreCalculator.checkMatch(ip1, ip2, isotopeParams)) {
-                continue;
-              }
-            }
-          }
-
-          // compare the similarity of spectra mass lists on MS1 or
-          // MS2 level
-          if (compareSpectraSimilarity) {
-            DataPoint[] rowDPs = null;
-            DataPoint[] candidateDPs = null;
-            SpectralSimilarity sim = null;
-
-            // get data points of mass list of the representative
-            // scans
-            if (msLevel == 1) {
-              rowDPs =
-                  row.getBestPeak().getRepresentativeScan().getMassList(massList).getDataPoints();
-              candidateDPs = candidate.getBestPeak().getRepresentativeScan().getMassList(massList)
-                  .getDataPoints();
-            }
-
-            // get data points of mass list of the best
-            // fragmentation scans
-            if (msLevel == 2) {
-              if (row.getBestFragmentation() != null && candidate.getBestFragmentation() != null) {
-                rowDPs = row.getBestFragmentation().getMassList(massList).getDataPoints();
-                candidateDPs =
-                    candidate.getBestFragmentation().getMassList(massList).getDataPoints();
-              } else
-                continue;
-            }
-
-            // compare mass list data points of selected scans
-            if (rowDPs != null && candidateDPs != null) {
-
-              // calculate similarity using SimilarityFunction
-              sim = createSimilarity(rowDPs, candidateDPs);
-
-              // check if similarity is null. Similarity is not
-              // null if similarity score is >= the
-              // user set threshold
-              if (sim == null) {
-                continue;
-              }
-            }
-          }
-
-          RowVsRowScore score =
-              new RowVsRowScore(row, candidate, RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
-                  RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
-
-          scoreSet.add(score);
         }
-        processedRows++;
-      }
+        scoresPerRow[i] = calculateScores(allRows[i]);
+        processedRows.incrementAndGet();
+      });
+
+      if (isCanceled())
+        return;
+
+      // Sort the scores by descending score. Scores are collected in row order, reversed and then
+      // sorted by a stable sort, so equal scores keep the order the aligner always used and the
+      // result does not depend on the parallel mode.
+      List<RowVsRowScore> scoreList = new ArrayList<>();
+      for (RowVsRowScore rowScores[] : scoresPerRow)
+        scoreList.addAll(Arrays.asList(rowScores));
+      Collections.reverse(scoreList);
+      RowVsRowScore scores[] = scoreList.toArray(new RowVsRowScore[0]);
+      if (useParallel)
+        Arrays.parallelSort(scores);
+      else
+        Arrays.sort(scores);
 
       // Create a table of mappings for best scores
-      Hashtable<PeakListRow, PeakListRow> alignmentMapping =
-          new Hashtable<PeakListRow, PeakListRow>();
+      Map<PeakListRow, PeakListRow> alignmentMapping = new HashMap<>();
+      Set<PeakListRow> filledAlignedRows = new HashSet<>();
 
       // Iterate scores by descending order
-      Iterator<RowVsRowScore> scoreIterator = scoreSet.iterator();
-      while (scoreIterator.hasNext()) {
-
-        RowVsRowScore score = scoreIterator.next();
+      for (RowVsRowScore score : scores) {
 
         // Check if the row is already mapped
         if (alignmentMapping.containsKey(score.getPeakListRow()))
           continue;
 
         // Check if the aligned row is already filled
-        if (alignmentMapping.containsValue(score.getAlignedRow()))
+        if (filledAlignedRows.contains(score.getAlignedRow()))
           continue;
 
         alignmentMapping.put(score.getPeakListRow(), score.getAlignedRow());
+        filledAlignedRows.add(score.getAlignedRow());
 
       }
 
@@ -318,7 +264,7 @@ public class JoinAlignerTask extends AbstractTask {
         // aligned row
         PeakUtils.copyPeakListRowProperties(row, targetRow);
 
-        processedRows++;
+        processedRows.incrementAndGet();
 
       }
 
@@ -337,6 +283,102 @@ public class JoinAlignerTask extends AbstractTask {
 
   }
 
+  /**
+   * Calculates the scores of all possible alignments of the given row with the rows of the aligned
+   * feature list. This method does not modify any shared state and may be called from many threads
+   * at once.
+   */
+  private RowVsRowScore[] calculateScores(PeakListRow row) {
+
+    List<RowVsRowScore> scores = new ArrayList<>();
+
+    // Calculate limits for a row with which the row can be aligned
+    Range<Double> mzRange = mzTolerance.getToleranceRange(row.getAverageMZ());
+    Range<Double> rtRange = rtTolerance.getToleranceRange(row.getAverageRT());
+
+    // Get all rows of the aligned peaklist within parameter limits
+    PeakListRow candidateRows[] = alignedPeakList.getRowsInsideScanAndMZRange(rtRange, mzRange);
+
+    // Calculate scores and store them
+    for (PeakListRow candidate : candidateRows) {
+
+      if (sameChargeRequired) {
+        if (!PeakUtils.compareChargeState(row, candidate))
+          continue;
+      }
+
+      if (sameIDRequired) {
+        if (!PeakUtils.compareIdentities(row, candidate))
+          continue;
+      }
+
+      if (compareIsotopePattern) {
+        IsotopePattern ip1 = row.getBestIsotopePattern();
+        IsotopePattern ip2 = candidate.getBestIsotopePattern();
+
+        if ((ip1 != null) && (ip2 != null)) {
+          ParameterSet isotopeParams =
+              parameters.getParameter(JoinAlignerParameters.compareIsotopePattern)
+                  .getEmbeddedParameters();
+
+          if (!IsotopePatternScoreCalculator.checkMatch(ip1, ip2, isotopeParams)) {
+            continue;
+          }
+        }
+      }
+
+      // compare the similarity of spectra mass lists on MS1 or
+      // MS2 level
+      if (compareSpectraSimilarity) {
+        DataPoint[] rowDPs = null;
+        DataPoint[] candidateDPs = null;
+        SpectralSimilarity sim = null;
+
+        // get data points of mass list of the representative
+        // scans
+        if (msLevel == 1) {
+          rowDPs =
+              row.getBestPeak().getRepresentativeScan().getMassList(massList).getDataPoints();
+          candidateDPs = candidate.getBestPeak().getRepresentativeScan().getMassList(massList)
+              .getDataPoints();
+        }
+
+        // get data points of mass list of the best
+        // fragmentation scans
+        if (msLevel == 2) {
+          if (row.getBestFragmentation() != null && candidate.getBestFragmentation() != null) {
+            rowDPs = row.getBestFragmentation().getMassList(massList).getDataPoints();
+            candidateDPs =
+                candidate.getBestFragmentation().getMassList(massList).getDataPoints();
+          } else
+            continue;
+        }
+
+        // compare mass list data points of selected scans
+        if (rowDPs != null && candidateDPs != null) {
+
+          // calculate similarity using SimilarityFunction
+          sim = createSimilarity(rowDPs, candidateDPs);
+
+          // check if similarity is null. Similarity is not
+          // null if similarity score is >= the
+          // user set threshold
+          if (sim == null) {
+            continue;
+          }
+        }
+      }
+
+      RowVsRowScore score =
+          new RowVsRowScore(row, candidate, RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
+              RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
+
+      scores.add(score);
+    }
+
+    return scores.toArray(new RowVsRowScore[0]);
+  }
+
   /**
    * Uses the similarity function and filter to create similarity.
    *
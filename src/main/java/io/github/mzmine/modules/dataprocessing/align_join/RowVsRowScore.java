@@ -69,12 +69,9 @@ class RowVsRowScore implements Comparable<RowVsRowScore> {
    */
   public int compareTo(RowVsRowScore object) {
 
-    // We must never return 0, because the TreeSet in JoinAlignerTask would
-    // treat such elements as equal
-    if (score < object.getScore())
-      return 1;
-    else
-      return -1;
+    // Descending order, higher scores come first. JoinAlignerTask sorts the
+    // scores with a stable sort, so equal scores keep their order
+    return Double.compare(object.getScore(), score);
 
   }
 
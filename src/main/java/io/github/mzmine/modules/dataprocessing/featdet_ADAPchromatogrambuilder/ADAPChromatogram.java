@@ -26,14 +26,9 @@ import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Vector;
 import javax.annotation.Nonnull;
 import com.google.common.collect.Range;
-import com.google.common.primitives.Ints;
 import io.github.mzmine.datamodel.DataPoint;
 import io.github.mzmine.datamodel.Feature;
 import io.github.mzmine.datamodel.FeatureStatus;
@@ -41,9 +36,13 @@ import io.github.mzmine.datamodel.IsotopePattern;
 import io.github.mzmine.datamodel.PeakList;
 import io.github.mzmine.datamodel.RawDataFile;
 import io.github.mzmine.datamodel.Scan;
+import io.github.mzmine.datamodel.impl.SimpleDataPoint;
 import io.github.mzmine.datamodel.impl.SimplePeakInformation;
 import io.github.mzmine.main.MZmineCore;
 import io.github.mzmine.util.scans.ScanUtils;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 
 /**
  * Chromatogram implementing ChromatographicPeak.
@@ -54,9 +53,19 @@ public class ADAPChromatogram implements Feature {
   // Data file of this chromatogram
   private RawDataFile dataFile;
 
-  // Data points of the chromatogram (map of scan number -> m/z peak)
-  // private Hashtable<Integer, DataPoint> dataPointsMap;
-  private HashMap<Integer, DataPoint> dataPointsMap;
+  private static final int INITIAL_CAPACITY = 8;
+
+  // Data points of the chromatogram (scan number, m/z and intensity) in primitive arrays, in the
+  // order in which they were added until they are sorted by scan number
+  private int dataPointScanNumbers[] = new int[INITIAL_CAPACITY];
+  private double dataPointMZValues[] = new double[INITIAL_CAPACITY];
+  private double dataPointIntensities[] = new double[INITIAL_CAPACITY];
+  private int numOfDataPoints = 0;
+  private boolean sortedByScanNumber = true;
+
+  // Position of the data point of each scan number in the arrays while the chromatogram is being
+  // built. Finished chromatograms find data points by binary search instead.
+  private Int2IntOpenHashMap dataPointPositions = createPositionMap();
 
   // Chromatogram m/z, RT, height, area. The mz value will be the highest
   // points mz value
@@ -73,12 +82,11 @@ public class ADAPChromatogram implements Feature {
   private Range<Double> rawDataPointsIntensityRange, rawDataPointsMZRange, rawDataPointsRTRange;
 
   // A set of scan numbers of a segment which is currently being connected
-  private Vector<Integer> buildingSegment;
-  // A full list of all the scan numbers as points get added
-  private List<Integer> chromScanList;
+  private IntArrayList buildingSegment;
 
   // Keep track of last added data point
-  private DataPoint lastMzPeak;
+  private boolean hasLastMzPeak = false;
+  private double lastMZ, lastIntensity;
 
   // Number of connected segments, which have been committed by
   // commitBuildingSegment()
@@ -111,9 +119,61 @@ public class ADAPChromatogram implements Feature {
 
     rawDataPointsRTRange = dataFile.getDataRTRange(1);
 
-    dataPointsMap = new HashMap<Integer, DataPoint>();
-    buildingSegment = new Vector<Integer>();
-    chromScanList = new ArrayList<Integer>();
+    buildingSegment = new IntArrayList();
+  }
+
+  private static Int2IntOpenHashMap createPositionMap() {
+    Int2IntOpenHashMap positions = new Int2IntOpenHashMap(INITIAL_CAPACITY);
+    positions.defaultReturnValue(-1);
+    return positions;
+  }
+
+  /**
+   * @return Position of the data point of the given scan number in the arrays, or -1
+   */
+  private int getPosition(int scanNumber) {
+    if (dataPointPositions != null)
+      return dataPointPositions.get(scanNumber);
+    final int position = Arrays.binarySearch(dataPointScanNumbers, 0, numOfDataPoints, scanNumber);
+    return Math.max(-1, position);
+  }
+
+  /**
+   * Sorts the data points by scan number
+   */
+  private void sortDataPoints() {
+    if (sortedByScanNumber)
+      return;
+
+    int order[] = new int[numOfDataPoints];
+    for (int i = 0; i < numOfDataPoints; i++) {
+      order[i] = i;
+    }
+    IntArrays.quickSort(order,
+        (a, b) -> Integer.compare(dataPointScanNumbers[a], dataPointScanNumbers[b]));
+
+    int sortedScanNumbers[] = new int[numOfDataPoints];
+    double sortedMZValues[] = new double[numOfDataPoints];
+    double sortedIntensities[] = new double[numOfDataPoints];
+    for (int i = 0; i < numOfDataPoints; i++) {
+      sortedScanNumbers[i] = dataPointScanNumbers[order[i]];
+      sortedMZValues[i] = dataPointMZValues[order[i]];
+      sortedIntensities[i] = dataPointIntensities[order[i]];
+    }
+    dataPointScanNumbers = sortedScanNumbers;
+    dataPointMZValues = sortedMZValues;
+    dataPointIntensities = sortedIntensities;
+    sortedByScanNumber = true;
+
+    if (dataPointPositions != null)
+      updatePositionMap();
+  }
+
+  private void updatePositionMap() {
+    dataPointPositions.clear();
+    for (int i = 0; i < numOfDataPoints; i++) {
+      dataPointPositions.put(dataPointScanNumbers[i], i);
+    }
   }
 
   public double getHighPointMZ() {
@@ -130,10 +190,11 @@ public class ADAPChromatogram implements Feature {
     List intensityList = new ArrayList();
 
     for (int curScanNum = 0; curScanNum < scanNumbers.length; curScanNum++) {
-      if (dataPointsMap.get(curScanNum) == null) {
+      final int position = getPosition(curScanNum);
+      if (position < 0) {
         intensityList.add(0.0);
       } else {
-        intensityList.add(dataPointsMap.get(curScanNum).getIntensity());
+        intensityList.add(dataPointIntensities[position]);
       }
     }
 
@@ -149,24 +210,22 @@ public class ADAPChromatogram implements Feature {
     // count
     // otherwise start it oer when you hit a sufficiently high point.
     // keep track of the largest count which will be returned.
-    Collections.sort(chromScanList);
+    sortDataPoints();
 
     int bestCount = 0;
     int curCount = 0;
     int lastScanNum = 0;
-    int scanListLength = chromScanList.size();
+    int scanListLength = numOfDataPoints;
 
     int curScanNum;
-    DataPoint curDataPoint;
 
     for (int i = 1; i < scanListLength; i++) {
 
-      curScanNum = chromScanList.get(i);
-      curDataPoint = dataPointsMap.get(curScanNum);
+      curScanNum = dataPointScanNumbers[i];
 
-      if (curDataPoint.getIntensity() > noise) {
+      if (dataPointIntensities[i] > noise) {
 
-        lastScanNum = chromScanList.get(i - 1);
+        lastScanNum = dataPointScanNumbers[i - 1];
         int lastScanNumsActIndex = Arrays.binarySearch(scanNumbers, lastScanNum);
         int seqNextScanShouldBe = scanNumbers[lastScanNumsActIndex + 1];
 
@@ -202,37 +261,59 @@ public class ADAPChromatogram implements Feature {
    * @param mzValue
    */
   public void addMzPeak(int scanNumber, DataPoint mzValue) {
-    double curIntensity;
+    addMzPeak(scanNumber, mzValue.getMZ(), mzValue.getIntensity());
+  }
+
+  /**
+   * Adds a data point given by its m/z and intensity, without creating a DataPoint instance.
+   */
+  public void addMzPeak(int scanNumber, double mzValue, double curIntensity) {
     // System.out.println("---------------- Adding MZ value to Chromatogram
     // ----------------");
 
     // If we already have a mzvalue for the scan number then we need to add
     // the intensities
-    // together before putting it into the dataPointsMap, otherwise the
+    // together before storing it, otherwise the
     // chromatogram is only
     // representing the intesities of the llast added point for that scan.
     //
     // For now just don't add the point if we have it already. The highest
     // point will be the
     // first one added
-    if (dataPointsMap.containsKey(scanNumber)) {
+    if (getPosition(scanNumber) >= 0) {
       tmp_see_same_scan_count += 1;
       return;
 
     }
 
-    dataPointsMap.put(scanNumber, mzValue);
-    lastMzPeak = mzValue;
-    mzSum += mzValue.getMZ();
+    if (dataPointPositions == null) {
+      dataPointPositions = createPositionMap();
+      updatePositionMap();
+    }
+    if (numOfDataPoints == dataPointScanNumbers.length) {
+      final int newCapacity = numOfDataPoints * 2;
+      dataPointScanNumbers = Arrays.copyOf(dataPointScanNumbers, newCapacity);
+      dataPointMZValues = Arrays.copyOf(dataPointMZValues, newCapacity);
+      dataPointIntensities = Arrays.copyOf(dataPointIntensities, newCapacity);
+    }
+    if ((numOfDataPoints > 0) && (dataPointScanNumbers[numOfDataPoints - 1] > scanNumber))
+      sortedByScanNumber = false;
+    dataPointScanNumbers[numOfDataPoints] = scanNumber;
+    dataPointMZValues[numOfDataPoints] = mzValue;
+    dataPointIntensities[numOfDataPoints] = curIntensity;
+    dataPointPositions.put(scanNumber, numOfDataPoints);
+    numOfDataPoints++;
+
+    hasLastMzPeak = true;
+    lastMZ = mzValue;
+    lastIntensity = curIntensity;
+    mzSum += mzValue;
     mzN++;
     mz = mzSum / mzN;
     buildingSegment.add(scanNumber);
-    chromScanList.add(scanNumber);
-
-    curIntensity = mzValue.getIntensity();
 
     weightedMzN++;
-    weightedMzSum += curIntensity * mzValue.getMZ();
+    weightedMzSum += curIntensity * mzValue;
     sumOfWeights += curIntensity;
 
     weightedMz = weightedMzSum / sumOfWeights;
@@ -241,14 +322,17 @@ public class ADAPChromatogram implements Feature {
 
   @Override
   public DataPoint getDataPoint(int scanNumber) {
-    return dataPointsMap.get(scanNumber);
+    final int position = getPosition(scanNumber);
+    if (position < 0)
+      return null;
+    return new SimpleDataPoint(dataPointMZValues[position], dataPointIntensities[position]);
   }
 
   /**
    * Returns m/z value of last added data point
    */
   public DataPoint getLastMzPeak() {
-    return lastMzPeak;
+    return hasLastMzPeak ? new SimpleDataPoint(lastMZ, lastIntensity) : null;
   }
 
   /**
@@ -403,8 +487,13 @@ public class ADAPChromatogram implements Feature {
 
   public void finishChromatogram() {
 
-    int allScanNumbers[] = Ints.toArray(dataPointsMap.keySet());
-    Arrays.sort(allScanNumbers);
+    // Sort the data points by scan number and drop the unused capacity of the arrays
+    sortDataPoints();
+    dataPointScanNumbers = Arrays.copyOf(dataPointScanNumbers, numOfDataPoints);
+    dataPointMZValues = Arrays.copyOf(dataPointMZValues, numOfDataPoints);
+    dataPointIntensities = Arrays.copyOf(dataPointIntensities, numOfDataPoints);
+    dataPointPositions = null;
+    final int allScanNumbers[] = dataPointScanNumbers;
 
     mz = highPointMZ;
 
@@ -412,25 +501,20 @@ public class ADAPChromatogram implements Feature {
     height = Double.MIN_VALUE;
     for (int i = 0; i < allScanNumbers.length; i++) {
 
-      DataPoint mzPeak = dataPointsMap.get(allScanNumbers[i]);
-
-      // Replace the MzPeak instance with an instance of SimpleDataPoint,
-      // to reduce the memory usage. After we finish this Chromatogram, we
-      // don't need the additional data provided by the MzPeak
-
-      dataPointsMap.put(allScanNumbers[i], mzPeak);
+      final double mzPeakMZ = dataPointMZValues[i];
+      final double mzPeakIntensity = dataPointIntensities[i];
 
       if (i == 0) {
-        rawDataPointsIntensityRange = Range.singleton(mzPeak.getIntensity());
-        rawDataPointsMZRange = Range.singleton(mzPeak.getMZ());
+        rawDataPointsIntensityRange = Range.singleton(mzPeakIntensity);
+        rawDataPointsMZRange = Range.singleton(mzPeakMZ);
       } else {
         rawDataPointsIntensityRange =
-            rawDataPointsIntensityRange.span(Range.singleton(mzPeak.getIntensity()));
-        rawDataPointsMZRange = rawDataPointsMZRange.span(Range.singleton(mzPeak.getMZ()));
+            rawDataPointsIntensityRange.span(Range.singleton(mzPeakIntensity));
+        rawDataPointsMZRange = rawDataPointsMZRange.span(Range.singleton(mzPeakMZ));
       }
 
-      if (height < mzPeak.getIntensity()) {
-        height = mzPeak.getIntensity();
+      if (height < mzPeakIntensity) {
+        height = mzPeakIntensity;
         rt = dataFile.getScan(allScanNumbers[i]).getRetentionTime();
         representativeScan = allScanNumbers[i];
       }
@@ -442,8 +526,8 @@ public class ADAPChromatogram implements Feature {
       // For area calculation, we use retention time in seconds
       double previousRT = dataFile.getScan(allScanNumbers[i - 1]).getRetentionTime() * 60d;
       double currentRT = dataFile.getScan(allScanNumbers[i]).getRetentionTime() * 60d;
-      double previousHeight = dataPointsMap.get(allScanNumbers[i - 1]).getIntensity();
-      double currentHeight = dataPointsMap.get(allScanNumbers[i]).getIntensity();
+      double previousHeight = dataPointIntensities[i - 1];
+      double currentHeight = dataPointIntensities[i];
       area += (currentRT - previousRT) * (currentHeight + previousHeight) / 2;
     }
 
@@ -463,11 +547,10 @@ public class ADAPChromatogram implements Feature {
 
     rawDataPointsRTRange = null;
 
-    for (int scanNum : allScanNumbers) {
-      double scanRt = dataFile.getScan(scanNum).getRetentionTime();
-      DataPoint dp = getDataPoint(scanNum);
+    for (int i = 0; i < allScanNumbers.length; i++) {
+      double scanRt = dataFile.getScan(allScanNumbers[i]).getRetentionTime();
 
-      if ((dp == null) || (dp.getIntensity() == 0.0))
+      if (dataPointIntensities[i] == 0.0)
         continue;
 
       if (rawDataPointsRTRange == null)
@@ -478,15 +561,15 @@ public class ADAPChromatogram implements Feature {
 
     // Discard the fields we don't need anymore
     buildingSegment = null;
-    lastMzPeak = null;
+    hasLastMzPeak = false;
 
   }
 
   public double getBuildingSegmentLength() {
     if (buildingSegment.size() < 2)
       return 0;
-    int firstScan = buildingSegment.firstElement();
-    int lastScan = buildingSegment.lastElement();
+    int firstScan = buildingSegment.getInt(0);
+    int lastScan = buildingSegment.getInt(buildingSegment.size() - 1);
     double firstRT = dataFile.getScan(firstScan).getRetentionTime();
     double lastRT = dataFile.getScan(lastScan).getRetentionTime();
     return (lastRT - firstRT);
@@ -497,8 +580,27 @@ public class ADAPChromatogram implements Feature {
   }
 
   public void removeBuildingSegment() {
-    for (int scanNumber : buildingSegment)
-      dataPointsMap.remove(scanNumber);
+    boolean removed[] = new boolean[numOfDataPoints];
+    for (int i = 0; i < buildingSegment.size(); i++) {
+      final int position = getPosition(buildingSegment.getInt(i));
+      if (position >= 0)
+        removed[position] = true;
+    }
+
+    // Keep the remaining data points in their order
+    int remaining = 0;
+    for (int i = 0; i < numOfDataPoints; i++) {
+      if (removed[i])
+        continue;
+      dataPointScanNumbers[remaining] = dataPointScanNumbers[i];
+      dataPointMZValues[remaining] = dataPointMZValues[i];
+      dataPointIntensities[remaining] = dataPointIntensities[i];
+      remaining++;
+    }
+    numOfDataPoints = remaining;
+    if (dataPointPositions != null)
+      updatePositionMap();
+
     buildingSegment.clear();
   }
 
@@ -508,8 +610,8 @@ public class ADAPChromatogram implements Feature {
   }
 
   public void addDataPointsFromChromatogram(ADAPChromatogram ch) {
-    for (Entry<Integer, DataPoint> dp : ch.dataPointsMap.entrySet()) {
-      addMzPeak(dp.getKey(), dp.getValue());
+    for (int i = 0; i < ch.numOfDataPoints; i++) {
+      addMzPeak(ch.dataPointScanNumbers[i], ch.dataPointMZValues[i], ch.dataPointIntensities[i]);
     }
   }
 
@@ -37,13 +37,14 @@ import io.github.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import io.github.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import io.github.mzmine.taskcontrol.AbstractTask;
 import io.github.mzmine.taskcontrol.TaskStatus;
-import io.github.mzmine.util.DataPointSorter;
+import io.github.mzmine.util.ExceptionUtils;
 import io.github.mzmine.util.PeakSorter;
 import io.github.mzmine.util.SortingDirection;
 import io.github.mzmine.util.SortingProperty;
 
 import com.google.common.collect.RangeSet;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.logging.Logger;
 
@@ -187,6 +188,86 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
     // Create new feature list
     newPeakList = new SimplePeakList(dataFile + " " + suffix, dataFile);
 
+    // Connect the data points of all scans to chromatograms, in order of descending intensity
+    try (ExternalDataPointSorter sortedMzValues = new ExternalDataPointSorter()) {
+      if (!buildChromatograms(sortedMzValues, allScanNumbers))
+        return;
+    } catch (IOException e) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Error while sorting data points: " + ExceptionUtils.exceptionToString(e));
+      return;
+    }
+
+    // finish chromatograms
+    Set<Range<Double>> ranges = rangeSet.asRanges();
+    Iterator<Range<Double>> RangeIterator = ranges.iterator();
+
+    List<ADAPChromatogram> buildingChromatograms = new ArrayList<ADAPChromatogram>();
+
+    double progressStep = (ranges.size() > 0) ? 0.5 / ranges.size() : 0.0;
+    while (RangeIterator.hasNext()) {
+      if (isCanceled()) {
+        return;
+      }
+
+      progress += progressStep;
+
+      Range<Double> curRangeKey = RangeIterator.next();
+
+      ADAPChromatogram chromatogram = rangeToChromMap.get(curRangeKey);
+
+      chromatogram.finishChromatogram();
+
+      // And remove chromatograms who dont have a certian number of
+      // continous points above the
+      // IntensityThresh2 level.
+      double numberOfContinuousPointsAboveNoise =
+          chromatogram.findNumberOfContinuousPointsAboveNoise(IntensityThresh2);
+      if (numberOfContinuousPointsAboveNoise < minimumScanSpan) {
+        continue;
+      } else {
+        buildingChromatograms.add(chromatogram);
+      }
+
+    }
+
+    ADAPChromatogram[] chromatograms = buildingChromatograms.toArray(new ADAPChromatogram[0]);
+
+    // Sort the final chromatograms by m/z
+    Arrays.sort(chromatograms, new PeakSorter(SortingProperty.MZ, SortingDirection.Ascending));
+
+    // Add the chromatograms to the new feature list
+    for (Feature finishedPeak : chromatograms) {
+      SimplePeakListRow newRow = new SimplePeakListRow(newPeakID);
+      newPeakID++;
+      newRow.addPeak(dataFile, finishedPeak);
+      newPeakList.addRow(newRow);
+
+      // finishedPeak.outputChromToFile();
+    }
+
+    // Add new peaklist to the project
+    project.addPeakList(newPeakList);
+
+    // Add quality parameters to peaks
+    QualityParameters.calculateQualityParameters(newPeakList);
+
+    progress = 1.0;
+
+    setStatus(TaskStatus.FINISHED);
+
+    logger.info("Finished chromatogram builder on " + dataFile);
+  }
+
+  /**
+   * Adds the data points of all scans to the given sorter and connects them to chromatograms in
+   * order of descending intensity
+   *
+   * @return False if the task was canceled or failed
+   */
+  private boolean buildChromatograms(ExternalDataPointSorter sortedMzValues, int allScanNumbers[])
+      throws IOException {
+
     // make a list of all the data points
     // sort data points by intensity
     // loop through list
@@ -194,19 +275,18 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
     // update mz avg and other stuff
     //
 
-    // make a list of all the data points
-    List<ExpandedDataPoint> allMzValues = new ArrayList<ExpandedDataPoint>();
-
+    // add all the data points to the sorter, which keeps them in primitive arrays and spills
+    // them to temporary files, so they do not need to be in memory all at once
     for (Scan scan : scans) {
       if (isCanceled())
-        return;
+        return false;
 
       MassList massList = scan.getMassList(massListName);
       if (massList == null) {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
             + " does not have a mass list " + massListName);
-        return;
+        return false;
       }
 
       DataPoint mzValues[] = massList.getDataPoints();
@@ -215,63 +295,41 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("Mass list " + massListName + " does not contain m/z values for scan #"
             + scan.getScanNumber() + " of file " + dataFile);
-        return;
+        return false;
       }
 
       for (DataPoint mzPeak : mzValues) {
-        ExpandedDataPoint curDatP = new ExpandedDataPoint(mzPeak, scan.getScanNumber());
-        allMzValues.add(curDatP);
-        // corespondingScanNum.add(scan.getScanNumber());
+        if (mzPeak == null || Double.isNaN(mzPeak.getMZ()) || Double.isNaN(mzPeak.getIntensity()))
+          continue;
+        sortedMzValues.add(mzPeak.getMZ(), mzPeak.getIntensity(), scan.getScanNumber());
       }
 
     }
 
-    // Integer[] simpleCorespondingScanNums = new
-    // Integer[corespondingScanNum.size()];
-    // corespondingScanNum.toArray(simpleCorespondingScanNums );
-
-    ExpandedDataPoint[] simpleAllMzVals = new ExpandedDataPoint[allMzValues.size()];
-    allMzValues.toArray(simpleAllMzVals);
-
-    // sort data points by intensity
-    Arrays.sort(simpleAllMzVals,
-        new DataPointSorter(SortingProperty.Intensity, SortingDirection.Descending));
-
-    // Set<Chromatogram> buildingChromatograms;
-    // buildingChromatograms = new LinkedHashSet<Chromatogram>();
-
-    double maxIntensity = simpleAllMzVals[0].getIntensity();
-
-    // count starts at 1 since we already have added one with a single
-    // point.
-
-    // Stopwatch stopwatch = Stopwatch.createUnstarted();
-    // stopwatch2 = Stopwatch.createUnstarted();
-    // Stopwatch stopwatch3 = Stopwatch.createUnstarted();
-
     progress = 0.0;
-    double progressStep = (simpleAllMzVals.length > 0) ? 0.5 / simpleAllMzVals.length : 0.0;
+    double progressStep = (sortedMzValues.size() > 0) ? 0.5 / sortedMzValues.size() : 0.0;
 
-    for (ExpandedDataPoint mzPeak : simpleAllMzVals) {
+    // loop through the data points in order of descending intensity
+    while (sortedMzValues.next()) {
 
       progress += progressStep;
 
       if (isCanceled()) {
-        return;
+        return false;
       }
 
-      if (mzPeak == null || Double.isNaN(mzPeak.getMZ()) || Double.isNaN(mzPeak.getIntensity())) {
-        continue;
-      }
+      final double mzPeakMZ = sortedMzValues.getMZ();
+      final double mzPeakIntensity = sortedMzValues.getIntensity();
+      final int mzPeakScanNumber = sortedMzValues.getScanNumber();
 
       //////////////////////////////////////////////////
 
-      Range<Double> containsPointRange = rangeSet.rangeContaining(mzPeak.getMZ());
+      Range<Double> containsPointRange = rangeSet.rangeContaining(mzPeakMZ);
 
-      Range<Double> toleranceRange = mzTolerance.getToleranceRange(mzPeak.getMZ());
+      Range<Double> toleranceRange = mzTolerance.getToleranceRange(mzPeakMZ);
       if (containsPointRange == null) {
         // skip it entierly if the intensity is not high enough
-        if (mzPeak.getIntensity() < minIntensityForStartChrom) {
+        if (mzPeakIntensity < minIntensityForStartChrom) {
           continue;
         }
         // look +- mz tolerance to see if ther is a range near by.
@@ -282,7 +340,7 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
         Double toBeLowerBound;
         Double toBeUpperBound;
 
-        double cur_max_testing_mz = mzPeak.getMZ();
+        double cur_max_testing_mz = mzPeakMZ;
 
         // If both of the above ranges are null then we make the new
         // range spaning the full
@@ -316,9 +374,9 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
           Range<Double> newRange = Range.open(toBeLowerBound, toBeUpperBound);
           ADAPChromatogram newChrom = new ADAPChromatogram(dataFile, allScanNumbers);
 
-          newChrom.addMzPeak(mzPeak.getScanNumber(), mzPeak);
+          newChrom.addMzPeak(mzPeakScanNumber, mzPeakMZ, mzPeakIntensity);
 
-          newChrom.setHighPointMZ(mzPeak.getMZ());
+          newChrom.setHighPointMZ(mzPeakMZ);
 
           rangeToChromMap.put(newRange, newChrom);
           // also need to put it in the set -> this is where the range
@@ -327,17 +385,17 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
           rangeSet.add(newRange);
         } else if (toBeLowerBound.equals(toBeUpperBound) && plusRange != null) {
           ADAPChromatogram curChrom = rangeToChromMap.get(plusRange);
-          curChrom.addMzPeak(mzPeak.getScanNumber(), mzPeak);
+          curChrom.addMzPeak(mzPeakScanNumber, mzPeakMZ, mzPeakIntensity);
         } else
           throw new IllegalStateException(String.format("Incorrect range [%f, %f] for m/z %f",
-              toBeLowerBound, toBeUpperBound, mzPeak.getMZ()));
+              toBeLowerBound, toBeUpperBound, mzPeakMZ));
 
       } else {
         // In this case we do not need to update the rangeSet
 
         ADAPChromatogram curChrom = rangeToChromMap.get(containsPointRange);
 
-        curChrom.addMzPeak(mzPeak.getScanNumber(), mzPeak);
+        curChrom.addMzPeak(mzPeakScanNumber, mzPeakMZ, mzPeakIntensity);
 
         // update the entry in the map
         rangeToChromMap.put(containsPointRange, curChrom);
@@ -345,73 +403,7 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
       }
     }
 
-    // System.out.println("search chroms (ms): " +
-    // stopwatch.elapsed(TimeUnit.MILLISECONDS));
-    // System.out.println("making new chrom (ms): " +
-    // stopwatch2.elapsed(TimeUnit.MILLISECONDS));
-
-    // finish chromatograms
-    Set<Range<Double>> ranges = rangeSet.asRanges();
-    Iterator<Range<Double>> RangeIterator = ranges.iterator();
-
-    List<ADAPChromatogram> buildingChromatograms = new ArrayList<ADAPChromatogram>();
-
-    progressStep = (ranges.size() > 0) ? 0.5 / ranges.size() : 0.0;
-    while (RangeIterator.hasNext()) {
-      if (isCanceled()) {
-        return;
-      }
-
-      progress += progressStep;
-
-      Range<Double> curRangeKey = RangeIterator.next();
-
-      ADAPChromatogram chromatogram = rangeToChromMap.get(curRangeKey);
-
-      chromatogram.finishChromatogram();
-
-      // And remove chromatograms who dont have a certian number of
-      // continous points above the
-      // IntensityThresh2 level.
-      double numberOfContinuousPointsAboveNoise =
-          chromatogram.findNumberOfContinuousPointsAboveNoise(IntensityThresh2);
-      if (numberOfContinuousPointsAboveNoise < minimumScanSpan) {
-        // System.out.println("skipping chromatogram because it does not
-        // meet the min point scan
-        // requirements");
-        continue;
-      } else {
-        buildingChromatograms.add(chromatogram);
-      }
-
-    }
-
-    ADAPChromatogram[] chromatograms = buildingChromatograms.toArray(new ADAPChromatogram[0]);
-
-    // Sort the final chromatograms by m/z
-    Arrays.sort(chromatograms, new PeakSorter(SortingProperty.MZ, SortingDirection.Ascending));
-
-    // Add the chromatograms to the new feature list
-    for (Feature finishedPeak : chromatograms) {
-      SimplePeakListRow newRow = new SimplePeakListRow(newPeakID);
-      newPeakID++;
-      newRow.addPeak(dataFile, finishedPeak);
-      newPeakList.addRow(newRow);
-
-      // finishedPeak.outputChromToFile();
-    }
-
-    // Add new peaklist to the project
-    project.addPeakList(newPeakList);
-
-    // Add quality parameters to peaks
-    QualityParameters.calculateQualityParameters(newPeakList);
-
-    progress = 1.0;
-
-    setStatus(TaskStatus.FINISHED);
-
-    logger.info("Finished chromatogram builder on " + dataFile);
+    return true;
   }
 
 }
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package io.github.mzmine.modules.dataprocessing.featdet_ADAPchromatogrambuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+/**
+ * Sorts data points (m/z, intensity and scan number) by descending intensity without keeping all of
+ * them in memory. The data points are collected in primitive arrays of limited size. Whenever the
+ * arrays are full, they are sorted and written to a temporary file. The sorted files are merged
+ * while the data points are read. Data points with the same intensity are sorted like
+ * DataPointSorter sorts them, by descending m/z, and then in the order in which they were added.
+ *
+ * Usage: add all data points, then call {@link #next()} and read the current data point until it
+ * returns false. Call {@link #close()} to delete the temporary files.
+ */
+class ExternalDataPointSorter implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(ExternalDataPointSorter.class.getName());
+
+  // Number of data points sorted in memory at once, and initial size of the arrays
+  private static final int CHUNK_SIZE = 1 << 22;
+  private static final int INITIAL_CHUNK_SIZE = 1 << 12;
+
+  private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+  // Data points which were added but not yet written to a file
+  private double chunkMZValues[], chunkIntensities[];
+  private int chunkScanNumbers[];
+  private int chunkLength = 0;
+  private int sortedChunk[];
+
+  private final List<File> chunkFiles = new ArrayList<>();
+  private long size = 0;
+
+  // Sorted chunks being read, ordered by their current data point
+  private PriorityQueue<ChunkReader> readers;
+
+  // Current data point
+  private double mz, intensity;
+  private int scanNumber;
+
+  ExternalDataPointSorter() {
+    chunkMZValues = new double[INITIAL_CHUNK_SIZE];
+    chunkIntensities = new double[INITIAL_CHUNK_SIZE];
+    chunkScanNumbers = new int[INITIAL_CHUNK_SIZE];
+  }
+
+  /**
+   * Adds a data point. Must not be called after reading has started.
+   */
+  void add(double mz, double intensity, int scanNumber) throws IOException {
+    if (readers != null)
+      throw new IllegalStateException("Cannot add data points while reading");
+    if (chunkLength == CHUNK_SIZE) {
+      writeChunk();
+    } else if (chunkLength == chunkMZValues.length) {
+      final int newLength = Math.min(CHUNK_SIZE, chunkLength * 2);
+      chunkMZValues = Arrays.copyOf(chunkMZValues, newLength);
+      chunkIntensities = Arrays.copyOf(chunkIntensities, newLength);
+      chunkScanNumbers = Arrays.copyOf(chunkScanNumbers, newLength);
+    }
+    chunkMZValues[chunkLength] = mz;
+    chunkIntensities[chunkLength] = intensity;
+    chunkScanNumbers[chunkLength] = scanNumber;
+    chunkLength++;
+    size++;
+  }
+
+  /**
+   * @return Number of added data points
+   */
+  long size() {
+    return size;
+  }
+
+  /**
+   * Moves to the next data point in descending intensity.
+   *
+   * @return False if there are no more data points
+   */
+  boolean next() throws IOException {
+
+    if (readers == null)
+      startReading();
+
+    final ChunkReader reader = readers.poll();
+    if (reader == null)
+      return false;
+
+    mz = reader.mz;
+    intensity = reader.intensity;
+    scanNumber = reader.scanNumber;
+
+    if (reader.next())
+      readers.add(reader);
+    else
+      reader.close();
+
+    return true;
+  }
+
+  double getMZ() {
+    return mz;
+  }
+
+  double getIntensity() {
+    return intensity;
+  }
+
+  int getScanNumber() {
+    return scanNumber;
+  }
+
+  private void startReading() throws IOException {
+
+    // Chunks added earlier come first among equal data points
+    readers = new PriorityQueue<>(Comparator
+        .<ChunkReader>comparingDouble(r -> r.intensity).thenComparingDouble(r -> r.mz).reversed()
+        .thenComparingInt(r -> r.order));
+
+    // The last chunk is read from memory
+    sortChunk();
+    final ChunkReader memoryReader = new MemoryChunkReader(chunkFiles.size());
+    if (memoryReader.next())
+      readers.add(memoryReader);
+
+    for (int i = 0; i < chunkFiles.size(); i++) {
+      final ChunkReader fileReader = new FileChunkReader(chunkFiles.get(i), i);
+      if (fileReader.next())
+        readers.add(fileReader);
+      else
+        fileReader.close();
+    }
+  }
+
+  private void sortChunk() {
+    sortedChunk = new int[chunkLength];
+    for (int i = 0; i < chunkLength; i++) {
+      sortedChunk[i] = i;
+    }
+    IntArrays.quickSort(sortedChunk, (a, b) -> {
+      int result = Double.compare(chunkIntensities[b], chunkIntensities[a]);
+      if (result == 0)
+        result = Double.compare(chunkMZValues[b], chunkMZValues[a]);
+      if (result == 0)
+        result = Integer.compare(a, b);
+      return result;
+    });
+  }
+
+  private void writeChunk() throws IOException {
+
+    sortChunk();
+
+    final File chunkFile = File.createTempFile("mzmine_adap_chunk", ".tmp");
+    chunkFile.deleteOnExit();
+    chunkFiles.add(chunkFile);
+
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(chunkFile), STREAM_BUFFER_SIZE))) {
+      for (int i : sortedChunk) {
+        out.writeDouble(chunkMZValues[i]);
+        out.writeDouble(chunkIntensities[i]);
+        out.writeInt(chunkScanNumbers[i]);
+      }
+    }
+
+    logger.finest("Wrote " + chunkLength + " sorted data points to " + chunkFile);
+    chunkLength = 0;
+    sortedChunk = null;
+  }
+
+  /**
+   * Deletes the temporary files
+   */
+  @Override
+  public void close() {
+    if (readers != null) {
+      for (ChunkReader reader : readers) {
+        reader.close();
+      }
+      readers.clear();
+    }
+    for (File chunkFile : chunkFiles) {
+      if (!chunkFile.delete())
+        logger.warning("Could not delete temporary file " + chunkFile);
+    }
+    chunkFiles.clear();
+  }
+
+  /**
+   * Reader of one sorted chunk
+   */
+  private static abstract class ChunkReader {
+
+    private final int order;
+    double mz, intensity;
+    int scanNumber;
+
+    ChunkReader(int order) {
+      this.order = order;
+    }
+
+    /**
+     * Reads the next data point of the chunk
+     *
+     * @return False if the chunk has no more data points
+     */
+    abstract boolean next() throws IOException;
+
+    void close() {}
+  }
+
+  private class MemoryChunkReader extends ChunkReader {
+
+    private int position = 0;
+
+    MemoryChunkReader(int order) {
+      super(order);
+    }
+
+    @Override
+    boolean next() {
+      if (position == sortedChunk.length)
+        return false;
+      final int i = sortedChunk[position++];
+      mz = chunkMZValues[i];
+      intensity = chunkIntensities[i];
+      scanNumber = chunkScanNumbers[i];
+      return true;
+    }
+  }
+
+  private static class FileChunkReader extends ChunkReader {
+
+    private final DataInputStream in;
+
+    FileChunkReader(File chunkFile, int order) throws IOException {
+      super(order);
+      in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(chunkFile), STREAM_BUFFER_SIZE));
+    }
+
+    @Override
+    boolean next() throws IOException {
+      try {
+        mz = in.readDouble();
+      } catch (EOFException e) {
+        return false;
+      }
+      intensity = in.readDouble();
+      scanNumber = in.readInt();
+      return true;
+    }
+
+    @Override
+    void close() {
+      try {
+        in.close();
+      } catch (IOException e) {
+        logger.warning("Could not close temporary file: " + e);
+      }
+    }
+  }
+
+}
@@ -136,7 +136,7 @@ public class ChromatogramBuilderTask extends AbstractTask {
     newPeakList = new SimplePeakList(dataFile + " " + suffix, dataFile);
 
     Chromatogram[] chromatograms;
-    HighestDataPointConnector massConnector = new HighestDataPointConnector(dataFile,
+    SweepLineDataPointConnector massConnector = new SweepLineDataPointConnector(dataFile,
         allScanNumbers, minimumTimeSpan, minimumHeight, mzTolerance);
 
     for (Scan scan : scans) {
@@ -1,176 +1,247 @@
-/*
- * Copyright 2006-2020 The MZmine Development Team
- * 
- * This file is part of MZmine.
- * 
- * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
- * General Public License as published by the Free Software Foundation; either version 2 of the
- * License, or (at your option) any later version.
- * 
- * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
- * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
- * Public License for more details.
- * 
- * You should have received a copy of the GNU General Public License along with MZmine; if not,
- * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
- * USA
- */
-
-package io.github.mzmine.modules.dataprocessing.featdet_chromatogrambuilder;
-
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.Set;
-
-import com.google.common.collect.Range;
-
-import io.github.mzmine.datamodel.DataPoint;
-import io.github.mzmine.datamodel.RawDataFile;
-import io.github.mzmine.parameters.parametertypes.tolerances.MZTolerance;
-import io.github.mzmine.util.DataPointSorter;
-import io.github.mzmine.util.SortingDirection;
-import io.github.mzmine.util.SortingProperty;
-
-public class HighestDataPointConnector {
-
-  private final MZTolerance mzTolerance;
-  private final double minimumTimeSpan, minimumHeight;
-  private final RawDataFile dataFile;
-  private final int allScanNumbers[];
-
-  // Mapping of last data point m/z --> chromatogram
-  private Set<Chromatogram> buildingChromatograms;
-
-  public HighestDataPointConnector(RawDataFile dataFile, int allScanNumbers[],
-      double minimumTimeSpan, double minimumHeight, MZTolerance mzTolerance) {
-
-    this.mzTolerance = mzTolerance;
-    this.minimumHeight = minimumHeight;
-    this.minimumTimeSpan = minimumTimeSpan;
-    this.dataFile = dataFile;
-    this.allScanNumbers = allScanNumbers;
-
-    // We use LinkedHashSet to maintain a reproducible ordering. If we use
-    // plain HashSet, the resulting feature list row IDs will have different
-    // order every time the method is invoked.
-    buildingChromatograms = new LinkedHashSet<Chromatogram>();
-
-  }
-
-  public void addScan(int scanNumber, DataPoint mzValues[]) {
-
-    // Sort m/z peaks by descending intensity
-    Arrays.sort(mzValues,
-        new DataPointSorter(SortingProperty.Intensity, SortingDirection.Descending));
-
-    // Set of already connected chromatograms in each iteration
-    Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
-
-    // TODO: these two nested cycles should be optimized for speed
-    for (DataPoint mzPeak : mzValues) {
-
-      // Search for best chromatogram, which has highest last data point
-      Chromatogram bestChromatogram = null;
-
-      for (Chromatogram testChrom : buildingChromatograms) {
-
-        DataPoint lastMzPeak = testChrom.getLastMzPeak();
-        Range<Double> toleranceRange = mzTolerance.getToleranceRange(lastMzPeak.getMZ());
-        if (toleranceRange.contains(mzPeak.getMZ())) {
-          if ((bestChromatogram == null) || (testChrom.getLastMzPeak()
-              .getIntensity() > bestChromatogram.getLastMzPeak().getIntensity())) {
-            bestChromatogram = testChrom;
-          }
-        }
-
-      }
-
-      // If we found best chromatogram, check if it is already connected.
-      // In such case, we may discard this mass and continue. If we
-      // haven't found a chromatogram, we may create a new one.
-      if (bestChromatogram != null) {
-        if (connectedChromatograms.contains(bestChromatogram)) {
-          continue;
-        }
-      } else {
-        bestChromatogram = new Chromatogram(dataFile, allScanNumbers);
-      }
-
-      // Add this mzPeak to the chromatogram
-      bestChromatogram.addMzPeak(scanNumber, mzPeak);
-
-      // Move the chromatogram to the set of connected chromatograms
-      connectedChromatograms.add(bestChromatogram);
-
-    }
-
-    // Process those chromatograms which were not connected to any m/z peak
-    for (Chromatogram testChrom : buildingChromatograms) {
-
-      // Skip those which were connected
-      if (connectedChromatograms.contains(testChrom)) {
-        continue;
-      }
-
-      // Check if we just finished a long-enough segment
-      if (testChrom.getBuildingSegmentLength() >= minimumTimeSpan) {
-        testChrom.commitBuildingSegment();
-
-        // Move the chromatogram to the set of connected chromatograms
-        connectedChromatograms.add(testChrom);
-        continue;
-      }
-
-      // Check if we have any committed segments in the chromatogram
-      if (testChrom.getNumberOfCommittedSegments() > 0) {
-        testChrom.removeBuildingSegment();
-
-        // Move the chromatogram to the set of connected chromatograms
-        connectedChromatograms.add(testChrom);
-        continue;
-      }
-
-    }
-
-    // All remaining chromatograms in buildingChromatograms are discarded
-    // and buildingChromatograms is replaced with connectedChromatograms
-    buildingChromatograms = connectedChromatograms;
-
-  }
-
-  public Chromatogram[] finishChromatograms() {
-
-    // Iterate through current chromatograms and remove those which do not
-    // contain any committed segment nor long-enough building segment
-
-    Iterator<Chromatogram> chromIterator = buildingChromatograms.iterator();
-    while (chromIterator.hasNext()) {
-
-      Chromatogram chromatogram = chromIterator.next();
-
-      if (chromatogram.getBuildingSegmentLength() >= minimumTimeSpan) {
-        chromatogram.commitBuildingSegment();
-        chromatogram.finishChromatogram();
-      } else {
-        if (chromatogram.getNumberOfCommittedSegments() == 0) {
-          chromIterator.remove();
-          continue;
-        } else {
-          chromatogram.removeBuildingSegment();
-          chromatogram.finishChromatogram();
-        }
-      }
-
-      // Remove chromatograms smaller then minimum height
-      if (chromatogram.getHeight() < minimumHeight)
-        chromIterator.remove();
-
-    }
-
-    // All remaining chromatograms are good, so we can return them
-    Chromatogram[] chromatograms = buildingChromatograms.toArray(new Chromatogram[0]);
-    return chromatograms;
-  }
-
-}
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package io.github.mzmine.modules.dataprocessing.featdet_chromatogrambuilder;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import io.github.mzmine.datamodel.DataPoint;
+import io.github.mzmine.datamodel.RawDataFile;
+import io.github.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import io.github.mzmine.util.DataPointSorter;
+import io.github.mzmine.util.SortingDirection;
+import io.github.mzmine.util.SortingProperty;
+
+/**
+ * Connects the m/z peaks of consecutive scans into chromatograms. Instead of testing every m/z
+ * peak against every building chromatogram, the building chromatograms are kept in a set sorted by
+ * the m/z of their last data point, so only the chromatograms inside the m/z tolerance window of a
+ * peak are looked at.
+ */
+public class SweepLineDataPointConnector {
+
+  private static final Comparator<ChromatogramEntry> entryComparator =
+      Comparator.<ChromatogramEntry>comparingDouble(e -> e.lastMZ).thenComparingInt(e -> e.order);
+
+  private final MZTolerance mzTolerance;
+  private final double minimumTimeSpan, minimumHeight;
+  private final RawDataFile dataFile;
+  private final int allScanNumbers[];
+
+  // Building chromatograms, in the order in which they were connected. This order decides between
+  // chromatograms with equally intense last data points and keeps feature list row IDs
+  // reproducible.
+  private Set<Chromatogram> buildingChromatograms;
+
+  // Building chromatograms sorted by the m/z of their last data point
+  private final TreeSet<ChromatogramEntry> sortedChromatograms = new TreeSet<>(entryComparator);
+
+  public SweepLineDataPointConnector(RawDataFile dataFile, int allScanNumbers[],
+      double minimumTimeSpan, double minimumHeight, MZTolerance mzTolerance) {
+
+    this.mzTolerance = mzTolerance;
+    this.minimumHeight = minimumHeight;
+    this.minimumTimeSpan = minimumTimeSpan;
+    this.dataFile = dataFile;
+    this.allScanNumbers = allScanNumbers;
+
+    buildingChromatograms = new LinkedHashSet<Chromatogram>();
+
+  }
+
+  public void addScan(int scanNumber, DataPoint mzValues[]) {
+
+    // Sort m/z peaks by descending intensity
+    Arrays.sort(mzValues,
+        new DataPointSorter(SortingProperty.Intensity, SortingDirection.Descending));
+
+    // Index the building chromatograms by the m/z of their last data point
+    sortedChromatograms.clear();
+    int order = 0;
+    for (Chromatogram chromatogram : buildingChromatograms) {
+      sortedChromatograms.add(new ChromatogramEntry(chromatogram, order++));
+    }
+
+    // Set of already connected chromatograms in each iteration
+    Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
+
+    for (DataPoint mzPeak : mzValues) {
+
+      final double mz = mzPeak.getMZ();
+
+      // The tolerance of a chromatogram depends on the m/z of its last data point, so search twice
+      // the tolerance of this peak. This covers any chromatogram whose tolerance range contains the
+      // peak, as long as the ppm tolerance is below 50%. The candidates are then checked against
+      // their own tolerance range.
+      final double searchTolerance = 2.0 * mzTolerance.getMzToleranceForMass(mz);
+      final ChromatogramEntry from = new ChromatogramEntry(mz - searchTolerance, -1);
+      final ChromatogramEntry to = new ChromatogramEntry(mz + searchTolerance, Integer.MAX_VALUE);
+
+      // Search for best chromatogram, which has highest last data point
+      ChromatogramEntry bestEntry = null;
+
+      for (ChromatogramEntry testEntry : sortedChromatograms.subSet(from, true, to, true)) {
+
+        if (!mzTolerance.getToleranceRange(testEntry.lastMZ).contains(mz))
+          continue;
+
+        if ((bestEntry == null) || (testEntry.lastIntensity > bestEntry.lastIntensity)
+            || ((testEntry.lastIntensity == bestEntry.lastIntensity)
+                && (testEntry.order < bestEntry.order))) {
+          bestEntry = testEntry;
+        }
+
+      }
+
+      // If we found best chromatogram, check if it is already connected.
+      // In such case, we may discard this mass and continue. If we
+      // haven't found a chromatogram, we may create a new one.
+      Chromatogram bestChromatogram;
+      if (bestEntry != null) {
+        bestChromatogram = bestEntry.chromatogram;
+        if (connectedChromatograms.contains(bestChromatogram)) {
+          continue;
+        }
+      } else {
+        bestChromatogram = new Chromatogram(dataFile, allScanNumbers);
+      }
+
+      // Add this mzPeak to the chromatogram
+      bestChromatogram.addMzPeak(scanNumber, mzPeak);
+
+      // The last data point of a building chromatogram changed, so move it to its new position.
+      // Chromatograms created in this scan are not candidates until the next scan.
+      if (bestEntry != null) {
+        sortedChromatograms.remove(bestEntry);
+        bestEntry.update();
+        sortedChromatograms.add(bestEntry);
+      }
+
+      // Move the chromatogram to the set of connected chromatograms
+      connectedChromatograms.add(bestChromatogram);
+
+    }
+
+    // Process those chromatograms which were not connected to any m/z peak
+    for (Chromatogram testChrom : buildingChromatograms) {
+
+      // Skip those which were connected
+      if (connectedChromatograms.contains(testChrom)) {
+        continue;
+      }
+
+      // Check if we just finished a long-enough segment
+      if (testChrom.getBuildingSegmentLength() >= minimumTimeSpan) {
+        testChrom.commitBuildingSegment();
+
+        // Move the chromatogram to the set of connected chromatograms
+        connectedChromatograms.add(testChrom);
+        continue;
+      }
+
+      // Check if we have any committed segments in the chromatogram
+      if (testChrom.getNumberOfCommittedSegments() > 0) {
+        testChrom.removeBuildingSegment();
+
+        // Move the chromatogram to the set of connected chromatograms
+        connectedChromatograms.add(testChrom);
+        continue;
+      }
+
+    }
+
+    // All remaining chromatograms in buildingChromatograms are discarded
+    // and buildingChromatograms is replaced with connectedChromatograms
+    buildingChromatograms = connectedChromatograms;
+
+  }
+
+  public Chromatogram[] finishChromatograms() {
+
+    sortedChromatograms.clear();
+
+    // Iterate through current chromatograms and remove those which do not
+    // contain any committed segment nor long-enough building segment
+
+    Iterator<Chromatogram> chromIterator = buildingChromatograms.iterator();
+    while (chromIterator.hasNext()) {
+
+      Chromatogram chromatogram = chromIterator.next();
+
+      if (chromatogram.getBuildingSegmentLength() >= minimumTimeSpan) {
+        chromatogram.commitBuildingSegment();
+        chromatogram.finishChromatogram();
+      } else {
+        if (chromatogram.getNumberOfCommittedSegments() == 0) {
+          chromIterator.remove();
+          continue;
+        } else {
+          chromatogram.removeBuildingSegment();
+          chromatogram.finishChromatogram();
+        }
+      }
+
+      // Remove chromatograms smaller then minimum height
+      if (chromatogram.getHeight() < minimumHeight)
+        chromIterator.remove();
+
+    }
+
+    // All remaining chromatograms are good, so we can return them
+    Chromatogram[] chromatograms = buildingChromatograms.toArray(new Chromatogram[0]);
+    return chromatograms;
+  }
+
+  /**
+   * Building chromatogram together with the values of its last data point, which must not change
+   * while the entry is in the sorted set.
+   */
+  private static class ChromatogramEntry {
+
+    private final Chromatogram chromatogram;
+    private final int order;
+    private double lastMZ, lastIntensity;
+
+    ChromatogramEntry(Chromatogram chromatogram, int order) {
+      this.chromatogram = chromatogram;
+      this.order = order;
+      update();
+    }
+
+    /**
+     * Search bound for the sorted set
+     */
+    ChromatogramEntry(double mz, int order) {
+      this.chromatogram = null;
+      this.order = order;
+      this.lastMZ = mz;
+    }
+
+    void update() {
+      DataPoint lastMzPeak = chromatogram.getLastMzPeak();
+      lastMZ = lastMzPeak.getMZ();
+      lastIntensity = lastMzPeak.getIntensity();
+    }
+  }
+
+}
@@ -33,8 +33,10 @@ import io.github.mzmine.datamodel.Scan;
 import io.github.mzmine.datamodel.impl.SimpleDataPoint;
 import io.github.mzmine.modules.tools.qualityparameters.QualityParameters;
 import io.github.mzmine.modules.visualization.featurelisttable.table.PeakListTable;
+import io.github.mzmine.project.impl.RawDataFileImpl;
 import io.github.mzmine.taskcontrol.AbstractTask;
 import io.github.mzmine.taskcontrol.TaskStatus;
+import io.github.mzmine.util.scans.ExtractedIonIndex;
 import io.github.mzmine.util.scans.ScanUtils;
 
 class ManualPickerTask extends AbstractTask {
@@ -97,6 +99,17 @@ class ManualPickerTask extends AbstractTask {
 
       int[] scanNumbers = dataFile.getScanNumbers(1, rtRange);
 
+      // With an m/z index of the file, only the data points in the m/z range are read
+      final ExtractedIonIndex xicIndex = (dataFile instanceof RawDataFileImpl)
+          ? ((RawDataFileImpl) dataFile).getExtractedIonIndex(1)
+          : null;
+      double basePeakMZ[] = null, basePeakIntensity[] = null;
+      if (xicIndex != null) {
+        basePeakMZ = new double[xicIndex.getNumberOfScans()];
+        basePeakIntensity = new double[xicIndex.getNumberOfScans()];
+        xicIndex.findBasePeaks(mzRange, basePeakMZ, basePeakIntensity);
+      }
+
       for (int scanNumber : scanNumbers) {
 
         if (isCanceled())
@@ -106,7 +119,14 @@ class ManualPickerTask extends AbstractTask {
         Scan scan = dataFile.getScan(scanNumber);
 
         // Find most intense m/z peak
-        DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
+        final int xicScanIndex = (xicIndex != null) ? xicIndex.getScanIndex(scanNumber) : -1;
+        DataPoint basePeak;
+        if (xicScanIndex >= 0) {
+          basePeak = Double.isNaN(basePeakMZ[xicScanIndex]) ? null
+              : new SimpleDataPoint(basePeakMZ[xicScanIndex], basePeakIntensity[xicScanIndex]);
+        } else {
+          basePeak = ScanUtils.findBasePeak(scan, mzRange);
+        }
 
         if (basePeak != null) {
           if (basePeak.getIntensity() > 0)
@@ -32,6 +32,7 @@ import io.github.mzmine.modules.dataprocessing.featdet_massdetection.recursive.R
 import io.github.mzmine.modules.dataprocessing.featdet_massdetection.wavelet.WaveletMassDetector;
 import io.github.mzmine.parameters.Parameter;
 import io.github.mzmine.parameters.impl.SimpleParameterSet;
+import io.github.mzmine.parameters.parametertypes.BooleanParameter;
 import io.github.mzmine.parameters.parametertypes.ModuleComboParameter;
 import io.github.mzmine.parameters.parametertypes.OptionalParameter;
 import io.github.mzmine.parameters.parametertypes.StringParameter;
@@ -72,8 +73,12 @@ public class MassDetectionParameters extends SimpleParameterSet {
   public static final OptionalParameter<FileNameParameter> outFilenameOption =
       new OptionalParameter<>(outFilename);
 
+  public static final BooleanParameter useParallel = new BooleanParameter("Parallel",
+      "Detect the masses of several scans of the same file in parallel", true);
+
   public MassDetectionParameters() {
-    super(new Parameter[] {dataFiles, scanSelection, massDetector, name, outFilenameOption});
+    super(new Parameter[] {dataFiles, scanSelection, massDetector, name, outFilenameOption,
+        useParallel});
   }
 
   @Override
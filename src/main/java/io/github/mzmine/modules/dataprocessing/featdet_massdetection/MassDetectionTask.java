@@ -21,7 +21,9 @@ package io.github.mzmine.modules.dataprocessing.featdet_massdetection;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 import io.github.mzmine.datamodel.DataPoint;
 import io.github.mzmine.datamodel.RawDataFile;
@@ -44,10 +46,16 @@ import ucar.nc2.Variable;
 public class MassDetectionTask extends AbstractTask {
 
   private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+  // Number of scans whose masses are detected before their mass lists are added. Bounds the
+  // memory used by pending mass lists in parallel mode.
+  private static final int SCANS_PER_CHUNK = 256;
+
   private final RawDataFile dataFile;
 
   // scan counter
-  private int processedScans = 0, totalScans = 0;
+  private final AtomicInteger processedScans = new AtomicInteger(0);
+  private int totalScans = 0;
   private final ScanSelection scanSelection;
 
   // User parameters
@@ -60,6 +68,8 @@ public class MassDetectionTask extends AbstractTask {
   private File outFilename;
   private boolean saveToCDF;
 
+  private boolean useParallel;
+
   /**
    * @param dataFile
    * @param parameters
@@ -78,6 +88,8 @@ public class MassDetectionTask extends AbstractTask {
 
     this.outFilename = MassDetectionParameters.outFilenameOption.getEmbeddedParameter().getValue();
 
+    this.useParallel = parameters.getParameter(MassDetectionParameters.useParallel).getValue();
+
   }
 
   /**
@@ -94,7 +106,7 @@ public class MassDetectionTask extends AbstractTask {
     if (totalScans == 0)
       return 0;
     else
-      return (double) processedScans / totalScans;
+      return (double) processedScans.get() / totalScans;
   }
 
   public RawDataFile getDataFile() {
@@ -129,39 +141,68 @@ public class MassDetectionTask extends AbstractTask {
 
       final Scan scans[] = scanSelection.getMatchingScans(dataFile);
       totalScans = scans.length;
-      // Process scans one by one
-      for (Scan scan : scans) {
+
+      final MassDetector detector = massDetector.getModule();
+      final ParameterSet detectorParameters = massDetector.getParameterSet();
+
+      // Process scans in chunks. The masses of the scans of a chunk are detected independently,
+      // in parallel if selected, and the mass lists are then added in scan order.
+      final DataPoint chunkMzPeaks[][] = new DataPoint[SCANS_PER_CHUNK][];
+      for (int chunkStart = 0; chunkStart < scans.length; chunkStart += SCANS_PER_CHUNK) {
 
         if (isCanceled())
           return;
 
-        MassDetector detector = massDetector.getModule();
-        DataPoint mzPeaks[] = detector.getMassValues(scan, massDetector.getParameterSet());
+        final int chunkOffset = chunkStart;
+        final int chunkSize = Math.min(SCANS_PER_CHUNK, scans.length - chunkStart);
 
-        SimpleMassList newMassList = new SimpleMassList(name, scan, mzPeaks);
+        IntStream scanStream = IntStream.range(0, chunkSize);
+        if (useParallel)
+          scanStream = scanStream.parallel();
 
-        // Add new mass list to the scan
-        scan.addMassList(newMassList);
+        scanStream.forEach(i -> {
+          // Canceled?
+          if (isCanceled()) {
+            // inside stream - only skips this element
+            return;
+          }
+          chunkMzPeaks[i] =
+              detector.getMassValues(scans[chunkOffset + i], detectorParameters);
+          processedScans.incrementAndGet();
+        });
 
-        if (this.saveToCDF) {
+        if (isCanceled())
+          return;
 
-          curTotalIntensity = 0;
-          for (int a = 0; a < mzPeaks.length; a++) {
-            DataPoint curMzPeak = mzPeaks[a];
-            allMZ.add(curMzPeak.getMZ());
-            allIntensities.add(curMzPeak.getIntensity());
-            curTotalIntensity += curMzPeak.getIntensity();
-          }
+        for (int i = 0; i < chunkSize; i++) {
 
-          scanAcquisitionTime.add(scan.getRetentionTime());
-          pointsInScans.add(0);
-          startIndex.add(mzPeaks.length + lastPointCount);
-          totalIntensity.add(curTotalIntensity);
+          final Scan scan = scans[chunkOffset + i];
+          final DataPoint mzPeaks[] = chunkMzPeaks[i];
+          chunkMzPeaks[i] = null;
 
-          lastPointCount = mzPeaks.length + lastPointCount;
-        }
+          SimpleMassList newMassList = new SimpleMassList(name, scan, mzPeaks);
+
+          // Add new mass list to the scan
+          scan.addMassList(newMassList);
+
+          if (this.saveToCDF) {
 
-        processedScans++;
+            curTotalIntensity = 0;
+            for (int a = 0; a < mzPeaks.length; a++) {
+              DataPoint curMzPeak = mzPeaks[a];
+              allMZ.add(curMzPeak.getMZ());
+              allIntensities.add(curMzPeak.getIntensity());
+              curTotalIntensity += curMzPeak.getIntensity();
+            }
+
+            scanAcquisitionTime.add(scan.getRetentionTime());
+            pointsInScans.add(0);
+            startIndex.add(mzPeaks.length + lastPointCount);
+            totalIntensity.add(curTotalIntensity);
+
+            lastPointCount = mzPeaks.length + lastPointCount;
+          }
+        }
       }
 
 
@@ -59,7 +59,12 @@ class Gap {
     this.noiseLevel = noiseLevel;
   }
 
-  void offerNextScan(Scan scan) {
+  /**
+   * Offers the next scan to this gap. The data points of the scan are passed as primitive arrays
+   * (see Scan.getMzAndIntensityValues()), so that the scan only needs to be read once for all gaps
+   * of a raw data file.
+   */
+  void offerNextScan(Scan scan, double mzValues[], double intensityValues[]) {
 
     double scanRT = scan.getRetentionTime();
 
@@ -74,12 +79,13 @@ class Gap {
     }
 
     // Find top m/z peak in our range
-    DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
+    final int basePeakIndex = ScanUtils.findBasePeakIndex(mzValues, intensityValues,
+        scan.getNumberOfDataPoints(), mzRange);
 
     GapDataPoint currentDataPoint;
-    if (basePeak != null) {
-      currentDataPoint =
-          new GapDataPoint(scan.getScanNumber(), basePeak.getMZ(), scanRT, basePeak.getIntensity());
+    if (basePeakIndex >= 0) {
+      currentDataPoint = new GapDataPoint(scan.getScanNumber(), mzValues[basePeakIndex], scanRT,
+          intensityValues[basePeakIndex]);
     } else {
       final double mzCenter = (mzRange.lowerEndpoint() + mzRange.upperEndpoint()) / 2.0;
       currentDataPoint = new GapDataPoint(scan.getScanNumber(), mzCenter, scanRT, 0);
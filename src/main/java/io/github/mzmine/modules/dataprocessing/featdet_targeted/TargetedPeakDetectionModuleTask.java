@@ -147,6 +147,9 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
       return;
     }
 
+    // Buffers for the data points of the current scan, reused for all scans
+    double mzValues[] = new double[0], intensityValues[] = new double[0];
+
     // Process each scan
     for (int scanNumber : scanNumbers) {
 
@@ -158,9 +161,14 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
       // Get the scan
       Scan scan = dataFile.getScan(scanNumber);
 
-      // Feed this scan to all gaps
+      // Read the data points once and feed this scan to all gaps
+      if (mzValues.length < scan.getNumberOfDataPoints()) {
+        mzValues = new double[scan.getNumberOfDataPoints()];
+        intensityValues = new double[scan.getNumberOfDataPoints()];
+      }
+      scan.getMzAndIntensityValues(mzValues, intensityValues);
       for (Gap gap : gaps) {
-        gap.offerNextScan(scan);
+        gap.offerNextScan(scan, mzValues, intensityValues);
       }
 
       processedScans++;
@@ -86,16 +86,17 @@ public class CropFilterTask extends AbstractTask {
 
       for (Scan scan : scans) {
 
-        SimpleScan scanCopy = new SimpleScan(scan);
-
-        // Check if we have something to crop
-        if (!mzRange.encloses(scan.getDataPointMZRange())) {
+        // Check if we have something to crop, unchanged scans share their data points with the
+        // original file
+        if (mzRange.encloses(scan.getDataPointMZRange())) {
+          rawDataFileWriter.addScan(scan);
+        } else {
+          SimpleScan scanCopy = new SimpleScan(scan);
           DataPoint croppedDataPoints[] = scan.getDataPointsByMass(mzRange);
           scanCopy.setDataPoints(croppedDataPoints);
+          rawDataFileWriter.addScan(scanCopy);
         }
 
-        rawDataFileWriter.addScan(scanCopy);
-
         processedScans++;
       }
 
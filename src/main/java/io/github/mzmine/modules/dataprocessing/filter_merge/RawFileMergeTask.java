@@ -28,7 +28,6 @@ import io.github.mzmine.datamodel.MZmineProject;
 import io.github.mzmine.datamodel.RawDataFile;
 import io.github.mzmine.datamodel.RawDataFileWriter;
 import io.github.mzmine.datamodel.Scan;
-import io.github.mzmine.datamodel.impl.SimpleScan;
 import io.github.mzmine.main.MZmineCore;
 import io.github.mzmine.parameters.ParameterSet;
 import io.github.mzmine.taskcontrol.AbstractTask;
@@ -121,10 +120,8 @@ class RawFileMergeTask extends AbstractTask {
       for (Scan scan : scans) {
         if (isCanceled())
           return;
-        // copy, reset scan number
-        SimpleScan scanCopy = new SimpleScan(scan);
-        scanCopy.setScanNumber(i);
-        rawDataFileWriter.addScan(scanCopy);
+        // reset scan number, the data points are shared with the original file
+        rawDataFileWriter.addScan(scan, i);
         i++;
       }
 
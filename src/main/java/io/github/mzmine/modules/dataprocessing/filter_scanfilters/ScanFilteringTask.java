@@ -123,7 +123,7 @@ class ScanFilteringTask extends AbstractTask {
         if (select.matches(scan))
           newScan = rawDataFilter.getModule().filterScan(scan, rawDataFilter.getParameterSet());
         else
-          newScan = scan;
+          newScan = scan; // unchanged, shares its data points with the original file
 
         if (newScan != null) {
           rawDataFileWriter.addScan(newScan);
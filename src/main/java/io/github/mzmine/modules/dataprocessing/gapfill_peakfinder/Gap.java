@@ -20,6 +20,8 @@ package io.github.mzmine.modules.dataprocessing.gapfill_peakfinder;
 
 import java.util.List;
 import java.util.Vector;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
 import com.google.common.collect.Range;
 import io.github.mzmine.datamodel.DataPoint;
 import io.github.mzmine.datamodel.FeatureStatus;
@@ -28,11 +30,16 @@ import io.github.mzmine.datamodel.RawDataFile;
 import io.github.mzmine.datamodel.Scan;
 import io.github.mzmine.datamodel.impl.SimpleDataPoint;
 import io.github.mzmine.datamodel.impl.SimpleFeature;
+import io.github.mzmine.project.impl.RawDataFileImpl;
 import io.github.mzmine.util.RangeUtils;
+import io.github.mzmine.util.scans.ExtractedIonIndex;
 import io.github.mzmine.util.scans.ScanUtils;
 
 public class Gap {
 
+  // Number of scans read at once after the RT range, while the last peak continues
+  private static final int MIN_CHUNK_SIZE = 8;
+
   private PeakListRow peakListRow;
   private RawDataFile rawDataFile;
 
@@ -61,25 +68,132 @@ public class Gap {
 
   }
 
-  public void offerNextScan(Scan scan) {
+  /**
+   * Offers the next scan to this gap. The data points of the scan are passed as primitive arrays
+   * (see Scan.getMzAndIntensityValues()), so that the scan only needs to be read once for all gaps
+   * of a raw data file.
+   */
+  public void offerNextScan(Scan scan, double mzValues[], double intensityValues[]) {
+
+    if (!acceptsScan(scan))
+      return;
+
+    // Find top m/z peak in our range
+    final int basePeakIndex = ScanUtils.findBasePeakIndex(mzValues, intensityValues,
+        scan.getNumberOfDataPoints(), mzRange);
+
+    if (basePeakIndex >= 0)
+      addBasePeak(scan, mzValues[basePeakIndex], intensityValues[basePeakIndex]);
+    else
+      addBasePeak(scan, Double.NaN, 0);
+  }
+
+  /**
+   * Offers the scans of the given index to this gap, like offerNextScan() for each scan, but only
+   * reads the data points inside the m/z and RT range of this gap. Scans after the RT range are
+   * read in growing chunks for as long as the last peak continues. The buffers must hold
+   * index.getNumberOfScans() values.
+   */
+  public void offerScans(ExtractedIonIndex index, double basePeakMZ[],
+      double basePeakIntensity[]) {
+
+    final Scan scans[] = index.getScans();
+    int first = index.getFirstScanIndex(rtRange);
+    int last = index.getLastScanIndex(rtRange);
+    int chunkSize = MIN_CHUNK_SIZE;
+    while (first < scans.length) {
+      last = Math.min(Math.max(last, first + chunkSize - 1), scans.length - 1);
+      index.findBasePeaks(mzRange, first, last, basePeakMZ, basePeakIntensity);
+      for (int i = first; i <= last; i++) {
+        if (!acceptsScan(scans[i]))
+          return;
+        addBasePeak(scans[i], basePeakMZ[i], basePeakIntensity[i]);
+      }
+      first = last + 1;
+      chunkSize *= 2;
+    }
+  }
+
+  /**
+   * Fills the given gaps of a raw data file, using the extracted ion index of the file if it has
+   * one, otherwise by reading each scan once for all gaps, and finalizes the gaps.
+   *
+   * @param canceled checked between gaps or scans
+   * @param scanProgress receives the number of processed scans
+   * @return False if processing was canceled
+   */
+  public static boolean fillGaps(RawDataFile dataFile, List<Gap> gaps,
+      BooleanSupplier canceled, IntConsumer scanProgress) {
+
+    // With an m/z index of the file, each gap only reads the data points in its m/z and RT range
+    final ExtractedIonIndex xicIndex = (dataFile instanceof RawDataFileImpl)
+        ? ((RawDataFileImpl) dataFile).getExtractedIonIndex(1)
+        : null;
+    if (xicIndex != null) {
+      final double basePeakMZ[] = new double[xicIndex.getNumberOfScans()];
+      final double basePeakIntensity[] = new double[xicIndex.getNumberOfScans()];
+      for (Gap gap : gaps) {
+        if (canceled.getAsBoolean())
+          return false;
+        gap.offerScans(xicIndex, basePeakMZ, basePeakIntensity);
+        gap.noMoreOffers();
+      }
+      scanProgress.accept(xicIndex.getNumberOfScans());
+      return true;
+    }
+
+    // Buffers for the data points of the current scan, reused for all scans
+    double mzValues[] = new double[0], intensityValues[] = new double[0];
+
+    for (int scanNumber : dataFile.getScanNumbers(1)) {
+      if (canceled.getAsBoolean())
+        return false;
+
+      // Read the data points once and feed this scan to all gaps
+      final Scan scan = dataFile.getScan(scanNumber);
+      if (mzValues.length < scan.getNumberOfDataPoints()) {
+        mzValues = new double[scan.getNumberOfDataPoints()];
+        intensityValues = new double[scan.getNumberOfDataPoints()];
+      }
+      scan.getMzAndIntensityValues(mzValues, intensityValues);
+      for (Gap gap : gaps) {
+        gap.offerNextScan(scan, mzValues, intensityValues);
+      }
+      scanProgress.accept(1);
+    }
+
+    for (Gap gap : gaps) {
+      gap.noMoreOffers();
+    }
+    return true;
+  }
+
+  private boolean acceptsScan(Scan scan) {
 
     double scanRT = scan.getRetentionTime();
 
     // If not yet inside the RT range
     if (scanRT < rtRange.lowerEndpoint())
-      return;
+      return false;
 
     // If we have passed the RT range and finished processing last peak
     if ((scanRT > rtRange.upperEndpoint()) && (currentPeakDataPoints == null))
-      return;
+      return false;
 
-    // Find top m/z peak in our range
-    DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
+    return true;
+  }
+
+  /**
+   * Adds the base peak of the next scan, an m/z value of NaN means no data point in range
+   */
+  private void addBasePeak(Scan scan, double basePeakMZ, double basePeakIntensity) {
+
+    double scanRT = scan.getRetentionTime();
 
     GapDataPoint currentDataPoint;
-    if (basePeak != null) {
+    if (!Double.isNaN(basePeakMZ)) {
       currentDataPoint =
-          new GapDataPoint(scan.getScanNumber(), basePeak.getMZ(), scanRT, basePeak.getIntensity());
+          new GapDataPoint(scan.getScanNumber(), basePeakMZ, scanRT, basePeakIntensity);
     } else {
       currentDataPoint =
           new GapDataPoint(scan.getScanNumber(), RangeUtils.rangeCenter(mzRange), scanRT, 0);
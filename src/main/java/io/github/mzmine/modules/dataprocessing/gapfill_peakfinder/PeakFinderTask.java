@@ -32,7 +32,6 @@ import io.github.mzmine.datamodel.PeakIdentity;
 import io.github.mzmine.datamodel.PeakList;
 import io.github.mzmine.datamodel.PeakListRow;
 import io.github.mzmine.datamodel.RawDataFile;
-import io.github.mzmine.datamodel.Scan;
 import io.github.mzmine.datamodel.impl.SimplePeakList;
 import io.github.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import io.github.mzmine.datamodel.impl.SimplePeakListRow;
@@ -169,32 +168,7 @@ class PeakFinderTask extends AbstractTask {
           return;
         }
 
-        // Get all scans of this data file
-        int scanNumbers[] = dataFile.getScanNumbers(1);
-
-        // Process each scan
-        for (int scanNumber : scanNumbers) {
-          // Canceled?
-          if (isCanceled()) {
-            // inside stream - only skips this element
-            return;
-          }
-
-          // Get the scan
-          Scan scan = dataFile.getScan(scanNumber);
-
-          // Feed this scan to all gaps
-          for (Gap gap : gaps) {
-            gap.offerNextScan(scan);
-          }
-
-          processedScans.incrementAndGet();
-        }
-
-        // Finalize gaps
-        for (Gap gap : gaps) {
-          gap.noMoreOffers();
-        }
+        Gap.fillGaps(dataFile, gaps, this::isCanceled, processedScans::addAndGet);
       });
     }
     // terminate - stream only skips all elements
@@ -305,30 +279,8 @@ class PeakFinderTask extends AbstractTask {
           continue;
         }
 
-        // Get all scans of this data file
-        int scanNumbers[] = datafile1.getScanNumbers(1);
-
-        // Process each scan
-        for (int scanNumber : scanNumbers) {
-
-          // Canceled?
-          if (isCanceled()) {
-            return;
-          }
-
-          // Get the scan
-          Scan scan = datafile1.getScan(scanNumber);
-
-          // Feed this scan to all gaps
-          for (Gap gap : gaps) {
-            gap.offerNextScan(scan);
-          }
-          processedScans.incrementAndGet();
-        }
-
-        // Finalize gaps
-        for (Gap gap : gaps) {
-          gap.noMoreOffers();
+        if (!Gap.fillGaps(datafile1, gaps, this::isCanceled, processedScans::addAndGet)) {
+          return;
         }
       }
     }
@@ -28,7 +28,6 @@ import io.github.mzmine.datamodel.MZmineProject;
 import io.github.mzmine.datamodel.PeakList;
 import io.github.mzmine.datamodel.PeakListRow;
 import io.github.mzmine.datamodel.RawDataFile;
-import io.github.mzmine.datamodel.Scan;
 import io.github.mzmine.modules.dataprocessing.gapfill_peakfinder.Gap;
 import io.github.mzmine.parameters.ParameterSet;
 import io.github.mzmine.parameters.parametertypes.tolerances.MZTolerance;
@@ -127,30 +126,8 @@ class MultiThreadPeakFinderTask extends AbstractTask {
         continue;
       }
 
-      // Get all scans of this data file
-      int scanNumbers[] = dataFile.getScanNumbers(1);
-
-      // Process each scan
-      for (int scanNumber : scanNumbers) {
-        // Canceled?
-        if (isCanceled()) {
-          return;
-        }
-
-        // Get the scan
-        Scan scan = dataFile.getScan(scanNumber);
-
-        // Feed this scan to all gaps
-        for (Gap gap : gaps) {
-          gap.offerNextScan(scan);
-        }
-
-        processedScans++;
-      }
-
-      // Finalize gaps
-      for (Gap gap : gaps) {
-        gap.noMoreOffers();
+      if (!Gap.fillGaps(dataFile, gaps, this::isCanceled, scans -> processedScans += scans)) {
+        return;
       }
     }
 
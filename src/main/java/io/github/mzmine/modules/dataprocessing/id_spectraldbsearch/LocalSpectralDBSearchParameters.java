@@ -100,6 +100,11 @@ public class LocalSpectralDBSearchParameters extends SimpleParameterSet {
           "Algorithm to calculate similarity and filter matches",
           SpectralSimilarityFunction.FUNCTIONS);
 
+  public static final OptionalParameter<IntegerParameter> maxMatches =
+      new OptionalParameter<>(new IntegerParameter("Max matches per row",
+          "Only keep the best matches (highest similarity) of each row. Library entries which cannot beat the worst of these matches are skipped early",
+          10, 1, 100000), false);
+
   /**
    * for SelectedRowsParameters
    *
@@ -112,7 +117,7 @@ public class LocalSpectralDBSearchParameters extends SimpleParameterSet {
   public LocalSpectralDBSearchParameters() {
     super(new Parameter[] {peakLists, massList, dataBaseFile, msLevel, allMS2Spectra,
         mzTolerancePrecursor, noiseLevel, deisotoping, needsIsotopePattern, cropSpectraToOverlap,
-        mzTolerance, rtTolerance, minMatch, similarityFunction});
+        mzTolerance, rtTolerance, minMatch, similarityFunction, maxMatches});
   }
 
   @Override
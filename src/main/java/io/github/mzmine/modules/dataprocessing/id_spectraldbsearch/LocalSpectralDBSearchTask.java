@@ -21,6 +21,7 @@ package io.github.mzmine.modules.dataprocessing.id_spectraldbsearch;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,10 +33,7 @@ import io.github.mzmine.main.MZmineCore;
 import io.github.mzmine.parameters.ParameterSet;
 import io.github.mzmine.taskcontrol.AbstractTask;
 import io.github.mzmine.taskcontrol.TaskStatus;
-import io.github.mzmine.util.spectraldb.entry.SpectralDBEntry;
-import io.github.mzmine.util.spectraldb.parser.AutoLibraryParser;
-import io.github.mzmine.util.spectraldb.parser.LibraryEntryProcessor;
-import io.github.mzmine.util.spectraldb.parser.UnsupportedFormatException;
+import io.github.mzmine.util.spectraldb.library.CompiledSpectralLibrary;
 
 class LocalSpectralDBSearchTask extends AbstractTask {
 
@@ -47,7 +45,11 @@ class LocalSpectralDBSearchTask extends AbstractTask {
 
   private ParameterSet parameters;
 
+  // number of feature list rows matched by one sub task
+  private static final int ROWS_PER_TASK = 100;
+
   private List<RowsSpectralMatchTask> tasks;
+  private CompiledSpectralLibrary library;
 
   private int totalTasks;
   private PeakListRow[] rows;
@@ -86,9 +88,14 @@ class LocalSpectralDBSearchTask extends AbstractTask {
     setStatus(TaskStatus.PROCESSING);
     int count = 0;
     try {
-      tasks = parseFile(dataBaseFile);
-      totalTasks = tasks.size();
-      if (!tasks.isEmpty()) {
+      library = CompiledSpectralLibrary.open(this, dataBaseFile);
+      if ((library != null) && (library.size() == 0)) {
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage("DB file was empty - or error while parsing " + dataBaseFile);
+      } else {
+        // no tasks if the compiling was canceled or there are no rows
+        tasks = (library == null) ? new ArrayList<>() : createTasks(library);
+        totalTasks = tasks.size();
         // wait for the tasks to finish
         while (!isCanceled() && !tasks.isEmpty()) {
           for (int i = 0; i < tasks.size(); i++) {
@@ -109,14 +116,13 @@ class LocalSpectralDBSearchTask extends AbstractTask {
         if (isCanceled()) {
           tasks.stream().forEach(AbstractTask::cancel);
         }
-      } else {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("DB file was empty - or error while parsing " + dataBaseFile);
       }
     } catch (Exception e) {
       logger.log(Level.SEVERE, "Could not read file " + dataBaseFile, e);
       setStatus(TaskStatus.ERROR);
       setErrorMessage(e.toString());
+    } finally {
+      closeLibrary();
     }
     logger.info("Added " + count + " spectral library matches");
 
@@ -124,34 +130,42 @@ class LocalSpectralDBSearchTask extends AbstractTask {
     peakList.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
         "Peak identification using MS/MS spectral database " + dataBaseFile, parameters));
 
-    setStatus(TaskStatus.FINISHED);
+    if (getStatus() == TaskStatus.PROCESSING)
+      setStatus(TaskStatus.FINISHED);
 
   }
 
   /**
-   * Load all library entries from data base file
+   * Start the matching of the rows in chunks against the compiled library. All tasks share the
+   * preprocessed library spectra.
    *
-   * @param dataBaseFile
+   * @param library compiled library of the data base file
    * @return
    */
-  private List<RowsSpectralMatchTask> parseFile(File dataBaseFile)
-      throws UnsupportedFormatException, IOException {
-    //
+  private List<RowsSpectralMatchTask> createTasks(CompiledSpectralLibrary library) {
     List<RowsSpectralMatchTask> tasks = new ArrayList<>();
-    AutoLibraryParser parser = new AutoLibraryParser(100, new LibraryEntryProcessor() {
-      @Override
-      public void processNextEntries(List<SpectralDBEntry> list, int alreadyProcessed) {
-        // start last task
-        RowsSpectralMatchTask task = new RowsSpectralMatchTask(peakList.getName(), rows, parameters,
-            alreadyProcessed + 1, list);
-        MZmineCore.getTaskController().addTask(task);
-        tasks.add(task);
-      }
-    });
-
-    // return tasks
-    parser.parse(this, dataBaseFile);
+    PreprocessedLibrary preprocessedLibrary = new PreprocessedLibrary(library, parameters);
+
+    for (int start = 0; start < rows.length; start += ROWS_PER_TASK) {
+      PeakListRow taskRows[] =
+          Arrays.copyOfRange(rows, start, Math.min(rows.length, start + ROWS_PER_TASK));
+      RowsSpectralMatchTask task = new RowsSpectralMatchTask(peakList.getName(), taskRows,
+          parameters, preprocessedLibrary, null);
+      MZmineCore.getTaskController().addTask(task);
+      tasks.add(task);
+    }
     return tasks;
   }
 
+  private void closeLibrary() {
+    if (library == null)
+      return;
+    try {
+      library.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not close library " + dataBaseFile, e);
+    }
+    library = null;
+  }
+
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package io.github.mzmine.modules.dataprocessing.id_spectraldbsearch;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+import javax.annotation.Nonnull;
+import com.google.common.collect.Range;
+import io.github.mzmine.datamodel.DataPoint;
+import io.github.mzmine.modules.visualization.spectra.simplespectra.datapointprocessing.isotopes.MassListDeisotoper;
+import io.github.mzmine.modules.visualization.spectra.simplespectra.datapointprocessing.isotopes.MassListDeisotoperParameters;
+import io.github.mzmine.parameters.ParameterSet;
+import io.github.mzmine.util.scans.similarity.SortedSpectrum;
+import io.github.mzmine.util.spectraldb.entry.SpectralDBEntry;
+import io.github.mzmine.util.spectraldb.library.CompiledSpectralLibrary;
+
+/**
+ * The library entries of one search with their preprocessed data points (13C isotopes removed).
+ * Each entry is read and preprocessed the first time a row needs it, and then reused for all other
+ * rows of the search, also by other tasks of the same search.
+ */
+class PreprocessedLibrary {
+
+  private final CompiledSpectralLibrary library;
+  private final List<SpectralDBEntry> entries;
+  private final int size;
+
+  // remove 13C isotopes
+  private final boolean removeIsotopes;
+  private final MassListDeisotoperParameters deisotopeParam;
+
+  private final AtomicReferenceArray<LibrarySpectrum> spectra;
+
+  /**
+   * Entries are read from the compiled library when they are needed
+   */
+  PreprocessedLibrary(@Nonnull CompiledSpectralLibrary library, ParameterSet parameters) {
+    this(library, null, library.size(), parameters);
+  }
+
+  PreprocessedLibrary(@Nonnull List<SpectralDBEntry> entries, ParameterSet parameters) {
+    this(null, entries, entries.size(), parameters);
+  }
+
+  private PreprocessedLibrary(CompiledSpectralLibrary library, List<SpectralDBEntry> entries,
+      int size, ParameterSet parameters) {
+    this.library = library;
+    this.entries = entries;
+    this.size = size;
+    removeIsotopes =
+        parameters.getParameter(LocalSpectralDBSearchParameters.deisotoping).getValue();
+    deisotopeParam = parameters.getParameter(LocalSpectralDBSearchParameters.deisotoping)
+        .getEmbeddedParameters();
+    spectra = new AtomicReferenceArray<>(size);
+  }
+
+  /**
+   * @return Number of library entries
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return Numbers of all entries
+   */
+  int[] getEntryNumbers() {
+    return IntStream.range(0, size).toArray();
+  }
+
+  /**
+   * @return Numbers of the entries which may have a precursor m/z inside the given range
+   */
+  int[] getEntryNumbersByPrecursorMZ(Range<Double> mzRange) {
+    if (library == null)
+      return getEntryNumbers();
+    return library.getEntryNumbersByPrecursorMZ(mzRange);
+  }
+
+  /**
+   * @return Numbers of the entries which may have a retention time inside the given range
+   */
+  int[] getEntryNumbersByRT(Range<Double> rtRange) {
+    if (library == null)
+      return getEntryNumbers();
+    return library.getEntryNumbersByRT(rtRange);
+  }
+
+  /**
+   * @return The entry, which preprocesses its data points when they are first needed
+   */
+  @Nonnull
+  LibrarySpectrum getSpectrum(int entryNumber) {
+    LibrarySpectrum spectrum = spectra.get(entryNumber);
+    if (spectrum != null)
+      return spectrum;
+
+    SpectralDBEntry entry =
+        (library != null) ? library.getEntry(entryNumber) : entries.get(entryNumber);
+
+    // Another thread may have read the same entry in the meantime
+    spectra.compareAndSet(entryNumber, null, new LibrarySpectrum(entry));
+    return spectra.get(entryNumber);
+  }
+
+  class LibrarySpectrum {
+
+    private final SpectralDBEntry entry;
+    private volatile DataPoint dataPoints[];
+    private volatile SortedSpectrum sortedSpectrum;
+
+    private LibrarySpectrum(SpectralDBEntry entry) {
+      this.entry = entry;
+    }
+
+    SpectralDBEntry getEntry() {
+      return entry;
+    }
+
+    /**
+     * @return The preprocessed data points. Threads which need them at the same time may both
+     *         preprocess them, with the same result.
+     */
+    DataPoint[] getDataPoints() {
+      DataPoint result[] = dataPoints;
+      if (result == null) {
+        result = entry.getDataPoints();
+        if (removeIsotopes)
+          result = MassListDeisotoper.filterIsotopes(result, deisotopeParam);
+        dataPoints = result;
+      }
+      return result;
+    }
+
+    /**
+     * @return The preprocessed data points sorted for the similarity functions
+     */
+    SortedSpectrum getSortedSpectrum() {
+      SortedSpectrum result = sortedSpectrum;
+      if (result == null) {
+        result = new SortedSpectrum(getDataPoints());
+        sortedSpectrum = result;
+      }
+      return result;
+    }
+  }
+
+}
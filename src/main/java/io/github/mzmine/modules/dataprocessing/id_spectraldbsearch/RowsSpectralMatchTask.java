@@ -21,12 +21,14 @@ package io.github.mzmine.modules.dataprocessing.id_spectraldbsearch;
 import java.io.File;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
-
+import com.google.common.collect.Range;
 import io.github.mzmine.datamodel.DataPoint;
 import io.github.mzmine.datamodel.MassList;
 import io.github.mzmine.datamodel.PeakListRow;
@@ -35,6 +37,7 @@ import io.github.mzmine.gui.Desktop;
 import io.github.mzmine.gui.HeadLessDesktop;
 import io.github.mzmine.main.MZmineCore;
 import io.github.mzmine.modules.MZmineProcessingStep;
+import io.github.mzmine.modules.dataprocessing.id_spectraldbsearch.PreprocessedLibrary.LibrarySpectrum;
 import io.github.mzmine.modules.dataprocessing.id_spectraldbsearch.sort.SortSpectralDBIdentitiesTask;
 import io.github.mzmine.modules.visualization.spectra.simplespectra.datapointprocessing.isotopes.MassListDeisotoper;
 import io.github.mzmine.modules.visualization.spectra.simplespectra.datapointprocessing.isotopes.MassListDeisotoperParameters;
@@ -47,6 +50,7 @@ import io.github.mzmine.taskcontrol.TaskStatus;
 import io.github.mzmine.util.exceptions.MissingMassListException;
 import io.github.mzmine.util.scans.ScanAlignment;
 import io.github.mzmine.util.scans.ScanUtils;
+import io.github.mzmine.util.scans.similarity.SortedSpectrum;
 import io.github.mzmine.util.scans.similarity.SpectralSimilarity;
 import io.github.mzmine.util.scans.similarity.SpectralSimilarityFunction;
 import io.github.mzmine.util.scans.sorting.ScanSortMode;
@@ -77,7 +81,10 @@ public class RowsSpectralMatchTask extends AbstractTask {
   private final int msLevel;
   private final double noiseLevel;
   private final int minMatch;
-  private List<SpectralDBEntry> list;
+  // library entries, preprocessed once for all rows
+  private PreprocessedLibrary library;
+  // true if the entries are only a part of the library, which are all compared with each row
+  private final boolean libraryPart;
 
   private int count = 0;
 
@@ -102,6 +109,9 @@ public class RowsSpectralMatchTask extends AbstractTask {
   private boolean needsIsotopePattern;
   private int minMatchedIsoSignals;
 
+  // only keep the best matches of each row, 0 to keep all
+  private final int maxMatches;
+
   public RowsSpectralMatchTask(String description, @Nonnull PeakListRow[] rows,
       ParameterSet parameters, int startEntry, List<SpectralDBEntry> list) {
     this(description, rows, parameters, startEntry, list, null);
@@ -110,13 +120,32 @@ public class RowsSpectralMatchTask extends AbstractTask {
   public RowsSpectralMatchTask(String description, @Nonnull PeakListRow[] rows,
       ParameterSet parameters, int startEntry, List<SpectralDBEntry> list,
       Consumer<SpectralDBPeakIdentity> matchListener) {
+    this(description, rows, parameters, startEntry, new PreprocessedLibrary(list, parameters),
+        true, matchListener);
+  }
+
+  /**
+   * Matches the rows against a compiled library, which is shared by all tasks of a search. Only
+   * the library entries within the precursor m/z tolerance of a row (or within the retention time
+   * tolerance for MS1 spectra) are compared.
+   */
+  RowsSpectralMatchTask(String description, @Nonnull PeakListRow[] rows,
+      ParameterSet parameters, @Nonnull PreprocessedLibrary library,
+      Consumer<SpectralDBPeakIdentity> matchListener) {
+    this(description, rows, parameters, 1, library, false, matchListener);
+  }
+
+  private RowsSpectralMatchTask(String description, @Nonnull PeakListRow[] rows,
+      ParameterSet parameters, int startEntry, PreprocessedLibrary library, boolean libraryPart,
+      Consumer<SpectralDBPeakIdentity> matchListener) {
     this.description = description;
     this.rows = rows;
     this.parameters = parameters;
     this.startEntry = startEntry;
-    this.list = list;
+    this.library = library;
+    this.libraryPart = libraryPart;
     this.matchListener = matchListener;
-    listsize = list.size();
+    listsize = library.size();
     dataBaseFile = parameters.getParameter(LocalSpectralDBSearchParameters.dataBaseFile).getValue();
     massListName = parameters.getParameter(LocalSpectralDBSearchParameters.massList).getValue();
     mzToleranceSpectra =
@@ -149,6 +178,10 @@ public class RowsSpectralMatchTask extends AbstractTask {
       mzTolerancePrecursor = null;
 
     allMS2Scans = parameters.getParameter(LocalSpectralDBSearchParameters.allMS2Spectra).getValue();
+    maxMatches = parameters.getParameter(LocalSpectralDBSearchParameters.maxMatches).getValue()
+        ? parameters.getParameter(LocalSpectralDBSearchParameters.maxMatches)
+            .getEmbeddedParameter().getValue()
+        : 0;
 
     totalRows = rows.length;
   }
@@ -168,6 +201,10 @@ public class RowsSpectralMatchTask extends AbstractTask {
    */
   @Override
   public String getTaskDescription() {
+    if (!libraryPart)
+      return MessageFormat.format(
+          "spectral database identification of {2} rows in {0} using database {1}", description,
+          dataBaseFile.getName(), totalRows);
     return MessageFormat.format(
         "(entry {2}-{3}) spectral database identification in {0} using database {1}", description,
         dataBaseFile.getName(), startEntry, startEntry + listsize - 1);
@@ -191,20 +228,34 @@ public class RowsSpectralMatchTask extends AbstractTask {
         // check for MS1 or MSMS scan
         List<Scan> scans = getScans(row);
         List<DataPoint[]> rowMassLists = new ArrayList<>();
+        List<SortedSpectrum> sortedRowMassLists = new ArrayList<>();
         for (Scan scan : scans) {
           // get mass list and perform deisotoping if active
           DataPoint[] rowMassList = getDataPoints(scan, true);
           if (removeIsotopes)
             rowMassList = removeIsotopes(rowMassList);
           rowMassLists.add(rowMassList);
+          // sorted once for all library entries
+          sortedRowMassLists.add(cropSpectraToOverlap ? null : new SortedSpectrum(rowMassList));
         }
 
+        // best matches of the row, worst first (only if the number of matches is limited)
+        PriorityQueue<EntryMatch> bestMatches =
+            (maxMatches > 0) ? new PriorityQueue<>(maxMatches + 1) : null;
+
         // match against all library entries
-        for (SpectralDBEntry ident : list) {
+        for (int entryNumber : getEntryNumbers(row)) {
+          LibrarySpectrum librarySpectrum = library.getSpectrum(entryNumber);
+          SpectralDBEntry ident = librarySpectrum.getEntry();
+          // a new match has to beat the worst of the best matches
+          final double minScore = (bestMatches != null && bestMatches.size() == maxMatches)
+              ? Math.nextUp(bestMatches.peek().getScore())
+              : Double.NEGATIVE_INFINITY;
           SpectralDBPeakIdentity best = null;
           // match all scans against this ident to find best match
           for (int i = 0; i < scans.size(); i++) {
-            SpectralSimilarity sim = spectraDBMatch(row, rowMassLists.get(i), ident);
+            SpectralSimilarity sim = spectraDBMatch(row, rowMassLists.get(i),
+                sortedRowMassLists.get(i), librarySpectrum, minScore);
             if (sim != null
                 && (!needsIsotopePattern || SpectralMatchTask.checkForIsotopePattern(sim,
                     mzToleranceSpectra, minMatchedIsoSignals))
@@ -213,23 +264,42 @@ public class RowsSpectralMatchTask extends AbstractTask {
             }
           }
           // has match?
-          if (best != null) {
+          if (best != null && bestMatches != null) {
+            if (bestMatches.size() == maxMatches)
+              bestMatches.poll();
+            bestMatches.add(new EntryMatch(entryNumber, best));
+          } else if (best != null) {
             addIdentity(row, best);
             count++;
           }
         }
+
+        if (bestMatches != null) {
+          // add in library order, like all matches
+          List<EntryMatch> matches = new ArrayList<>(bestMatches);
+          matches.sort(Comparator.comparingInt(m -> m.entryNumber));
+          for (EntryMatch match : matches) {
+            addIdentity(row, match.identity);
+            count++;
+          }
+        }
         // sort identities based on similarity score
         SortSpectralDBIdentitiesTask.sortIdentities(row);
       } catch (MissingMassListException e) {
         logger.log(Level.WARNING, "No mass list in spectrum for rowID=" + row.getID(), e);
         errorCounter++;
+      } catch (IllegalStateException e) {
+        // the library is closed when the search is canceled
+        if (isCanceled())
+          return;
+        throw e;
       }
       // check for max error (missing masslist)
       if (errorCounter > MAX_ERROR) {
         logger.log(Level.WARNING, "Data base matching failed. To many missing mass lists ");
         setStatus(TaskStatus.ERROR);
         setErrorMessage("Data base matching failed. To many missing mass lists ");
-        list = null;
+        library = null;
         return;
       }
       // next row
@@ -238,11 +308,34 @@ public class RowsSpectralMatchTask extends AbstractTask {
     if (count > 0)
       logger.info("Added " + count + " spectral library matches");
 
-    list = null;
+    library = null;
 
     setStatus(TaskStatus.FINISHED);
   }
 
+  /**
+   * @return Numbers of the library entries which may match the row
+   */
+  private int[] getEntryNumbers(PeakListRow row) {
+    if (libraryPart)
+      return library.getEntryNumbers();
+
+    // The tolerances are applied to the values of the library entry, so twice the tolerance
+    // around the row is searched. The entries are checked exactly afterwards.
+    if (msLevel > 1) {
+      final double mz = row.getAverageMZ();
+      final double mzTolerance = 2 * mzTolerancePrecursor.getMzToleranceForMass(mz);
+      return library.getEntryNumbersByPrecursorMZ(Range.closed(mz - mzTolerance, mz + mzTolerance));
+    }
+    if (useRT) {
+      final double rt = row.getAverageRT();
+      final double tolerance = rtTolerance.isAbsolute() ? rtTolerance.getTolerance()
+          : Math.abs(rt) * rtTolerance.getTolerance();
+      return library.getEntryNumbersByRT(Range.closed(rt - 2 * tolerance, rt + 2 * tolerance));
+    }
+    return library.getEntryNumbers();
+  }
+
   /**
    * Remove 13C isotopes from masslist
    * 
@@ -256,17 +349,25 @@ public class RowsSpectralMatchTask extends AbstractTask {
   /**
    * 
    * @param row
-   * @param ident
+   * @param sortedRowMassList the sorted row mass list, null if the spectra are cropped
+   * @param librarySpectrum
+   * @param minScore minimum score in addition to the similarity function's minimum
    * @return spectral similarity or null if no match
    */
   private SpectralSimilarity spectraDBMatch(PeakListRow row, DataPoint[] rowMassList,
-      SpectralDBEntry ident) {
+      SortedSpectrum sortedRowMassList, LibrarySpectrum librarySpectrum, double minScore) {
+    SpectralDBEntry ident = librarySpectrum.getEntry();
     // retention time
     // MS level 1 or check precursorMZ
     if (checkRT(row, ident) && (msLevel == 1 || checkPrecursorMZ(row, ident))) {
-      DataPoint[] library = ident.getDataPoints();
-      if (removeIsotopes)
-        library = removeIsotopes(library);
+      // compare the spectra sorted once
+      if (sortedRowMassList != null)
+        return simFunction.getModule().getSimilarity(simFunction.getParameterSet(),
+            mzToleranceSpectra, minMatch, minScore, librarySpectrum.getSortedSpectrum(),
+            sortedRowMassList);
+
+      // deisotoped once for all rows
+      DataPoint[] library = librarySpectrum.getDataPoints();
 
       // crop the spectra to their overlapping mz range
       // helpful when comparing spectra, acquired with different
@@ -279,7 +380,7 @@ public class RowsSpectralMatchTask extends AbstractTask {
       }
 
       // check spectra similarity
-      SpectralSimilarity sim = createSimilarity(library, query);
+      SpectralSimilarity sim = createSimilarity(library, query, minScore);
       if (sim != null) {
         return sim;
       }
@@ -292,11 +393,13 @@ public class RowsSpectralMatchTask extends AbstractTask {
    * 
    * @param a
    * @param b
+   * @param minScore
    * @return positive match with similarity or null if criteria was not met
    */
-  private SpectralSimilarity createSimilarity(DataPoint[] library, DataPoint[] query) {
+  private SpectralSimilarity createSimilarity(DataPoint[] library, DataPoint[] query,
+      double minScore) {
     return simFunction.getModule().getSimilarity(simFunction.getParameterSet(), mzToleranceSpectra,
-        minMatch, library, query);
+        minMatch, minScore, new SortedSpectrum(library), new SortedSpectrum(query));
   }
 
   private boolean checkPrecursorMZ(PeakListRow row, SpectralDBEntry ident) {
@@ -362,4 +465,29 @@ public class RowsSpectralMatchTask extends AbstractTask {
     return count;
   }
 
+  /**
+   * Best match of a library entry, ordered from worst to best match
+   */
+  private static class EntryMatch implements Comparable<EntryMatch> {
+
+    private final int entryNumber;
+    private final SpectralDBPeakIdentity identity;
+
+    EntryMatch(int entryNumber, SpectralDBPeakIdentity identity) {
+      this.entryNumber = entryNumber;
+      this.identity = identity;
+    }
+
+    double getScore() {
+      return identity.getSimilarity().getScore();
+    }
+
+    @Override
+    public int compareTo(EntryMatch other) {
+      // later library entries with the same score are worse
+      int result = Double.compare(getScore(), other.getScore());
+      return (result != 0) ? result : Integer.compare(other.entryNumber, entryNumber);
+    }
+  }
+
 }
@@ -25,7 +25,7 @@ public class SelectedRowsLocalSpectralDBSearchParameters extends LocalSpectralDB
   public SelectedRowsLocalSpectralDBSearchParameters() {
     super(new Parameter[] {massList, dataBaseFile, msLevel, allMS2Spectra, mzTolerancePrecursor,
         noiseLevel, deisotoping, needsIsotopePattern, cropSpectraToOverlap, mzTolerance,
-        rtTolerance, minMatch, similarityFunction});
+        rtTolerance, minMatch, similarityFunction, maxMatches});
   }
 
 }
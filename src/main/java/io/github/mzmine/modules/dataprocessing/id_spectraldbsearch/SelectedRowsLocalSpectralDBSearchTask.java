@@ -21,6 +21,7 @@ package io.github.mzmine.modules.dataprocessing.id_spectraldbsearch;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -35,10 +36,7 @@ import io.github.mzmine.modules.visualization.spectra.spectralmatchresults.Spect
 import io.github.mzmine.parameters.ParameterSet;
 import io.github.mzmine.taskcontrol.AbstractTask;
 import io.github.mzmine.taskcontrol.TaskStatus;
-import io.github.mzmine.util.spectraldb.entry.SpectralDBEntry;
-import io.github.mzmine.util.spectraldb.parser.AutoLibraryParser;
-import io.github.mzmine.util.spectraldb.parser.LibraryEntryProcessor;
-import io.github.mzmine.util.spectraldb.parser.UnsupportedFormatException;
+import io.github.mzmine.util.spectraldb.library.CompiledSpectralLibrary;
 
 public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
 
@@ -50,7 +48,11 @@ public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
 
   private ParameterSet parameters;
 
+  // number of feature list rows matched by one sub task
+  private static final int ROWS_PER_TASK = 100;
+
   private List<RowsSpectralMatchTask> tasks;
+  private CompiledSpectralLibrary library;
 
   private SpectraIdentificationResultsWindow resultWindow;
 
@@ -103,9 +105,14 @@ public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
     }
 
     try {
-      tasks = parseFile(dataBaseFile);
-      totalTasks = tasks.size();
-      if (!tasks.isEmpty()) {
+      library = CompiledSpectralLibrary.open(this, dataBaseFile);
+      if ((library != null) && (library.size() == 0)) {
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage("DB file was empty - or error while parsing " + dataBaseFile);
+      } else {
+        // no tasks if the compiling was canceled or there are no rows
+        tasks = (library == null) ? new ArrayList<>() : createTasks(library);
+        totalTasks = tasks.size();
         // wait for the tasks to finish
         while (!isCanceled() && !tasks.isEmpty()) {
           for (int i = 0; i < tasks.size(); i++) {
@@ -126,14 +133,13 @@ public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
         if (isCanceled()) {
           tasks.stream().forEach(AbstractTask::cancel);
         }
-      } else {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("DB file was empty - or error while parsing " + dataBaseFile);
       }
     } catch (Exception e) {
       logger.log(Level.SEVERE, "Could not read file " + dataBaseFile, e);
       setStatus(TaskStatus.ERROR);
       setErrorMessage(e.toString());
+    } finally {
+      closeLibrary();
     }
     logger.info("Added " + count + " spectral library matches");
     if (resultWindow != null) {
@@ -147,41 +153,49 @@ public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
     // work around to update feature list identities
     if (table.getRowCount() > 0)
       table.setRowSelectionInterval(0, 0);
-    setStatus(TaskStatus.FINISHED);
+    if (getStatus() == TaskStatus.PROCESSING)
+      setStatus(TaskStatus.FINISHED);
 
   }
 
   /**
-   * Load all library entries from data base file
-   * 
-   * @param dataBaseFile
+   * Start the matching of the rows in chunks against the compiled library. All tasks share the
+   * preprocessed library spectra.
+   *
+   * @param library compiled library of the data base file
    * @return
    */
-  private List<RowsSpectralMatchTask> parseFile(File dataBaseFile)
-      throws UnsupportedFormatException, IOException {
-    //
+  private List<RowsSpectralMatchTask> createTasks(CompiledSpectralLibrary library) {
     List<RowsSpectralMatchTask> tasks = new ArrayList<>();
-    AutoLibraryParser parser = new AutoLibraryParser(100, new LibraryEntryProcessor() {
-      @Override
-      public void processNextEntries(List<SpectralDBEntry> list, int alreadyProcessed) {
-        // start last task
-        RowsSpectralMatchTask task = new RowsSpectralMatchTask(peakListRows.length + " rows",
-            peakListRows, parameters, alreadyProcessed + 1, list, (match) -> {
-              // one selected row -> show in dialog
-              if (resultWindow != null) {
-                resultWindow.addMatches(match);
-                resultWindow.revalidate();
-                resultWindow.repaint();
-              }
-            });
-        MZmineCore.getTaskController().addTask(task);
-        tasks.add(task);
-      }
-    });
-
-    // return tasks
-    parser.parse(this, dataBaseFile);
+    PreprocessedLibrary preprocessedLibrary = new PreprocessedLibrary(library, parameters);
+
+    for (int start = 0; start < peakListRows.length; start += ROWS_PER_TASK) {
+      final int end = Math.min(peakListRows.length, start + ROWS_PER_TASK);
+      PeakListRow taskRows[] = Arrays.copyOfRange(peakListRows, start, end);
+      RowsSpectralMatchTask task = new RowsSpectralMatchTask(taskRows.length + " rows",
+          taskRows, parameters, preprocessedLibrary, (match) -> {
+            // one selected row -> show in dialog
+            if (resultWindow != null) {
+              resultWindow.addMatches(match);
+              resultWindow.revalidate();
+              resultWindow.repaint();
+            }
+          });
+      MZmineCore.getTaskController().addTask(task);
+      tasks.add(task);
+    }
     return tasks;
   }
 
+  private void closeLibrary() {
+    if (library == null)
+      return;
+    try {
+      library.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not close library " + dataBaseFile, e);
+    }
+    library = null;
+  }
+
 }
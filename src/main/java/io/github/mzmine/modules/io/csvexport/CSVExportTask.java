@@ -18,21 +18,29 @@
 
 package io.github.mzmine.modules.io.csvexport;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.text.NumberFormat;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
 import io.github.mzmine.datamodel.Feature;
 import io.github.mzmine.datamodel.FeatureStatus;
 import io.github.mzmine.datamodel.PeakIdentity;
 import io.github.mzmine.datamodel.PeakList;
 import io.github.mzmine.datamodel.PeakListRow;
 import io.github.mzmine.datamodel.RawDataFile;
-import io.github.mzmine.main.MZmineCore;
 import io.github.mzmine.modules.io.gnpsexport.fbmn.GnpsFbmnExportAndSubmitParameters.RowFilter;
 import io.github.mzmine.parameters.ParameterSet;
 import io.github.mzmine.taskcontrol.AbstractTask;
@@ -42,6 +50,12 @@ import io.github.mzmine.util.RangeUtils;
 
 public class CSVExportTask extends AbstractTask {
 
+  // Rows are formatted in parallel in blocks of this size, and written in their order
+  private static final int ROWS_PER_BLOCK = 5000;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final Pattern controlCharacters = Pattern.compile("[\\p{Cntrl}]");
+
   private PeakList[] peakLists;
   private int processedRows = 0, totalRows = 0;
 
@@ -54,6 +68,7 @@ public class CSVExportTask extends AbstractTask {
   private Boolean exportAllPeakInfo;
   private String idSeparator;
   private RowFilter filter;
+  private boolean compress = false;
 
   public CSVExportTask(ParameterSet parameters) {
     this.peakLists =
@@ -65,6 +80,7 @@ public class CSVExportTask extends AbstractTask {
     exportAllPeakInfo = parameters.getParameter(CSVExportParameters.exportAllPeakInfo).getValue();
     idSeparator = parameters.getParameter(CSVExportParameters.idSeparator).getValue();
     this.filter = parameters.getParameter(CSVExportParameters.filter).getValue();
+    compress = parameters.getParameter(CSVExportParameters.compress).getValue();
 
   }
 
@@ -133,10 +149,13 @@ public class CSVExportTask extends AbstractTask {
         curFile = new File(newFilename);
       }
 
+      if (compress && !curFile.getName().endsWith(".gz"))
+        curFile = new File(curFile.getPath() + ".gz");
+
       // Open file
-      FileWriter writer;
+      Writer writer;
       try {
-        writer = new FileWriter(curFile);
+        writer = openWriter(curFile);
       } catch (Exception e) {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("Could not open file " + curFile + " for writing.");
@@ -145,11 +164,6 @@ public class CSVExportTask extends AbstractTask {
 
       exportPeakList(peakList, writer, curFile);
 
-      // Cancel?
-      if (isCanceled()) {
-        return;
-      }
-
       // Close file
       try {
         writer.close();
@@ -159,6 +173,11 @@ public class CSVExportTask extends AbstractTask {
         return;
       }
 
+      // Cancel?
+      if (isCanceled()) {
+        return;
+      }
+
       // If feature list substitution pattern wasn't found,
       // treat one feature list only
       if (!substitute)
@@ -170,12 +189,22 @@ public class CSVExportTask extends AbstractTask {
 
   }
 
-  private void exportPeakList(PeakList peakList, FileWriter writer, File fileName) {
-    NumberFormat mzForm = MZmineCore.getConfiguration().getMZFormat();
+  /**
+   * Buffered writer with the default charset (like FileWriter), gzip compressed if selected
+   */
+  private Writer openWriter(File file) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    if (compress)
+      out = new GZIPOutputStream(out, BUFFER_SIZE);
+    return new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+  }
+
+  private void exportPeakList(PeakList peakList, Writer writer, File fileName) {
     RawDataFile rawDataFiles[] = peakList.getRawDataFiles().toArray(RawDataFile[]::new);
+    PeakListRow rows[] = peakList.getRows().toArray(PeakListRow[]::new);
 
     // Buffer for writing
-    StringBuffer line = new StringBuffer();
+    StringBuilder line = new StringBuilder();
 
     // Write column headers
 
@@ -189,22 +218,23 @@ public class CSVExportTask extends AbstractTask {
       line.append(name + fieldSeparator);
     }
 
-    // peak Information
+    // peak Information, only needed if it is exported
     Set<String> peakInformationFields = new HashSet<>();
 
-    for (PeakListRow row : peakList.getRows()) {
-      if (!filter.filter(row))
-        continue;
-      if (row.getPeakInformation() != null) {
-        for (String key : row.getPeakInformation().getAllProperties().keySet()) {
-          peakInformationFields.add(key);
+    if (exportAllPeakInfo) {
+      for (PeakListRow row : rows) {
+        if (!filter.filter(row))
+          continue;
+        if (row.getPeakInformation() != null) {
+          for (String key : row.getPeakInformation().getAllProperties().keySet()) {
+            peakInformationFields.add(key);
+          }
         }
       }
-    }
 
-    if (exportAllPeakInfo)
       for (String field : peakInformationFields)
         line.append(field + fieldSeparator);
+    }
 
     // Data file elements
     length = dataFileElements.length;
@@ -227,182 +257,190 @@ public class CSVExportTask extends AbstractTask {
       return;
     }
 
-    // Write data rows
-    for (PeakListRow peakListRow : peakList.getRows()) {
+    // Column accessors, created once for all rows
+    List<Function<PeakListRow, String>> rowColumns = new ArrayList<>();
+    for (ExportRowCommonElement element : commonElements)
+      rowColumns.add(getRowColumn(element));
+    if (exportAllPeakInfo) {
+      for (String key : peakInformationFields)
+        rowColumns.add(row -> {
+          Map<String, String> allPropertiesMap = row.getPeakInformation().getAllProperties();
+          String value = allPropertiesMap.get(key);
+          return (value == null) ? "" : value;
+        });
+    }
+    List<Function<Feature, String>> peakColumns = new ArrayList<>();
+    for (ExportRowDataFileElement element : dataFileElements)
+      peakColumns.add(getPeakColumn(element));
 
-      if (!filter.filter(peakListRow)) {
-        processedRows++;
-        continue;
-      }
+    // Write data rows. Each block is formatted in parallel and then written in the row order, so
+    // only one block is held in memory.
+    for (int start = 0; start < rows.length; start += ROWS_PER_BLOCK) {
 
       // Cancel?
       if (isCanceled()) {
         return;
       }
 
-      // Reset the buffer
-      line.setLength(0);
+      final int end = Math.min(rows.length, start + ROWS_PER_BLOCK);
+      String lines[] = IntStream.range(start, end).parallel()
+          .mapToObj(r -> formatRow(rows[r], rawDataFiles, rowColumns, peakColumns))
+          .toArray(String[]::new);
 
-      // Common elements
-      length = commonElements.length;
-      for (int i = 0; i < length; i++) {
-        switch (commonElements[i]) {
-          case ROW_ID:
-            line.append(peakListRow.getID() + fieldSeparator);
-            break;
-          case ROW_MZ:
-            line.append(peakListRow.getAverageMZ() + fieldSeparator);
-            break;
-          case ROW_RT:
-            line.append(peakListRow.getAverageRT() + fieldSeparator);
-            break;
-          case ROW_IDENTITY:
-            // Identity elements
-            PeakIdentity peakId = peakListRow.getPreferredPeakIdentity();
-            if (peakId == null) {
-              line.append(fieldSeparator);
-              break;
-            }
-            String propertyValue = peakId.toString();
-            propertyValue = escapeStringForCSV(propertyValue);
-            line.append(propertyValue + fieldSeparator);
-            break;
-          case ROW_IDENTITY_ALL:
-            // Identity elements
-            PeakIdentity[] peakIdentities = peakListRow.getPeakIdentities();
-            propertyValue = "";
-            for (int x = 0; x < peakIdentities.length; x++) {
-              if (x > 0)
-                propertyValue += idSeparator;
-              propertyValue += peakIdentities[x].toString();
-            }
-            propertyValue = escapeStringForCSV(propertyValue);
-            line.append(propertyValue + fieldSeparator);
-            break;
-          case ROW_IDENTITY_DETAILS:
-            peakId = peakListRow.getPreferredPeakIdentity();
-            if (peakId == null) {
-              line.append(fieldSeparator);
-              break;
-            }
-            propertyValue = peakId.getDescription();
-            if (propertyValue != null)
-              propertyValue = propertyValue.replaceAll("\\n", ";");
-            propertyValue = escapeStringForCSV(propertyValue);
-            line.append(propertyValue + fieldSeparator);
-            break;
-          case ROW_COMMENT:
-            String comment = escapeStringForCSV(peakListRow.getComment());
-            line.append(comment + fieldSeparator);
-            break;
-          case ROW_PEAK_NUMBER:
-            int numDetected = 0;
-            for (Feature p : peakListRow.getPeaks()) {
-              if (p.getFeatureStatus() == FeatureStatus.DETECTED) {
-                numDetected++;
-              }
-            }
-            line.append(numDetected + fieldSeparator);
-            break;
+      try {
+        for (String rowLine : lines) {
+          // filtered rows are skipped
+          if (rowLine != null)
+            writer.write(rowLine);
         }
+      } catch (Exception e) {
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage("Could not write to file " + fileName);
+        return;
       }
 
-      // peak Information
-      if (exportAllPeakInfo) {
-        if (peakListRow.getPeakInformation() != null) {
-          Map<String, String> allPropertiesMap =
-              peakListRow.getPeakInformation().getAllProperties();
-
-          for (String key : peakInformationFields) {
-            String value = allPropertiesMap.get(key);
-            if (value == null)
-              value = "";
-            line.append(value + fieldSeparator);
-          }
-        }
+      processedRows += end - start;
+    }
+  }
+
+  /**
+   * @return The line of the row, or null if the row is filtered
+   */
+  private String formatRow(PeakListRow peakListRow, RawDataFile rawDataFiles[],
+      List<Function<PeakListRow, String>> rowColumns,
+      List<Function<Feature, String>> peakColumns) {
+
+    if (!filter.filter(peakListRow))
+      return null;
+
+    StringBuilder line = new StringBuilder();
+
+    // Common elements and peak information
+    final boolean hasPeakInformation = peakListRow.getPeakInformation() != null;
+    for (int i = 0; i < rowColumns.size(); i++) {
+      // peak information columns follow the common elements, rows without peak information get
+      // empty fields
+      if (i >= commonElements.length && !hasPeakInformation) {
+        line.append(fieldSeparator);
+        continue;
       }
+      line.append(rowColumns.get(i).apply(peakListRow) + fieldSeparator);
+    }
 
-      // Data file elements
-      length = dataFileElements.length;
-      for (RawDataFile dataFile : rawDataFiles) {
-        for (int i = 0; i < length; i++) {
-          Feature peak = peakListRow.getPeak(dataFile);
-          if (peak != null) {
-            switch (dataFileElements[i]) {
-              case PEAK_STATUS:
-                line.append(peak.getFeatureStatus() + fieldSeparator);
-                break;
-              case PEAK_NAME:
-                line.append(PeakUtils.peakToString(peak) + fieldSeparator);
-                break;
-              case PEAK_MZ:
-                line.append(peak.getMZ() + fieldSeparator);
-                break;
-              case PEAK_RT:
-                line.append(peak.getRT() + fieldSeparator);
-                break;
-              case PEAK_RT_START:
-                line.append(peak.getRawDataPointsRTRange().lowerEndpoint() + fieldSeparator);
-                break;
-              case PEAK_RT_END:
-                line.append(peak.getRawDataPointsRTRange().upperEndpoint() + fieldSeparator);
-                break;
-              case PEAK_DURATION:
-                line.append(
-                    RangeUtils.rangeLength(peak.getRawDataPointsRTRange()) + fieldSeparator);
-                break;
-              case PEAK_HEIGHT:
-                line.append(peak.getHeight() + fieldSeparator);
-                break;
-              case PEAK_AREA:
-                line.append(peak.getArea() + fieldSeparator);
-                break;
-              case PEAK_CHARGE:
-                line.append(peak.getCharge() + fieldSeparator);
-                break;
-              case PEAK_DATAPOINTS:
-                line.append(peak.getScanNumbers().length + fieldSeparator);
-                break;
-              case PEAK_FWHM:
-                line.append(peak.getFWHM() + fieldSeparator);
-                break;
-              case PEAK_TAILINGFACTOR:
-                line.append(peak.getTailingFactor() + fieldSeparator);
-                break;
-              case PEAK_ASYMMETRYFACTOR:
-                line.append(peak.getAsymmetryFactor() + fieldSeparator);
-                break;
-              case PEAK_MZMIN:
-                line.append(peak.getRawDataPointsMZRange().lowerEndpoint() + fieldSeparator);
-                break;
-              case PEAK_MZMAX:
-                line.append(peak.getRawDataPointsMZRange().upperEndpoint() + fieldSeparator);
-                break;
-            }
-          } else {
-            switch (dataFileElements[i]) {
-              case PEAK_STATUS:
-                line.append(FeatureStatus.UNKNOWN + fieldSeparator);
-                break;
-              default:
-                line.append("0" + fieldSeparator);
-                break;
-            }
+    // Data file elements
+    for (RawDataFile dataFile : rawDataFiles) {
+      Feature peak = peakListRow.getPeak(dataFile);
+      for (int i = 0; i < peakColumns.size(); i++) {
+        if (peak != null) {
+          line.append(peakColumns.get(i).apply(peak) + fieldSeparator);
+        } else {
+          switch (dataFileElements[i]) {
+            case PEAK_STATUS:
+              line.append(FeatureStatus.UNKNOWN + fieldSeparator);
+              break;
+            default:
+              line.append("0" + fieldSeparator);
+              break;
           }
         }
       }
+    }
 
-      line.append("\n");
+    line.append("\n");
+    return line.toString();
+  }
 
-      try {
-        writer.write(line.toString());
-      } catch (Exception e) {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("Could not write to file " + fileName);
-        return;
-      }
+  private Function<PeakListRow, String> getRowColumn(ExportRowCommonElement element) {
+    switch (element) {
+      case ROW_ID:
+        return row -> String.valueOf(row.getID());
+      case ROW_MZ:
+        return row -> String.valueOf(row.getAverageMZ());
+      case ROW_RT:
+        return row -> String.valueOf(row.getAverageRT());
+      case ROW_IDENTITY:
+        // Identity elements
+        return row -> {
+          PeakIdentity peakId = row.getPreferredPeakIdentity();
+          if (peakId == null)
+            return "";
+          return escapeStringForCSV(peakId.toString());
+        };
+      case ROW_IDENTITY_ALL:
+        // Identity elements
+        return row -> {
+          PeakIdentity[] peakIdentities = row.getPeakIdentities();
+          StringBuilder propertyValue = new StringBuilder();
+          for (int x = 0; x < peakIdentities.length; x++) {
+            if (x > 0)
+              propertyValue.append(idSeparator);
+            propertyValue.append(peakIdentities[x].toString());
+          }
+          return escapeStringForCSV(propertyValue.toString());
+        };
+      case ROW_IDENTITY_DETAILS:
+        return row -> {
+          PeakIdentity peakId = row.getPreferredPeakIdentity();
+          if (peakId == null)
+            return "";
+          String propertyValue = peakId.getDescription();
+          if (propertyValue != null)
+            propertyValue = propertyValue.replaceAll("\\n", ";");
+          return escapeStringForCSV(propertyValue);
+        };
+      case ROW_COMMENT:
+        return row -> escapeStringForCSV(row.getComment());
+      case ROW_PEAK_NUMBER:
+        return row -> {
+          int numDetected = 0;
+          for (Feature p : row.getPeaks()) {
+            if (p.getFeatureStatus() == FeatureStatus.DETECTED) {
+              numDetected++;
+            }
+          }
+          return String.valueOf(numDetected);
+        };
+      default:
+        throw new IllegalArgumentException("Unknown element " + element);
+    }
+  }
 
-      processedRows++;
+  private Function<Feature, String> getPeakColumn(ExportRowDataFileElement element) {
+    switch (element) {
+      case PEAK_STATUS:
+        return peak -> String.valueOf(peak.getFeatureStatus());
+      case PEAK_NAME:
+        return peak -> PeakUtils.peakToString(peak);
+      case PEAK_MZ:
+        return peak -> String.valueOf(peak.getMZ());
+      case PEAK_RT:
+        return peak -> String.valueOf(peak.getRT());
+      case PEAK_RT_START:
+        return peak -> String.valueOf(peak.getRawDataPointsRTRange().lowerEndpoint());
+      case PEAK_RT_END:
+        return peak -> String.valueOf(peak.getRawDataPointsRTRange().upperEndpoint());
+      case PEAK_DURATION:
+        return peak -> String.valueOf(RangeUtils.rangeLength(peak.getRawDataPointsRTRange()));
+      case PEAK_HEIGHT:
+        return peak -> String.valueOf(peak.getHeight());
+      case PEAK_AREA:
+        return peak -> String.valueOf(peak.getArea());
+      case PEAK_CHARGE:
+        return peak -> String.valueOf(peak.getCharge());
+      case PEAK_DATAPOINTS:
+        return peak -> String.valueOf(peak.getScanNumbers().length);
+      case PEAK_FWHM:
+        return peak -> String.valueOf(peak.getFWHM());
+      case PEAK_TAILINGFACTOR:
+        return peak -> String.valueOf(peak.getTailingFactor());
+      case PEAK_ASYMMETRYFACTOR:
+        return peak -> String.valueOf(peak.getAsymmetryFactor());
+      case PEAK_MZMIN:
+        return peak -> String.valueOf(peak.getRawDataPointsMZRange().lowerEndpoint());
+      case PEAK_MZMAX:
+        return peak -> String.valueOf(peak.getRawDataPointsMZRange().upperEndpoint());
+      default:
+        throw new IllegalArgumentException("Unknown element " + element);
     }
   }
 
@@ -413,7 +451,7 @@ public class CSVExportTask extends AbstractTask {
 
     // Remove all special characters (particularly \n would mess up our CSV
     // format).
-    String result = inputString.replaceAll("[\\p{Cntrl}]", " ");
+    String result = controlCharacters.matcher(inputString).replaceAll(" ");
 
     // Skip too long strings (see Excel 2007 specifications)
     if (result.length() >= 32766)
@@ -422,7 +460,7 @@ public class CSVExportTask extends AbstractTask {
     // If the text contains fieldSeparator, we will add
     // parenthesis
     if (result.contains(fieldSeparator) || result.contains("\"")) {
-      result = "\"" + result.replaceAll("\"", "'") + "\"";
+      result = "\"" + result.replace("\"", "'") + "\"";
     }
 
     return result;
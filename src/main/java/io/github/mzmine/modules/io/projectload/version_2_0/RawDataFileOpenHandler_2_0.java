@@ -21,7 +21,7 @@ package io.github.mzmine.modules.io.projectload.version_2_0;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.TreeMap;
+import java.util.NavigableMap;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -184,8 +184,8 @@ public class RawDataFileOpenHandler_2_0 extends DefaultHandler implements RawDat
 
       try {
         int newStorageID = 1;
-        TreeMap<Integer, Long> dataPointsOffsets = newRawDataFile.getDataPointsOffsets();
-        TreeMap<Integer, Integer> dataPointsLengths = newRawDataFile.getDataPointsLengths();
+        NavigableMap<Integer, Long> dataPointsOffsets = newRawDataFile.getDataPointsOffsets();
+        NavigableMap<Integer, Integer> dataPointsLengths = newRawDataFile.getDataPointsLengths();
         if (!dataPointsOffsets.isEmpty())
           newStorageID = dataPointsOffsets.lastKey().intValue() + 1;
 
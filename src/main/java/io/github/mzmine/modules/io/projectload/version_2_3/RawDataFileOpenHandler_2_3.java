@@ -22,7 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.NavigableMap;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -215,8 +215,8 @@ public class RawDataFileOpenHandler_2_3 extends DefaultHandler implements RawDat
 
       try {
         int newStorageID = 1;
-        TreeMap<Integer, Long> dataPointsOffsets = newRawDataFile.getDataPointsOffsets();
-        TreeMap<Integer, Integer> dataPointsLengths = newRawDataFile.getDataPointsLengths();
+        NavigableMap<Integer, Long> dataPointsOffsets = newRawDataFile.getDataPointsOffsets();
+        NavigableMap<Integer, Integer> dataPointsLengths = newRawDataFile.getDataPointsLengths();
         if (!dataPointsOffsets.isEmpty())
           newStorageID = dataPointsOffsets.lastKey().intValue() + 1;
 
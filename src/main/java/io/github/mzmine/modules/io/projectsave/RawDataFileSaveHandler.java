@@ -21,8 +21,12 @@ package io.github.mzmine.modules.io.projectsave;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -53,7 +57,7 @@ class RawDataFileSaveHandler {
   private boolean canceled = false;
   private Map<Integer, Long> dataPointsOffsets;
   private Map<Integer, Long> consolidatedDataPointsOffsets;
-  private Map<Integer, Integer> dataPointsLengths;
+  private NavigableSet<Integer> storageIDs;
   private double progress = 0;
 
   RawDataFileSaveHandler(ZipOutputStream zipOutputStream) {
@@ -78,7 +82,9 @@ class RawDataFileSaveHandler {
 
     // Get the structure of the data points file
     dataPointsOffsets = rawDataFile.getDataPointsOffsets();
-    dataPointsLengths = rawDataFile.getDataPointsLengths();
+    // Data points shared with other raw data files are saved as if they were stored in this file
+    storageIDs = new TreeSet<Integer>(dataPointsOffsets.keySet());
+    storageIDs.addAll(rawDataFile.getSharedStorageIDs());
     consolidatedDataPointsOffsets = new TreeMap<Integer, Long>();
 
     // step 1 - save data file
@@ -94,23 +100,39 @@ class RawDataFileSaveHandler {
     long newOffset = 0;
     byte buffer[] = new byte[1 << 20];
     RandomAccessFile dataPointsFile = rawDataFile.getDataPointsFile();
-    for (Integer storageID : dataPointsOffsets.keySet()) {
+    int savedStorageIDs = 0;
+    for (Integer storageID : storageIDs) {
 
       if (canceled)
         return;
 
-      final long offset = dataPointsOffsets.get(storageID);
-      dataPointsFile.seek(offset);
-
-      final int bytes = dataPointsLengths.get(storageID) * 4 * 2;
+      final int numOfDataPoints = rawDataFile.getNumOfStoredDataPoints(storageID);
+      final int bytes = numOfDataPoints * 4 * 2;
       consolidatedDataPointsOffsets.put(storageID, newOffset);
       if (buffer.length < bytes) {
         buffer = new byte[bytes * 2];
       }
-      dataPointsFile.read(buffer, 0, bytes);
+
+      final Long offset = dataPointsOffsets.get(storageID);
+      if (offset != null) {
+        dataPointsFile.seek(offset);
+        dataPointsFile.read(buffer, 0, bytes);
+      } else {
+        // Encode the shared data points the same way as RawDataFileImpl stores them
+        final double mzValues[] = new double[numOfDataPoints];
+        final double intensityValues[] = new double[numOfDataPoints];
+        rawDataFile.readDataPoints(storageID, mzValues, intensityValues);
+        FloatBuffer floatBuffer = ByteBuffer.wrap(buffer).asFloatBuffer();
+        for (int i = 0; i < numOfDataPoints; i++) {
+          floatBuffer.put((float) mzValues[i]);
+          floatBuffer.put((float) intensityValues[i]);
+        }
+      }
+
       zipOutputStream.write(buffer, 0, bytes);
       newOffset += bytes;
-      progress = 0.9 * ((double) offset / dataPointsFile.length());
+      savedStorageIDs++;
+      progress = 0.9 * ((double) savedStorageIDs / storageIDs.size());
     }
 
     if (canceled)
@@ -158,13 +180,13 @@ class RawDataFileSaveHandler {
 
     // <STORED_DATAPOINTS>
     atts.addAttribute("", "", RawDataElementName.QUANTITY.getElementName(), "CDATA",
-        String.valueOf(dataPointsOffsets.size()));
+        String.valueOf(storageIDs.size()));
     hd.startElement("", "", RawDataElementName.STORED_DATAPOINTS.getElementName(), atts);
     atts.clear();
-    for (Integer storageID : dataPointsOffsets.keySet()) {
+    for (Integer storageID : storageIDs) {
       if (canceled)
         return;
-      int length = dataPointsLengths.get(storageID);
+      int length = rawDataFile.getNumOfStoredDataPoints(storageID);
       long offset = consolidatedDataPointsOffsets.get(storageID);
       atts.addAttribute("", "", RawDataElementName.STORAGE_ID.getElementName(), "CDATA",
           String.valueOf(storageID));
@@ -1,16 +1,16 @@
 /*
  * Copyright 2006-2020 The MZmine Development Team
- * 
+ *
  * This file is part of MZmine.
- * 
+ *
  * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
  * General Public License as published by the Free Software Foundation; either version 2 of the
  * License, or (at your option) any later version.
- * 
+ *
  * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
  * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
  * Public License for more details.
- * 
+ *
  * You should have received a copy of the GNU General Public License along with MZmine; if not,
  * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
  * USA
@@ -18,40 +18,64 @@
 
 package io.github.mzmine.modules.io.rawdataimport.fileformats;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.util.*;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.primitives.Ints;
 
-import io.github.mzmine.datamodel.DataPoint;
 import io.github.mzmine.datamodel.MZmineProject;
 import io.github.mzmine.datamodel.MassSpectrumType;
 import io.github.mzmine.datamodel.PolarityType;
 import io.github.mzmine.datamodel.RawDataFile;
 import io.github.mzmine.datamodel.RawDataFileWriter;
-import io.github.mzmine.datamodel.impl.SimpleDataPoint;
-import io.github.mzmine.datamodel.impl.SimpleScan;
+import io.github.mzmine.gui.preferences.MZminePreferences;
+import io.github.mzmine.gui.preferences.NumOfThreadsParameter;
+import io.github.mzmine.main.MZmineCore;
+import io.github.mzmine.project.impl.RawDataFileImpl;
+import io.github.mzmine.project.impl.StorableScan;
 import io.github.mzmine.taskcontrol.AbstractTask;
 import io.github.mzmine.taskcontrol.TaskStatus;
+import io.github.mzmine.util.CompressionUtils;
 import io.github.mzmine.util.ExceptionUtils;
 import io.github.mzmine.util.scans.ScanUtils;
 import uk.ac.ebi.jmzml.model.mzml.BinaryDataArray;
-import uk.ac.ebi.jmzml.model.mzml.BinaryDataArrayList;
 import uk.ac.ebi.jmzml.model.mzml.CVParam;
-import uk.ac.ebi.jmzml.model.mzml.ParamGroup;
-import uk.ac.ebi.jmzml.model.mzml.Precursor;
-import uk.ac.ebi.jmzml.model.mzml.PrecursorList;
-import uk.ac.ebi.jmzml.model.mzml.Scan;
-import uk.ac.ebi.jmzml.model.mzml.ScanList;
-import uk.ac.ebi.jmzml.model.mzml.SelectedIonList;
-import uk.ac.ebi.jmzml.model.mzml.Spectrum;
-import uk.ac.ebi.jmzml.xml.io.MzMLObjectIterator;
-import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
 
 /**
- * This class reads mzML 1.0 and 1.1.0 files (http://www.psidev.info/index.php?q=node/257) using the
- * jmzml library (http://code.google.com/p/jmzml/).
+ * This class reads mzML 1.0 and 1.1.0 files (http://www.psidev.info/index.php?q=node/257).
+ *
+ * The file is read in a single pass by a StAX stream reader. The binary data arrays of each
+ * spectrum are decoded (base64, zlib) directly into primitive arrays by a pool of worker threads,
+ * while the reader continues with the next spectra. The decoded data points are stored in spectrum
+ * order. Scan numbers are only assigned after the whole file was read, because they depend on the
+ * IDs of all spectra.
  */
 public class MzMLReadTask extends AbstractTask {
 
@@ -59,9 +83,12 @@ public class MzMLReadTask extends AbstractTask {
 
   private static final Pattern SCAN_PATTERN = Pattern.compile("scan=([0-9]+)");
 
+  // Number of spectra which may wait for decoding, per decoding thread
+  private static final int PENDING_SPECTRA_PER_THREAD = 4;
+
   private File file;
   private MZmineProject project;
-  private RawDataFileWriter newMZmineFile;
+  private RawDataFileImpl newMZmineFile;
   private RawDataFile finalRawDataFile;
   private int totalScans = 0, parsedScans;
 
@@ -69,20 +96,22 @@ public class MzMLReadTask extends AbstractTask {
 
   private Map<String, Integer> scanIdTable = new Hashtable<String, Integer>();
 
+  // Referenceable parameter groups, by group ID
+  private final Map<String, List<MzMLCVParam>> paramGroups = new HashMap<>();
+
   /*
-   * This stack stores at most 20 consecutive scans. This window serves to find possible fragments
-   * (current scan) that belongs to any of the stored scans in the stack. The reason of the size
-   * follows the concept of neighborhood of scans and all his fragments. These solution is
-   * implemented because exists the possibility to find fragments of one scan after one or more full
-   * scans.
+   * The former reader kept a stack of at most 20 (+1) consecutive scans. This window serves to find
+   * possible fragments (current scan) that belongs to any of the stored scans in the stack. The
+   * reason of the size follows the concept of neighborhood of scans and all his fragments. The same
+   * window is used when the fragment scans are assigned after reading the file, to keep the results
+   * of the former reader.
    */
   private static final int PARENT_STACK_SIZE = 20;
-  private LinkedList<SimpleScan> parentStack = new LinkedList<SimpleScan>();
 
   public MzMLReadTask(MZmineProject project, File fileToOpen, RawDataFileWriter newMZmineFile) {
     this.project = project;
     this.file = fileToOpen;
-    this.newMZmineFile = newMZmineFile;
+    this.newMZmineFile = (RawDataFileImpl) newMZmineFile;
   }
 
   /**
@@ -100,79 +129,80 @@ public class MzMLReadTask extends AbstractTask {
     setStatus(TaskStatus.PROCESSING);
     logger.info("Started parsing file " + file);
 
-    MzMLUnmarshaller unmarshaller = new MzMLUnmarshaller(file);
+    final int numOfThreads = getNumOfThreads();
+    final ExecutorService decodingPool = Executors.newFixedThreadPool(numOfThreads);
 
-    totalScans = unmarshaller.getObjectCountForXpath("/run/spectrumList/spectrum");
+    try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
 
-    fillScanIdTable(
-        unmarshaller.unmarshalCollectionFromXpath("/run/spectrumList/spectrum", Spectrum.class),
-        totalScans);
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+      XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
 
-    MzMLObjectIterator<Spectrum> spectrumIterator =
-        unmarshaller.unmarshalCollectionFromXpath("/run/spectrumList/spectrum", Spectrum.class);
-    try {
+      // All spectra in the order of the file, and the MS spectra among them
+      List<MzMLSpectrum> allSpectra = new ArrayList<>();
+      List<MzMLSpectrum> msSpectra = new ArrayList<>();
+
+      // Spectra which are being decoded, in the order of the file
+      ArrayDeque<Future<MzMLSpectrum>> pendingSpectra = new ArrayDeque<>();
+      final int maxPendingSpectra = numOfThreads * PENDING_SPECTRA_PER_THREAD;
 
-      while (spectrumIterator.hasNext()) {
+      while (reader.hasNext()) {
 
         if (isCanceled())
           return;
 
-        Spectrum spectrum = spectrumIterator.next();
-
-        // Ignore scans that are not MS, e.g. UV
-        if (!isMsSpectrum(spectrum)) {
-          parsedScans++;
+        if (reader.next() != XMLStreamConstants.START_ELEMENT)
           continue;
-        }
 
-        String scanId = spectrum.getId();
-        Integer scanNumber = scanIdTable.get(scanId);
-        if (scanNumber == null)
-          throw new IllegalStateException("Cannot determine scan number: " + scanId);
-
-        // Extract scan data
-        int msLevel = extractMSLevel(spectrum);
-        double retentionTime = extractRetentionTime(spectrum);
-        PolarityType polarity = extractPolarity(spectrum);
-        int parentScan = extractParentScanNumber(spectrum);
-        double precursorMz = extractPrecursorMz(spectrum);
-        int precursorCharge = extractPrecursorCharge(spectrum);
-        String scanDefinition = extractScanDefinition(spectrum);
-        DataPoint dataPoints[] = extractDataPoints(spectrum);
-
-        // Auto-detect whether this scan is centroided
-        MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
-
-        SimpleScan scan = new SimpleScan(null, scanNumber, msLevel, retentionTime, precursorMz,
-            precursorCharge, null, dataPoints, spectrumType, polarity, scanDefinition, null);
-
-        for (SimpleScan s : parentStack) {
-          if (s.getScanNumber() == parentScan) {
-            s.addFragmentScan(scanNumber);
-          }
+        switch (reader.getLocalName()) {
+
+          case "referenceableParamGroup":
+            parseParamGroup(reader);
+            break;
+
+          case "spectrumList":
+            totalScans = parseInt(reader.getAttributeValue(null, "count"), 0);
+            break;
+
+          case "spectrum":
+            final MzMLSpectrum spectrum = parseSpectrum(reader);
+            allSpectra.add(spectrum);
+            saveScanNumberToTable(spectrum.id);
+
+            // Ignore scans that are not MS, e.g. UV
+            if (!isMsSpectrum(spectrum)) {
+              spectrum.spectrumParams = null;
+              spectrum.scanParams = null;
+              spectrum.precursors = null;
+              spectrum.binaryArrays = null;
+              parsedScans++;
+              break;
+            }
+
+            extractScanData(spectrum);
+            msSpectra.add(spectrum);
+
+            pendingSpectra.add(decodingPool.submit(() -> decodeDataPoints(spectrum)));
+            while (pendingSpectra.size() >= maxPendingSpectra)
+              storeDataPoints(pendingSpectra.poll().get());
+            break;
+
+          default:
+            break;
         }
-
-        /*
-         * Verify the size of parentStack. The actual size of the window to cover possible
-         * candidates is defined by limitSize.
-         */
-        if (parentStack.size() > PARENT_STACK_SIZE) {
-          SimpleScan firstScan = parentStack.removeLast();
-          newMZmineFile.addScan(firstScan);
-        }
-
-        parentStack.addFirst(scan);
-
-        parsedScans++;
-
       }
 
-      while (!parentStack.isEmpty()) {
-        SimpleScan scan = parentStack.removeLast();
-        newMZmineFile.addScan(scan);
+      reader.close();
 
+      while (!pendingSpectra.isEmpty()) {
+        if (isCanceled())
+          return;
+        storeDataPoints(pendingSpectra.poll().get());
       }
 
+      fillScanIdTable(allSpectra);
+      addScans(msSpectra);
+
       finalRawDataFile = newMZmineFile.finishWriting();
       project.addFile(finalRawDataFile);
 
@@ -182,6 +212,8 @@ public class MzMLReadTask extends AbstractTask {
       setErrorMessage("Error parsing mzML: " + ExceptionUtils.exceptionToString(e));
       e.printStackTrace();
       return;
+    } finally {
+      decodingPool.shutdownNow();
     }
 
     if (parsedScans == 0) {
@@ -195,28 +227,352 @@ public class MzMLReadTask extends AbstractTask {
 
   }
 
+  private int getNumOfThreads() {
+    NumOfThreadsParameter parameter =
+        MZmineCore.getConfiguration().getPreferences().getParameter(MZminePreferences.numOfThreads);
+    if (parameter.isAutomatic() || (parameter.getValue() == null))
+      return Runtime.getRuntime().availableProcessors();
+    else
+      return Math.max(1, parameter.getValue());
+  }
+
+  /**
+   * Reads a referenceableParamGroup element. The reader must be positioned at its start element.
+   */
+  private void parseParamGroup(XMLStreamReader reader) throws XMLStreamException {
+
+    final String groupId = reader.getAttributeValue(null, "id");
+    final List<MzMLCVParam> params = new ArrayList<>();
+
+    int depth = 1;
+    while (depth > 0) {
+      final int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+        if (reader.getLocalName().equals("cvParam"))
+          params.add(readCVParam(reader));
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+
+    if (groupId != null)
+      paramGroups.put(groupId, params);
+  }
+
+  /**
+   * Reads a spectrum element up to its end element. The reader must be positioned at its start
+   * element. Only the parameters used by MZmine are kept, and the binary data arrays are kept
+   * encoded.
+   */
+  private MzMLSpectrum parseSpectrum(XMLStreamReader reader) throws XMLStreamException {
+
+    final MzMLSpectrum spectrum = new MzMLSpectrum(reader.getAttributeValue(null, "id"),
+        parseInt(reader.getAttributeValue(null, "defaultArrayLength"), 0));
+
+    // Names of the currently open elements inside the spectrum
+    final ArrayDeque<String> openElements = new ArrayDeque<>();
+    openElements.push("spectrum");
+
+    MzMLPrecursor precursor = null;
+    MzMLBinaryArray binaryArray = null;
+
+    while (!openElements.isEmpty()) {
+
+      final int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        openElements.pop();
+        continue;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT)
+        continue;
+
+      final String name = reader.getLocalName();
+      final String parent = openElements.peek();
+
+      switch (name) {
+
+        case "cvParam":
+          addParams(spectrum, parent, precursor, binaryArray,
+              Collections.singletonList(readCVParam(reader)));
+          break;
+
+        case "referenceableParamGroupRef":
+          final List<MzMLCVParam> group = paramGroups.get(reader.getAttributeValue(null, "ref"));
+          if (group != null)
+            addParams(spectrum, parent, precursor, binaryArray, group);
+          break;
+
+        case "precursor":
+          precursor = new MzMLPrecursor(reader.getAttributeValue(null, "spectrumRef"));
+          spectrum.precursors.add(precursor);
+          break;
+
+        case "selectedIon":
+          if (precursor != null)
+            precursor.hasSelectedIons = true;
+          break;
+
+        case "binaryDataArray":
+          binaryArray = new MzMLBinaryArray(
+              parseInt(reader.getAttributeValue(null, "arrayLength"), spectrum.defaultArrayLength));
+          spectrum.binaryArrays.add(binaryArray);
+          break;
+
+        case "binary":
+          // getElementText() consumes the end element, too
+          final String text = reader.getElementText();
+          if ((binaryArray != null) && "binaryDataArray".equals(parent))
+            binaryArray.binary = text;
+          continue;
+
+        default:
+          break;
+      }
+
+      openElements.push(name);
+    }
+
+    return spectrum;
+  }
+
+  /**
+   * Adds the parameters to the element they belong to, if MZmine uses them
+   */
+  private void addParams(MzMLSpectrum spectrum, String parent, MzMLPrecursor precursor,
+      MzMLBinaryArray binaryArray, List<MzMLCVParam> params) {
+    switch (parent) {
+      case "spectrum":
+        spectrum.spectrumParams.addAll(params);
+        break;
+      case "scan":
+        spectrum.scanParams.addAll(params);
+        break;
+      case "selectedIon":
+        if (precursor != null)
+          precursor.selectedIonParams.addAll(params);
+        break;
+      case "binaryDataArray":
+        if (binaryArray != null)
+          binaryArray.params.addAll(params);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static MzMLCVParam readCVParam(XMLStreamReader reader) {
+    return new MzMLCVParam(reader.getAttributeValue(null, "accession"),
+        reader.getAttributeValue(null, "value"), reader.getAttributeValue(null, "unitAccession"));
+  }
+
+  private static int parseInt(String value, int defaultValue) {
+    if (value == null)
+      return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Extracts the scan data from the parameters of the spectrum, and releases the parameters
+   */
+  private void extractScanData(MzMLSpectrum spectrum) {
+    spectrum.msLevel = extractMSLevel(spectrum);
+    spectrum.retentionTime = extractRetentionTime(spectrum);
+    spectrum.polarity = extractPolarity(spectrum);
+    spectrum.precursorMz = extractPrecursorMz(spectrum);
+    spectrum.precursorCharge = extractPrecursorCharge(spectrum);
+    spectrum.scanDefinition = extractScanDefinition(spectrum);
+    spectrum.parentScanId = spectrum.precursors.isEmpty() ? null
+        : spectrum.precursors.get(0).spectrumRef;
+
+    spectrum.spectrumParams = null;
+    spectrum.scanParams = null;
+    spectrum.precursors = null;
+  }
+
+  /**
+   * Decodes the m/z and intensity arrays of the spectrum. Called by the decoding threads.
+   */
+  private MzMLSpectrum decodeDataPoints(MzMLSpectrum spectrum) throws DataFormatException {
+
+    MzMLBinaryArray mzArray = null, intensityArray = null;
+    for (MzMLBinaryArray array : spectrum.binaryArrays) {
+      if (array.hasParam("MS:1000514") && (mzArray == null))
+        mzArray = array;
+      else if (array.hasParam("MS:1000515") && (intensityArray == null))
+        intensityArray = array;
+    }
+
+    // Without the array types, the first array holds the m/z values and the second one the
+    // intensities
+    if ((mzArray == null) && (intensityArray == null) && (spectrum.binaryArrays.size() >= 2)) {
+      mzArray = spectrum.binaryArrays.get(0);
+      intensityArray = spectrum.binaryArrays.get(1);
+    }
+
+    if ((mzArray == null) || (intensityArray == null)) {
+      spectrum.mzValues = new double[0];
+      spectrum.intensityValues = new double[0];
+    } else {
+      spectrum.mzValues = decodeBinaryArray(mzArray);
+      spectrum.intensityValues = decodeBinaryArray(intensityArray);
+    }
+    spectrum.binaryArrays = null;
+
+    spectrum.numOfDataPoints =
+        Math.min(spectrum.mzValues.length, spectrum.intensityValues.length);
+
+    // Auto-detect whether this scan is centroided
+    spectrum.spectrumType = ScanUtils.detectSpectrumType(spectrum.mzValues,
+        spectrum.intensityValues, spectrum.numOfDataPoints);
+
+    return spectrum;
+  }
+
+  /**
+   * Decodes a base64 encoded, optionally zlib compressed array of little endian numbers
+   */
+  private static double[] decodeBinaryArray(MzMLBinaryArray array) throws DataFormatException {
+
+    if ((array.binary == null) || array.binary.isEmpty())
+      return new double[0];
+
+    final boolean zlib;
+    if (array.hasParam("MS:1000574"))
+      zlib = true;
+    else if (array.hasParam("MS:1000576") || !array.hasCompressionParam())
+      zlib = false;
+    else
+      // Other compressions, such as MS-Numpress, are left to jmzml
+      return decodeBinaryArrayWithJmzml(array);
+
+    final int valueSize;
+    if (array.hasParam("MS:1000521") || array.hasParam("MS:1000519"))
+      valueSize = 4;
+    else if (array.hasParam("MS:1000523") || array.hasParam("MS:1000522"))
+      valueSize = 8;
+    else
+      return decodeBinaryArrayWithJmzml(array);
+
+    byte bytes[] = Base64.getMimeDecoder().decode(array.binary);
+    if (zlib)
+      bytes = CompressionUtils.decompress(bytes, array.arrayLength * valueSize);
+
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    final double values[] = new double[bytes.length / valueSize];
+
+    if (array.hasParam("MS:1000521")) {
+      // 32-bit float
+      for (int i = 0; i < values.length; i++)
+        values[i] = buffer.getFloat(i * 4);
+    } else if (array.hasParam("MS:1000523")) {
+      // 64-bit float
+      for (int i = 0; i < values.length; i++)
+        values[i] = buffer.getDouble(i * 8);
+    } else if (array.hasParam("MS:1000519")) {
+      // 32-bit integer
+      for (int i = 0; i < values.length; i++)
+        values[i] = buffer.getInt(i * 4);
+    } else {
+      // 64-bit integer
+      for (int i = 0; i < values.length; i++)
+        values[i] = buffer.getLong(i * 8);
+    }
+
+    return values;
+  }
+
+  private static double[] decodeBinaryArrayWithJmzml(MzMLBinaryArray array) {
+
+    BinaryDataArray jmzmlArray = new BinaryDataArray();
+    jmzmlArray.setBinary(Base64.getMimeDecoder().decode(array.binary));
+    for (MzMLCVParam param : array.params) {
+      CVParam cvParam = new CVParam();
+      cvParam.setAccession(param.accession);
+      cvParam.setValue(param.value);
+      jmzmlArray.getCvParam().add(cvParam);
+    }
+
+    Number numbers[] = jmzmlArray.getBinaryDataAsNumberArray();
+    double values[] = new double[numbers.length];
+    for (int i = 0; i < values.length; i++)
+      values[i] = numbers[i].doubleValue();
+    return values;
+  }
+
+  /**
+   * Stores the decoded data points of the spectrum in the raw data file. Called by the reader
+   * thread, in the order of the spectra.
+   */
+  private void storeDataPoints(MzMLSpectrum spectrum) throws Exception {
+    spectrum.storageID = newMZmineFile.storeDataPoints(spectrum.mzValues,
+        spectrum.intensityValues, spectrum.numOfDataPoints);
+    spectrum.mzValues = null;
+    spectrum.intensityValues = null;
+    parsedScans++;
+  }
+
+  /**
+   * Adds the stored MS spectra to the raw data file as scans, with their final scan numbers and
+   * fragment scans.
+   */
+  private void addScans(List<MzMLSpectrum> msSpectra) throws Exception {
+
+    final int numOfScans = msSpectra.size();
+    final int scanNumbers[] = new int[numOfScans];
+    final List<TreeSet<Integer>> fragmentScans = new ArrayList<>(numOfScans);
+
+    for (int i = 0; i < numOfScans; i++) {
+
+      final MzMLSpectrum spectrum = msSpectra.get(i);
+      final Integer scanNumber = scanIdTable.get(spectrum.id);
+      if (scanNumber == null)
+        throw new IllegalStateException("Cannot determine scan number: " + spectrum.id);
+      scanNumbers[i] = scanNumber;
+      fragmentScans.add(new TreeSet<Integer>());
+
+      final int parentScan = extractParentScanNumber(spectrum);
+      for (int j = Math.max(0, i - PARENT_STACK_SIZE - 1); j < i; j++) {
+        if (scanNumbers[j] == parentScan)
+          fragmentScans.get(j).add(scanNumber);
+      }
+    }
+
+    for (int i = 0; i < numOfScans; i++) {
+      final MzMLSpectrum spectrum = msSpectra.get(i);
+      final int fragments[] =
+          fragmentScans.get(i).isEmpty() ? null : Ints.toArray(fragmentScans.get(i));
+      StorableScan scan = new StorableScan(newMZmineFile, spectrum.storageID,
+          spectrum.numOfDataPoints, scanNumbers[i], spectrum.msLevel, spectrum.retentionTime,
+          spectrum.precursorMz, spectrum.precursorCharge, fragments, spectrum.spectrumType,
+          spectrum.polarity, spectrum.scanDefinition, null);
+      newMZmineFile.addScan(scan);
+    }
+  }
+
   /**
-   * Retrieves scan numbers from scan IDs and stores them in scanIdTable.
+   * Checks the scan numbers retrieved from scan IDs by saveScanNumberToTable().
    *
    * If retrieved scan numbers are not unique, we replace them with new scan numbers.
    *
-   * @param iterator iterator from MzMLUnmarshaller
+   * @param allSpectra all spectra of the file, in the order of the file
    */
-  private void fillScanIdTable(MzMLObjectIterator<Spectrum> iterator, int totalScans) {
-
-    Map<String, Integer> alternativeScanIdTable = new HashMap<>();
-    for (int i = 1; iterator.hasNext(); ++i) {
-      String id = iterator.next().getId();
-      saveScanNumberToTable(id);
-      alternativeScanIdTable.put(id, i);
-    }
+  private void fillScanIdTable(List<MzMLSpectrum> allSpectra) {
 
     Set<Integer> scanNumberSet = new HashSet<>(scanIdTable.values());
 
-    if (scanNumberSet.size() != totalScans)
+    if (scanNumberSet.size() != allSpectra.size()) {
       // Scan Numbers are not unique! We replace them with numbers 1, 2,
       // 3, ...
+      Map<String, Integer> alternativeScanIdTable = new HashMap<>();
+      for (int i = 0; i < allSpectra.size(); i++)
+        alternativeScanIdTable.put(allSpectra.get(i).id, i + 1);
       scanIdTable = alternativeScanIdTable;
+    }
   }
 
   private void saveScanNumberToTable(String scanId) {
@@ -241,14 +597,11 @@ public class MzMLReadTask extends AbstractTask {
     scanIdTable.put(scanId, scanNumber);
   }
 
-  private int extractMSLevel(Spectrum spectrum) {
+  private int extractMSLevel(MzMLSpectrum spectrum) {
     // Browse the spectrum parameters
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams == null)
-      return 1;
-    for (CVParam param : cvParams) {
-      String accession = param.getAccession();
-      String value = param.getValue();
+    for (MzMLCVParam param : spectrum.spectrumParams) {
+      String accession = param.accession;
+      String value = param.value;
       if ((accession == null) || (value == null))
         continue;
 
@@ -261,251 +614,250 @@ public class MzMLReadTask extends AbstractTask {
     return 1;
   }
 
-  private double extractRetentionTime(Spectrum spectrum) {
-
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement == null)
-      return 0;
-    List<Scan> scanElements = scanListElement.getScan();
-    if (scanElements == null)
-      return 0;
+  private double extractRetentionTime(MzMLSpectrum spectrum) {
 
-    for (Scan scan : scanElements) {
-      List<CVParam> cvParams = scan.getCvParam();
-      if (cvParams == null)
+    for (MzMLCVParam param : spectrum.scanParams) {
+      String accession = param.accession;
+      String unitAccession = param.unitAccession;
+      String value = param.value;
+      if ((accession == null) || (value == null))
         continue;
 
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-        String unitAccession = param.getUnitAccession();
-        String value = param.getValue();
-        if ((accession == null) || (value == null))
-          continue;
-
-        // Retention time (actually "Scan start time") MS:1000016
-        if (accession.equals("MS:1000016")) {
-          // MS:1000038 is used in mzML 1.0, while UO:0000031
-          // is used in mzML 1.1.0 :-/
-          double retentionTime;
-          if ((unitAccession == null) || (unitAccession.equals("MS:1000038"))
-              || unitAccession.equals("UO:0000031")) {
-            retentionTime = Double.parseDouble(value);
-          } else {
-            retentionTime = Double.parseDouble(value) / 60d;
-          }
-          return retentionTime;
-
+      // Retention time (actually "Scan start time") MS:1000016
+      if (accession.equals("MS:1000016")) {
+        // MS:1000038 is used in mzML 1.0, while UO:0000031
+        // is used in mzML 1.1.0 :-/
+        double retentionTime;
+        if ((unitAccession == null) || (unitAccession.equals("MS:1000038"))
+            || unitAccession.equals("UO:0000031")) {
+          retentionTime = Double.parseDouble(value);
+        } else {
+          retentionTime = Double.parseDouble(value) / 60d;
         }
+        return retentionTime;
+
       }
     }
 
     return 0;
   }
 
-  private DataPoint[] extractDataPoints(Spectrum spectrum) {
-    BinaryDataArrayList dataList = spectrum.getBinaryDataArrayList();
-
-    if ((dataList == null) || (dataList.getCount().equals(0)))
-      return new DataPoint[0];
-
-    BinaryDataArray mzArray = dataList.getBinaryDataArray().get(0);
-    BinaryDataArray intensityArray = dataList.getBinaryDataArray().get(1);
-    Number mzValues[] = mzArray.getBinaryDataAsNumberArray();
-    Number intensityValues[] = intensityArray.getBinaryDataAsNumberArray();
-    DataPoint dataPoints[] = new DataPoint[mzValues.length];
-    for (int i = 0; i < dataPoints.length; i++) {
-      double mz = mzValues[i].doubleValue();
-      double intensity = intensityValues[i].doubleValue();
-      dataPoints[i] = new SimpleDataPoint(mz, intensity);
+  private int extractParentScanNumber(MzMLSpectrum spectrum) {
+    // Get the precursor scan number
+    String precursorScanId = spectrum.parentScanId;
+    if (precursorScanId == null) {
+      return -1;
     }
-    return dataPoints;
-
-  }
-
-  private int extractParentScanNumber(Spectrum spectrum) {
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
+    Integer parentScan = scanIdTable.get(precursorScanId);
+    if (parentScan == null)
       return -1;
 
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
-      // Get the precursor scan number
-      String precursorScanId = parent.getSpectrumRef();
-      if (precursorScanId == null) {
-        return -1;
-      }
-      Integer parentScan = scanIdTable.get(precursorScanId);
-      if (parentScan == null)
-        return -1;
-
-      return parentScan;
-    }
-    return -1;
+    return parentScan;
   }
 
-  private double extractPrecursorMz(Spectrum spectrum) {
-
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
-      return 0;
+  private double extractPrecursorMz(MzMLSpectrum spectrum) {
 
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
+    for (MzMLPrecursor parent : spectrum.precursors) {
 
-      SelectedIonList selectedIonListElement = parent.getSelectedIonList();
-      if ((selectedIonListElement == null) || (selectedIonListElement.getCount().equals(0)))
+      if (!parent.hasSelectedIons)
         return 0;
-      List<ParamGroup> selectedIonParams = selectedIonListElement.getSelectedIon();
-      if (selectedIonParams == null)
-        continue;
 
-      for (ParamGroup pg : selectedIonParams) {
-        List<CVParam> pgCvParams = pg.getCvParam();
-        for (CVParam param : pgCvParams) {
-          String accession = param.getAccession();
-          String value = param.getValue();
-          if ((accession == null) || (value == null))
-            continue;
-          // MS:1000040 is used in mzML 1.0,
-          // MS:1000744 is used in mzML 1.1.0
-          if (accession.equals("MS:1000040") || accession.equals("MS:1000744")) {
-            double precursorMz = Double.parseDouble(value);
-            return precursorMz;
-          }
+      for (MzMLCVParam param : parent.selectedIonParams) {
+        String accession = param.accession;
+        String value = param.value;
+        if ((accession == null) || (value == null))
+          continue;
+        // MS:1000040 is used in mzML 1.0,
+        // MS:1000744 is used in mzML 1.1.0
+        if (accession.equals("MS:1000040") || accession.equals("MS:1000744")) {
+          double precursorMz = Double.parseDouble(value);
+          return precursorMz;
         }
-
       }
     }
     return 0;
   }
 
-  private int extractPrecursorCharge(Spectrum spectrum) {
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
-      return 0;
+  private int extractPrecursorCharge(MzMLSpectrum spectrum) {
 
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
+    for (MzMLPrecursor parent : spectrum.precursors) {
 
-      SelectedIonList selectedIonListElement = parent.getSelectedIonList();
-      if ((selectedIonListElement == null) || (selectedIonListElement.getCount().equals(0)))
+      if (!parent.hasSelectedIons)
         return 0;
-      List<ParamGroup> selectedIonParams = selectedIonListElement.getSelectedIon();
-      if (selectedIonParams == null)
-        continue;
-
-      for (ParamGroup pg : selectedIonParams) {
-        List<CVParam> pgCvParams = pg.getCvParam();
-        for (CVParam param : pgCvParams) {
-          String accession = param.getAccession();
-          String value = param.getValue();
-          if ((accession == null) || (value == null))
-            continue;
-          if (accession.equals("MS:1000041")) {
-            int precursorCharge = Integer.parseInt(value);
-            return precursorCharge;
-          }
 
+      for (MzMLCVParam param : parent.selectedIonParams) {
+        String accession = param.accession;
+        String value = param.value;
+        if ((accession == null) || (value == null))
+          continue;
+        if (accession.equals("MS:1000041")) {
+          int precursorCharge = Integer.parseInt(value);
+          return precursorCharge;
         }
-
       }
     }
     return 0;
   }
 
-  private PolarityType extractPolarity(Spectrum spectrum) {
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
+  private PolarityType extractPolarity(MzMLSpectrum spectrum) {
+    for (MzMLCVParam param : spectrum.spectrumParams) {
+      String accession = param.accession;
 
-        if (accession == null)
-          continue;
-        if (accession.equals("MS:1000130"))
-          return PolarityType.POSITIVE;
-        if (accession.equals("MS:1000129"))
-          return PolarityType.NEGATIVE;
-      }
+      if (accession == null)
+        continue;
+      if (accession.equals("MS:1000130"))
+        return PolarityType.POSITIVE;
+      if (accession.equals("MS:1000129"))
+        return PolarityType.NEGATIVE;
     }
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement != null) {
-      List<Scan> scanElements = scanListElement.getScan();
-      if (scanElements != null) {
-        for (Scan scan : scanElements) {
-          cvParams = scan.getCvParam();
-          if (cvParams == null)
-            continue;
-          for (CVParam param : cvParams) {
-            String accession = param.getAccession();
-            if (accession == null)
-              continue;
-            if (accession.equals("MS:1000130"))
-              return PolarityType.POSITIVE;
-            if (accession.equals("MS:1000129"))
-              return PolarityType.NEGATIVE;
-          }
-
-        }
-      }
+    for (MzMLCVParam param : spectrum.scanParams) {
+      String accession = param.accession;
+      if (accession == null)
+        continue;
+      if (accession.equals("MS:1000130"))
+        return PolarityType.POSITIVE;
+      if (accession.equals("MS:1000129"))
+        return PolarityType.NEGATIVE;
     }
     return PolarityType.UNKNOWN;
 
   }
 
-  private String extractScanDefinition(Spectrum spectrum) {
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
+  private String extractScanDefinition(MzMLSpectrum spectrum) {
+    for (MzMLCVParam param : spectrum.spectrumParams) {
+      String accession = param.accession;
 
-        if (accession == null)
-          continue;
-        if (accession.equals("MS:1000512"))
-          return param.getValue();
-      }
+      if (accession == null)
+        continue;
+      if (accession.equals("MS:1000512"))
+        return param.value;
     }
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement != null) {
-      List<Scan> scanElements = scanListElement.getScan();
-      if (scanElements != null) {
-        for (Scan scan : scanElements) {
-          cvParams = scan.getCvParam();
-          if (cvParams == null)
-            continue;
-          for (CVParam param : cvParams) {
-            String accession = param.getAccession();
-            if (accession == null)
-              continue;
-            if (accession.equals("MS:1000512"))
-              return param.getValue();
-          }
-
-        }
-      }
+    for (MzMLCVParam param : spectrum.scanParams) {
+      String accession = param.accession;
+      if (accession == null)
+        continue;
+      if (accession.equals("MS:1000512"))
+        return param.value;
     }
-    return spectrum.getId();
+    return spectrum.id;
   }
 
   public String getTaskDescription() {
     return "Opening file " + file;
   }
 
-  boolean isMsSpectrum(Spectrum spectrum) {
+  private boolean isMsSpectrum(MzMLSpectrum spectrum) {
 
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-        if (accession == null)
-          continue;
+    for (MzMLCVParam param : spectrum.spectrumParams) {
+      String accession = param.accession;
+      if (accession == null)
+        continue;
 
-        if (accession.equals("MS:1000804"))
-          return false;
-      }
+      if (accession.equals("MS:1000804"))
+        return false;
     }
 
     // By default, let's assume unidentified spectra are MS spectra
     return true;
   }
 
+  private static class MzMLCVParam {
+
+    private final String accession, value, unitAccession;
+
+    MzMLCVParam(String accession, String value, String unitAccession) {
+      this.accession = accession;
+      this.value = value;
+      this.unitAccession = unitAccession;
+    }
+  }
+
+  private static class MzMLPrecursor {
+
+    private final String spectrumRef;
+    private boolean hasSelectedIons = false;
+    private final List<MzMLCVParam> selectedIonParams = new ArrayList<>();
+
+    MzMLPrecursor(String spectrumRef) {
+      this.spectrumRef = spectrumRef;
+    }
+  }
+
+  private static class MzMLBinaryArray {
+
+    private final int arrayLength;
+    private final List<MzMLCVParam> params = new ArrayList<>();
+    private String binary;
+
+    MzMLBinaryArray(int arrayLength) {
+      this.arrayLength = arrayLength;
+    }
+
+    boolean hasParam(String accession) {
+      for (MzMLCVParam param : params) {
+        if (accession.equals(param.accession))
+          return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return true if the array has any parameter of the "binary data compression type" term
+     *         (MS:1000572) or of MS-Numpress
+     */
+    boolean hasCompressionParam() {
+      for (MzMLCVParam param : params) {
+        if (param.accession == null)
+          continue;
+        switch (param.accession) {
+          case "MS:1000574":
+          case "MS:1000576":
+          case "MS:1002312":
+          case "MS:1002313":
+          case "MS:1002314":
+          case "MS:1002746":
+          case "MS:1002747":
+          case "MS:1002748":
+            return true;
+          default:
+            break;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * One spectrum of the file. The parameters and the encoded arrays are released as soon as they
+   * are no longer needed, so only the scan data are kept until the end of the file.
+   */
+  private static class MzMLSpectrum {
+
+    private final String id;
+    private final int defaultArrayLength;
+
+    private List<MzMLCVParam> spectrumParams = new ArrayList<>();
+    private List<MzMLCVParam> scanParams = new ArrayList<>();
+    private List<MzMLPrecursor> precursors = new ArrayList<>();
+    private List<MzMLBinaryArray> binaryArrays = new ArrayList<>();
+
+    // Scan data
+    private int msLevel, precursorCharge;
+    private double retentionTime, precursorMz;
+    private PolarityType polarity;
+    private String scanDefinition, parentScanId;
+
+    // Decoded data points, until they are stored
+    private double mzValues[], intensityValues[];
+    private int numOfDataPoints;
+    private MassSpectrumType spectrumType;
+
+    private int storageID;
+
+    MzMLSpectrum(String id, int defaultArrayLength) {
+      this.id = id;
+      this.defaultArrayLength = defaultArrayLength;
+    }
+  }
+
 }
@@ -21,6 +21,7 @@ package io.github.mzmine.modules.io.sqlexport;
 import io.github.mzmine.parameters.Parameter;
 import io.github.mzmine.parameters.impl.SimpleParameterSet;
 import io.github.mzmine.parameters.parametertypes.BooleanParameter;
+import io.github.mzmine.parameters.parametertypes.IntegerParameter;
 import io.github.mzmine.parameters.parametertypes.StringParameter;
 import io.github.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
 
@@ -42,8 +43,16 @@ public class SQLExportParameters extends SimpleParameterSet {
       "Export empty feature list",
       "If selected, an empty feature list will be exported with null values for all column other than the rawdatafile and any constant values.");
 
+  public static final IntegerParameter batchSize = new IntegerParameter("Batch size",
+      "Number of exported rows which are sent to the database at once", 1000, 1, 100000);
+
+  public static final BooleanParameter multiRowInsert = new BooleanParameter("Multi-row inserts",
+      "If selected, each batch is inserted by one INSERT statement with multiple VALUES lists. This is faster for most databases, but the number of values per statement may be limited by the database (e.g., 999 for older SQLite versions).",
+      false);
+
   public SQLExportParameters() {
-    super(new Parameter[] {peakList, connectionString, tableName, exportColumns, emptyExport});
+    super(new Parameter[] {peakList, connectionString, tableName, exportColumns, emptyExport,
+        batchSize, multiRowInsert});
   }
 
 }
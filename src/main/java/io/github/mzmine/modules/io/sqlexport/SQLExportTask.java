@@ -24,6 +24,9 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import io.github.mzmine.datamodel.DataPoint;
 import io.github.mzmine.datamodel.Feature;
 import io.github.mzmine.datamodel.IsotopePattern;
@@ -41,16 +44,37 @@ import io.github.mzmine.util.scans.ScanUtils;
 
 class SQLExportTask extends AbstractTask {
 
+  // data types of the features, which are exported for each raw data file of a row
+  private static final EnumSet<SQLExportDataType> featureDataTypes =
+      EnumSet.of(SQLExportDataType.PEAKCHARGE, SQLExportDataType.PEAKDURATION,
+          SQLExportDataType.PEAKSTATUS, SQLExportDataType.PEAKMZ, SQLExportDataType.PEAKRT,
+          SQLExportDataType.PEAKRT_START, SQLExportDataType.PEAKRT_END,
+          SQLExportDataType.PEAKHEIGHT, SQLExportDataType.PEAKAREA, SQLExportDataType.DATAPOINTS,
+          SQLExportDataType.FWHM, SQLExportDataType.TAILINGFACTOR,
+          SQLExportDataType.ASYMMETRYFACTOR, SQLExportDataType.RAWFILE);
+
   private final PeakList peakList;
   private final String connectionString;
   private final String tableName;
   private final SQLColumnSettings exportColumns;
   private final boolean emptyExport;
+  private final int batchSize;
+  private final boolean multiRowInsert;
+
+  // Value for looping through raw data files
+  private final boolean loopDataFiles;
 
   private int processedRows = 0, totalRows = 0;
 
   private Connection dbConnection;
 
+  // insert statement for one row, and for a full batch of rows (multi-row inserts)
+  private PreparedStatement statement, batchStatement;
+
+  // rows which were not sent to the database yet, with the raw data file of each exported row
+  private final List<PeakListRow> pendingRows = new ArrayList<>();
+  private final List<RawDataFile> pendingDataFiles = new ArrayList<>();
+
   SQLExportTask(ParameterSet parameters) {
 
     this.peakList =
@@ -61,6 +85,15 @@ class SQLExportTask extends AbstractTask {
     this.tableName = parameters.getParameter(SQLExportParameters.tableName).getValue();
     this.exportColumns = parameters.getParameter(SQLExportParameters.exportColumns).getValue();
     this.emptyExport = parameters.getParameter(SQLExportParameters.emptyExport).getValue();
+    this.batchSize = parameters.getParameter(SQLExportParameters.batchSize).getValue();
+    this.multiRowInsert = parameters.getParameter(SQLExportParameters.multiRowInsert).getValue();
+
+    boolean featureColumns = false;
+    for (int i = 0; i < exportColumns.getRowCount(); i++) {
+      if (featureDataTypes.contains(exportColumns.getValueAt(i, 1)))
+        featureColumns = true;
+    }
+    this.loopDataFiles = featureColumns;
 
   }
 
@@ -95,12 +128,17 @@ class SQLExportTask extends AbstractTask {
     PeakListRow rows[] = peakList.getRows().toArray(PeakListRow[]::new);
 
     try {
+      // The whole feature list is exported in one transaction
       dbConnection.setAutoCommit(false);
 
+      statement = dbConnection.prepareStatement(createInsertSQL(1));
+      if (multiRowInsert && batchSize > 1)
+        batchStatement = dbConnection.prepareStatement(createInsertSQL(batchSize));
+
       // If select, an empty row with just the raw data file
       // information will be exported
       if (rows.length < 1 && emptyExport) {
-        exportPeakListRow(null);
+        addRow(null, null);
       } else {
         for (PeakListRow row : rows) {
           if (getStatus() != TaskStatus.PROCESSING)
@@ -109,12 +147,30 @@ class SQLExportTask extends AbstractTask {
           processedRows++;
         }
       }
-      dbConnection.commit();
-      dbConnection.close();
+
+      // Nothing is exported if the task was canceled
+      if (getStatus() == TaskStatus.PROCESSING) {
+        sendPendingRows();
+        dbConnection.commit();
+      } else {
+        dbConnection.rollback();
+      }
     } catch (SQLException e) {
+      try {
+        dbConnection.rollback();
+      } catch (SQLException e2) {
+        // the connection may be broken, the error is reported below
+      }
       setStatus(TaskStatus.ERROR);
       setErrorMessage("Error running SQL query: " + e.toString());
       return;
+    } finally {
+      try {
+        // closes the statements as well
+        dbConnection.close();
+      } catch (SQLException e) {
+        // nothing to do, the export is finished
+      }
     }
 
     if (getStatus() == TaskStatus.PROCESSING)
@@ -122,16 +178,10 @@ class SQLExportTask extends AbstractTask {
 
   }
 
-  private void exportPeakListRow(PeakListRow row) throws SQLException {
-
-    // Cancel?
-    if (isCanceled()) {
-      return;
-    }
-
-    // Value for looping through raw data files
-    boolean loopDataFiles = false;
-
+  /**
+   * @return INSERT statement for the given number of rows with one parameter per column
+   */
+  private String createInsertSQL(int numOfRows) {
     StringBuilder sql = new StringBuilder();
     sql.append("INSERT INTO ");
     sql.append(tableName);
@@ -141,172 +191,224 @@ class SQLExportTask extends AbstractTask {
       if (i < exportColumns.getRowCount() - 1)
         sql.append(",");
     }
-    sql.append(" ) VALUES (");
-    for (int i = 0; i < exportColumns.getRowCount(); i++) {
-      sql.append("?");
-      if (i < exportColumns.getRowCount() - 1)
+    sql.append(" ) VALUES ");
+    for (int r = 0; r < numOfRows; r++) {
+      if (r > 0)
         sql.append(",");
+      sql.append("(");
+      for (int i = 0; i < exportColumns.getRowCount(); i++) {
+        sql.append("?");
+        if (i < exportColumns.getRowCount() - 1)
+          sql.append(",");
+      }
+      sql.append(")");
+    }
+    return sql.toString();
+  }
+
+  private void exportPeakListRow(PeakListRow row) throws SQLException {
+
+    // Cancel?
+    if (isCanceled()) {
+      return;
+    }
+
+    for (RawDataFile rawDataFile : row.getRawDataFiles()) {
+      addRow(row, rawDataFile);
+
+      // If no data file elements are selected then don't loop through
+      // all
+      // data files in feature list
+      if (!loopDataFiles) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Adds a row to the current batch, and sends the batch to the database when it is full
+   */
+  private void addRow(PeakListRow row, RawDataFile rawDataFile) throws SQLException {
+    pendingRows.add(row);
+    pendingDataFiles.add(rawDataFile);
+    if (pendingRows.size() >= batchSize)
+      sendPendingRows();
+  }
+
+  /**
+   * Sends the pending rows to the database, either by one multi-row INSERT or as a batch of single
+   * row INSERTs
+   */
+  private void sendPendingRows() throws SQLException {
+    final int numOfRows = pendingRows.size();
+    if (numOfRows == 0)
+      return;
+
+    if (multiRowInsert && numOfRows > 1) {
+      // the last batch of the feature list may be smaller
+      PreparedStatement multiRowStatement = (numOfRows == batchSize) ? batchStatement
+          : dbConnection.prepareStatement(createInsertSQL(numOfRows));
+      for (int r = 0; r < numOfRows; r++) {
+        setValues(multiRowStatement, r * exportColumns.getRowCount(), pendingRows.get(r),
+            pendingDataFiles.get(r));
+      }
+      multiRowStatement.executeUpdate();
+      if (multiRowStatement != batchStatement)
+        multiRowStatement.close();
+    } else {
+      for (int r = 0; r < numOfRows; r++) {
+        setValues(statement, 0, pendingRows.get(r), pendingDataFiles.get(r));
+        statement.addBatch();
+      }
+      statement.executeBatch();
     }
-    sql.append(")");
 
-    PreparedStatement statement = dbConnection.prepareStatement(sql.toString());
+    pendingRows.clear();
+    pendingDataFiles.clear();
+  }
+
+  /**
+   * Sets the values of one exported row
+   * 
+   * @param offset number of parameters of the statement before this row
+   * @param row the feature list row, or null to export an empty row
+   * @param rawDataFile the raw data file of the exported features
+   */
+  private void setValues(PreparedStatement statement, int offset, PeakListRow row,
+      RawDataFile rawDataFile) throws SQLException {
 
     if (row == null) {
       for (int i = 0; i < exportColumns.getRowCount(); i++) {
         SQLExportDataType dataType = (SQLExportDataType) exportColumns.getValueAt(i, 1);
         String dataValue = (String) exportColumns.getValueAt(i, 2);
+        final int index = offset + i + 1;
         switch (dataType) {
           case CONSTANT:
-            statement.setString(i + 1, dataValue);
+            statement.setString(index, dataValue);
             break;
           case RAWFILE:
             RawDataFile rawdatafiles[] = peakList.getRawDataFiles().toArray(RawDataFile[]::new);
-            statement.setString(i + 1, rawdatafiles[0].getName());
+            statement.setString(index, rawdatafiles[0].getName());
             break;
           default:
-            statement.setString(i + 1, null);
+            statement.setString(index, null);
             break;
         }
       }
-      statement.executeUpdate();
+      return;
     }
 
-    else {
-      for (RawDataFile rawDataFile : row.getRawDataFiles()) {
-        Feature peak = row.getPeak(rawDataFile);
-
-        for (int i = 0; i < exportColumns.getRowCount(); i++) {
-          SQLExportDataType dataType = (SQLExportDataType) exportColumns.getValueAt(i, 1);
-          String dataValue = (String) exportColumns.getValueAt(i, 2);
-          switch (dataType) {
-            case CONSTANT:
-              statement.setString(i + 1, dataValue);
-              break;
-            case MZ:
-              statement.setDouble(i + 1, row.getAverageMZ());
-              break;
-            case RT:
-              statement.setDouble(i + 1, row.getAverageRT());
-              break;
-            case ID:
-              statement.setInt(i + 1, row.getID());
-              break;
-            case PEAKCHARGE:
-              statement.setDouble(i + 1, peak.getCharge());
-              loopDataFiles = true;
-              break;
-            case PEAKDURATION:
-              statement.setDouble(i + 1, RangeUtils.rangeLength(peak.getRawDataPointsRTRange()));
-              loopDataFiles = true;
-              break;
-            case PEAKSTATUS:
-              statement.setString(i + 1, peak.getFeatureStatus().name());
-              loopDataFiles = true;
-              break;
-            case PEAKMZ:
-              statement.setDouble(i + 1, peak.getMZ());
-              loopDataFiles = true;
-              break;
-            case PEAKRT:
-              statement.setDouble(i + 1, peak.getRT());
-              loopDataFiles = true;
-              break;
-            case PEAKRT_START:
-              statement.setDouble(i + 1, peak.getRawDataPointsRTRange().lowerEndpoint());
-              loopDataFiles = true;
-              break;
-            case PEAKRT_END:
-              statement.setDouble(i + 1, peak.getRawDataPointsRTRange().upperEndpoint());
-              loopDataFiles = true;
-              break;
-            case PEAKHEIGHT:
-              statement.setDouble(i + 1, peak.getHeight());
-              loopDataFiles = true;
-              break;
-            case PEAKAREA:
-              statement.setDouble(i + 1, peak.getArea());
-              loopDataFiles = true;
-              break;
-            case DATAPOINTS:
-              statement.setDouble(i + 1, peak.getScanNumbers().length);
-              loopDataFiles = true;
-              break;
-            case FWHM:
-              statement.setDouble(i + 1, peak.getFWHM());
-              loopDataFiles = true;
-              break;
-            case TAILINGFACTOR:
-              statement.setDouble(i + 1, peak.getTailingFactor());
-              loopDataFiles = true;
-              break;
-            case ASYMMETRYFACTOR:
-              statement.setDouble(i + 1, peak.getAsymmetryFactor());
-              loopDataFiles = true;
-              break;
-            case RAWFILE:
-              statement.setString(i + 1, rawDataFile.getName());
-              loopDataFiles = true;
-              break;
-            case HEIGHT:
-              statement.setDouble(i + 1, row.getAverageHeight());
-              break;
-            case AREA:
-              statement.setDouble(i + 1, row.getAverageArea());
-              break;
-            case COMMENT:
-              statement.setString(i + 1, row.getComment());
-              break;
-            case IDENTITY:
-              PeakIdentity id = row.getPreferredPeakIdentity();
-              if (id != null) {
-                statement.setString(i + 1, id.getName());
-              } else {
-                statement.setNull(i + 1, Types.VARCHAR);
-              }
-              break;
-            case ISOTOPEPATTERN:
-              IsotopePattern isotopes = row.getBestIsotopePattern();
-              if (isotopes == null) {
-                statement.setNull(i + 1, Types.BLOB);
-                break;
-              }
-              DataPoint dataPoints[] = isotopes.getDataPoints();
-              byte bytes[] = ScanUtils.encodeDataPointsToBytes(dataPoints);
-              ByteArrayInputStream is = new ByteArrayInputStream(bytes);
-              statement.setBlob(i + 1, is);
-              break;
-            case MSMS:
-              int msmsScanNum = row.getBestPeak().getMostIntenseFragmentScanNumber();
-              // Check if there is any MS/MS scan
-              if (msmsScanNum <= 0) {
-                statement.setNull(i + 1, Types.BLOB);
-                break;
-              }
-              RawDataFile dataFile = row.getBestPeak().getDataFile();
-              Scan msmsScan = dataFile.getScan(msmsScanNum);
-              MassList msmsMassList = msmsScan.getMassList(dataValue);
-              // Check if there is a masslist for the scan
-              if (msmsMassList == null) {
-                statement.setNull(i + 1, Types.BLOB);
-                break;
-              }
-              dataPoints = msmsMassList.getDataPoints();
-              bytes = ScanUtils.encodeDataPointsToBytes(dataPoints);
-              is = new ByteArrayInputStream(bytes);
-              statement.setBlob(i + 1, is);
-              break;
-            default:
-              break;
-          }
-        }
-        statement.executeUpdate();
+    Feature peak = row.getPeak(rawDataFile);
 
-        // If no data file elements are selected then don't loop through
-        // all
-        // data files in feature list
-        if (!loopDataFiles) {
+    for (int i = 0; i < exportColumns.getRowCount(); i++) {
+      SQLExportDataType dataType = (SQLExportDataType) exportColumns.getValueAt(i, 1);
+      String dataValue = (String) exportColumns.getValueAt(i, 2);
+      final int index = offset + i + 1;
+      switch (dataType) {
+        case CONSTANT:
+          statement.setString(index, dataValue);
+          break;
+        case MZ:
+          statement.setDouble(index, row.getAverageMZ());
+          break;
+        case RT:
+          statement.setDouble(index, row.getAverageRT());
+          break;
+        case ID:
+          statement.setInt(index, row.getID());
+          break;
+        case PEAKCHARGE:
+          statement.setDouble(index, peak.getCharge());
+          break;
+        case PEAKDURATION:
+          statement.setDouble(index, RangeUtils.rangeLength(peak.getRawDataPointsRTRange()));
+          break;
+        case PEAKSTATUS:
+          statement.setString(index, peak.getFeatureStatus().name());
+          break;
+        case PEAKMZ:
+          statement.setDouble(index, peak.getMZ());
+          break;
+        case PEAKRT:
+          statement.setDouble(index, peak.getRT());
+          break;
+        case PEAKRT_START:
+          statement.setDouble(index, peak.getRawDataPointsRTRange().lowerEndpoint());
+          break;
+        case PEAKRT_END:
+          statement.setDouble(index, peak.getRawDataPointsRTRange().upperEndpoint());
+          break;
+        case PEAKHEIGHT:
+          statement.setDouble(index, peak.getHeight());
+          break;
+        case PEAKAREA:
+          statement.setDouble(index, peak.getArea());
+          break;
+        case DATAPOINTS:
+          statement.setDouble(index, peak.getScanNumbers().length);
+          break;
+        case FWHM:
+          statement.setDouble(index, peak.getFWHM());
+          break;
+        case TAILINGFACTOR:
+          statement.setDouble(index, peak.getTailingFactor());
+          break;
+        case ASYMMETRYFACTOR:
+          statement.setDouble(index, peak.getAsymmetryFactor());
+          break;
+        case RAWFILE:
+          statement.setString(index, rawDataFile.getName());
+          break;
+        case HEIGHT:
+          statement.setDouble(index, row.getAverageHeight());
+          break;
+        case AREA:
+          statement.setDouble(index, row.getAverageArea());
+          break;
+        case COMMENT:
+          statement.setString(index, row.getComment());
+          break;
+        case IDENTITY:
+          PeakIdentity id = row.getPreferredPeakIdentity();
+          if (id != null) {
+            statement.setString(index, id.getName());
+          } else {
+            statement.setNull(index, Types.VARCHAR);
+          }
+          break;
+        case ISOTOPEPATTERN:
+          IsotopePattern isotopes = row.getBestIsotopePattern();
+          if (isotopes == null) {
+            statement.setNull(index, Types.BLOB);
+            break;
+          }
+          DataPoint dataPoints[] = isotopes.getDataPoints();
+          byte bytes[] = ScanUtils.encodeDataPointsToBytes(dataPoints);
+          ByteArrayInputStream is = new ByteArrayInputStream(bytes);
+          statement.setBlob(index, is);
+          break;
+        case MSMS:
+          int msmsScanNum = row.getBestPeak().getMostIntenseFragmentScanNumber();
+          // Check if there is any MS/MS scan
+          if (msmsScanNum <= 0) {
+            statement.setNull(index, Types.BLOB);
+            break;
+          }
+          RawDataFile dataFile = row.getBestPeak().getDataFile();
+          Scan msmsScan = dataFile.getScan(msmsScanNum);
+          MassList msmsMassList = msmsScan.getMassList(dataValue);
+          // Check if there is a masslist for the scan
+          if (msmsMassList == null) {
+            statement.setNull(index, Types.BLOB);
+            break;
+          }
+          dataPoints = msmsMassList.getDataPoints();
+          bytes = ScanUtils.encodeDataPointsToBytes(dataPoints);
+          is = new ByteArrayInputStream(bytes);
+          statement.setBlob(index, is);
+          break;
+        default:
           break;
-        }
       }
     }
   }
@@ -23,16 +23,20 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.jfree.data.DomainOrder;
 import org.jfree.data.xy.AbstractXYZDataset;
 import com.google.common.collect.Range;
 import com.google.common.primitives.Ints;
 import io.github.mzmine.datamodel.DataPoint;
 import io.github.mzmine.datamodel.RawDataFile;
 import io.github.mzmine.datamodel.Scan;
+import io.github.mzmine.datamodel.impl.SimpleDataPoint;
 import io.github.mzmine.main.MZmineCore;
+import io.github.mzmine.project.impl.RawDataFileImpl;
 import io.github.mzmine.taskcontrol.Task;
 import io.github.mzmine.taskcontrol.TaskPriority;
 import io.github.mzmine.taskcontrol.TaskStatus;
+import io.github.mzmine.util.scans.ExtractedIonIndex;
 import io.github.mzmine.util.scans.ScanUtils;
 import javafx.application.Platform;
 
@@ -198,6 +202,16 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
     return rtValues[item];
   }
 
+  /**
+   * Scans are sorted by retention time, so the plot only needs to visit the items of the visible
+   * retention time range.
+   */
+  @Override
+  public DomainOrder getDomainOrder() {
+
+    return DomainOrder.ASCENDING;
+  }
+
   @Override
   public Number getY(final int series, final int item) {
 
@@ -321,16 +335,45 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
     // Determine plot type (now done from constructor).
     final TICPlotType plotType = this.plotType;
 
+    // Extracted ion chromatograms are read from the m/z index of the file, if there is one
+    final ExtractedIonIndex xicIndex = ((totalScans > 0) && (dataFile instanceof RawDataFileImpl))
+        ? ((RawDataFileImpl) dataFile).getExtractedIonIndex(scans[0].getMSLevel())
+        : null;
+    double xicBasePeakMZ[] = null, xicBasePeakIntensity[] = null, xicTIC[] = null;
+
     // Process each scan.
     for (int index = 0; status != TaskStatus.CANCELED && index < totalScans; index++) {
 
       // Current scan.
       final Scan scan = scans[index];
+      final boolean wholeScan = mzRange.encloses(scan.getDataPointMZRange());
+
+      // Position of the scan in the m/z index, if it is indexed
+      int xicScanIndex = -1;
+      if (!wholeScan && (xicIndex != null)) {
+        xicScanIndex = xicIndex.getScanIndex(scan.getScanNumber());
+        if ((xicScanIndex >= 0) && (xicIndex.getScans()[xicScanIndex] != scan))
+          xicScanIndex = -1;
+      }
+      if ((xicScanIndex >= 0) && (xicTIC == null)) {
+        xicBasePeakMZ = new double[xicIndex.getNumberOfScans()];
+        xicBasePeakIntensity = new double[xicIndex.getNumberOfScans()];
+        xicTIC = new double[xicIndex.getNumberOfScans()];
+        xicIndex.findBasePeaks(mzRange, xicBasePeakMZ, xicBasePeakIntensity);
+        xicIndex.calculateTICs(mzRange, xicTIC);
+      }
 
       // Determine base peak value.
-      final DataPoint basePeak =
-          mzRange.encloses(scan.getDataPointMZRange()) ? scan.getHighestDataPoint()
-              : ScanUtils.findBasePeak(scan, mzRange);
+      final DataPoint basePeak;
+      if (wholeScan) {
+        basePeak = scan.getHighestDataPoint();
+      } else if (xicScanIndex >= 0) {
+        basePeak = Double.isNaN(xicBasePeakMZ[xicScanIndex]) ? null
+            : new SimpleDataPoint(xicBasePeakMZ[xicScanIndex],
+                xicBasePeakIntensity[xicScanIndex]);
+      } else {
+        basePeak = ScanUtils.findBasePeak(scan, mzRange);
+      }
       if (basePeak != null) {
 
         basePeakValues[index] = basePeak.getMZ();
@@ -341,8 +384,12 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
       if (plotType == TICPlotType.TIC) {
 
         // Total ion count.
-        intensity = mzRange.encloses(scan.getDataPointMZRange()) ? scan.getTIC()
-            : ScanUtils.calculateTIC(scan, mzRange);
+        if (wholeScan)
+          intensity = scan.getTIC();
+        else if (xicScanIndex >= 0)
+          intensity = xicTIC[xicScanIndex];
+        else
+          intensity = ScanUtils.calculateTIC(scan, mzRange);
 
       } else if (plotType == TICPlotType.BASEPEAK && basePeak != null) {
 
@@ -22,6 +22,7 @@ import java.awt.AlphaComposite;
 import java.awt.Graphics2D;
 import java.awt.Shape;
 import java.awt.geom.Rectangle2D;
+import java.util.BitSet;
 
 import org.jfree.chart.axis.ValueAxis;
 import org.jfree.chart.entity.EntityCollection;
@@ -32,6 +33,12 @@ import org.jfree.chart.renderer.xy.XYItemRendererState;
 import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
 import org.jfree.data.xy.XYDataset;
 
+/**
+ * Renderer of chromatograms. Series with many more items than pixels are decimated to the pixel
+ * width of the plot: of the items falling into one pixel column, only the first, last, lowest and
+ * highest are drawn. This draws the same line as all items, but keeps redrawing fast when many
+ * long chromatograms are overlaid.
+ */
 public class TICPlotRenderer extends XYLineAndShapeRenderer {
 
   /**
@@ -40,6 +47,10 @@ public class TICPlotRenderer extends XYLineAndShapeRenderer {
   private static final long serialVersionUID = 1L;
   private double transparency = 1.0f;
 
+  // Items to draw in each series of the data set being drawn, or null to draw all items. Chosen
+  // again in initialise() every time the plot is drawn.
+  private transient BitSet drawnItems[];
+
   public TICPlotRenderer() {
     super(true, false);
     setDrawSeriesLineAsPath(true);
@@ -50,10 +61,96 @@ public class TICPlotRenderer extends XYLineAndShapeRenderer {
     return (AlphaComposite.getInstance(type, (float) alpha));
   }
 
+  @Override
+  public XYItemRendererState initialise(Graphics2D g2, Rectangle2D dataArea, XYPlot plot,
+      XYDataset dataset, PlotRenderingInfo info) {
+
+    drawnItems = null;
+    final int datasetIndex = plot.indexOf(dataset);
+    if (datasetIndex >= 0) {
+      final ValueAxis domainAxis = plot.getDomainAxisForDataset(datasetIndex);
+      final int pixels = (int) Math.ceil(dataArea.getWidth());
+      drawnItems = new BitSet[dataset.getSeriesCount()];
+      for (int series = 0; series < drawnItems.length; series++) {
+        drawnItems[series] = decimate(dataset, series, domainAxis.getLowerBound(),
+            domainAxis.getUpperBound(), pixels);
+      }
+    }
+
+    return super.initialise(g2, dataArea, plot, dataset, info);
+  }
+
+  /**
+   * Chooses the first, last, lowest and highest item of every pixel column. Items left and right
+   * of the visible range are treated as two more columns, so the lines leaving the plot keep their
+   * direction.
+   *
+   * @return Items to draw, or null if the series does not have more items than pixels
+   */
+  private static BitSet decimate(XYDataset dataset, int series, double lowerBound,
+      double upperBound, int pixels) {
+
+    final int itemCount = dataset.getItemCount(series);
+    if ((pixels <= 0) || (itemCount <= 4 * pixels) || !(upperBound > lowerBound))
+      return null;
+
+    final BitSet items = new BitSet(itemCount);
+    final double pixelWidth = (upperBound - lowerBound) / pixels;
+    int column = Integer.MIN_VALUE, lowestItem = -1, highestItem = -1;
+    double lowest = 0, highest = 0;
+    for (int item = 0; item < itemCount; item++) {
+
+      final double x = dataset.getXValue(series, item);
+      final int itemColumn =
+          (int) Math.max(-1, Math.min(pixels, Math.floor((x - lowerBound) / pixelWidth)));
+      final double y = dataset.getYValue(series, item);
+
+      if (itemColumn != column) {
+        // Last item of the previous column and first item of this one
+        if (item > 0)
+          items.set(item - 1);
+        items.set(item);
+        if (lowestItem >= 0) {
+          items.set(lowestItem);
+          items.set(highestItem);
+        }
+        column = itemColumn;
+        lowestItem = item;
+        highestItem = item;
+        lowest = y;
+        highest = y;
+        continue;
+      }
+
+      if (y < lowest) {
+        lowest = y;
+        lowestItem = item;
+      }
+      if (y > highest) {
+        highest = y;
+        highestItem = item;
+      }
+    }
+    items.set(lowestItem);
+    items.set(highestItem);
+    items.set(itemCount - 1);
+
+    return items;
+  }
+
+  @Override
   public void drawItem(Graphics2D g2, XYItemRendererState state, Rectangle2D dataArea,
       PlotRenderingInfo info, XYPlot plot, ValueAxis domainAxis, ValueAxis rangeAxis,
       XYDataset dataset, int series, int item, CrosshairState crosshairState, int pass) {
 
+    // Skip decimated items, but always draw the first and last item, which start and finish the
+    // path of the series. Items added to the data set after the decimation are all drawn.
+    final BitSet items = (drawnItems != null) && (series < drawnItems.length) ? drawnItems[series]
+        : null;
+    if ((items != null) && (item < items.length()) && !items.get(item)
+        && (item != state.getFirstItemIndex()) && (item != state.getLastItemIndex()))
+      return;
+
     g2.setComposite(makeComposite(transparency));
 
     super.drawItem(g2, state, dataArea, info, plot, domainAxis, rangeAxis, dataset, series, item,
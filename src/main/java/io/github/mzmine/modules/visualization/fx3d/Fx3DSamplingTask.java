@@ -30,9 +30,11 @@ import io.github.mzmine.datamodel.Scan;
 import io.github.mzmine.gui.Desktop;
 import io.github.mzmine.main.MZmineCore;
 import io.github.mzmine.parameters.parametertypes.selectors.ScanSelection;
+import io.github.mzmine.project.impl.RawDataFileImpl;
 import io.github.mzmine.taskcontrol.AbstractTask;
 import io.github.mzmine.taskcontrol.TaskStatus;
 import io.github.mzmine.util.ExceptionUtils;
+import io.github.mzmine.util.scans.IntensityPyramid;
 import io.github.mzmine.util.scans.ScanUtils;
 import io.github.mzmine.util.scans.ScanUtils.BinningType;
 import javafx.application.Platform;
@@ -112,8 +114,20 @@ class Fx3DSamplingTask extends AbstractTask {
       float[][] intensityValues = new float[1][mzResolution * rtResolution];
       boolean rtDataSet[] = new boolean[rtResolution];
 
-      // load scans
-      for (int scanIndex = 0; scanIndex < scans.length; scanIndex++) {
+      // Sample the intensity pyramid of the file instead of the scans, if it has cells small
+      // enough for the sampling grid
+      final IntensityPyramid pyramid = findIntensityPyramid();
+      if (pyramid != null) {
+        final double mzStep = (mzRange.upperEndpoint() - mzRange.lowerEndpoint()) / mzResolution;
+        final int level = pyramid.getLevel(rtStep, mzStep);
+        if (level >= 0) {
+          samplePyramid(pyramid, level, rtStep, mzStep, intensityValues[0], rtDataSet);
+          retrievedScans = scans.length;
+        }
+      }
+
+      // load scans, unless they were sampled from the pyramid
+      for (int scanIndex = retrievedScans; scanIndex < scans.length; scanIndex++) {
 
         if (isCanceled())
           return;
@@ -227,4 +241,34 @@ class Fx3DSamplingTask extends AbstractTask {
 
   }
 
+  /**
+   * Returns the intensity pyramid of the raw data file if it can be used for the selected scans
+   * and there are more of them than RT bins, otherwise null. Builds the pyramid if the file does
+   * not have it yet.
+   */
+  private IntensityPyramid findIntensityPyramid() {
+    if ((scans.length <= rtResolution) || !(dataFile instanceof RawDataFileImpl))
+      return null;
+    return ((RawDataFileImpl) dataFile).getIntensityPyramid(scans);
+  }
+
+  private void samplePyramid(IntensityPyramid pyramid, int level, double rtStep, double mzStep,
+      float intensityValues[], boolean rtDataSet[]) {
+    for (int rtIndex = 0; rtIndex < rtResolution; rtIndex++) {
+      final double rtMin = rtRange.lowerEndpoint() + rtIndex * rtStep;
+      final Range<Double> rtBin = Range.closed(rtMin, rtMin + rtStep);
+      for (int mzIndex = 0; mzIndex < mzResolution; mzIndex++) {
+        final double mzMin = mzRange.lowerEndpoint() + mzIndex * mzStep;
+        final double intensity =
+            pyramid.getMaxIntensity(level, rtBin, Range.closed(mzMin, mzMin + mzStep));
+        if (Double.isNaN(intensity))
+          break;
+        rtDataSet[rtIndex] = true;
+        intensityValues[(rtResolution * mzIndex) + rtIndex] = (float) intensity;
+        if (intensity > maxBinnedIntensity)
+          maxBinnedIntensity = intensity;
+      }
+    }
+  }
+
 }
@@ -28,12 +28,14 @@ import io.github.mzmine.datamodel.RawDataFile;
 import io.github.mzmine.datamodel.Scan;
 import io.github.mzmine.datamodel.impl.SimpleDataPoint;
 import io.github.mzmine.main.MZmineCore;
+import io.github.mzmine.project.impl.RawDataFileImpl;
 import io.github.mzmine.taskcontrol.Task;
 import io.github.mzmine.taskcontrol.TaskPriority;
 import io.github.mzmine.taskcontrol.TaskStatus;
 import io.github.mzmine.util.DataPointSorter;
 import io.github.mzmine.util.SortingDirection;
 import io.github.mzmine.util.SortingProperty;
+import io.github.mzmine.util.scans.IntensityPyramid;
 import javafx.application.Platform;
 
 class TwoDDataSet extends AbstractXYDataset implements Task {
@@ -46,6 +48,10 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
   private double basePeaks[];
   private SoftReference<DataPoint[]> dataPointMatrix[];
 
+  // Intensity pyramid of the file, if the plotted scans are a retention time range of it. When it
+  // is set, the data points are only read for regions smaller than the cells of the pyramid.
+  private volatile IntensityPyramid pyramid;
+
   private final Range<Double> totalRTRange, totalMZRange;
   private int totalScans, processedScans;
   private final Scan scans[];
@@ -81,6 +87,8 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
     status = TaskStatus.PROCESSING;
 
+    final IntensityPyramid filePyramid = findIntensityPyramid();
+
     for (int index = 0; index < totalScans; index++) {
 
       // Cancel?
@@ -91,17 +99,31 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
       DataPoint scanBasePeak = scan.getHighestDataPoint();
       retentionTimes[index] = scan.getRetentionTime();
       basePeaks[index] = (scanBasePeak == null ? 0 : scanBasePeak.getIntensity());
-      DataPoint scanDataPoints[] = scan.getDataPoints();
-      dataPointMatrix[index] = new SoftReference<DataPoint[]>(scanDataPoints);
+      if (filePyramid == null) {
+        DataPoint scanDataPoints[] = scan.getDataPoints();
+        dataPointMatrix[index] = new SoftReference<DataPoint[]>(scanDataPoints);
+      }
       processedScans++;
     }
 
+    pyramid = filePyramid;
+
     Platform.runLater(() -> fireDatasetChanged());
 
     status = TaskStatus.FINISHED;
 
   }
 
+  /**
+   * Returns the intensity pyramid of the raw data file if it can be used for the plotted scans,
+   * otherwise null. Builds the pyramid if the file does not have it yet.
+   */
+  private IntensityPyramid findIntensityPyramid() {
+    if (!(rawDataFile instanceof RawDataFileImpl))
+      return null;
+    return ((RawDataFileImpl) rawDataFile).getIntensityPyramid(scans);
+  }
+
   /**
    * @see org.jfree.data.general.AbstractSeriesDataset#getSeriesCount()
    */
@@ -150,6 +172,24 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
   double upperEndpointIntensity(Range<Double> rtRange, Range<Double> mzRange, PlotMode plotMode) {
 
+    // Use the pyramid, unless the region is smaller than its finest cells
+    final IntensityPyramid pyramid = this.pyramid;
+    if (pyramid != null) {
+      // The pyramid may contain further scans outside of the plotted ones
+      final Range<Double> scanRTRange =
+          Range.closed(retentionTimes[0], retentionTimes[totalScans - 1]);
+      if (!rtRange.isConnected(scanRTRange))
+        return 0;
+      rtRange = rtRange.intersection(scanRTRange);
+      final int level = pyramid.getLevel(rtRange.upperEndpoint() - rtRange.lowerEndpoint(),
+          mzRange.upperEndpoint() - mzRange.lowerEndpoint());
+      if (level >= 0) {
+        final double pyramidIntensity = pyramid.getMaxIntensity(level, rtRange, mzRange);
+        if (!Double.isNaN(pyramidIntensity))
+          return pyramidIntensity;
+      }
+    }
+
     double maxIntensity = 0;
 
     double searchRetentionTimes[] = retentionTimes;
@@ -241,7 +281,7 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
     for (int scanIndex = startScanIndex; ((scanIndex < searchRetentionTimes.length)
         && (searchRetentionTimes[scanIndex] <= rtRange.upperEndpoint())); scanIndex++) {
       // get the list of data points
-      DataPoint dataPoints[] = dataPointMatrix[scanIndex].get();
+      DataPoint dataPoints[] = getDataPoints(scanIndex);
       // Binary search for the mz values in the range you want
 
       DataPoint searchMZ = new SimpleDataPoint(mzRange.lowerEndpoint(), 0);
@@ -281,13 +321,19 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
   private double upperEndpointIntensity(int dataPointMatrixIndex, Range<Double> mzRange,
       PlotMode plotMode) {
-    DataPoint dataPoints[] = dataPointMatrix[dataPointMatrixIndex].get();
+    DataPoint dataPoints[] = getDataPoints(dataPointMatrixIndex);
+    return upperEndpointIntensity(dataPoints, mzRange, plotMode);
+  }
+
+  private DataPoint[] getDataPoints(int dataPointMatrixIndex) {
+    SoftReference<DataPoint[]> reference = dataPointMatrix[dataPointMatrixIndex];
+    DataPoint dataPoints[] = (reference == null) ? null : reference.get();
     if (dataPoints == null) {
       Scan scan = scans[dataPointMatrixIndex];
       dataPoints = scan.getDataPoints();
       dataPointMatrix[dataPointMatrixIndex] = new SoftReference<DataPoint[]>(dataPoints);
     }
-    return upperEndpointIntensity(dataPoints, mzRange, plotMode);
+    return dataPoints;
   }
 
   private double upperEndpointIntensity(DataPoint dataPoints[], Range<Double> mzRange,
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package io.github.mzmine.project.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of decoded data points (scans and mass lists) of one RawDataFileImpl, keyed by storage ID.
+ * The size of the cache is limited in bytes, not in number of entries. To keep concurrent readers
+ * from contending on a single lock, the cache is split into segments by storage ID, each holding
+ * an equal share of the size limit and evicting its least recently used entries independently.
+ *
+ * Entries keep the m/z and intensity values in primitive arrays. These arrays are never handed out
+ * to callers; get() copies the values into the caller's arrays.
+ */
+public class DataPointsCache {
+
+  private static final int NUM_OF_SEGMENTS = 16;
+
+  // Approximate heap size of one entry without the values (map entry, arrays, boxed key)
+  private static final long ENTRY_OVERHEAD = 96;
+
+  private final long maxSizeInBytes;
+  private final Segment segments[];
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maxSizeInBytes maximum size of all cached entries, 0 disables the cache
+   */
+  public DataPointsCache(long maxSizeInBytes) {
+    this.maxSizeInBytes = Math.max(0, maxSizeInBytes);
+    this.segments = new Segment[NUM_OF_SEGMENTS];
+    for (int i = 0; i < NUM_OF_SEGMENTS; i++) {
+      segments[i] = new Segment(this.maxSizeInBytes / NUM_OF_SEGMENTS);
+    }
+  }
+
+  public boolean isEnabled() {
+    return maxSizeInBytes > 0;
+  }
+
+  /**
+   * Copies the cached values of the given storage ID into the given arrays. Either array may be
+   * null.
+   *
+   * @return true if the values were found in the cache
+   */
+  boolean get(int storageID, double mzValues[], double intensityValues[]) {
+    if (!isEnabled())
+      return false;
+
+    final Entry entry = getSegment(storageID).get(storageID);
+    if (entry == null) {
+      misses.increment();
+      return false;
+    }
+
+    hits.increment();
+    if (mzValues != null)
+      System.arraycopy(entry.mzValues, 0, mzValues, 0, entry.mzValues.length);
+    if (intensityValues != null)
+      System.arraycopy(entry.intensityValues, 0, intensityValues, 0,
+          entry.intensityValues.length);
+    return true;
+  }
+
+  /**
+   * Stores the values of the given storage ID. The cache keeps the given arrays, so the caller must
+   * not modify them afterwards.
+   */
+  void put(int storageID, double mzValues[], double intensityValues[]) {
+    if (!isEnabled())
+      return;
+    getSegment(storageID).put(storageID, new Entry(mzValues, intensityValues));
+  }
+
+  /**
+   * Removes the values of the given storage ID, e.g. when the stored data points were deleted.
+   */
+  void remove(int storageID) {
+    if (!isEnabled())
+      return;
+    getSegment(storageID).remove(storageID);
+  }
+
+  public void clear() {
+    for (Segment segment : segments)
+      segment.clear();
+  }
+
+  public long getMaxSizeInBytes() {
+    return maxSizeInBytes;
+  }
+
+  public long getSizeInBytes() {
+    long size = 0;
+    for (Segment segment : segments)
+      size += segment.getSizeInBytes();
+    return size;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return Ratio of cache hits to all cache lookups, or 0 if there were no lookups yet
+   */
+  public double getHitRatio() {
+    final long hitCount = getHitCount();
+    final long requests = hitCount + getMissCount();
+    return requests == 0 ? 0.0 : (double) hitCount / requests;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d hits, %d misses (%.1f%% hit ratio), %d evictions, %d/%d MB used",
+        getHitCount(), getMissCount(), getHitRatio() * 100.0, getEvictionCount(),
+        getSizeInBytes() >> 20, maxSizeInBytes >> 20);
+  }
+
+  private Segment getSegment(int storageID) {
+    return segments[Math.floorMod(storageID, NUM_OF_SEGMENTS)];
+  }
+
+  private static class Entry {
+
+    private final double mzValues[], intensityValues[];
+    private final long sizeInBytes;
+
+    Entry(double mzValues[], double intensityValues[]) {
+      this.mzValues = mzValues;
+      this.intensityValues = intensityValues;
+      this.sizeInBytes = ENTRY_OVERHEAD + (mzValues.length + intensityValues.length) * 8L;
+    }
+  }
+
+  /**
+   * One segment of the cache, an access-ordered LinkedHashMap guarded by the segment's lock.
+   */
+  private class Segment {
+
+    private final long maxSizeInBytes;
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeInBytes = 0;
+
+    Segment(long maxSizeInBytes) {
+      this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    synchronized Entry get(int storageID) {
+      return entries.get(storageID);
+    }
+
+    synchronized void put(int storageID, Entry entry) {
+
+      // Entries larger than the whole segment would only evict everything else
+      if (entry.sizeInBytes > maxSizeInBytes)
+        return;
+
+      final Entry previous = entries.put(storageID, entry);
+      if (previous != null)
+        sizeInBytes -= previous.sizeInBytes;
+      sizeInBytes += entry.sizeInBytes;
+
+      // Evict least recently used entries
+      Iterator<Map.Entry<Integer, Entry>> iterator = entries.entrySet().iterator();
+      while ((sizeInBytes > maxSizeInBytes) && iterator.hasNext()) {
+        sizeInBytes -= iterator.next().getValue().sizeInBytes;
+        iterator.remove();
+        evictions.increment();
+      }
+    }
+
+    synchronized void remove(int storageID) {
+      final Entry removed = entries.remove(storageID);
+      if (removed != null)
+        sizeInBytes -= removed.sizeInBytes;
+    }
+
+    synchronized void clear() {
+      entries.clear();
+      sizeInBytes = 0;
+    }
+
+    synchronized long getSizeInBytes() {
+      return sizeInBytes;
+    }
+  }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package io.github.mzmine.project.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Cache of one data structure per MS level of a raw data file (e.g. an index of its scans), which
+ * is built on demand. The structure is built by the first thread which asks for it, without holding
+ * any lock, while other threads asking for the same MS level wait for it. A failed build is cached
+ * as well, so it is not repeated until the cache is cleared. Structures which are discarded by
+ * clear() or close() while they are being built are disposed when their build finishes.
+ */
+class MSLevelCache<T> {
+
+  private static final Logger logger = Logger.getLogger(MSLevelCache.class.getName());
+
+  private final String description;
+  private final Consumer<T> disposer;
+
+  // Guarded by the lock of this instance
+  private final Map<Integer, FutureTask<T>> values = new HashMap<>();
+  private boolean closed = false;
+
+  /**
+   * @param description description of the cached structures, for log messages
+   * @param disposer releases the resources of a discarded structure, may be null
+   */
+  MSLevelCache(@Nonnull String description, @Nullable Consumer<T> disposer) {
+    this.description = description;
+    this.disposer = disposer;
+  }
+
+  /**
+   * Returns the structure of the given MS level, building it first if necessary.
+   *
+   * @return The structure, or null if building it failed or the cache is closed
+   */
+  @Nullable
+  T get(int msLevel, @Nonnull Callable<T> builder) {
+
+    FutureTask<T> future, newFuture = null;
+    synchronized (this) {
+      if (closed)
+        return null;
+      future = values.get(msLevel);
+      if (future == null) {
+        future = newFuture = new FutureTask<>(builder);
+        values.put(msLevel, future);
+      }
+    }
+
+    if (newFuture != null) {
+      newFuture.run();
+      synchronized (this) {
+        if (values.get(msLevel) != newFuture) {
+          // Discarded while it was built
+          dispose(newFuture);
+          return null;
+        }
+      }
+    }
+
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (newFuture != null)
+        logger.log(Level.WARNING,
+            "Could not build the " + description + " of MS level " + msLevel, e.getCause());
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * @return The structure of the given MS level if it was already built, otherwise null
+   */
+  @Nullable
+  synchronized T getIfBuilt(int msLevel) {
+    final FutureTask<T> future = values.get(msLevel);
+    return (future != null) ? getIfDone(future) : null;
+  }
+
+  /**
+   * Discards all structures, e.g. because the scans of the file changed
+   */
+  synchronized void clear() {
+    for (FutureTask<T> future : values.values()) {
+      // Structures which are still being built are disposed by their builder
+      if (future.isDone())
+        dispose(future);
+    }
+    values.clear();
+  }
+
+  /**
+   * Discards all structures and stops building new ones
+   */
+  synchronized void close() {
+    clear();
+    closed = true;
+  }
+
+  private void dispose(FutureTask<T> future) {
+    final T value = getIfDone(future);
+    if ((value != null) && (disposer != null))
+      disposer.accept(value);
+  }
+
+  private static <T> T getIfDone(FutureTask<T> future) {
+    if (!future.isDone())
+      return null;
+    try {
+      return future.get();
+    } catch (ExecutionException | InterruptedException e) {
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package io.github.mzmine.project.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import io.github.mzmine.util.MemoryMapUtils;
+
+/**
+ * Memory-mapped read access to the temporary data points file of a RawDataFileImpl. The file is
+ * mapped in segments of SEGMENT_SIZE bytes, so that files larger than 2 GB can be mapped, too.
+ * Reads only use absolute buffer positions and never modify any shared state, so any number of
+ * threads can read from the same file concurrently. They only share a read lock, which lets
+ * close() unmap the segments once no read is in progress.
+ *
+ * The data points file is only ever appended to. When a read reaches beyond the currently mapped
+ * part of a segment (because data points were stored after the segment was mapped), the segment
+ * is mapped again. If the file cannot be mapped at all (e.g. on some network file systems), reads
+ * fall back to positional FileChannel reads, which are thread-safe as well.
+ */
+class MappedDataPointsFile {
+
+  private static final Logger logger = Logger.getLogger(MappedDataPointsFile.class.getName());
+
+  /**
+   * Size of one mapped segment. Must be a multiple of 8 so that no data point (two float values)
+   * ever crosses a segment boundary.
+   */
+  static final long SEGMENT_SIZE = 1L << 30;
+
+  private final FileChannel channel;
+
+  // Copy-on-write array of mapped segments, replaced as a whole when a segment is (re)mapped
+  private volatile MappedByteBuffer segments[] = new MappedByteBuffer[0];
+
+  private volatile boolean mappingFailed = false;
+
+  // Reads hold the read lock, the segments are unmapped under the write lock
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private boolean closed = false;
+
+  MappedDataPointsFile(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * Reads numOfDataPoints data points (m/z and intensity float pairs) starting at the given byte
+   * offset of the data points file into the given arrays. Either array may be null, in which case
+   * the respective values are skipped.
+   */
+  void readDataPoints(long offset, int numOfDataPoints, @Nullable double mzValues[],
+      @Nullable double intensityValues[]) throws IOException {
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      readMappedDataPoints(offset, numOfDataPoints, mzValues, intensityValues);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void readMappedDataPoints(long offset, int numOfDataPoints, @Nullable double mzValues[],
+      @Nullable double intensityValues[]) throws IOException {
+
+    // Data points stored by RawDataFileImpl are always 8-byte aligned, anything else can only be
+    // read through the channel
+    if (mappingFailed || (offset % 8 != 0)) {
+      readDataPointsFromChannel(offset, numOfDataPoints, mzValues, intensityValues);
+      return;
+    }
+
+    final long end = offset + numOfDataPoints * 8L;
+    long position = offset;
+    int i = 0;
+
+    try {
+      while (i < numOfDataPoints) {
+        final int segmentIndex = (int) (position / SEGMENT_SIZE);
+        final long segmentStart = segmentIndex * SEGMENT_SIZE;
+        final ByteBuffer segment =
+            getSegment(segmentIndex, Math.min(end - segmentStart, SEGMENT_SIZE));
+
+        int index = (int) (position - segmentStart);
+        final int count = Math.min(numOfDataPoints - i, (segment.limit() - index) / 8);
+        for (int j = 0; j < count; j++, i++, index += 8) {
+          if (mzValues != null)
+            mzValues[i] = segment.getFloat(index);
+          if (intensityValues != null)
+            intensityValues[i] = segment.getFloat(index + 4);
+        }
+        position = segmentStart + index;
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING,
+          "Failed to map the data points file, falling back to channel reads", e);
+      mappingFailed = true;
+      readDataPointsFromChannel(offset, numOfDataPoints, mzValues, intensityValues);
+    }
+
+  }
+
+  /**
+   * Returns the index of the first data point whose m/z value is greater than or equal to
+   * (inclusive) or strictly greater than (not inclusive) the given m/z. The data points must be
+   * sorted by m/z. The search reads the m/z values directly from the mapped file, so only
+   * O(log(numOfDataPoints)) values are touched.
+   */
+  int findMzIndex(long offset, int numOfDataPoints, double mz, boolean inclusive)
+      throws IOException {
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      int low = 0, high = numOfDataPoints;
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        final double midMz = readFloat(offset + mid * 8L);
+        if ((midMz < mz) || (!inclusive && (midMz == mz)))
+          low = mid + 1;
+        else
+          high = mid;
+      }
+      return low;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Unmaps the segments, after the reads which are in progress at the moment, so the file can be
+   * deleted right away (Windows does not allow deleting a mapped file). Later reads fail with an
+   * IOException. The channel is not closed, it belongs to the raw data file.
+   */
+  void close() {
+    lock.writeLock().lock();
+    try {
+      if (closed)
+        return;
+      closed = true;
+      for (MappedByteBuffer segment : segments) {
+        MemoryMapUtils.unmap(segment);
+      }
+      segments = new MappedByteBuffer[0];
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed)
+      throw new IOException("The data points file is closed");
+  }
+
+  private float readFloat(long position) throws IOException {
+
+    if (!mappingFailed && (position % 4 == 0)) {
+      try {
+        final int segmentIndex = (int) (position / SEGMENT_SIZE);
+        final long segmentStart = segmentIndex * SEGMENT_SIZE;
+        final ByteBuffer segment = getSegment(segmentIndex, position - segmentStart + 4);
+        return segment.getFloat((int) (position - segmentStart));
+      } catch (IOException e) {
+        logger.log(Level.WARNING,
+            "Failed to map the data points file, falling back to channel reads", e);
+        mappingFailed = true;
+      }
+    }
+
+    final ByteBuffer buffer = ByteBuffer.allocate(4);
+    long readPosition = position;
+    while (buffer.hasRemaining()) {
+      final int read = channel.read(buffer, readPosition);
+      if (read < 0)
+        throw new IOException("Unexpected end of the data points file");
+      readPosition += read;
+    }
+    return buffer.getFloat(0);
+  }
+
+  /**
+   * Returns the given segment, mapped at least up to requiredLength bytes from its start.
+   */
+  private ByteBuffer getSegment(int segmentIndex, long requiredLength) throws IOException {
+
+    final MappedByteBuffer currentSegments[] = segments;
+    if (segmentIndex < currentSegments.length) {
+      final MappedByteBuffer segment = currentSegments[segmentIndex];
+      if ((segment != null) && (segment.limit() >= requiredLength))
+        return segment;
+    }
+
+    return mapSegment(segmentIndex, requiredLength);
+  }
+
+  private synchronized ByteBuffer mapSegment(int segmentIndex, long requiredLength)
+      throws IOException {
+
+    // Another thread may have mapped the segment in the meantime
+    MappedByteBuffer newSegments[] = segments;
+    if (segmentIndex < newSegments.length) {
+      final MappedByteBuffer segment = newSegments[segmentIndex];
+      if ((segment != null) && (segment.limit() >= requiredLength))
+        return segment;
+    } else {
+      newSegments = Arrays.copyOf(newSegments, segmentIndex + 1);
+    }
+
+    final long segmentStart = segmentIndex * SEGMENT_SIZE;
+    final long mappedLength = Math.min(SEGMENT_SIZE, channel.size() - segmentStart);
+    if (mappedLength < requiredLength) {
+      throw new IOException("Data points file is shorter than expected");
+    }
+
+    final MappedByteBuffer segment =
+        channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, mappedLength);
+
+    if (newSegments == segments)
+      newSegments = newSegments.clone();
+    newSegments[segmentIndex] = segment;
+    segments = newSegments;
+
+    return segment;
+  }
+
+  private void readDataPointsFromChannel(long offset, int numOfDataPoints,
+      @Nullable double mzValues[], @Nullable double intensityValues[]) throws IOException {
+
+    final ByteBuffer buffer = ByteBuffer.allocate(numOfDataPoints * 8);
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      final int read = channel.read(buffer, position);
+      if (read < 0)
+        throw new IOException("Unexpected end of the data points file");
+      position += read;
+    }
+
+    for (int i = 0; i < numOfDataPoints; i++) {
+      if (mzValues != null)
+        mzValues[i] = buffer.getFloat(i * 8);
+      if (intensityValues != null)
+        intensityValues[i] = buffer.getFloat(i * 8 + 4);
+    }
+  }
+
+}
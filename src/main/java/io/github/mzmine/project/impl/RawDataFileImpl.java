@@ -31,8 +31,10 @@ import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
@@ -45,16 +47,30 @@ import io.github.mzmine.datamodel.RawDataFile;
 import io.github.mzmine.datamodel.RawDataFileWriter;
 import io.github.mzmine.datamodel.Scan;
 import io.github.mzmine.datamodel.impl.SimpleDataPoint;
+import io.github.mzmine.gui.preferences.MZminePreferences;
+import io.github.mzmine.main.MZmineCore;
+import io.github.mzmine.util.scans.ExtractedIonIndex;
+import io.github.mzmine.util.scans.IntensityPyramid;
 
 /**
  * RawDataFile implementation. It provides storage of data points for scans and mass lists using the
  * storeDataPoints() and readDataPoints() methods. The data points are stored in a temporary file
- * (dataPointsFile) and the structure of the file is stored in two TreeMaps. The dataPointsOffsets
+ * (dataPointsFile) and the structure of the file is stored in two maps. The dataPointsOffsets
  * maps storage ID to the offset in the dataPointsFile. The dataPointsLength maps the storage ID to
  * the number of data points stored under this ID. When stored data points are deleted using
  * removeStoredDataPoints(), the dataPointsFile is not modified, the storage ID is just deleted from
- * the two TreeMaps. When the project is saved, the contents of the dataPointsFile are consolidated
- * - only data points referenced by the TreeMaps are saved (see the RawDataFileSaveHandler class).
+ * the two maps. When the project is saved, the contents of the dataPointsFile are consolidated -
+ * only data points referenced by the maps are saved (see the RawDataFileSaveHandler class).
+ * 
+ * New data points are only ever appended to the end of the dataPointsFile. Reading is done through
+ * memory-mapped segments of the file (see MappedDataPointsFile) and only takes a shared read lock,
+ * so many threads can read data points of the same raw data file concurrently. Decoded data points may additionally
+ * be kept in a size-bounded DataPointsCache, configured in the MZmine preferences.
+ * 
+ * Scans of another raw data file which are added unchanged (e.g. by the crop or scan filters) do
+ * not copy their data points. Their storage IDs are mapped to the storage of the original file
+ * (sharedDataPoints), which is reference counted, so the temporary file of the original file is
+ * only deleted when neither the original file nor any file derived from it is open anymore.
  */
 public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
@@ -67,13 +83,54 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   private final Hashtable<Integer, Double> dataMaxBasePeakIntensity, dataMaxTIC;
   private final Hashtable<Integer, int[]> scanNumbersCache;
 
+  // Write buffer, guarded by the lock of this instance
   private ByteBuffer buffer = ByteBuffer.allocate(20000);
-  private final TreeMap<Integer, Long> dataPointsOffsets;
-  private final TreeMap<Integer, Integer> dataPointsLengths;
+  private final ConcurrentSkipListMap<Integer, Long> dataPointsOffsets;
+  private final ConcurrentSkipListMap<Integer, Integer> dataPointsLengths;
 
   // Temporary file for scan data storage
   private File dataPointsFileName;
   private RandomAccessFile dataPointsFile;
+  private volatile MappedDataPointsFile mappedDataPointsFile;
+
+  // Offset at which the next data points will be appended to the dataPointsFile
+  private long dataPointsFileEnd;
+
+  // Storage IDs are never reused, so cached data points of removed IDs can never be mistaken for
+  // newly stored ones
+  private int lastStorageID = 0;
+
+  private final DataPointsCache dataPointsCache;
+
+  // Storage IDs of this file whose data points are stored in another raw data file
+  private final ConcurrentSkipListMap<Integer, SharedDataPoints> sharedDataPoints;
+
+  // Raw data files whose storage is referenced by sharedDataPoints, each holding one reference of
+  // this file. Guarded by the lock of this instance.
+  private final Set<RawDataFileImpl> referencedFiles = new HashSet<>();
+
+  // Number of open raw data files using the storage of this file, including this file itself.
+  // Guarded by the lock of this instance.
+  private int storageReferences = 1;
+  private boolean closed = false;
+
+  // Index of scans by MS level, retention time and precursor m/z. Built in finishWriting() and
+  // discarded whenever a scan is added.
+  private volatile ScanIndex scanIndex;
+
+  // Indexes of the data points by m/z for each MS level, built on demand if enabled in the
+  // preferences and discarded whenever a scan is added
+  private final MSLevelCache<ExtractedIonIndex> extractedIonIndexes =
+      new MSLevelCache<>("extracted ion index", null);
+
+  // An intensity pyramid is only built for plots of at least 1 / MIN_PYRAMID_SCAN_FRACTION of
+  // the scans of an MS level
+  private static final int MIN_PYRAMID_SCAN_FRACTION = 4;
+
+  // Intensity pyramids for each MS level, built on demand by the raw data plots and discarded
+  // whenever a scan is added
+  private final MSLevelCache<IntensityPyramid> intensityPyramids =
+      new MSLevelCache<>("intensity pyramid", IntensityPyramid::dispose);
 
   // To store mass lists that have been added but not yet reflected in the GUI
   // by the
@@ -96,11 +153,33 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     dataMaxBasePeakIntensity = new Hashtable<Integer, Double>();
     dataMaxTIC = new Hashtable<Integer, Double>();
     scans = new Hashtable<Integer, StorableScan>();
-    dataPointsOffsets = new TreeMap<Integer, Long>();
-    dataPointsLengths = new TreeMap<Integer, Integer>();
+    dataPointsOffsets = new ConcurrentSkipListMap<Integer, Long>();
+    dataPointsLengths = new ConcurrentSkipListMap<Integer, Integer>();
+    sharedDataPoints = new ConcurrentSkipListMap<Integer, SharedDataPoints>();
+    dataPointsCache = new DataPointsCache(getDataPointsCacheSizeFromPreferences());
 
   }
 
+  private static boolean isExtractedIonIndexEnabled() {
+    final MZminePreferences preferences = MZmineCore.getConfiguration().getPreferences();
+    if (preferences == null)
+      return false;
+    final Boolean enabled =
+        preferences.getParameter(MZminePreferences.extractedIonIndex).getValue();
+    return (enabled != null) && enabled;
+  }
+
+  private static long getDataPointsCacheSizeFromPreferences() {
+    final MZminePreferences preferences = MZmineCore.getConfiguration().getPreferences();
+    if (preferences == null)
+      return 0;
+    final Integer cacheSizeMB =
+        preferences.getParameter(MZminePreferences.dataPointsCacheSize).getValue();
+    if (cacheSizeMB == null)
+      return 0;
+    return cacheSizeMB * (1L << 20);
+  }
+
   @Override
   public RawDataFile clone() throws CloneNotSupportedException {
     return (RawDataFile) super.clone();
@@ -123,8 +202,8 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
   /**
    * Opens the given file as a data points file for this RawDataFileImpl instance. If the file is
-   * not empty, the TreeMaps supplied as parameters have to describe the mapping of storage IDs to
-   * data points in the file.
+   * not empty, the maps returned by getDataPointsOffsets() and getDataPointsLengths() have to
+   * describe the mapping of storage IDs to data points in the file.
    */
   public synchronized void openDataPointsFile(File dataPointsFileName) throws IOException {
 
@@ -134,18 +213,21 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     this.dataPointsFileName = dataPointsFileName;
     this.dataPointsFile = new RandomAccessFile(dataPointsFileName, "rw");
+    this.dataPointsFileEnd = dataPointsFile.length();
 
     // Locks the temporary file so it is not removed when another instance
     // of MZmine is starting. Lock will be automatically released when this
     // instance of MZmine exits. Locking may fail on network-mounted
     // filesystems.
+    FileChannel fileChannel = dataPointsFile.getChannel();
     try {
-      FileChannel fileChannel = dataPointsFile.getChannel();
       fileChannel.lock();
     } catch (IOException e) {
       logger.log(Level.WARNING, "Failed to lock the file " + dataPointsFileName, e);
     }
 
+    this.mappedDataPointsFile = new MappedDataPointsFile(fileChannel);
+
     // Unfortunately, deleteOnExit() doesn't work on Windows, see JDK
     // bug #4171239. We will try to remove the temporary files in a
     // shutdown hook registered in the main.ShutDownHook class
@@ -190,20 +272,32 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     assert rtRange != null;
 
-    ArrayList<Integer> eligibleScanNumbers = new ArrayList<Integer>();
+    return getScanIndex().getScanNumbers(msLevel, rtRange);
+  }
 
-    Enumeration<StorableScan> scansEnum = scans.elements();
-    while (scansEnum.hasMoreElements()) {
-      Scan scan = scansEnum.nextElement();
+  /**
+   * @see io.github.mzmine.datamodel.RawDataFile#getScanNumbers(int, Range, Range)
+   */
+  @Override
+  public @Nonnull int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange,
+      @Nonnull Range<Double> precursorMZRange) {
 
-      if ((scan.getMSLevel() == msLevel) && (rtRange.contains(scan.getRetentionTime())))
-        eligibleScanNumbers.add(scan.getScanNumber());
-    }
+    assert rtRange != null;
+    assert precursorMZRange != null;
 
-    int[] numbersArray = Ints.toArray(eligibleScanNumbers);
-    Arrays.sort(numbersArray);
+    return getScanIndex().getScanNumbers(msLevel, rtRange, precursorMZRange);
+  }
 
-    return numbersArray;
+  private @Nonnull ScanIndex getScanIndex() {
+    ScanIndex index = scanIndex;
+    if (index != null)
+      return index;
+
+    synchronized (this) {
+      if (scanIndex == null)
+        scanIndex = new ScanIndex(scans.values());
+      return scanIndex;
+    }
   }
 
   /**
@@ -323,20 +417,40 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
   public synchronized int storeDataPoints(DataPoint dataPoints[]) throws IOException {
 
-    if (dataPointsFile == null) {
-      File newFile = RawDataFileImpl.createNewDataPointsFile();
-      openDataPointsFile(newFile);
+    final int numOfDataPoints = dataPoints.length;
+    FloatBuffer floatBuffer = prepareBuffer(numOfDataPoints);
+    for (DataPoint dp : dataPoints) {
+      floatBuffer.put((float) dp.getMZ());
+      floatBuffer.put((float) dp.getIntensity());
     }
 
-    final long currentOffset = dataPointsFile.length();
+    return writeBuffer(numOfDataPoints);
 
-    final int currentID;
-    if (!dataPointsOffsets.isEmpty())
-      currentID = dataPointsOffsets.lastKey() + 1;
-    else
-      currentID = 1;
+  }
 
-    final int numOfDataPoints = dataPoints.length;
+  /**
+   * Stores the first numOfDataPoints values of the given m/z and intensity arrays, without creating
+   * DataPoint instances.
+   *
+   * @return storage ID of the stored data points
+   */
+  public synchronized int storeDataPoints(double mzValues[], double intensityValues[],
+      int numOfDataPoints) throws IOException {
+
+    FloatBuffer floatBuffer = prepareBuffer(numOfDataPoints);
+    for (int i = 0; i < numOfDataPoints; i++) {
+      floatBuffer.put((float) mzValues[i]);
+      floatBuffer.put((float) intensityValues[i]);
+    }
+
+    return writeBuffer(numOfDataPoints);
+
+  }
+
+  /**
+   * Clears the write buffer and makes sure it can hold the given number of data points
+   */
+  private FloatBuffer prepareBuffer(int numOfDataPoints) {
 
     // Convert the dataPoints into a byte array. Each float takes 4 bytes,
     // so we get the current float offset by dividing the size of the file
@@ -351,14 +465,34 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
       ((Buffer) buffer).clear();
     }
 
-    FloatBuffer floatBuffer = buffer.asFloatBuffer();
-    for (DataPoint dp : dataPoints) {
-      floatBuffer.put((float) dp.getMZ());
-      floatBuffer.put((float) dp.getIntensity());
+    return buffer.asFloatBuffer();
+  }
+
+  /**
+   * Appends the given number of data points from the write buffer to the data points file
+   *
+   * @return storage ID of the stored data points
+   */
+  private int writeBuffer(int numOfDataPoints) throws IOException {
+
+    if (dataPointsFile == null) {
+      File newFile = RawDataFileImpl.createNewDataPointsFile();
+      openDataPointsFile(newFile);
     }
 
-    dataPointsFile.seek(currentOffset);
-    dataPointsFile.write(buffer.array(), 0, numOfBytes);
+    final long currentOffset = dataPointsFileEnd;
+    final int currentID = nextStorageID();
+
+    final int numOfBytes = numOfDataPoints * 2 * 4;
+
+    // Append with positional writes, so the file pointer is never shared with readers
+    ((Buffer) buffer).limit(numOfBytes);
+    final FileChannel fileChannel = dataPointsFile.getChannel();
+    long position = currentOffset;
+    while (buffer.hasRemaining()) {
+      position += fileChannel.write(buffer, position);
+    }
+    dataPointsFileEnd = position;
 
     dataPointsOffsets.put(currentID, currentOffset);
     dataPointsLengths.put(currentID, numOfDataPoints);
@@ -367,54 +501,216 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
   }
 
-  public synchronized DataPoint[] readDataPoints(int ID) throws IOException {
+  private int nextStorageID() {
+    int currentID = lastStorageID + 1;
+    if (!dataPointsOffsets.isEmpty())
+      currentID = Math.max(currentID, dataPointsOffsets.lastKey() + 1);
+    lastStorageID = currentID;
+    return currentID;
+  }
+
+  /**
+   * Maps a new storage ID of this file to data points stored in the given raw data file, without
+   * copying them. The data points must not be removed from the given file afterwards.
+   *
+   * @return storage ID of the shared data points in this file
+   */
+  private synchronized int shareDataPoints(RawDataFileImpl file, int fileStorageID) {
+
+    // Always refer to the file which actually stores the data points, so intermediate files can
+    // be released
+    final SharedDataPoints source = file.sharedDataPoints.get(fileStorageID);
+    if (source != null) {
+      file = source.file;
+      fileStorageID = source.storageID;
+    }
+
+    if (referencedFiles.add(file))
+      file.acquireStorage();
+
+    final int currentID = nextStorageID();
+    sharedDataPoints.put(currentID, new SharedDataPoints(file, fileStorageID));
+    return currentID;
+
+  }
+
+  /**
+   * Returns the storage IDs of this file whose data points are stored in another raw data file.
+   * Their data points are read through this file like any others.
+   */
+  public NavigableSet<Integer> getSharedStorageIDs() {
+    return sharedDataPoints.keySet();
+  }
+
+  /**
+   * Reads the data points stored under the given storage ID. This method does not lock and may be
+   * called from many threads at once.
+   */
+  public DataPoint[] readDataPoints(int ID) throws IOException {
+
+    final int numOfDataPoints = getNumOfStoredDataPoints(ID);
+    final double mzValues[] = new double[numOfDataPoints];
+    final double intensityValues[] = new double[numOfDataPoints];
+    readDataPoints(ID, mzValues, intensityValues);
+
+    DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+
+    for (int i = 0; i < numOfDataPoints; i++) {
+      dataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+    }
+
+    return dataPoints;
+
+  }
+
+  /**
+   * Reads the m/z and intensity values stored under the given storage ID into the given arrays,
+   * without creating any DataPoint instances. The arrays must hold at least
+   * getNumOfStoredDataPoints(ID) values. Either array may be null, in which case the respective
+   * values are not read. This method does not lock the file and may be called from many threads at
+   * once.
+   */
+  public void readDataPoints(int ID, @Nullable double mzValues[],
+      @Nullable double intensityValues[]) throws IOException {
+
+    final SharedDataPoints shared = sharedDataPoints.get(ID);
+    if (shared != null) {
+      shared.file.readDataPoints(shared.storageID, mzValues, intensityValues);
+      return;
+    }
+
+    if (dataPointsCache.get(ID, mzValues, intensityValues))
+      return;
 
     final Long currentOffset = dataPointsOffsets.get(ID);
     final Integer numOfDataPoints = dataPointsLengths.get(ID);
+    final MappedDataPointsFile mappedFile = mappedDataPointsFile;
 
-    if ((currentOffset == null) || (numOfDataPoints == null)) {
+    if ((currentOffset == null) || (numOfDataPoints == null) || (mappedFile == null)) {
       throw new IllegalArgumentException("Unknown storage ID " + ID);
     }
 
-    final int numOfBytes = numOfDataPoints * 2 * 4;
-
-    if (buffer.capacity() < numOfBytes) {
-      buffer = ByteBuffer.allocate(numOfBytes * 2);
-    } else {
-      // JDK 9 breaks compatibility with JRE8: need to cast
-      // https://stackoverflow.com/questions/48693695/java-nio-buffer-not-loading-clear-method-on-runtime
-      ((Buffer) buffer).clear();
+    if (!dataPointsCache.isEnabled()) {
+      mappedFile.readDataPoints(currentOffset, numOfDataPoints, mzValues, intensityValues);
+      return;
     }
 
-    dataPointsFile.seek(currentOffset);
-    dataPointsFile.read(buffer.array(), 0, numOfBytes);
+    // Read both m/z and intensity values, so the cache entry is complete
+    final double cachedMzValues[] = new double[numOfDataPoints];
+    final double cachedIntensityValues[] = new double[numOfDataPoints];
+    mappedFile.readDataPoints(currentOffset, numOfDataPoints, cachedMzValues,
+        cachedIntensityValues);
+    dataPointsCache.put(ID, cachedMzValues, cachedIntensityValues);
 
-    FloatBuffer floatBuffer = buffer.asFloatBuffer();
+    if (mzValues != null)
+      System.arraycopy(cachedMzValues, 0, mzValues, 0, numOfDataPoints);
+    if (intensityValues != null)
+      System.arraycopy(cachedIntensityValues, 0, intensityValues, 0, numOfDataPoints);
 
-    DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+  }
 
-    for (int i = 0; i < numOfDataPoints; i++) {
-      float mz = floatBuffer.get();
-      float intensity = floatBuffer.get();
-      dataPoints[i] = new SimpleDataPoint(mz, intensity);
+  /**
+   * Reads only the data points within the given m/z range, stored under the given storage ID. The
+   * data points must be sorted by m/z. The borders of the range are found by binary search directly
+   * in the data points file, and only the data points inside the range are decoded. This method
+   * does not lock and may be called from many threads at once.
+   */
+  public DataPoint[] readDataPointsByMass(int ID, Range<Double> mzRange) throws IOException {
+
+    final SharedDataPoints shared = sharedDataPoints.get(ID);
+    if (shared != null)
+      return shared.file.readDataPointsByMass(shared.storageID, mzRange);
+
+    final Long currentOffset = dataPointsOffsets.get(ID);
+    final Integer numOfDataPoints = dataPointsLengths.get(ID);
+    final MappedDataPointsFile mappedFile = mappedDataPointsFile;
+
+    if ((currentOffset == null) || (numOfDataPoints == null) || (mappedFile == null)) {
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    }
+
+    // The data points cache is not consulted here. Reading a narrow m/z window from the mapped
+    // file touches only a few pages, which is cheaper than copying a complete cached spectrum.
+    final int startIndex =
+        mappedFile.findMzIndex(currentOffset, numOfDataPoints, mzRange.lowerEndpoint(), true);
+    final int endIndex =
+        mappedFile.findMzIndex(currentOffset, numOfDataPoints, mzRange.upperEndpoint(), false);
+    final int numOfPointsInRange = Math.max(0, endIndex - startIndex);
+
+    final double mzValues[] = new double[numOfPointsInRange];
+    final double intensityValues[] = new double[numOfPointsInRange];
+    mappedFile.readDataPoints(currentOffset + startIndex * 8L, numOfPointsInRange, mzValues,
+        intensityValues);
+
+    DataPoint dataPoints[] = new DataPoint[numOfPointsInRange];
+    for (int i = 0; i < numOfPointsInRange; i++) {
+      dataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
     }
 
     return dataPoints;
 
   }
 
+  /**
+   * Returns the number of data points stored under the given storage ID.
+   */
+  public int getNumOfStoredDataPoints(int ID) {
+    final SharedDataPoints shared = sharedDataPoints.get(ID);
+    if (shared != null)
+      return shared.file.getNumOfStoredDataPoints(shared.storageID);
+    final Integer numOfDataPoints = dataPointsLengths.get(ID);
+    if (numOfDataPoints == null) {
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    }
+    return numOfDataPoints;
+  }
+
   public synchronized void removeStoredDataPoints(int ID) throws IOException {
+    // The referenced file is only released when this file is closed
+    sharedDataPoints.remove(ID);
     dataPointsOffsets.remove(ID);
     dataPointsLengths.remove(ID);
+    dataPointsCache.remove(ID);
+  }
+
+  /**
+   * Returns the cache of decoded data points of this file, e.g. to query its hit/miss statistics
+   */
+  public DataPointsCache getDataPointsCache() {
+    return dataPointsCache;
   }
 
   @Override
   public synchronized void addScan(Scan newScan) throws IOException {
+    addScan(newScan, newScan.getScanNumber());
+  }
+
+  @Override
+  public synchronized void addScan(Scan newScan, int scanNumber) throws IOException {
+
+    scanIndex = null;
+    extractedIonIndexes.clear();
+    intensityPyramids.clear();
 
-    // When we are loading the project, scan data file is already prepare
-    // and we just need store the reference
     if (newScan instanceof StorableScan) {
-      scans.put(newScan.getScanNumber(), (StorableScan) newScan);
+
+      final StorableScan storableScan = (StorableScan) newScan;
+
+      // When we are loading the project, scan data file is already prepare
+      // and we just need store the reference
+      if (storableScan.getDataFile() == this) {
+        storableScan.setScanNumber(scanNumber);
+        scans.put(scanNumber, storableScan);
+        return;
+      }
+
+      // Unchanged scan of another file, keep its data points where they are
+      final int storageID = shareDataPoints((RawDataFileImpl) storableScan.getDataFile(),
+          storableScan.getStorageID());
+      StorableScan sharedScan =
+          new StorableScan(newScan, this, storableScan.getNumberOfDataPoints(), storageID);
+      sharedScan.setScanNumber(scanNumber);
+      scans.put(scanNumber, sharedScan);
       return;
     }
 
@@ -422,8 +718,9 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     final int storageID = storeDataPoints(dataPoints);
 
     StorableScan storedScan = new StorableScan(newScan, this, dataPoints.length, storageID);
+    storedScan.setScanNumber(scanNumber);
 
-    scans.put(newScan.getScanNumber(), storedScan);
+    scans.put(scanNumber, storedScan);
 
   }
 
@@ -433,12 +730,92 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   @Override
   public synchronized RawDataFile finishWriting() throws IOException {
     for (StorableScan scan : scans.values()) {
-      scan.updateValues();
+      // Shared scans took their values from the unchanged original scan
+      if (!sharedDataPoints.containsKey(scan.getStorageID()))
+        scan.updateValues();
     }
+    scanIndex = new ScanIndex(scans.values());
     logger.finest("Writing of scans to file " + dataPointsFileName + " finished");
     return this;
   }
 
+  /**
+   * Returns the index of the data points of all scans in the given MS level by m/z, to read
+   * extracted ion chromatograms without reading every scan. The index is built on the first call,
+   * which reads all scans of the MS level once.
+   *
+   * @param msLevel MS level
+   * @return Index of the scans in the given MS level, or null if the index is disabled in the
+   *         preferences or could not be built
+   */
+  public @Nullable ExtractedIonIndex getExtractedIonIndex(int msLevel) {
+
+    if (!isExtractedIonIndexEnabled())
+      return null;
+
+    return extractedIonIndexes.get(msLevel, () -> {
+      final ExtractedIonIndex index = new ExtractedIonIndex(getScansOfLevel(msLevel));
+      logger.finest("Indexed " + index.getNumberOfDataPoints() + " data points of MS level "
+          + msLevel + " of " + dataFileName + " by m/z");
+      return index;
+    });
+  }
+
+  private Scan[] getScansOfLevel(int msLevel) {
+    final int levelScanNumbers[] = getScanNumbers(msLevel);
+    final Scan levelScans[] = new Scan[levelScanNumbers.length];
+    for (int i = 0; i < levelScanNumbers.length; i++) {
+      levelScans[i] = scans.get(levelScanNumbers[i]);
+    }
+    return levelScans;
+  }
+
+  /**
+   * Returns the pyramid of the intensities of the scans of one MS level, to draw the given scans
+   * without reading each of them. The pyramid can only be used if the given scans are all scans of
+   * their MS level within a retention time range. It is built by the first call which needs it, and
+   * this reads all scans of the MS level once, so this method should not be called from the GUI
+   * thread. For scans which are only a small part of their MS level, the pyramid is not built, but
+   * used if it exists already.
+   *
+   * @param plotScans scans to draw
+   * @return Pyramid of the MS level of the scans, or null if it cannot be used for these scans
+   */
+  public @Nullable IntensityPyramid getIntensityPyramid(@Nonnull Scan plotScans[]) {
+
+    if (plotScans.length == 0)
+      return null;
+
+    // Check the scan numbers first, which is cheap compared to building the pyramid
+    final int msLevel = plotScans[0].getMSLevel();
+    final int plotScanNumbers[] = new int[plotScans.length];
+    for (int i = 0; i < plotScans.length; i++) {
+      if ((plotScans[i].getDataFile() != this) || (plotScans[i].getMSLevel() != msLevel))
+        return null;
+      plotScanNumbers[i] = plotScans[i].getScanNumber();
+    }
+    Arrays.sort(plotScanNumbers);
+    final int levelScanNumbers[] = getScanNumbers(msLevel);
+    final int first = Arrays.binarySearch(levelScanNumbers, plotScanNumbers[0]);
+    if ((first < 0) || (first + plotScanNumbers.length > levelScanNumbers.length))
+      return null;
+    for (int i = 0; i < plotScanNumbers.length; i++) {
+      if (levelScanNumbers[first + i] != plotScanNumbers[i])
+        return null;
+    }
+
+    final IntensityPyramid pyramid;
+    if (plotScans.length * MIN_PYRAMID_SCAN_FRACTION >= levelScanNumbers.length)
+      pyramid = intensityPyramids.get(msLevel,
+          () -> new IntensityPyramid(getScansOfLevel(msLevel)));
+    else
+      pyramid = intensityPyramids.getIfBuilt(msLevel);
+
+    if ((pyramid == null) || !pyramid.containsScanRange(plotScans))
+      return null;
+    return pyramid;
+  }
+
   @Override
   public @Nonnull Range<Double> getDataMZRange() {
     return getDataMZRange(0);
@@ -526,18 +903,51 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     return getScanNumbers(msLevel).length;
   }
 
-  public synchronized TreeMap<Integer, Long> getDataPointsOffsets() {
+  public NavigableMap<Integer, Long> getDataPointsOffsets() {
     return dataPointsOffsets;
   }
 
-  public synchronized TreeMap<Integer, Integer> getDataPointsLengths() {
+  public NavigableMap<Integer, Integer> getDataPointsLengths() {
     return dataPointsLengths;
   }
 
+  /**
+   * Closes this file. Its temporary file is kept until all files derived from it are closed, too.
+   */
   @Override
   public synchronized void close() {
+    if (closed)
+      return;
+    closed = true;
+    extractedIonIndexes.close();
+    intensityPyramids.close();
+    releaseStorage();
+  }
+
+  private synchronized void acquireStorage() {
+    storageReferences++;
+  }
+
+  private synchronized void releaseStorage() {
+
+    if (--storageReferences > 0)
+      return;
+
+    for (RawDataFileImpl file : referencedFiles) {
+      file.releaseStorage();
+    }
+    referencedFiles.clear();
+    sharedDataPoints.clear();
+
+    if (dataPointsCache.isEnabled()) {
+      logger.finest("Data points cache of " + dataFileName + ": " + dataPointsCache);
+      dataPointsCache.clear();
+    }
     try {
       if (dataPointsFileName != null) {
+        // Unmap the file first, otherwise it cannot be deleted on Windows
+        if (mappedDataPointsFile != null)
+          mappedDataPointsFile.close();
         dataPointsFile.close();
         dataPointsFileName.delete();
       }
@@ -562,4 +972,18 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   }
 
   // TODO make sure that equals and hashCode() works
+
+  /**
+   * Data points stored in another raw data file under the given storage ID
+   */
+  private static class SharedDataPoints {
+
+    private final RawDataFileImpl file;
+    private final int storageID;
+
+    SharedDataPoints(RawDataFileImpl file, int storageID) {
+      this.file = file;
+      this.storageID = storageID;
+    }
+  }
 }
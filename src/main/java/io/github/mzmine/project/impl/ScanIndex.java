@@ -0,0 +1,180 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package io.github.mzmine.project.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import com.google.common.collect.Range;
+import io.github.mzmine.datamodel.Scan;
+
+/**
+ * Immutable index of the scans of one raw data file. For each MS level, the scans are kept sorted
+ * by retention time in primitive arrays, so that scans in a retention time range are found by
+ * binary search. For MS levels above 1, the scans are additionally sorted by precursor m/z, so that
+ * fragment scans of a given precursor can be found without looking at all fragment scans.
+ */
+class ScanIndex {
+
+  private static final int EMPTY[] = new int[0];
+
+  private final Map<Integer, LevelIndex> levels = new HashMap<>();
+
+  ScanIndex(@Nonnull Collection<? extends Scan> scans) {
+
+    Map<Integer, List<Scan>> scansByLevel = new HashMap<>();
+    for (Scan scan : scans) {
+      scansByLevel.computeIfAbsent(scan.getMSLevel(), l -> new ArrayList<>()).add(scan);
+    }
+
+    for (Map.Entry<Integer, List<Scan>> entry : scansByLevel.entrySet()) {
+      levels.put(entry.getKey(), new LevelIndex(entry.getKey(), entry.getValue()));
+    }
+  }
+
+  /**
+   * @return Sorted array of the numbers of all scans in given MS level and retention time range
+   */
+  @Nonnull
+  int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange) {
+
+    final LevelIndex level = levels.get(msLevel);
+    if (level == null)
+      return EMPTY;
+
+    final double maxRT = rtRange.hasUpperBound() ? rtRange.upperEndpoint() : Double.MAX_VALUE;
+    final int startIndex = rtRange.hasLowerBound()
+        ? findFirstIndex(level.rtValues, rtRange.lowerEndpoint())
+        : 0;
+
+    int numbers[] = new int[16];
+    int count = 0;
+    for (int i = startIndex; (i < level.rtValues.length) && (level.rtValues[i] <= maxRT); i++) {
+      if (!rtRange.contains(level.rtValues[i]))
+        continue;
+      if (count == numbers.length)
+        numbers = Arrays.copyOf(numbers, count * 2);
+      numbers[count++] = level.rtScanNumbers[i];
+    }
+
+    numbers = Arrays.copyOf(numbers, count);
+    Arrays.sort(numbers);
+    return numbers;
+  }
+
+  /**
+   * @return Sorted array of the numbers of all scans in given MS level, retention time range and
+   *         precursor m/z range
+   */
+  @Nonnull
+  int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange,
+      @Nonnull Range<Double> precursorMZRange) {
+
+    final LevelIndex level = levels.get(msLevel);
+    if ((level == null) || (level.precursorMZValues == null))
+      return EMPTY;
+
+    final double maxMZ =
+        precursorMZRange.hasUpperBound() ? precursorMZRange.upperEndpoint() : Double.MAX_VALUE;
+    final int startIndex = precursorMZRange.hasLowerBound()
+        ? findFirstIndex(level.precursorMZValues, precursorMZRange.lowerEndpoint())
+        : 0;
+
+    int numbers[] = new int[16];
+    int count = 0;
+    for (int i = startIndex; (i < level.precursorMZValues.length)
+        && (level.precursorMZValues[i] <= maxMZ); i++) {
+      if (!precursorMZRange.contains(level.precursorMZValues[i])
+          || !rtRange.contains(level.precursorRTValues[i]))
+        continue;
+      if (count == numbers.length)
+        numbers = Arrays.copyOf(numbers, count * 2);
+      numbers[count++] = level.precursorScanNumbers[i];
+    }
+
+    numbers = Arrays.copyOf(numbers, count);
+    Arrays.sort(numbers);
+    return numbers;
+  }
+
+  /**
+   * Returns the index of the first value which is greater than or equal to the given key
+   */
+  private static int findFirstIndex(double sortedValues[], double key) {
+    int low = 0, high = sortedValues.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (sortedValues[mid] < key)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  private static class LevelIndex {
+
+    // Scans sorted by retention time
+    private final double rtValues[];
+    private final int rtScanNumbers[];
+
+    // Scans sorted by precursor m/z, only for MS levels above 1
+    private final double precursorMZValues[];
+    private final double precursorRTValues[];
+    private final int precursorScanNumbers[];
+
+    LevelIndex(int msLevel, List<Scan> scans) {
+
+      final int numOfScans = scans.size();
+
+      scans.sort(Comparator.comparingDouble(Scan::getRetentionTime)
+          .thenComparingInt(Scan::getScanNumber));
+      rtValues = new double[numOfScans];
+      rtScanNumbers = new int[numOfScans];
+      for (int i = 0; i < numOfScans; i++) {
+        rtValues[i] = scans.get(i).getRetentionTime();
+        rtScanNumbers[i] = scans.get(i).getScanNumber();
+      }
+
+      if (msLevel <= 1) {
+        precursorMZValues = null;
+        precursorRTValues = null;
+        precursorScanNumbers = null;
+        return;
+      }
+
+      scans.sort(Comparator.comparingDouble(Scan::getPrecursorMZ)
+          .thenComparingInt(Scan::getScanNumber));
+      precursorMZValues = new double[numOfScans];
+      precursorRTValues = new double[numOfScans];
+      precursorScanNumbers = new int[numOfScans];
+      for (int i = 0; i < numOfScans; i++) {
+        precursorMZValues[i] = scans.get(i).getPrecursorMZ();
+        precursorRTValues[i] = scans.get(i).getRetentionTime();
+        precursorScanNumbers[i] = scans.get(i).getScanNumber();
+      }
+    }
+  }
+
+}
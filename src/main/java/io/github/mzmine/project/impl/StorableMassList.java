@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import io.github.mzmine.datamodel.DataPoint;
 import io.github.mzmine.datamodel.MassList;
@@ -73,6 +74,41 @@ public class StorableMassList implements MassList {
     }
   }
 
+  @Override
+  public int getNumberOfDataPoints() {
+    try {
+      return rawDataFile.getNumOfStoredDataPoints(storageID);
+    } catch (IllegalArgumentException e) {
+      return 0;
+    }
+  }
+
+  @Override
+  public @Nonnull double[] getMzValues(@Nullable double dst[]) {
+    try {
+      final int numOfDataPoints = rawDataFile.getNumOfStoredDataPoints(storageID);
+      if ((dst == null) || (dst.length < numOfDataPoints))
+        dst = new double[numOfDataPoints];
+      rawDataFile.readDataPoints(storageID, dst, null);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
+    return dst != null ? dst : new double[0];
+  }
+
+  @Override
+  public @Nonnull double[] getIntensityValues(@Nullable double dst[]) {
+    try {
+      final int numOfDataPoints = rawDataFile.getNumOfStoredDataPoints(storageID);
+      if ((dst == null) || (dst.length < numOfDataPoints))
+        dst = new double[numOfDataPoints];
+      rawDataFile.readDataPoints(storageID, null, dst);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
+    return dst != null ? dst : new double[0];
+  }
+
   public void removeStoredData() {
     try {
       rawDataFile.removeStoredDataPoints(storageID);
@@ -20,10 +20,10 @@ package io.github.mzmine.project.impl;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Vector;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.google.common.collect.Range;
 
@@ -33,6 +33,7 @@ import io.github.mzmine.datamodel.MassSpectrumType;
 import io.github.mzmine.datamodel.PolarityType;
 import io.github.mzmine.datamodel.RawDataFile;
 import io.github.mzmine.datamodel.Scan;
+import io.github.mzmine.datamodel.impl.SimpleDataPoint;
 import io.github.mzmine.main.MZmineCore;
 import io.github.mzmine.util.scans.ScanUtils;
 
@@ -125,48 +126,88 @@ public class StorableScan implements Scan {
   }
 
   /**
-   * @return Returns scan datapoints within a given range
+   * @see io.github.mzmine.datamodel.MassSpectrum#getMzValues(double[])
    */
-  public @Nonnull DataPoint[] getDataPointsByMass(@Nonnull Range<Double> mzRange) {
-
-    DataPoint dataPoints[] = getDataPoints();
-
-    int startIndex, endIndex;
-    for (startIndex = 0; startIndex < dataPoints.length; startIndex++) {
-      if (dataPoints[startIndex].getMZ() >= mzRange.lowerEndpoint()) {
-        break;
-      }
+  @Override
+  public @Nonnull double[] getMzValues(@Nullable double dst[]) {
+    if ((dst == null) || (dst.length < numberOfDataPoints))
+      dst = new double[numberOfDataPoints];
+    try {
+      rawDataFile.readDataPoints(storageID, dst, null);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
     }
+    return dst;
+  }
 
-    for (endIndex = startIndex; endIndex < dataPoints.length; endIndex++) {
-      if (dataPoints[endIndex].getMZ() > mzRange.upperEndpoint()) {
-        break;
-      }
+  /**
+   * @see io.github.mzmine.datamodel.MassSpectrum#getIntensityValues(double[])
+   */
+  @Override
+  public @Nonnull double[] getIntensityValues(@Nullable double dst[]) {
+    if ((dst == null) || (dst.length < numberOfDataPoints))
+      dst = new double[numberOfDataPoints];
+    try {
+      rawDataFile.readDataPoints(storageID, null, dst);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
     }
+    return dst;
+  }
 
-    DataPoint pointsWithinRange[] = new DataPoint[endIndex - startIndex];
+  /**
+   * @see io.github.mzmine.datamodel.MassSpectrum#getMzAndIntensityValues(double[], double[])
+   */
+  @Override
+  public int getMzAndIntensityValues(@Nonnull double mzValues[],
+      @Nonnull double intensityValues[]) {
+    try {
+      rawDataFile.readDataPoints(storageID, mzValues, intensityValues);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
+    return numberOfDataPoints;
+  }
 
-    // Copy the relevant points
-    System.arraycopy(dataPoints, startIndex, pointsWithinRange, 0, endIndex - startIndex);
+  /**
+   * @return Returns scan datapoints within a given range. Only the data points within the range
+   *         are read from the temporary file, the range borders are found by binary search.
+   */
+  public @Nonnull DataPoint[] getDataPointsByMass(@Nonnull Range<Double> mzRange) {
 
-    return pointsWithinRange;
+    try {
+      return rawDataFile.readDataPointsByMass(storageID, mzRange);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return new DataPoint[0];
+    }
   }
 
   /**
    * @return Returns scan datapoints over certain intensity
    */
   public @Nonnull DataPoint[] getDataPointsOverIntensity(double intensity) {
-    int index;
-    Vector<DataPoint> points = new Vector<DataPoint>();
-    DataPoint dataPoints[] = getDataPoints();
 
-    for (index = 0; index < dataPoints.length; index++) {
-      if (dataPoints[index].getIntensity() >= intensity) {
-        points.add(dataPoints[index]);
-      }
+    final double mzValues[] = new double[numberOfDataPoints];
+    final double intensityValues[] = new double[numberOfDataPoints];
+    try {
+      rawDataFile.readDataPoints(storageID, mzValues, intensityValues);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return new DataPoint[0];
+    }
+
+    int numOfPointsOverIntensity = 0;
+    for (int i = 0; i < numberOfDataPoints; i++) {
+      if (intensityValues[i] >= intensity)
+        numOfPointsOverIntensity++;
     }
 
-    DataPoint pointsOverIntensity[] = points.toArray(new DataPoint[0]);
+    DataPoint pointsOverIntensity[] = new DataPoint[numOfPointsOverIntensity];
+    for (int i = 0, j = 0; i < numberOfDataPoints; i++) {
+      if (intensityValues[i] >= intensity)
+        pointsOverIntensity[j++] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+    }
 
     return pointsOverIntensity;
   }
@@ -179,6 +220,10 @@ public class StorableScan implements Scan {
     return storageID;
   }
 
+  void setScanNumber(int scanNumber) {
+    this.scanNumber = scanNumber;
+  }
+
   /**
    * @see io.github.mzmine.datamodel.Scan#getNumberOfDataPoints()
    */
@@ -222,26 +267,35 @@ public class StorableScan implements Scan {
   }
 
   void updateValues() {
-    DataPoint dataPoints[] = getDataPoints();
+    final double mzValues[] = new double[numberOfDataPoints];
+    final double intensityValues[] = new double[numberOfDataPoints];
+    try {
+      rawDataFile.readDataPoints(storageID, mzValues, intensityValues);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
 
     // find m/z range and base peak
-    if (dataPoints.length > 0) {
+    if (numberOfDataPoints > 0) {
 
-      basePeak = dataPoints[0];
-      mzRange = Range.singleton(dataPoints[0].getMZ());
+      int basePeakIndex = 0;
+      double minMz = mzValues[0], maxMz = mzValues[0];
       double tic = 0;
 
-      for (DataPoint dp : dataPoints) {
+      for (int i = 0; i < numberOfDataPoints; i++) {
 
-        if (dp.getIntensity() > basePeak.getIntensity())
-          basePeak = dp;
+        if (intensityValues[i] > intensityValues[basePeakIndex])
+          basePeakIndex = i;
 
-        mzRange = mzRange.span(Range.singleton(dp.getMZ()));
+        minMz = Math.min(minMz, mzValues[i]);
+        maxMz = Math.max(maxMz, mzValues[i]);
 
-        tic += dp.getIntensity();
+        tic += intensityValues[i];
 
       }
 
+      basePeak = new SimpleDataPoint(mzValues[basePeakIndex], intensityValues[basePeakIndex]);
+      mzRange = Range.closed(minMz, maxMz);
       totalIonCurrent = new Double(tic);
 
     } else {
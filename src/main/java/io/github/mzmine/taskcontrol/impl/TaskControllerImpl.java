@@ -21,7 +21,15 @@ package io.github.mzmine.taskcontrol.impl;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import io.github.mzmine.gui.Desktop;
@@ -29,6 +37,7 @@ import io.github.mzmine.gui.HeadLessDesktop;
 import io.github.mzmine.gui.preferences.MZminePreferences;
 import io.github.mzmine.gui.preferences.NumOfThreadsParameter;
 import io.github.mzmine.main.MZmineCore;
+import io.github.mzmine.taskcontrol.AbstractTask;
 import io.github.mzmine.taskcontrol.Task;
 import io.github.mzmine.taskcontrol.TaskControlListener;
 import io.github.mzmine.taskcontrol.TaskController;
@@ -36,9 +45,16 @@ import io.github.mzmine.taskcontrol.TaskPriority;
 import io.github.mzmine.taskcontrol.TaskStatus;
 
 /**
- * Task controller implementation
+ * Task controller implementation.
+ *
+ * Tasks are dispatched when they are added and whenever a task finishes, so a waiting task starts
+ * as soon as a worker becomes free. HIGH priority tasks are always started immediately. NORMAL
+ * priority tasks wait in a FIFO lane until fewer than the maximum number of concurrent threads
+ * (set in the preferences) are processing NORMAL priority tasks. Tasks run on two pools of worker
+ * threads, one for each priority, each limited to the maximum number of concurrent threads. Worker
+ * threads are reused for subsequent tasks and only end after being idle for a while.
  */
-public class TaskControllerImpl implements TaskController, Runnable {
+public class TaskControllerImpl implements TaskController {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
@@ -49,32 +65,81 @@ public class TaskControllerImpl implements TaskController, Runnable {
    */
   private final int TASKCONTROLLER_THREAD_SLEEP = 300;
 
-  private Thread taskControllerThread;
+  /**
+   * Idle worker threads end after this time (in seconds)
+   */
+  private static final int WORKER_KEEP_ALIVE_TIME = 60;
 
   private TaskQueue taskQueue;
 
   /**
-   * This vector contains references to all running threads of NORMAL priority. Maximum number of
-   * concurrent threads is specified in the preferences dialog.
+   * NORMAL priority tasks which wait for a free worker, in the order they were added
+   */
+  private final LinkedHashSet<WrappedTask> waitingTasks = new LinkedHashSet<>();
+
+  /**
+   * Number of running tasks which count against the maximum number of concurrent threads
    */
-  private Vector<WorkerThread> runningThreads;
+  private int numOfLimitedTasks = 0;
+
+  private ThreadPoolExecutor workerPool, highPriorityWorkerPool;
+
+  private ScheduledExecutorService progressUpdater;
+
+  private int previousQueueSize = -1;
+  private int previousPercentDone = -1;
 
   /**
    * Initialize the task controller
    */
   public void initModule() {
 
-    logger.finest("Starting task controller thread");
+    logger.finest("Starting task controller");
     taskQueue = new TaskQueue();
 
-    runningThreads = new Vector<WorkerThread>();
+    // Worker threads have low priority, so the GUI stays responsive. Tasks beyond the maximum
+    // number of threads are queued by the pools.
+    final AtomicInteger workerCount = new AtomicInteger(0);
+    final ThreadFactory workerFactory = r -> {
+      Thread thread = new Thread(r, "Task controller worker " + workerCount.incrementAndGet());
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    };
+    final int maxRunningThreads = getMaxRunningThreads();
+    workerPool = createWorkerPool(maxRunningThreads, workerFactory);
+    highPriorityWorkerPool = createWorkerPool(maxRunningThreads, workerFactory);
+
+    // Create a low-priority thread that will update the progress of the tasks
+    progressUpdater = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "Task controller thread");
+      thread.setPriority(Thread.MIN_PRIORITY);
+      thread.setDaemon(true);
+      return thread;
+    });
+    progressUpdater.scheduleWithFixedDelay(this::updateProgress, TASKCONTROLLER_THREAD_SLEEP,
+        TASKCONTROLLER_THREAD_SLEEP, TimeUnit.MILLISECONDS);
 
-    // Create a low-priority thread that will manage the queue and start
-    // worker threads for tasks
-    taskControllerThread = new Thread(this, "Task controller thread");
-    taskControllerThread.setPriority(Thread.MIN_PRIORITY);
-    taskControllerThread.start();
+  }
+
+  private static ThreadPoolExecutor createWorkerPool(int maxThreads, ThreadFactory workerFactory) {
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+        WORKER_KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        workerFactory);
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
 
+  /**
+   * Applies a changed maximum number of threads to a worker pool
+   */
+  private static void resizeWorkerPool(ThreadPoolExecutor pool, int maxThreads) {
+    if (maxThreads > pool.getMaximumPoolSize()) {
+      pool.setMaximumPoolSize(maxThreads);
+      pool.setCorePoolSize(maxThreads);
+    } else if (maxThreads < pool.getMaximumPoolSize()) {
+      pool.setCorePoolSize(maxThreads);
+      pool.setMaximumPoolSize(maxThreads);
+    }
   }
 
   @Override
@@ -112,33 +177,110 @@ public class TaskControllerImpl implements TaskController, Runnable {
     if ((tasks == null) || (tasks.length == 0))
       return;
 
-    for (int i = 0; i < tasks.length; i++) {
-      Task task = tasks[i];
-      TaskPriority priority = priorities[i];
-      WrappedTask newQueueEntry = new WrappedTask(task, priority);
-      taskQueue.addWrappedTask(newQueueEntry);
-      // logger.finest("Added wrapped task for " +
-      // task.getTaskDescription());
+    synchronized (this) {
+      for (int i = 0; i < tasks.length; i++) {
+        Task task = tasks[i];
+        TaskPriority priority = priorities[i];
+        WrappedTask newQueueEntry = new WrappedTask(task, priority);
+        taskQueue.addWrappedTask(newQueueEntry);
+        // logger.finest("Added wrapped task for " +
+        // task.getTaskDescription());
+
+        // Waiting tasks are removed from the lane as soon as they are canceled
+        if (task instanceof AbstractTask) {
+          ((AbstractTask) task).addTaskStatusListener((t, newStatus, oldStatus) -> {
+            if (newStatus == TaskStatus.CANCELED)
+              removeWaitingTask(newQueueEntry);
+          });
+        }
+
+        // High priority tasks are executed immediately
+        if (priority == TaskPriority.HIGH)
+          startTask(newQueueEntry, false);
+        else
+          waitingTasks.add(newQueueEntry);
+      }
+
+      dispatchWaitingTasks();
+    }
+  }
+
+  /**
+   * Starts waiting tasks while fewer than the maximum number of threads are busy with NORMAL
+   * priority tasks. Canceled tasks are skipped.
+   */
+  private synchronized void dispatchWaitingTasks() {
+
+    final int maxRunningThreads = getMaxRunningThreads();
+    resizeWorkerPool(workerPool, maxRunningThreads);
+    resizeWorkerPool(highPriorityWorkerPool, maxRunningThreads);
+
+    final Iterator<WrappedTask> iterator = waitingTasks.iterator();
+    while ((numOfLimitedTasks < maxRunningThreads) && iterator.hasNext()) {
+
+      WrappedTask task = iterator.next();
+      iterator.remove();
+
+      // Tasks which do not report their status changes may have been canceled while waiting
+      if (task.getActualTask().getStatus() == TaskStatus.CANCELED) {
+        taskQueue.taskFinished();
+        continue;
+      }
+
+      startTask(task, true);
     }
+  }
 
-    // Wake up the task controller thread
+  /**
+   * Removes a canceled task from the waiting lane, so it is finished without waiting for a free
+   * worker
+   */
+  private synchronized void removeWaitingTask(WrappedTask task) {
+    if (waitingTasks.remove(task))
+      taskQueue.taskFinished();
+  }
+
+  private synchronized void startTask(WrappedTask task, boolean limited) {
+    if (limited)
+      numOfLimitedTasks++;
+    final ThreadPoolExecutor pool = limited ? workerPool : highPriorityWorkerPool;
+    pool.execute(new TaskWorker(this, task, limited));
+  }
+
+  /**
+   * Called by the worker when its task is done, successfully or not
+   */
+  void taskFinished(TaskWorker worker) {
     synchronized (this) {
-      this.notifyAll();
+      if (worker.isLimited())
+        numOfLimitedTasks--;
+      taskQueue.taskFinished();
+      dispatchWaitingTasks();
     }
   }
 
   /**
-   * Task controller thread main method.
-   * 
-   * @see java.lang.Runnable#run()
+   * Obtain the settings of max concurrent threads
    */
-  @Override
-  public void run() {
+  private int getMaxRunningThreads() {
+    NumOfThreadsParameter parameter =
+        MZmineCore.getConfiguration().getPreferences().getParameter(MZminePreferences.numOfThreads);
+    if (parameter.isAutomatic() || (parameter.getValue() == null))
+      return Runtime.getRuntime().availableProcessors();
+    else
+      return parameter.getValue();
+  }
+
+  /**
+   * Periodically updates the progress of the tasks for the listeners and the tasks window. Tasks
+   * are dispatched without waiting for this update, it only picks up changes of the maximum number
+   * of threads in the preferences.
+   */
+  private void updateProgress() {
 
-    int previousQueueSize = -1;
-    int previousPercentDone = -1;
+    try {
 
-    while (true) {
+      dispatchWaitingTasks();
 
       final int waitingTasks = taskQueue.getNumOfWaitingTasks();
       final int percentDone = taskQueue.getTotalPercentComplete();
@@ -149,64 +291,11 @@ public class TaskControllerImpl implements TaskController, Runnable {
           listener.numberOfWaitingTasksChanged(waitingTasks, percentDone);
       }
 
-      // If the queue is empty, we can sleep. When new task is added into
-      // the queue, we will be awaken by notify()
-      synchronized (this) {
-        while (taskQueue.isEmpty()) {
-          try {
-            this.wait();
-          } catch (InterruptedException e) {
-            // Ignore
-          }
-        }
-      }
+      if (taskQueue.isEmpty())
+        return;
 
       // Check if all tasks in the queue are finished
-      if (taskQueue.allTasksFinished()) {
-        taskQueue.clear();
-        continue;
-      }
-
-      // Remove already finished threads from runningThreads
-      Iterator<WorkerThread> threadIterator = runningThreads.iterator();
-      while (threadIterator.hasNext()) {
-        WorkerThread thread = threadIterator.next();
-        if (thread.isFinished())
-          threadIterator.remove();
-      }
-
-      // Get a snapshot of the queue
-      WrappedTask[] queueSnapshot = taskQueue.getQueueSnapshot();
-
-      // Obtain the settings of max concurrent threads
-      NumOfThreadsParameter parameter = MZmineCore.getConfiguration().getPreferences()
-          .getParameter(MZminePreferences.numOfThreads);
-      int maxRunningThreads;
-      if (parameter.isAutomatic() || (parameter.getValue() == null))
-        maxRunningThreads = Runtime.getRuntime().availableProcessors();
-      else
-        maxRunningThreads = parameter.getValue();
-
-      // Check all tasks in the queue
-      for (WrappedTask task : queueSnapshot) {
-
-        // Skip assigned and canceled tasks
-        if (task.isAssigned() || (task.getActualTask().getStatus() == TaskStatus.CANCELED))
-          continue;
-
-        // Create a new thread if the task is high-priority or if we
-        // have less then maximum # of threads running
-        if ((task.getPriority() == TaskPriority.HIGH)
-            || (runningThreads.size() < maxRunningThreads)) {
-          WorkerThread newThread = new WorkerThread(task);
-
-          if (task.getPriority() == TaskPriority.NORMAL) {
-            runningThreads.add(newThread);
-          }
-
-          newThread.start();
-        }
-      }
+      taskQueue.clearIfAllTasksFinished();
 
       // Refresh the tasks window
       Desktop desktop = MZmineCore.getDesktop();
@@ -214,13 +303,9 @@ public class TaskControllerImpl implements TaskController, Runnable {
         desktop.getTasksView().refresh();
       }
 
-      // Sleep for a while until next update
-      try {
-        Thread.sleep(TASKCONTROLLER_THREAD_SLEEP);
-      } catch (InterruptedException e) {
-        // Ignore
-      }
-
+    } catch (Throwable e) {
+      // Never let an exception stop the periodic updates
+      logger.log(Level.WARNING, "Error while updating the task progress", e);
     }
 
   }
@@ -238,6 +323,12 @@ public class TaskControllerImpl implements TaskController, Runnable {
         logger.finest(
             "Setting priority of task \"" + task.getTaskDescription() + "\" to " + priority);
         wrappedTask.setPriority(priority);
+
+        // A waiting task which became high priority starts immediately
+        synchronized (this) {
+          if ((priority == TaskPriority.HIGH) && waitingTasks.remove(wrappedTask))
+            startTask(wrappedTask, false);
+        }
       }
     }
 
@@ -20,7 +20,6 @@ package io.github.mzmine.taskcontrol.impl;
 
 import java.util.logging.Logger;
 
-import io.github.mzmine.taskcontrol.TaskStatus;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 
@@ -38,11 +37,18 @@ public class TaskQueue {
   private final ObservableList<WrappedTask> queue =
       FXCollections.synchronizedObservableList(FXCollections.observableArrayList());
 
+  /**
+   * Number of tasks in the queue which were not processed yet or are being processed. Maintained by
+   * the task controller when tasks are added, finished or canceled while waiting, so that counting
+   * the waiting tasks does not need to look at every task.
+   */
+  private int numOfUnfinishedTasks = 0;
+
+  /**
+   * @return Number of tasks which are waiting or being processed
+   */
   public synchronized int getNumOfWaitingTasks() {
-    final long numOfWaitingTasks =
-        queue.stream().filter(task -> ((task.getActualTask().getStatus() == TaskStatus.PROCESSING)
-            || (task.getActualTask().getStatus() == TaskStatus.WAITING))).count();
-    return (int) numOfWaitingTasks;
+    return numOfUnfinishedTasks;
   }
 
   public synchronized int getTotalPercentComplete() {
@@ -61,11 +67,23 @@ public class TaskQueue {
   synchronized void addWrappedTask(WrappedTask task) {
     logger.finest("Adding task \"" + task + "\" to the task controller queue");
     queue.add(task);
+    numOfUnfinishedTasks++;
 
   }
 
-  synchronized void clear() {
-    queue.clear();
+  /**
+   * Called by the task controller when a task of the queue was processed or skipped
+   */
+  synchronized void taskFinished() {
+    numOfUnfinishedTasks--;
+  }
+
+  /**
+   * Removes all tasks from the queue if all of them are finished
+   */
+  synchronized void clearIfAllTasksFinished() {
+    if (allTasksFinished())
+      queue.clear();
   }
 
   synchronized boolean isEmpty() {
@@ -73,8 +91,7 @@ public class TaskQueue {
   }
 
   synchronized boolean allTasksFinished() {
-    final int numOfWaitingTasks = getNumOfWaitingTasks();
-    return numOfWaitingTasks == 0;
+    return numOfUnfinishedTasks == 0;
   }
 
   public synchronized WrappedTask[] getQueueSnapshot() {
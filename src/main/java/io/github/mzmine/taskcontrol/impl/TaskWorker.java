@@ -27,19 +27,24 @@ import io.github.mzmine.taskcontrol.TaskStatus;
 import io.github.mzmine.util.ExceptionUtils;
 
 /**
- * Task controller worker thread, this thread will process one task and then finish
+ * Task controller worker, processes one task on a thread of the task controller's worker pool. The
+ * thread is renamed after the task while the task is processed, and reports back to the task
+ * controller when the task is done.
  */
-class WorkerThread extends Thread {
+class TaskWorker implements Runnable {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
-  private WrappedTask wrappedTask;
-  private boolean finished = false;
+  private final TaskControllerImpl taskController;
+  private final WrappedTask wrappedTask;
 
-  WorkerThread(WrappedTask wrappedTask) {
-    super("Thread executing task " + wrappedTask);
+  // True if the task counts against the maximum number of concurrent NORMAL priority tasks
+  private final boolean limited;
+
+  TaskWorker(TaskControllerImpl taskController, WrappedTask wrappedTask, boolean limited) {
+    this.taskController = taskController;
     this.wrappedTask = wrappedTask;
-    wrappedTask.assignTo(this);
+    this.limited = limited;
   }
 
   /**
@@ -49,6 +54,12 @@ class WorkerThread extends Thread {
 
     Task actualTask = wrappedTask.getActualTask();
 
+    final Thread thread = Thread.currentThread();
+    final String threadName = thread.getName();
+    final int threadPriority = thread.getPriority();
+    thread.setName("Thread executing task " + wrappedTask);
+    wrappedTask.assignTo(thread);
+
     try {
 
       // Log the start (INFO level events go to the Status bar, too)
@@ -99,14 +110,22 @@ class WorkerThread extends Thread {
     }
 
     /*
-     * Mark this thread as finished
+     * Release the thread for the next task
      */
-    finished = true;
+    wrappedTask.assignTo(null);
+    thread.setName(threadName);
+    thread.setPriority(threadPriority);
+
+    taskController.taskFinished(this);
+
+  }
 
+  WrappedTask getWrappedTask() {
+    return wrappedTask;
   }
 
-  boolean isFinished() {
-    return finished;
+  boolean isLimited() {
+    return limited;
   }
 
 }
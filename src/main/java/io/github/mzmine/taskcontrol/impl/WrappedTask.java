@@ -44,7 +44,7 @@ public class WrappedTask {
 
   private Task task;
   private TaskPriority priority;
-  private WorkerThread assignedTo;
+  private Thread assignedTo;
 
   WrappedTask(Task task, TaskPriority priority) {
     this.task = task;
@@ -54,14 +54,14 @@ public class WrappedTask {
   /**
    * @return Returns the priority.
    */
-  TaskPriority getPriority() {
+  synchronized TaskPriority getPriority() {
     return priority;
   }
 
   /**
    * @param priority The priority to set.
    */
-  void setPriority(TaskPriority priority) {
+  synchronized void setPriority(TaskPriority priority) {
     this.priority = priority;
     if (assignedTo != null) {
       switch (priority) {
@@ -76,13 +76,9 @@ public class WrappedTask {
   }
 
   /**
-   * @return Returns the assigned.
+   * @param thread Thread which processes the task, or null when the task is done
    */
-  boolean isAssigned() {
-    return assignedTo != null;
-  }
-
-  void assignTo(WorkerThread thread) {
+  synchronized void assignTo(Thread thread) {
     assignedTo = thread;
   }
 
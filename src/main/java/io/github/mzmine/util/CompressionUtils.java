@@ -18,6 +18,7 @@
 
 package io.github.mzmine.util;
 
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -54,4 +55,37 @@ public class CompressionUtils {
     return resultTotal;
   }
 
+  /**
+   * Decompress the zlib-compressed bytes into an array of the expected length. The array grows if
+   * the decompressed data is longer than expected, and the returned array has exactly the length of
+   * the decompressed data.
+   */
+  public static byte[] decompress(byte compressedBytes[], int expectedLength)
+      throws DataFormatException {
+
+    Inflater decompresser = new Inflater();
+
+    decompresser.setInput(compressedBytes);
+
+    byte result[] = new byte[Math.max(expectedLength, 64)];
+    int resultLength = 0;
+
+    try {
+      while (!decompresser.finished()) {
+        if (resultLength == result.length)
+          result = Arrays.copyOf(result, result.length * 2);
+        int length = decompresser.inflate(result, resultLength, result.length - resultLength);
+        if ((length == 0) && (decompresser.needsInput() || decompresser.needsDictionary()))
+          break;
+        resultLength += length;
+      }
+    } finally {
+      decompresser.end();
+    }
+
+    if (resultLength == result.length)
+      return result;
+    return Arrays.copyOf(result, resultLength);
+  }
+
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package io.github.mzmine.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import javax.annotation.Nonnull;
+import com.google.common.collect.Range;
+
+/**
+ * Immutable snapshot of a list of items (e.g. feature list rows) sorted by m/z, to find all items
+ * inside an m/z range by binary search. Results are returned in the order of the original list.
+ * The index does not follow changes of the list or of the m/z values of the items, the owner has
+ * to discard it whenever they change.
+ */
+public class MZSortedIndex<T> {
+
+  private final List<T> items;
+  private final double mzValues[];
+  private final int listPositions[];
+
+  /**
+   * @param items items to index, in their original order
+   * @param mzFunction function returning the m/z value of an item, or NaN if it has none
+   */
+  public MZSortedIndex(@Nonnull List<? extends T> items,
+      @Nonnull ToDoubleFunction<? super T> mzFunction) {
+
+    final int size = items.size();
+    this.items = new ArrayList<>(items);
+
+    final double unsortedMZValues[] = new double[size];
+    Integer positions[] = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      unsortedMZValues[i] = mzFunction.applyAsDouble(this.items.get(i));
+      positions[i] = i;
+    }
+    Arrays.sort(positions, Comparator.comparingDouble(i -> unsortedMZValues[i]));
+
+    mzValues = new double[size];
+    listPositions = new int[size];
+    for (int i = 0; i < size; i++) {
+      listPositions[i] = positions[i];
+      mzValues[i] = unsortedMZValues[positions[i]];
+    }
+  }
+
+  /**
+   * @return Number of indexed items
+   */
+  public int size() {
+    return items.size();
+  }
+
+  /**
+   * Returns all items whose indexed m/z value lies inside the given range and which pass the given
+   * filter, in the order of the original list.
+   */
+  @Nonnull
+  public List<T> getItemsInside(@Nonnull Range<Double> mzRange,
+      @Nonnull Predicate<? super T> filter) {
+
+    int startIndex = 0;
+    if (mzRange.hasLowerBound()) {
+      final double minMZ = mzRange.lowerEndpoint();
+      int high = mzValues.length;
+      while (startIndex < high) {
+        final int mid = (startIndex + high) >>> 1;
+        if (mzValues[mid] < minMZ)
+          startIndex = mid + 1;
+        else
+          high = mid;
+      }
+    }
+    final double maxMZ = mzRange.hasUpperBound() ? mzRange.upperEndpoint() : Double.MAX_VALUE;
+
+    int hits[] = new int[16];
+    int numOfHits = 0;
+    for (int i = startIndex; (i < mzValues.length) && (mzValues[i] <= maxMZ); i++) {
+      if (!mzRange.contains(mzValues[i]) || !filter.test(items.get(listPositions[i])))
+        continue;
+      if (numOfHits == hits.length)
+        hits = Arrays.copyOf(hits, numOfHits * 2);
+      hits[numOfHits++] = listPositions[i];
+    }
+
+    // Restore the original order
+    Arrays.sort(hits, 0, numOfHits);
+    List<T> result = new ArrayList<>(numOfHits);
+    for (int i = 0; i < numOfHits; i++) {
+      result.add(items.get(hits[i]));
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ * 
+ * This file is part of MZmine.
+ * 
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package io.github.mzmine.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Utilities for direct and memory-mapped buffers
+ */
+public class MemoryMapUtils {
+
+  private static final Logger logger = Logger.getLogger(MemoryMapUtils.class.getName());
+
+  // Releases a direct buffer (sun.misc.Unsafe.invokeCleaner), or null if not available
+  private static final Method invokeCleaner;
+  private static final Object unsafe;
+  static {
+    Method method = null;
+    Object instance = null;
+    try {
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      instance = field.get(null);
+      method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.finest("Direct buffers cannot be released explicitly: " + e);
+    }
+    invokeCleaner = method;
+    unsafe = instance;
+  }
+
+  /**
+   * Releases the memory of a direct buffer, or unmaps a memory-mapped buffer, right away instead of
+   * when the buffer is garbage collected. A mapped file can only be deleted or replaced on Windows
+   * after it was unmapped. The buffer must not be accessed afterwards by any thread, so callers
+   * must make sure no reads are in progress. Views, slices and duplicates cannot be released, only
+   * the buffer which was allocated or mapped.
+   *
+   * @param buffer buffer to release, may be null
+   */
+  public static void unmap(ByteBuffer buffer) {
+    if ((buffer == null) || !buffer.isDirect() || (invokeCleaner == null))
+      return;
+    try {
+      invokeCleaner.invoke(unsafe, buffer);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.finest("Could not release buffer: " + e);
+    }
+  }
+
+}
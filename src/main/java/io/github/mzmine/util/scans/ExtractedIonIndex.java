@@ -0,0 +1,288 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ * 
+ * This file is part of MZmine.
+ * 
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package io.github.mzmine.util.scans;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import javax.annotation.Nonnull;
+import com.google.common.collect.Range;
+import io.github.mzmine.datamodel.Scan;
+
+/**
+ * Immutable index of the data points of a set of scans (usually all scans of one MS level of a raw
+ * data file) by m/z. The data points are grouped into m/z bins. Inside each bin they are kept in
+ * the order of their scans, in primitive arrays together with the index of their scan, so the data
+ * points of an extracted ion chromatogram within a range of scans are read as a few contiguous
+ * slices instead of reading every scan. Values are kept in single precision like in the temporary
+ * files of raw data files, so results are the same as when reading the scans.
+ */
+public class ExtractedIonIndex {
+
+  private static final double DEFAULT_BIN_WIDTH = 1.0;
+  private static final int MAX_BINS = 1 << 20;
+
+  // Indexed scans, sorted by scan number
+  private final Scan scans[];
+  private final int scanNumbers[];
+  private final double retentionTimes[];
+
+  private final double minMZ, binWidth;
+  private final int numOfBins;
+  private final float binMZValues[][], binIntensityValues[][];
+  private final int binScanIndices[][];
+  private long numOfDataPoints;
+
+  /**
+   * Builds the index by reading the data points of all given scans once.
+   */
+  public ExtractedIonIndex(@Nonnull Scan scans[]) {
+
+    this.scans = scans.clone();
+    Arrays.sort(this.scans, Comparator.comparingInt(Scan::getScanNumber));
+    scanNumbers = new int[this.scans.length];
+    retentionTimes = new double[this.scans.length];
+    for (int i = 0; i < this.scans.length; i++) {
+      scanNumbers[i] = this.scans[i].getScanNumber();
+      retentionTimes[i] = this.scans[i].getRetentionTime();
+    }
+
+    double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+    for (Scan scan : this.scans) {
+      if (scan.getNumberOfDataPoints() == 0)
+        continue;
+      final Range<Double> mzRange = scan.getDataPointMZRange();
+      min = Math.min(min, mzRange.lowerEndpoint());
+      max = Math.max(max, mzRange.upperEndpoint());
+    }
+
+    if (min > max) {
+      minMZ = 0;
+      binWidth = DEFAULT_BIN_WIDTH;
+      numOfBins = 0;
+    } else {
+      minMZ = min;
+      binWidth = Math.max(DEFAULT_BIN_WIDTH, (max - min) / (MAX_BINS - 1));
+      numOfBins = (int) ((max - min) / binWidth) + 1;
+    }
+
+    binMZValues = new float[numOfBins][];
+    binIntensityValues = new float[numOfBins][];
+    binScanIndices = new int[numOfBins][];
+
+    // Collect the data points bin by bin, in the order of the scans
+    final int binSizes[] = new int[numOfBins];
+    double mzValues[] = new double[0], intensityValues[] = new double[0];
+    for (int scanIndex = 0; scanIndex < this.scans.length; scanIndex++) {
+      final Scan scan = this.scans[scanIndex];
+      final int numOfScanDataPoints = scan.getNumberOfDataPoints();
+      if (mzValues.length < numOfScanDataPoints) {
+        mzValues = new double[numOfScanDataPoints];
+        intensityValues = new double[numOfScanDataPoints];
+      }
+      scan.getMzAndIntensityValues(mzValues, intensityValues);
+
+      for (int i = 0; i < numOfScanDataPoints; i++) {
+        final int bin = getBin(mzValues[i]);
+        final int size = binSizes[bin];
+        if (binMZValues[bin] == null) {
+          binMZValues[bin] = new float[16];
+          binIntensityValues[bin] = new float[16];
+          binScanIndices[bin] = new int[16];
+        } else if (size == binMZValues[bin].length) {
+          binMZValues[bin] = Arrays.copyOf(binMZValues[bin], size * 2);
+          binIntensityValues[bin] = Arrays.copyOf(binIntensityValues[bin], size * 2);
+          binScanIndices[bin] = Arrays.copyOf(binScanIndices[bin], size * 2);
+        }
+        binMZValues[bin][size] = (float) mzValues[i];
+        binIntensityValues[bin][size] = (float) intensityValues[i];
+        binScanIndices[bin][size] = scanIndex;
+        binSizes[bin]++;
+      }
+      numOfDataPoints += numOfScanDataPoints;
+    }
+
+    // Trim the bins, their data points are already in the order of the scans
+    for (int bin = 0; bin < numOfBins; bin++) {
+      final int size = binSizes[bin];
+      if (size == 0) {
+        binMZValues[bin] = new float[0];
+        binIntensityValues[bin] = new float[0];
+        binScanIndices[bin] = new int[0];
+      } else if (size < binMZValues[bin].length) {
+        binMZValues[bin] = Arrays.copyOf(binMZValues[bin], size);
+        binIntensityValues[bin] = Arrays.copyOf(binIntensityValues[bin], size);
+        binScanIndices[bin] = Arrays.copyOf(binScanIndices[bin], size);
+      }
+    }
+  }
+
+  private int getBin(double mz) {
+    final int bin = (int) ((mz - minMZ) / binWidth);
+    return Math.max(0, Math.min(numOfBins - 1, bin));
+  }
+
+  /**
+   * @return Indexed scans sorted by scan number. The array must not be modified.
+   */
+  @Nonnull
+  public Scan[] getScans() {
+    return scans;
+  }
+
+  public int getNumberOfScans() {
+    return scans.length;
+  }
+
+  /**
+   * @return Index of the scan with the given number in getScans(), or -1 if it is not indexed
+   */
+  public int getScanIndex(int scanNumber) {
+    final int index = Arrays.binarySearch(scanNumbers, scanNumber);
+    return index >= 0 ? index : -1;
+  }
+
+  /**
+   * Finds the indexed scans inside the given retention time range. The retention times of the
+   * scans are assumed to increase with their scan numbers.
+   *
+   * @return Index of the first scan in getScans() with a retention time of at least the lower end
+   *         of the range. The scans from this index up to getLastScanIndex() are inside the range.
+   */
+  public int getFirstScanIndex(@Nonnull Range<Double> rtRange) {
+    return findFirstIndex(retentionTimes, rtRange.lowerEndpoint(), false);
+  }
+
+  /**
+   * @return Index of the last scan in getScans() with a retention time of at most the upper end of
+   *         the given range, or -1 if there is none. See getFirstScanIndex().
+   */
+  public int getLastScanIndex(@Nonnull Range<Double> rtRange) {
+    return findFirstIndex(retentionTimes, rtRange.upperEndpoint(), true) - 1;
+  }
+
+  /**
+   * @return Total number of indexed data points
+   */
+  public long getNumberOfDataPoints() {
+    return numOfDataPoints;
+  }
+
+  /**
+   * Finds the most intense data point inside the given m/z range in each indexed scan, like
+   * ScanUtils.findBasePeak(). Scans without any data point in the range get an m/z value of NaN
+   * and an intensity of 0.
+   *
+   * @param basePeakMZ receives the m/z value of the base peak of each scan of getScans()
+   * @param basePeakIntensity receives the intensity of the base peak of each scan of getScans()
+   */
+  public void findBasePeaks(@Nonnull Range<Double> mzRange, @Nonnull double basePeakMZ[],
+      @Nonnull double basePeakIntensity[]) {
+    findBasePeaks(mzRange, 0, scans.length - 1, basePeakMZ, basePeakIntensity);
+  }
+
+  /**
+   * Like findBasePeaks(Range, double[], double[]), but only for the scans from firstScanIndex to
+   * lastScanIndex (inclusive). Only these elements of the arrays are written, and only the data
+   * points of these scans are read.
+   */
+  public void findBasePeaks(@Nonnull Range<Double> mzRange, int firstScanIndex, int lastScanIndex,
+      @Nonnull double basePeakMZ[], @Nonnull double basePeakIntensity[]) {
+
+    if (firstScanIndex > lastScanIndex)
+      return;
+    Arrays.fill(basePeakMZ, firstScanIndex, lastScanIndex + 1, Double.NaN);
+    Arrays.fill(basePeakIntensity, firstScanIndex, lastScanIndex + 1, 0.0);
+    if (numOfBins == 0)
+      return;
+
+    final double minMz = mzRange.lowerEndpoint(), maxMz = mzRange.upperEndpoint();
+    for (int bin = getBin(minMz), lastBin = getBin(maxMz); bin <= lastBin; bin++) {
+      final float mzValues[] = binMZValues[bin];
+      final float intensityValues[] = binIntensityValues[bin];
+      final int scanIndices[] = binScanIndices[bin];
+      for (int i = findFirstIndex(scanIndices, firstScanIndex); (i < scanIndices.length)
+          && (scanIndices[i] <= lastScanIndex); i++) {
+        if ((mzValues[i] < minMz) || (mzValues[i] > maxMz))
+          continue;
+        final int scanIndex = scanIndices[i];
+        if (Double.isNaN(basePeakMZ[scanIndex])
+            || (intensityValues[i] > basePeakIntensity[scanIndex])) {
+          basePeakMZ[scanIndex] = mzValues[i];
+          basePeakIntensity[scanIndex] = intensityValues[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Calculates the total ion count inside the given m/z range of each indexed scan, like
+   * ScanUtils.calculateTIC().
+   *
+   * @param tic receives the total ion count of each scan of getScans()
+   */
+  public void calculateTICs(@Nonnull Range<Double> mzRange, @Nonnull double tic[]) {
+
+    Arrays.fill(tic, 0, scans.length, 0.0);
+    if (numOfBins == 0)
+      return;
+
+    final double minMz = mzRange.lowerEndpoint(), maxMz = mzRange.upperEndpoint();
+    for (int bin = getBin(minMz), lastBin = getBin(maxMz); bin <= lastBin; bin++) {
+      final float mzValues[] = binMZValues[bin];
+      final float intensityValues[] = binIntensityValues[bin];
+      final int scanIndices[] = binScanIndices[bin];
+      for (int i = 0; i < mzValues.length; i++) {
+        if ((mzValues[i] >= minMz) && (mzValues[i] <= maxMz))
+          tic[scanIndices[i]] += intensityValues[i];
+      }
+    }
+  }
+
+  /**
+   * @return Index of the first sorted value which is greater than or equal to the given scan index
+   */
+  private static int findFirstIndex(int scanIndices[], int scanIndex) {
+    int low = 0, high = scanIndices.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (scanIndices[mid] < scanIndex)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * @return Index of the first sorted value which is greater than (or equal to, unless strict) the
+   *         given value
+   */
+  private static int findFirstIndex(double values[], double value, boolean strict) {
+    int low = 0, high = values.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if ((values[mid] < value) || (strict && (values[mid] == value)))
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+}
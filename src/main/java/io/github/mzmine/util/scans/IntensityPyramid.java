@@ -0,0 +1,368 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package io.github.mzmine.util.scans;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import com.google.common.collect.Range;
+import io.github.mzmine.datamodel.DataPoint;
+import io.github.mzmine.datamodel.Scan;
+
+/**
+ * Immutable pyramid of the intensities of a set of scans (usually all scans of one MS level of a
+ * raw data file) on a retention time × m/z grid, to draw overviews of the raw data without reading
+ * every scan. The finest level has one column per scan (or per few scans in very large files) and
+ * a few thousand m/z bins. Each further level halves the number of columns and of m/z bins, until
+ * a single cell covers all the data. Every cell keeps the minimum (non-zero), maximum and sum of
+ * the intensities of its data points. The levels are kept in a memory-mapped temporary file, so
+ * they do not take heap space.
+ */
+public class IntensityPyramid {
+
+  private static final Logger logger = Logger.getLogger(IntensityPyramid.class.getName());
+
+  // Maximum number of cells of the finest level, and its number of m/z bins
+  private static final long MAX_CELLS = 1L << 24;
+  private static final int MIN_MZ_BINS = 1 << 8, MAX_MZ_BINS = 1 << 12;
+
+  // Values kept for each cell
+  private static final int MIN = 0, MAX = 1, SUM = 2, VALUES_PER_CELL = 3;
+
+  // Pyramid scans, sorted by retention time
+  private final Scan scans[];
+
+  // Retention times of the first and last scan of each column of the finest level
+  private final double columnStartRT[], columnEndRT[];
+  private final int scansPerColumn;
+
+  private final double minMZ, mzBinWidth;
+
+  // Number of columns and m/z bins of each level
+  private final int numOfColumns[], numOfMZBins[];
+  private final FloatBuffer levels[];
+
+  private final File pyramidFile;
+  private final RandomAccessFile pyramidRandomAccessFile;
+
+  /**
+   * Builds the pyramid by reading the data points of all given scans once.
+   */
+  public IntensityPyramid(@Nonnull Scan scans[]) throws IOException {
+
+    this.scans = scans.clone();
+    Arrays.sort(this.scans, Comparator.comparingDouble(Scan::getRetentionTime));
+
+    double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+    for (Scan scan : this.scans) {
+      if (scan.getNumberOfDataPoints() == 0)
+        continue;
+      final Range<Double> mzRange = scan.getDataPointMZRange();
+      min = Math.min(min, mzRange.lowerEndpoint());
+      max = Math.max(max, mzRange.upperEndpoint());
+    }
+    if (min > max) {
+      min = 0;
+      max = 0;
+    }
+
+    // Use as many m/z bins as the cell limit allows, and group scans only if even the smallest
+    // number of m/z bins exceeds it
+    final int numOfScans = Math.max(1, this.scans.length);
+    final int mzBins = (int) Math.max(MIN_MZ_BINS,
+        Math.min(MAX_MZ_BINS, Long.highestOneBit(MAX_CELLS / numOfScans)));
+    scansPerColumn = (int) Math.max(1, ((long) numOfScans * mzBins + MAX_CELLS - 1) / MAX_CELLS);
+    final int columns = (numOfScans + scansPerColumn - 1) / scansPerColumn;
+
+    minMZ = min;
+    mzBinWidth = (max > min) ? (max - min) / mzBins : 1.0;
+
+    columnStartRT = new double[columns];
+    columnEndRT = new double[columns];
+    for (int column = 0; column < columns; column++) {
+      final int firstScan = Math.min(column * scansPerColumn, this.scans.length - 1);
+      final int lastScan = Math.min(firstScan + scansPerColumn, this.scans.length) - 1;
+      columnStartRT[column] = (firstScan >= 0) ? this.scans[firstScan].getRetentionTime() : 0;
+      columnEndRT[column] = (lastScan >= 0) ? this.scans[lastScan].getRetentionTime() : 0;
+    }
+
+    // Halve the grid until one cell is left
+    int levelCount = 1;
+    for (int c = columns, b = mzBins; (c > 1) || (b > 1); c = (c + 1) / 2, b = (b + 1) / 2)
+      levelCount++;
+    numOfColumns = new int[levelCount];
+    numOfMZBins = new int[levelCount];
+    levels = new FloatBuffer[levelCount];
+    numOfColumns[0] = columns;
+    numOfMZBins[0] = mzBins;
+    for (int level = 1; level < levelCount; level++) {
+      numOfColumns[level] = (numOfColumns[level - 1] + 1) / 2;
+      numOfMZBins[level] = (numOfMZBins[level - 1] + 1) / 2;
+    }
+
+    pyramidFile = File.createTempFile("mzmine_pyramid", ".tmp");
+    pyramidFile.deleteOnExit();
+    pyramidRandomAccessFile = new RandomAccessFile(pyramidFile, "rw");
+
+    try {
+      final FileChannel channel = pyramidRandomAccessFile.getChannel();
+      long offset = 0;
+      for (int level = 0; level < levelCount; level++) {
+        final long size = (long) numOfColumns[level] * numOfMZBins[level] * VALUES_PER_CELL * 4;
+        levels[level] = channel.map(FileChannel.MapMode.READ_WRITE, offset, size)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        offset += size;
+      }
+
+      fillFinestLevel();
+      for (int level = 1; level < levelCount; level++) {
+        fillLevel(level);
+      }
+    } catch (IOException | RuntimeException e) {
+      dispose();
+      throw e;
+    }
+
+    logger.finest("Built intensity pyramid of " + this.scans.length + " scans with " + levelCount
+        + " levels, finest level " + columns + " x " + mzBins + " cells");
+  }
+
+  private void fillFinestLevel() {
+    final FloatBuffer buffer = levels[0];
+    final int mzBins = numOfMZBins[0];
+    for (int scanIndex = 0; scanIndex < scans.length; scanIndex++) {
+      final long columnOffset = (long) (scanIndex / scansPerColumn) * mzBins;
+      for (DataPoint dp : scans[scanIndex].getDataPoints()) {
+        final float intensity = (float) dp.getIntensity();
+        final int cell = (int) ((columnOffset + getMZBin(dp.getMZ())) * VALUES_PER_CELL);
+        addToCell(buffer, cell, intensity, intensity, intensity);
+      }
+    }
+  }
+
+  private void fillLevel(int level) {
+    final FloatBuffer source = levels[level - 1], target = levels[level];
+    final int sourceColumns = numOfColumns[level - 1], sourceMZBins = numOfMZBins[level - 1];
+    for (int sourceColumn = 0; sourceColumn < sourceColumns; sourceColumn++) {
+      for (int sourceBin = 0; sourceBin < sourceMZBins; sourceBin++) {
+        final int sourceCell = (sourceColumn * sourceMZBins + sourceBin) * VALUES_PER_CELL;
+        final int targetCell =
+            ((sourceColumn / 2) * numOfMZBins[level] + sourceBin / 2) * VALUES_PER_CELL;
+        addToCell(target, targetCell, source.get(sourceCell + MIN), source.get(sourceCell + MAX),
+            source.get(sourceCell + SUM));
+      }
+    }
+  }
+
+  private static void addToCell(FloatBuffer buffer, int cell, float min, float max, float sum) {
+    if (min > 0) {
+      final float cellMin = buffer.get(cell + MIN);
+      if ((cellMin == 0) || (min < cellMin))
+        buffer.put(cell + MIN, min);
+    }
+    if (max > buffer.get(cell + MAX))
+      buffer.put(cell + MAX, max);
+    buffer.put(cell + SUM, buffer.get(cell + SUM) + sum);
+  }
+
+  private int getMZBin(double mz) {
+    final int bin = (int) ((mz - minMZ) / mzBinWidth);
+    return Math.max(0, Math.min(numOfMZBins[0] - 1, bin));
+  }
+
+  /**
+   * @return Scans of this pyramid, sorted by retention time
+   */
+  @Nonnull
+  public Scan[] getScans() {
+    return scans;
+  }
+
+  /**
+   * Checks whether this pyramid can be used to draw the given scans, i.e. whether the given scans
+   * are exactly the scans of this pyramid within their retention time range. Note that the cells at
+   * the borders of that range may also contain data points of neighbouring scans.
+   *
+   * @return True if the given scans are all scans of this pyramid between the lowest and the
+   *         highest retention time of the given scans
+   */
+  public boolean containsScanRange(@Nonnull Scan scans[]) {
+    if ((scans.length == 0) || (scans.length > this.scans.length))
+      return false;
+
+    final Set<Scan> scanSet = Collections.newSetFromMap(new IdentityHashMap<>());
+    double minRT = Double.POSITIVE_INFINITY, maxRT = Double.NEGATIVE_INFINITY;
+    for (Scan scan : scans) {
+      scanSet.add(scan);
+      minRT = Math.min(minRT, scan.getRetentionTime());
+      maxRT = Math.max(maxRT, scan.getRetentionTime());
+    }
+
+    // First pyramid scan with a retention time of at least minRT
+    int low = 0, high = this.scans.length;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (this.scans[middle].getRetentionTime() < minRT)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+
+    int count = 0;
+    for (int i = low; (i < this.scans.length) && (this.scans[i].getRetentionTime() <= maxRT); i++) {
+      if (!scanSet.contains(this.scans[i]))
+        return false;
+      count++;
+    }
+    return count == scanSet.size();
+  }
+
+  public int getNumberOfLevels() {
+    return levels.length;
+  }
+
+  /**
+   * Returns the coarsest level whose cells are not larger than the given retention time and m/z
+   * widths, e.g. the size of one pixel of a plot. The retention time width of a cell is the
+   * average over its level.
+   *
+   * @return Level, or -1 if even the cells of the finest level are larger, and the scans must be
+   *         read instead
+   */
+  public int getLevel(double rtWidth, double mzWidth) {
+    final double totalRTWidth = columnEndRT[columnEndRT.length - 1] - columnStartRT[0];
+    int level = -1;
+    for (int l = 0; l < levels.length; l++) {
+      final double cellRTWidth = totalRTWidth / numOfColumns[l];
+      final double cellMZWidth = mzBinWidth * (1 << l);
+      if ((cellRTWidth > rtWidth) || (cellMZWidth > mzWidth))
+        break;
+      level = l;
+    }
+    return level;
+  }
+
+  /**
+   * Returns the highest intensity in the cells of the given level that overlap the given ranges.
+   *
+   * @return Intensity, or NaN if no column of the pyramid overlaps the retention time range
+   */
+  public double getMaxIntensity(int level, @Nonnull Range<Double> rtRange,
+      @Nonnull Range<Double> mzRange) {
+    return getValue(level, rtRange, mzRange, MAX);
+  }
+
+  /**
+   * Returns the lowest non-zero intensity in the cells of the given level that overlap the given
+   * ranges, or 0 if there are no data points.
+   *
+   * @return Intensity, or NaN if no column of the pyramid overlaps the retention time range
+   */
+  public double getMinIntensity(int level, @Nonnull Range<Double> rtRange,
+      @Nonnull Range<Double> mzRange) {
+    return getValue(level, rtRange, mzRange, MIN);
+  }
+
+  /**
+   * Returns the sum of the intensities in the cells of the given level that overlap the given
+   * ranges. Cells at the borders of the ranges are counted as a whole.
+   *
+   * @return Intensity, or NaN if no column of the pyramid overlaps the retention time range
+   */
+  public double getSumIntensity(int level, @Nonnull Range<Double> rtRange,
+      @Nonnull Range<Double> mzRange) {
+    return getValue(level, rtRange, mzRange, SUM);
+  }
+
+  private double getValue(int level, Range<Double> rtRange, Range<Double> mzRange,
+      int valueIndex) {
+
+    // First column which ends at or after the lower end of the retention time range
+    int firstColumn = Arrays.binarySearch(columnEndRT, rtRange.lowerEndpoint());
+    if (firstColumn < 0)
+      firstColumn = -firstColumn - 1;
+    else
+      while ((firstColumn > 0) && (columnEndRT[firstColumn - 1] == rtRange.lowerEndpoint()))
+        firstColumn--;
+
+    // Last column which starts at or before the upper end of the retention time range
+    int lastColumn = Arrays.binarySearch(columnStartRT, rtRange.upperEndpoint());
+    if (lastColumn < 0)
+      lastColumn = -lastColumn - 2;
+    else
+      while ((lastColumn < columnStartRT.length - 1)
+          && (columnStartRT[lastColumn + 1] == rtRange.upperEndpoint()))
+        lastColumn++;
+
+    if ((scans.length == 0) || (firstColumn > lastColumn))
+      return Double.NaN;
+
+    final double maxMZ = minMZ + mzBinWidth * numOfMZBins[0];
+    if ((mzRange.upperEndpoint() < minMZ) || (mzRange.lowerEndpoint() > maxMZ))
+      return 0;
+
+    final FloatBuffer buffer = levels[level];
+    final int mzBins = numOfMZBins[level];
+    final int lastBin = getMZBin(mzRange.upperEndpoint()) >> level;
+    double value = 0;
+    for (int column = firstColumn >> level; column <= lastColumn >> level; column++) {
+      for (int bin = getMZBin(mzRange.lowerEndpoint()) >> level; bin <= lastBin; bin++) {
+        final float cellValue = buffer.get((column * mzBins + bin) * VALUES_PER_CELL + valueIndex);
+        switch (valueIndex) {
+          case MIN:
+            if ((cellValue > 0) && ((value == 0) || (cellValue < value)))
+              value = cellValue;
+            break;
+          case MAX:
+            value = Math.max(value, cellValue);
+            break;
+          default:
+            value += cellValue;
+        }
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Closes and deletes the temporary file of this pyramid. Plots which still use the pyramid can
+   * keep reading it, because the levels stay mapped into memory until the pyramid is garbage
+   * collected.
+   */
+  public void dispose() {
+    try {
+      pyramidRandomAccessFile.close();
+    } catch (IOException e) {
+      logger.warning("Could not close the intensity pyramid file " + pyramidFile + ": " + e);
+    }
+    if (!pyramidFile.delete())
+      logger.finest("Intensity pyramid file " + pyramidFile + " will be deleted on exit");
+  }
+
+}
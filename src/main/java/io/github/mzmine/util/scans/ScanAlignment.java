@@ -12,6 +12,7 @@ import io.github.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import io.github.mzmine.util.DataPointSorter;
 import io.github.mzmine.util.SortingDirection;
 import io.github.mzmine.util.SortingProperty;
+import io.github.mzmine.util.scans.similarity.SortedSpectrum;
 
 /**
  * Scan or mass list alignment based on data points array
@@ -58,6 +59,50 @@ public class ScanAlignment {
     return list;
   }
 
+  /**
+   * Aligns data points within mzTolerance in the same way as
+   * {@link #align(MZTolerance, DataPoint[], DataPoint[])}: the signals of a are matched by
+   * descending intensity, each to the most intense unmatched signal of b within the tolerance. As b
+   * is sorted by m/z, only the signals inside the tolerance window are looked at. Nothing is
+   * allocated, the caller provides the buffers.
+   * 
+   * @param matchedA receives the indices of the matched data points of a, length >= a.size()
+   * @param matchedB receives the indices of the matched data points of b, at the same positions
+   * @param usedB all false, length >= b.size(). It is all false again on return.
+   * @return Number of matched data points
+   */
+  public static int align(MZTolerance mzTol, SortedSpectrum a, SortedSpectrum b, int matchedA[],
+      int matchedB[], boolean usedB[]) {
+    final double mzA[] = a.getMZValues();
+    final double mzB[] = b.getMZValues();
+    final int ranksB[] = b.getIntensityRanks();
+
+    int matches = 0;
+    for (int ia : a.getIntensityOrder()) {
+      // same range as MZTolerance.checkWithinTolerance
+      final double tolerance = mzTol.getMzToleranceForMass(mzA[ia]);
+      final double min = mzA[ia] - tolerance;
+      final double max = mzA[ia] + tolerance;
+
+      // most intense unmatched signal inside the window
+      int best = -1;
+      for (int ib = b.getStartIndex(min); ib < mzB.length && mzB[ib] <= max; ib++) {
+        if (!usedB[ib] && (best == -1 || ranksB[ib] < ranksB[best]))
+          best = ib;
+      }
+      if (best != -1) {
+        usedB[best] = true;
+        matchedA[matches] = ia;
+        matchedB[matches] = best;
+        matches++;
+      }
+    }
+
+    for (int i = 0; i < matches; i++)
+      usedB[matchedB[i]] = false;
+    return matches;
+  }
+
   /**
    * get overlapping MZ range (lowerBound - mzTol and upperbound+ mzTol)
    * 
@@ -127,6 +127,30 @@ public class ScanUtils {
     return basePeak;
   }
 
+  /**
+   * Find the index of the base peak in a given m/z range of a spectrum given as primitive arrays.
+   * 
+   * @param mzValues m/z values sorted(!) in ascending order
+   * @param intensityValues intensity values in the same order as the m/z values
+   * @param numOfDataPoints number of valid values in the arrays
+   * @param mzRange mz range to search in
+   * @return index of the base peak or -1, if no data point is in range
+   */
+  public static int findBasePeakIndex(double mzValues[], double intensityValues[],
+      int numOfDataPoints, @Nonnull Range<Double> mzRange) {
+
+    final double maxMz = mzRange.upperEndpoint();
+    int basePeakIndex = -1;
+
+    for (int i = findFirstMzIndex(mzValues, numOfDataPoints, mzRange.lowerEndpoint());
+        (i < numOfDataPoints) && (mzValues[i] <= maxMz); i++) {
+      if ((basePeakIndex < 0) || (intensityValues[i] > intensityValues[basePeakIndex]))
+        basePeakIndex = i;
+    }
+
+    return basePeakIndex;
+  }
+
   /**
    * Calculate the total ion count of a scan within a given mass range.
    * 
@@ -143,6 +167,27 @@ public class ScanUtils {
     return tic;
   }
 
+  /**
+   * Returns the index of the first m/z value which is greater than or equal to the given m/z, using
+   * binary search.
+   * 
+   * @param mzValues m/z values sorted(!) in ascending order
+   * @param numOfDataPoints number of valid values in the array
+   * @param mz m/z value to search for
+   * @return index of the first m/z value >= mz, or numOfDataPoints if there is none
+   */
+  public static int findFirstMzIndex(double mzValues[], int numOfDataPoints, double mz) {
+    int low = 0, high = numOfDataPoints;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (mzValues[mid] < mz)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
   /**
    * Selects data points within given m/z range
    * 
@@ -465,21 +510,31 @@ public class ScanUtils {
 
     double[] intensityValues = new double[dataPoints.length];
     double[] mzValues = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++) {
+      intensityValues[i] = dataPoints[i].getIntensity();
+      mzValues[i] = dataPoints[i].getMZ();
+    }
+
+    return detectSpectrumType(mzValues, intensityValues, dataPoints.length);
+  }
+
+  /**
+   * Same as detectSpectrumType(DataPoint[]), for the first size values of the given m/z and
+   * intensity arrays.
+   */
+  public static MassSpectrumType detectSpectrumType(@Nonnull double mzValues[],
+      @Nonnull double intensityValues[], int size) {
 
     // If the spectrum has less than 5 data points, it should be centroided.
-    if (dataPoints.length < 5)
+    if (size < 5)
       return MassSpectrumType.CENTROIDED;
 
     int basePeakIndex = 0;
     boolean hasZeroDataPoint = false;
 
     // Go through the data points and find the highest one
-    int size = dataPoints.length;
     for (int i = 0; i < size; i++) {
 
-      intensityValues[i] = dataPoints[i].getIntensity();
-      mzValues[i] = dataPoints[i].getMZ();
-
       // Update the maxDataPointIndex accordingly
       if (intensityValues[i] > intensityValues[basePeakIndex])
         basePeakIndex = i;
@@ -534,24 +589,21 @@ public class ScanUtils {
     int bestFragmentScan = -1;
     double topBasePeak = 0;
 
-    int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange);
+    int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange, mzRange);
 
     for (int number : fragmentScanNumbers) {
 
       Scan scan = dataFile.getScan(number);
 
-      if (mzRange.contains(scan.getPrecursorMZ())) {
+      DataPoint basePeak = scan.getHighestDataPoint();
 
-        DataPoint basePeak = scan.getHighestDataPoint();
-
-        // If there is no peak in the scan, basePeak can be null
-        if (basePeak == null)
-          continue;
+      // If there is no peak in the scan, basePeak can be null
+      if (basePeak == null)
+        continue;
 
-        if (basePeak.getIntensity() > topBasePeak) {
-          bestFragmentScan = scan.getScanNumber();
-          topBasePeak = basePeak.getIntensity();
-        }
+      if (basePeak.getIntensity() > topBasePeak) {
+        bestFragmentScan = scan.getScanNumber();
+        topBasePeak = basePeak.getIntensity();
       }
 
     }
@@ -571,24 +623,7 @@ public class ScanUtils {
     assert rtRange != null;
     assert mzRange != null;
 
-    int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange);
-    ArrayList<Integer> fragmentScanNumbersInMZRange = new ArrayList<Integer>();
-
-    for (int number : fragmentScanNumbers) {
-
-      Scan scan = dataFile.getScan(number);
-
-      if (mzRange.contains(scan.getPrecursorMZ())) {
-        fragmentScanNumbersInMZRange.add(number);
-      }
-    }
-    int[] resultScans = new int[fragmentScanNumbersInMZRange.size()];
-    if (resultScans.length > 0) {
-      resultScans = fragmentScanNumbersInMZRange.stream().mapToInt(i -> i).toArray();
-    } else {
-      resultScans = new int[] {};
-    }
-    return resultScans;
+    return dataFile.getScanNumbers(2, rtRange, mzRange);
   }
 
   /**
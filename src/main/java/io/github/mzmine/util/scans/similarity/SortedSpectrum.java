@@ -0,0 +1,202 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package io.github.mzmine.util.scans.similarity;
+
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+
+import io.github.mzmine.datamodel.DataPoint;
+import io.github.mzmine.util.DataPointSorter;
+import io.github.mzmine.util.SortingDirection;
+import io.github.mzmine.util.SortingProperty;
+
+/**
+ * Immutable spectrum (or mass list) with its m/z and intensity values in primitive arrays sorted by
+ * m/z, to compare it with other spectra without sorting or copying it again. The order of the data
+ * points by descending intensity (and m/z) is kept as well, as the alignment matches the most
+ * intense signals first. The arrays returned by the getters must not be modified.
+ */
+public class SortedSpectrum {
+
+  private static final DataPointSorter mzSorter =
+      new DataPointSorter(SortingProperty.MZ, SortingDirection.Ascending);
+
+  // data points sorted by m/z
+  private final DataPoint dataPoints[];
+  private final double mzValues[];
+  private final double intensityValues[];
+  // data point indices sorted by descending intensity and m/z
+  private final int intensityOrder[];
+  // position of each data point in intensityOrder
+  private final int intensityRanks[];
+
+  // weighted intensities for the weights used last
+  private volatile WeightedIntensities weighted;
+
+  /**
+   * @param dataPoints data points in any order, the array is not changed
+   */
+  public SortedSpectrum(@Nonnull DataPoint dataPoints[]) {
+    this.dataPoints = dataPoints.clone();
+    Arrays.sort(this.dataPoints, mzSorter);
+
+    final int size = this.dataPoints.length;
+    mzValues = new double[size];
+    intensityValues = new double[size];
+    Integer order[] = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      mzValues[i] = this.dataPoints[i].getMZ();
+      intensityValues[i] = this.dataPoints[i].getIntensity();
+      order[i] = i;
+    }
+
+    // same order as ScanAlignment.sorter: descending intensity, then descending m/z
+    Arrays.sort(order, (i, j) -> {
+      int result = Double.compare(intensityValues[j], intensityValues[i]);
+      return (result != 0) ? result : Integer.compare(j, i);
+    });
+    intensityOrder = new int[size];
+    intensityRanks = new int[size];
+    for (int rank = 0; rank < size; rank++) {
+      intensityOrder[rank] = order[rank];
+      intensityRanks[order[rank]] = rank;
+    }
+  }
+
+  /**
+   * @return Number of data points
+   */
+  public int size() {
+    return dataPoints.length;
+  }
+
+  /**
+   * @return The data points sorted by m/z
+   */
+  @Nonnull
+  public DataPoint[] getDataPoints() {
+    return dataPoints;
+  }
+
+  /**
+   * @return The m/z values in ascending order
+   */
+  @Nonnull
+  public double[] getMZValues() {
+    return mzValues;
+  }
+
+  /**
+   * @return The intensity values in the order of the m/z values
+   */
+  @Nonnull
+  public double[] getIntensityValues() {
+    return intensityValues;
+  }
+
+  /**
+   * @return Index of the first data point with m/z >= minMZ, or size() if there is none
+   */
+  public int getStartIndex(double minMZ) {
+    int low = 0, high = mzValues.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (mzValues[mid] < minMZ)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * @return The indices of the data points sorted by descending intensity (and m/z)
+   */
+  @Nonnull
+  public int[] getIntensityOrder() {
+    return intensityOrder;
+  }
+
+  /**
+   * @return The position of each data point in {@link #getIntensityOrder()}
+   */
+  @Nonnull
+  public int[] getIntensityRanks() {
+    return intensityRanks;
+  }
+
+  /**
+   * Weighted values = Intensity^weightI * m/z^weightMZ, in the order of the m/z values. The values
+   * are cached for the last used weights.
+   */
+  @Nonnull
+  public double[] getWeightedIntensities(@Nonnull Weights weights) {
+    return getWeighted(weights).values;
+  }
+
+  /**
+   * @return Sum of the squared weighted intensities of all data points
+   * @see #getWeightedIntensities(Weights)
+   */
+  public double getWeightedSquaredNorm(@Nonnull Weights weights) {
+    WeightedIntensities result = getWeighted(weights);
+    return result.cumulativeSquares[result.values.length];
+  }
+
+  /**
+   * @return Sum of the squared weighted intensities of the data points inside the closed m/z range
+   * @see #getWeightedIntensities(Weights)
+   */
+  public double getWeightedSquaredSum(@Nonnull Weights weights, double minMZ, double maxMZ) {
+    final double cumulativeSquares[] = getWeighted(weights).cumulativeSquares;
+    final int start = getStartIndex(minMZ);
+    final int end = Math.max(start, getStartIndex(Math.nextUp(maxMZ)));
+    return cumulativeSquares[end] - cumulativeSquares[start];
+  }
+
+  private WeightedIntensities getWeighted(Weights weights) {
+    WeightedIntensities result = weighted;
+    if (result == null || result.weights != weights) {
+      result = new WeightedIntensities(weights);
+      weighted = result;
+    }
+    return result;
+  }
+
+  private class WeightedIntensities {
+
+    private final Weights weights;
+    private final double values[];
+    // cumulativeSquares[i] = sum of the squared values before index i
+    private final double cumulativeSquares[];
+
+    private WeightedIntensities(Weights weights) {
+      this.weights = weights;
+      final double weightIntensity = weights.getIntensity();
+      final double weightMZ = weights.getMz();
+      values = new double[mzValues.length];
+      cumulativeSquares = new double[mzValues.length + 1];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = Math.pow(intensityValues[i], weightIntensity) * Math.pow(mzValues[i], weightMZ);
+        cumulativeSquares[i + 1] = cumulativeSquares[i] + values[i] * values[i];
+      }
+    }
+  }
+}
@@ -56,6 +56,25 @@ public abstract class SpectralSimilarityFunction implements MZmineModule {
   public abstract SpectralSimilarity getSimilarity(ParameterSet parameters, MZTolerance mzTol,
       int minMatch, DataPoint[] library, DataPoint[] query);
 
+  /**
+   * Same as {@link #getSimilarity(ParameterSet, MZTolerance, int, DataPoint[], DataPoint[])} for
+   * spectra which are compared many times, e.g., in a spectral library search. Override to work on
+   * the sorted arrays directly, and to skip spectra which cannot reach minScore as early as
+   * possible.
+   * 
+   * @param minScore minimum score in addition to the minimum of the parameters, e.g., the lowest
+   *        score of the best matches found so far
+   * @return A spectra similarity if all requirements were met - otherwise null
+   */
+  @Nullable
+  public SpectralSimilarity getSimilarity(ParameterSet parameters, MZTolerance mzTol,
+      int minMatch, double minScore, SortedSpectrum library, SortedSpectrum query) {
+    // the data point arrays may be sorted by the similarity function
+    SpectralSimilarity sim = getSimilarity(parameters, mzTol, minMatch,
+        library.getDataPoints().clone(), query.getDataPoints().clone());
+    return (sim != null && sim.getScore() >= minScore) ? sim : null;
+  }
+
   /**
    * Align two mass lists. Override if alignement is changed in a specific spectral similarity
    * function.
@@ -18,6 +18,7 @@
 
 package io.github.mzmine.util.scans.similarity.impl.cosine;
 
+import java.util.ArrayList;
 import java.util.List;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -25,8 +26,8 @@ import javax.annotation.Nullable;
 import io.github.mzmine.datamodel.DataPoint;
 import io.github.mzmine.parameters.ParameterSet;
 import io.github.mzmine.parameters.parametertypes.tolerances.MZTolerance;
-import io.github.mzmine.util.maths.similarity.Similarity;
 import io.github.mzmine.util.scans.ScanAlignment;
+import io.github.mzmine.util.scans.similarity.SortedSpectrum;
 import io.github.mzmine.util.scans.similarity.SpectralSimilarity;
 import io.github.mzmine.util.scans.similarity.SpectralSimilarityFunction;
 import io.github.mzmine.util.scans.similarity.Weights;
@@ -39,38 +40,123 @@ import io.github.mzmine.util.scans.similarity.Weights;
  */
 public class WeightedCosineSpectralSimilarity extends SpectralSimilarityFunction {
 
+  // alignment buffers of each thread, grown when needed
+  private static final ThreadLocal<AlignmentBuffers> buffers =
+      ThreadLocal.withInitial(AlignmentBuffers::new);
+
   /**
    * Returns mass and intensity values detected in given scan
    */
   @Override
   public SpectralSimilarity getSimilarity(ParameterSet parameters, MZTolerance mzTol, int minMatch,
       DataPoint[] library, DataPoint[] query) {
+    return getSimilarity(parameters, mzTol, minMatch, Double.NEGATIVE_INFINITY,
+        new SortedSpectrum(library), new SortedSpectrum(query), library, query);
+  }
+
+  /**
+   * Aligns the sorted spectra and calculates the weighted cosine in one pass over the matched
+   * signals, without creating aligned data point lists or intensity matrices. Same results as the
+   * alignment with {@link ScanAlignment#align(MZTolerance, DataPoint[], DataPoint[])}. Spectra
+   * whose upper bound of the score is below the minimum are not aligned at all.
+   */
+  @Override
+  public SpectralSimilarity getSimilarity(ParameterSet parameters, MZTolerance mzTol, int minMatch,
+      double minScore, SortedSpectrum library, SortedSpectrum query) {
+    // the result sorts its spectra
+    return getSimilarity(parameters, mzTol, minMatch, minScore, library, query,
+        library.getDataPoints().clone(), query.getDataPoints().clone());
+  }
+
+  /**
+   * @param libraryResult library spectrum of the result
+   * @param queryResult query spectrum of the result
+   */
+  private SpectralSimilarity getSimilarity(ParameterSet parameters, MZTolerance mzTol,
+      int minMatch, double minScore, SortedSpectrum library, SortedSpectrum query,
+      DataPoint[] libraryResult, DataPoint[] queryResult) {
     Weights weights =
         parameters.getParameter(WeightedCosineSpectralSimilarityParameters.weight).getValue();
     double minCos =
         parameters.getParameter(WeightedCosineSpectralSimilarityParameters.minCosine).getValue();
     boolean removeUnmatched = parameters
         .getParameter(WeightedCosineSpectralSimilarityParameters.removeUnmatched).getValue();
+    minCos = Math.max(minCos, minScore);
+
+    // each signal is aligned once at most
+    if (Math.min(library.size(), query.size()) < minMatch)
+      return null;
+    if (!removeUnmatched && getMaxCosine(mzTol, weights, library, query) < minCos)
+      return null;
 
     // align
-    List<DataPoint[]> aligned = alignDataPoints(mzTol, library, query);
-    // removes all signals which were not found in both masslists
-    if (removeUnmatched)
-      aligned = removeUnaligned(aligned);
+    AlignmentBuffers buffer = buffers.get();
+    buffer.ensureCapacity(library.size(), query.size());
     // overlapping within mass tolerance
-    int overlap = calcOverlap(aligned);
-
-    if (overlap >= minMatch) {
-      // weighted cosine
-      double[][] diffArray =
-          ScanAlignment.toIntensityMatrixWeighted(aligned, weights.getIntensity(), weights.getMz());
-      double diffCosine = Similarity.COSINE.calc(diffArray);
-      if (diffCosine >= minCos)
-        return new SpectralSimilarity(getName(), diffCosine, overlap, library, query, aligned);
-      else
-        return null;
+    int overlap = ScanAlignment.align(mzTol, library, query, buffer.matchedLibrary,
+        buffer.matchedQuery, buffer.usedQuery);
+    if (overlap < minMatch)
+      return null;
+
+    // weighted cosine
+    double[] libraryValues = library.getWeightedIntensities(weights);
+    double[] queryValues = query.getWeightedIntensities(weights);
+    double dot = 0, libraryNorm = 0, queryNorm = 0;
+    for (int i = 0; i < overlap; i++) {
+      double l = libraryValues[buffer.matchedLibrary[i]];
+      double q = queryValues[buffer.matchedQuery[i]];
+      dot += l * q;
+      libraryNorm += l * l;
+      queryNorm += q * q;
     }
-    return null;
+    // all signals count for the norm, unless those not found in both masslists are removed
+    if (!removeUnmatched) {
+      libraryNorm = library.getWeightedSquaredNorm(weights);
+      queryNorm = query.getWeightedSquaredNorm(weights);
+    }
+    double diffCosine = dot / (Math.sqrt(libraryNorm) * Math.sqrt(queryNorm));
+    // also no match if nothing was aligned (NaN)
+    if (!(diffCosine >= minCos))
+      return null;
+
+    DataPoint[] libraryDP = library.getDataPoints();
+    DataPoint[] queryDP = query.getDataPoints();
+    List<DataPoint[]> aligned = new ArrayList<>(overlap);
+    for (int i = 0; i < overlap; i++) {
+      aligned.add(new DataPoint[] {libraryDP[buffer.matchedLibrary[i]],
+          queryDP[buffer.matchedQuery[i]]});
+    }
+    return new SpectralSimilarity(getName(), diffCosine, overlap, libraryResult, queryResult,
+        aligned);
+  }
+
+  /**
+   * Upper bound of the weighted cosine if all signals count for the norm. Only the signals inside
+   * the m/z range of the other spectrum (+- tolerance) can be aligned, and the dot product of the
+   * aligned signals is at most the product of their norms (Cauchy-Schwarz).
+   */
+  private double getMaxCosine(MZTolerance mzTol, Weights weights, SortedSpectrum library,
+      SortedSpectrum query) {
+    if (library.size() == 0 || query.size() == 0)
+      return Double.POSITIVE_INFINITY;
+    double[] libraryMZ = library.getMZValues();
+    double[] queryMZ = query.getMZValues();
+    double minLibrary = libraryMZ[0], maxLibrary = libraryMZ[libraryMZ.length - 1];
+    double minQuery = queryMZ[0], maxQuery = queryMZ[queryMZ.length - 1];
+
+    // The tolerance is applied to the library m/z, so twice the tolerance above the query is
+    // searched (as long as the ppm tolerance is below 50%)
+    double libraryMatchable = library.getWeightedSquaredSum(weights,
+        minQuery - mzTol.getMzToleranceForMass(minQuery),
+        maxQuery + 2 * mzTol.getMzToleranceForMass(maxQuery));
+    double queryMatchable = query.getWeightedSquaredSum(weights,
+        minLibrary - mzTol.getMzToleranceForMass(minLibrary),
+        maxLibrary + mzTol.getMzToleranceForMass(maxLibrary));
+    double maxCosine = Math.sqrt(libraryMatchable) * Math.sqrt(queryMatchable)
+        / (Math.sqrt(library.getWeightedSquaredNorm(weights))
+            * Math.sqrt(query.getWeightedSquaredNorm(weights)));
+    // rounding errors
+    return maxCosine * (1 + 1E-9);
   }
 
   @Override
@@ -83,4 +169,20 @@ public class WeightedCosineSpectralSimilarity extends SpectralSimilarityFunction
   public @Nullable Class<? extends ParameterSet> getParameterSetClass() {
     return WeightedCosineSpectralSimilarityParameters.class;
   }
+
+  private static class AlignmentBuffers {
+
+    private int matchedLibrary[] = new int[0];
+    private int matchedQuery[] = new int[0];
+    private boolean usedQuery[] = new boolean[0];
+
+    private void ensureCapacity(int librarySize, int querySize) {
+      if (matchedLibrary.length < librarySize) {
+        matchedLibrary = new int[librarySize];
+        matchedQuery = new int[librarySize];
+      }
+      if (usedQuery.length < querySize)
+        usedQuery = new boolean[querySize];
+    }
+  }
 }
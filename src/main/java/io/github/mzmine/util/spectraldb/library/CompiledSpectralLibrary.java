@@ -0,0 +1,599 @@
+/*
+ * Copyright 2006-2020 The MZmine Development Team
+ *
+ * This file is part of MZmine.
+ *
+ * MZmine is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package io.github.mzmine.util.spectraldb.library;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import com.google.common.collect.Range;
+import io.github.mzmine.datamodel.DataPoint;
+import io.github.mzmine.datamodel.impl.SimpleDataPoint;
+import io.github.mzmine.taskcontrol.AbstractTask;
+import io.github.mzmine.util.MemoryMapUtils;
+import io.github.mzmine.util.spectraldb.entry.DBEntryField;
+import io.github.mzmine.util.spectraldb.entry.SpectralDBEntry;
+import io.github.mzmine.util.spectraldb.parser.AutoLibraryParser;
+import io.github.mzmine.util.spectraldb.parser.LibraryEntryProcessor;
+import io.github.mzmine.util.spectraldb.parser.UnsupportedFormatException;
+
+/**
+ * Spectral library compiled into a binary file, which is created once from a text library
+ * (msp, mgf, jdx, json) and reused as long as the text library does not change. The spectra stay in
+ * the memory mapped file and are only read for the entries which are requested. The entries are
+ * indexed by precursor m/z and by retention time, so a search only reads the entries inside the
+ * tolerance windows of a feature.
+ *
+ * File layout: a header, then the entries in the order of the library file (number of data points,
+ * m/z values, intensities, metadata), then the index columns (entry offsets, precursor m/z values
+ * and retention times with the matching entry numbers, each sorted ascending). Entries never cross
+ * a segment border, so every segment of the file can be mapped on its own.
+ *
+ * The compiled file is written next to the library file. If that directory cannot be written (e.g.
+ * a shared or installed library), it is written to a cache directory in the temporary directory.
+ */
+public class CompiledSpectralLibrary implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(CompiledSpectralLibrary.class.getName());
+
+  /**
+   * Suffix which is appended to the name of the library file
+   */
+  public static final String FILE_SUFFIX = ".speclib";
+
+  private static final long MAGIC = 0x4d5a6d696e654c62L; // "MZmineLb"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 48;
+  private static final long SEGMENT_SIZE = 1L << 30;
+
+  /**
+   * Directory of the compiled libraries whose own directory cannot be written
+   */
+  private static final File CACHE_DIR =
+      new File(System.getProperty("java.io.tmpdir"), "mzmine_spectral_libraries");
+
+  // Types of metadata values
+  private static final byte STRING = 0, DOUBLE = 1, INTEGER = 2, FLOAT = 3, LONG = 4;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer segments[];
+
+  // Entries are read under the read lock, the segments are unmapped under the write lock
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private boolean closed = false;
+
+  // Offsets of the entries in the file, in the order of the library file
+  private final long entryOffsets[];
+
+  // Precursor m/z values sorted ascending, with the numbers of their entries
+  private final double sortedPrecursorMZ[];
+  private final int precursorMZEntries[];
+
+  // Retention times sorted ascending, with the numbers of their entries
+  private final double sortedRT[];
+  private final int rtEntries[];
+
+  // Numbers of the entries without retention time
+  private final int entriesWithoutRT[];
+
+  /**
+   * Opens the compiled version of the given library. The library is compiled first, if it was not
+   * compiled yet or has been changed since.
+   *
+   * @param task task which is canceled to stop compiling
+   * @param libraryFile text library file
+   * @return The compiled library, or null if the task was canceled
+   */
+  @Nullable
+  public static CompiledSpectralLibrary open(@Nonnull AbstractTask task, @Nonnull File libraryFile)
+      throws UnsupportedFormatException, IOException {
+
+    final File compiledFile = new File(libraryFile.getPath() + FILE_SUFFIX);
+    final File cachedFile = new File(CACHE_DIR, libraryFile.getName() + "_"
+        + Integer.toHexString(libraryFile.getAbsolutePath().hashCode()) + FILE_SUFFIX);
+
+    for (File file : new File[] {compiledFile, cachedFile}) {
+      if (!file.exists())
+        continue;
+      try {
+        return new CompiledSpectralLibrary(file, libraryFile);
+      } catch (IOException e) {
+        logger.log(Level.INFO, "Cannot use compiled library " + file + ": " + e.getMessage());
+      }
+    }
+
+    // Compile next to the library, or to the cache if that directory cannot be written
+    File targetFile = compiledFile;
+    try {
+      if (!compile(task, libraryFile, compiledFile))
+        return null;
+    } catch (FileSystemException e) {
+      logger.log(Level.INFO, "Cannot write " + compiledFile + " (" + e.getMessage()
+          + "), compiling library to " + cachedFile);
+      Files.createDirectories(CACHE_DIR.toPath());
+      targetFile = cachedFile;
+      if (!compile(task, libraryFile, cachedFile))
+        return null;
+    }
+
+    return new CompiledSpectralLibrary(targetFile, libraryFile);
+  }
+
+  private CompiledSpectralLibrary(File compiledFile, File libraryFile) throws IOException {
+
+    channel = FileChannel.open(compiledFile.toPath());
+    try {
+
+      // Read the header without mapping it, so nothing stays mapped if the file is out of date
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining()) {
+        if (channel.read(header, header.position()) < 0)
+          break;
+      }
+      header.flip();
+      if ((header.remaining() < HEADER_SIZE) || (header.getLong() != MAGIC)
+          || (header.getInt() != VERSION))
+        throw new IOException("Unknown format of " + compiledFile);
+      if ((header.getLong() != libraryFile.length())
+          || (header.getLong() != libraryFile.lastModified()))
+        throw new IOException(libraryFile + " was changed since it was compiled");
+
+      final int numOfEntries = header.getInt();
+      final int numWithPrecursorMZ = header.getInt();
+      final int numWithRT = header.getInt();
+      final long indexOffset = header.getLong();
+
+      // Map the entries
+      final int numOfSegments = (int) ((indexOffset + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+      segments = new MappedByteBuffer[numOfSegments];
+      for (int i = 0; i < numOfSegments; i++) {
+        final long start = i * SEGMENT_SIZE;
+        segments[i] =
+            channel.map(MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, indexOffset - start));
+      }
+
+      // Load the index
+      final long indexSize = channel.size() - indexOffset;
+      MappedByteBuffer index = channel.map(MapMode.READ_ONLY, indexOffset, indexSize);
+      entryOffsets = new long[numOfEntries];
+      index.asLongBuffer().get(entryOffsets);
+      index.position(index.position() + numOfEntries * Long.BYTES);
+      sortedPrecursorMZ = readDoubles(index, numWithPrecursorMZ);
+      precursorMZEntries = readInts(index, numWithPrecursorMZ);
+      sortedRT = readDoubles(index, numWithRT);
+      rtEntries = readInts(index, numWithRT);
+      entriesWithoutRT = readInts(index, numOfEntries - numWithRT);
+      MemoryMapUtils.unmap(index);
+
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static double[] readDoubles(ByteBuffer buffer, int count) {
+    double values[] = new double[count];
+    buffer.asDoubleBuffer().get(values);
+    buffer.position(buffer.position() + count * Double.BYTES);
+    return values;
+  }
+
+  private static int[] readInts(ByteBuffer buffer, int count) {
+    int values[] = new int[count];
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + count * Integer.BYTES);
+    return values;
+  }
+
+  /**
+   * @return Number of entries
+   */
+  public int size() {
+    return entryOffsets.length;
+  }
+
+  /**
+   * @return Numbers of the entries with a precursor m/z inside the given range, in the order of the
+   *         library file
+   */
+  @Nonnull
+  public int[] getEntryNumbersByPrecursorMZ(@Nonnull Range<Double> mzRange) {
+    int hits[] = new int[16];
+    int numOfHits = 0;
+    for (int i = findFirstIndex(sortedPrecursorMZ, mzRange.lowerEndpoint());
+        (i < sortedPrecursorMZ.length) && (sortedPrecursorMZ[i] <= mzRange.upperEndpoint()); i++) {
+      if (!mzRange.contains(sortedPrecursorMZ[i]))
+        continue;
+      if (numOfHits == hits.length)
+        hits = Arrays.copyOf(hits, numOfHits * 2);
+      hits[numOfHits++] = precursorMZEntries[i];
+    }
+    hits = Arrays.copyOf(hits, numOfHits);
+    Arrays.sort(hits);
+    return hits;
+  }
+
+  /**
+   * @return Numbers of the entries with a retention time inside the given range and of all entries
+   *         without retention time, in the order of the library file
+   */
+  @Nonnull
+  public int[] getEntryNumbersByRT(@Nonnull Range<Double> rtRange) {
+    int hits[] = Arrays.copyOf(entriesWithoutRT, entriesWithoutRT.length + 16);
+    int numOfHits = entriesWithoutRT.length;
+    for (int i = findFirstIndex(sortedRT, rtRange.lowerEndpoint());
+        (i < sortedRT.length) && (sortedRT[i] <= rtRange.upperEndpoint()); i++) {
+      if (!rtRange.contains(sortedRT[i]))
+        continue;
+      if (numOfHits == hits.length)
+        hits = Arrays.copyOf(hits, numOfHits * 2);
+      hits[numOfHits++] = rtEntries[i];
+    }
+    hits = Arrays.copyOf(hits, numOfHits);
+    Arrays.sort(hits);
+    return hits;
+  }
+
+  /**
+   * Returns the index of the first value which is greater than or equal to the given key
+   */
+  private static int findFirstIndex(double sortedValues[], double key) {
+    int low = 0, high = sortedValues.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (sortedValues[mid] < key)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * Reads an entry from the file. Several threads can read entries at the same time.
+   *
+   * @param entryNumber position of the entry in the library file
+   * @throws IllegalStateException if the library was closed
+   */
+  @Nonnull
+  public SpectralDBEntry getEntry(int entryNumber) {
+    lock.readLock().lock();
+    try {
+      if (closed)
+        throw new IllegalStateException("Spectral library is closed");
+      return readEntry(entryNumber);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private SpectralDBEntry readEntry(int entryNumber) {
+
+    final long offset = entryOffsets[entryNumber];
+    final ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+    int position = (int) (offset % SEGMENT_SIZE);
+
+    // Only absolute reads, so several threads can read at the same time
+    final int numOfDataPoints = segment.getInt(position);
+    position += Integer.BYTES;
+    DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+    for (int i = 0; i < numOfDataPoints; i++) {
+      final double mz = segment.getDouble(position + i * Double.BYTES);
+      final double intensity = segment.getDouble(position + (numOfDataPoints + i) * Double.BYTES);
+      dataPoints[i] = new SimpleDataPoint(mz, intensity);
+    }
+    position += 2 * numOfDataPoints * Double.BYTES;
+
+    byte metadata[] = new byte[segment.getInt(position)];
+    position += Integer.BYTES;
+    ByteBuffer metadataBuffer = segment.duplicate();
+    metadataBuffer.position(position);
+    metadataBuffer.get(metadata);
+
+    try {
+      return new SpectralDBEntry(readFields(metadata), dataPoints);
+    } catch (IOException e) {
+      // The metadata is read from memory
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Map<DBEntryField, Object> readFields(byte metadata[]) throws IOException {
+    Map<DBEntryField, Object> fields = new EnumMap<>(DBEntryField.class);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(metadata));
+    final int numOfFields = in.readInt();
+    for (int i = 0; i < numOfFields; i++) {
+      final DBEntryField field = DBEntryField.valueOf(readString(in));
+      final byte type = in.readByte();
+      switch (type) {
+        case DOUBLE:
+          fields.put(field, in.readDouble());
+          break;
+        case INTEGER:
+          fields.put(field, in.readInt());
+          break;
+        case FLOAT:
+          fields.put(field, in.readFloat());
+          break;
+        case LONG:
+          fields.put(field, in.readLong());
+          break;
+        default:
+          fields.put(field, readString(in));
+          break;
+      }
+    }
+    return fields;
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte bytes[] = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Closes the file and unmaps it, after the entries which are being read at the moment
+   */
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (closed)
+        return;
+      closed = true;
+      for (int i = 0; i < segments.length; i++) {
+        MemoryMapUtils.unmap(segments[i]);
+        segments[i] = null;
+      }
+      channel.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Parses the library file and writes the compiled library. The file is written under a temporary
+   * name first, so other searches never see an incomplete file.
+   *
+   * @return false if the task was canceled
+   */
+  private static boolean compile(AbstractTask task, File libraryFile, File compiledFile)
+      throws UnsupportedFormatException, IOException {
+
+    logger.info("Compiling spectral library " + libraryFile + " to " + compiledFile);
+
+    // Throws a FileSystemException if the directory cannot be written
+    File tmpFile = Files.createTempFile(compiledFile.getAbsoluteFile().getParentFile().toPath(),
+        compiledFile.getName(), ".tmp").toFile();
+    try {
+      LibraryWriter writer = new LibraryWriter(tmpFile);
+      try {
+        AutoLibraryParser parser = new AutoLibraryParser(1000, writer);
+        if (!parser.parse(task, libraryFile) || task.isCanceled())
+          return false;
+      } finally {
+        writer.close();
+      }
+      writer.writeIndexAndHeader(libraryFile);
+
+      Files.move(tmpFile.toPath(), compiledFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      logger.info("Compiled " + writer.numOfEntries + " library entries of " + libraryFile);
+      return true;
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Writes the entries while they are parsed, and the index at the end
+   */
+  private static class LibraryWriter implements LibraryEntryProcessor {
+
+    private final File file;
+    private final DataOutputStream out;
+    private long position = HEADER_SIZE;
+    private IOException error;
+
+    // In the order of the library file
+    private int numOfEntries = 0;
+    private long entryOffsets[] = new long[1024];
+    private double precursorMZValues[] = new double[1024];
+    private double rtValues[] = new double[1024];
+
+    LibraryWriter(File file) throws IOException {
+      this.file = file;
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      // The header is written at the end
+      out.write(new byte[HEADER_SIZE]);
+    }
+
+    @Override
+    public synchronized void processNextEntries(List<SpectralDBEntry> list,
+        int alreadyProcessed) {
+      if (error != null)
+        return;
+      try {
+        for (SpectralDBEntry entry : list)
+          writeEntry(entry);
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+
+    private void writeEntry(SpectralDBEntry entry) throws IOException {
+
+      final DataPoint dataPoints[] = entry.getDataPoints();
+      final byte metadata[] = writeFields(entry);
+      final long size = Integer.BYTES + 2L * dataPoints.length * Double.BYTES + Integer.BYTES
+          + metadata.length;
+      if (size > SEGMENT_SIZE)
+        throw new IOException(
+            "Library entry with " + dataPoints.length + " data points is too big");
+
+      // Entries must not cross a segment border
+      final long segmentEnd = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+      if (position + size > segmentEnd) {
+        out.write(new byte[(int) (segmentEnd - position)]);
+        position = segmentEnd;
+      }
+
+      if (numOfEntries == entryOffsets.length) {
+        entryOffsets = Arrays.copyOf(entryOffsets, numOfEntries * 2);
+        precursorMZValues = Arrays.copyOf(precursorMZValues, numOfEntries * 2);
+        rtValues = Arrays.copyOf(rtValues, numOfEntries * 2);
+      }
+      final Double precursorMZ = entry.getPrecursorMZ();
+      final Object rt = entry.getField(DBEntryField.RT).orElse(null);
+      entryOffsets[numOfEntries] = position;
+      precursorMZValues[numOfEntries] = (precursorMZ == null) ? Double.NaN : precursorMZ;
+      rtValues[numOfEntries] = (rt instanceof Number) ? ((Number) rt).doubleValue() : Double.NaN;
+      numOfEntries++;
+
+      out.writeInt(dataPoints.length);
+      for (DataPoint dp : dataPoints)
+        out.writeDouble(dp.getMZ());
+      for (DataPoint dp : dataPoints)
+        out.writeDouble(dp.getIntensity());
+      out.writeInt(metadata.length);
+      out.write(metadata);
+      position += size;
+    }
+
+    private static byte[] writeFields(SpectralDBEntry entry) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream fieldsOut = new DataOutputStream(bytes);
+      List<DBEntryField> fields = new ArrayList<>();
+      for (DBEntryField field : DBEntryField.values()) {
+        if (entry.getField(field).isPresent())
+          fields.add(field);
+      }
+      fieldsOut.writeInt(fields.size());
+      for (DBEntryField field : fields) {
+        writeString(fieldsOut, field.name());
+        final Object value = entry.getField(field).get();
+        if (value instanceof Double) {
+          fieldsOut.writeByte(DOUBLE);
+          fieldsOut.writeDouble((Double) value);
+        } else if (value instanceof Integer) {
+          fieldsOut.writeByte(INTEGER);
+          fieldsOut.writeInt((Integer) value);
+        } else if (value instanceof Float) {
+          fieldsOut.writeByte(FLOAT);
+          fieldsOut.writeFloat((Float) value);
+        } else if (value instanceof Long) {
+          fieldsOut.writeByte(LONG);
+          fieldsOut.writeLong((Long) value);
+        } else {
+          fieldsOut.writeByte(STRING);
+          writeString(fieldsOut, value.toString());
+        }
+      }
+      fieldsOut.flush();
+      return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+      byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    void close() throws IOException {
+      out.close();
+    }
+
+    /**
+     * Appends the index and writes the header, after all entries were written and the stream was
+     * closed
+     */
+    void writeIndexAndHeader(File libraryFile) throws IOException {
+
+      if (error != null)
+        throw error;
+
+      final Integer withPrecursorMZ[] = IntStream.range(0, numOfEntries)
+          .filter(i -> !Double.isNaN(precursorMZValues[i])).boxed().toArray(Integer[]::new);
+      Arrays.sort(withPrecursorMZ, Comparator.comparingDouble(i -> precursorMZValues[i]));
+      final Integer withRT[] = IntStream.range(0, numOfEntries)
+          .filter(i -> !Double.isNaN(rtValues[i])).boxed().toArray(Integer[]::new);
+      Arrays.sort(withRT, Comparator.comparingDouble(i -> rtValues[i]));
+
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+
+        raf.seek(position);
+        DataOutputStream indexOut = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(raf.getFD())));
+        for (int i = 0; i < numOfEntries; i++)
+          indexOut.writeLong(entryOffsets[i]);
+        for (Integer i : withPrecursorMZ)
+          indexOut.writeDouble(precursorMZValues[i]);
+        for (Integer i : withPrecursorMZ)
+          indexOut.writeInt(i);
+        for (Integer i : withRT)
+          indexOut.writeDouble(rtValues[i]);
+        for (Integer i : withRT)
+          indexOut.writeInt(i);
+        for (int i = 0; i < numOfEntries; i++) {
+          if (Double.isNaN(rtValues[i]))
+            indexOut.writeInt(i);
+        }
+        indexOut.flush();
+
+        raf.seek(0);
+        raf.writeLong(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeLong(libraryFile.length());
+        raf.writeLong(libraryFile.lastModified());
+        raf.writeInt(numOfEntries);
+        raf.writeInt(withPrecursorMZ.length);
+        raf.writeInt(withRT.length);
+        raf.writeLong(position);
+      }
+    }
+  }
+
+}